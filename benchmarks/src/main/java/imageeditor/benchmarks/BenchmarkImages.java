@@ -0,0 +1,130 @@
+/* BenchmarkImages.java
+ *
+ *  Part of ImageEditor benchmarks - supplies the pixels the benchmarks run
+ *  on.  Each image is available both as grayscale values in the range
+ *  0 .. 255 and as packed RGB colors, in the same one-dimensional row by row
+ *  layout that ProjectImage accepts without copying.
+ */
+
+package imageeditor.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+
+final class BenchmarkImages
+{
+    // This class is not meant to be instantiated
+
+    private BenchmarkImages()
+    {
+    }
+
+    /** Get the pixels of a benchmark image
+     *
+     *  @param name the image wanted - "parrots" for the image bundled with
+     *         the project, or "1mp", "16mp" or "64mp" for a synthetic image of
+     *         about that many megapixels
+     *  @param color true for packed RGB colors, false for grayscale values
+     *  @return the pixels, described by their width and height
+     *  @exception IOException if the bundled image cannot be read
+     */
+    static Pixels load(String name, boolean color) throws IOException
+    {
+        if (name.equals("parrots"))
+            return read(new File(System.getProperty(PARROTS_PROPERTY, PARROTS_DEFAULT)),
+                        color);
+        else if (name.equals("1mp"))
+            return synthesize(1024, 1024, color);
+        else if (name.equals("16mp"))
+            return synthesize(4096, 4096, color);
+        else if (name.equals("64mp"))
+            return synthesize(8192, 8192, color);
+        else
+            throw new IllegalArgumentException("Unknown image " + name);
+    }
+
+    /** Read an image file
+     *
+     *  @param file the file to read
+     *  @param color true for packed RGB colors, false for grayscale values
+     *  @return the pixels of the file
+     *  @exception IOException if the file cannot be read
+     */
+    private static Pixels read(File file, boolean color) throws IOException
+    {
+        BufferedImage image = ImageIO.read(file);
+        if (image == null)
+            throw new IOException("Cannot read " + file + " - set -D"
+                                  + PARROTS_PROPERTY + " to its location");
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int [] data = image.getRGB(0, 0, width, height, null, 0, width);
+        if (! color)
+            for (int i = 0; i < data.length; i ++)
+                data[i] = luminance(data[i]);
+        return new Pixels(width, height, data);
+    }
+
+    /** Create a synthetic image - smooth gradients with a deterministic
+     *  amount of noise, so that every operation has something to work on
+     *
+     *  @param width the width of the image
+     *  @param height the height of the image
+     *  @param color true for packed RGB colors, false for grayscale values
+     *  @return the pixels of the image
+     */
+    private static Pixels synthesize(int width, int height, boolean color)
+    {
+        int [] data = new int [width * height];
+        int noise = 12345;
+        for (int row = 0; row < height; row ++)
+            for (int col = 0; col < width; col ++)
+            {
+                noise = noise * 1103515245 + 12345;
+                int jitter = (noise >>> 24) & 0x1f;
+                int red = (col * 255 / width + jitter) & 0xff;
+                int green = (row * 255 / height + jitter) & 0xff;
+                int blue = ((row + col) * 127 / (width + height) + jitter) & 0xff;
+                int rgb = 0xff000000 | (red << 16) | (green << 8) | blue;
+                data[row * width + col] = color ? rgb : luminance(rgb);
+            }
+        return new Pixels(width, height, data);
+    }
+
+    /** Convert a packed RGB color to a grayscale value
+     *
+     *  @param rgb the color
+     *  @return its brightness, in the range 0 .. 255
+     */
+    private static int luminance(int rgb)
+    {
+        int red = (rgb >> 16) & 0xff;
+        int green = (rgb >> 8) & 0xff;
+        int blue = rgb & 0xff;
+        return (red * 299 + green * 587 + blue * 114) / 1000;
+    }
+
+    /** The pixels of a benchmark image
+     */
+    static final class Pixels
+    {
+        Pixels(int width, int height, int [] data)
+        {
+            this.width = width;
+            this.height = height;
+            this.data = data;
+        }
+
+        final int width;
+        final int height;
+        final int [] data;
+    }
+
+    // Where to find the image bundled with the project - by default, relative
+    // to the project directory
+
+    private static final String PARROTS_PROPERTY = "imageeditor.parrots";
+    private static final String PARROTS_DEFAULT = "images/Parrots.jpg";
+}
@@ -0,0 +1,46 @@
+/* BenchmarkMain.java
+ *
+ *  Part of ImageEditor benchmarks - runs the benchmarks with the settings
+ *  used to compare releases: the GC profiler is always on, so that each
+ *  result reports its allocation rate alongside its throughput, and unless
+ *  told otherwise the results are written as JSON to jmh-result.json.  Any
+ *  of the usual JMH command line options may be given as well.
+ */
+
+package imageeditor.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+public final class BenchmarkMain
+{
+    // This class is not meant to be instantiated
+
+    private BenchmarkMain()
+    {
+    }
+
+    /** Main program
+     *
+     *  @param args JMH command line options
+     *  @exception Exception if the options are invalid or a benchmark fails
+     */
+    public static void main(String [] args) throws Exception
+    {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        ChainedOptionsBuilder options = new OptionsBuilder()
+            .parent(commandLine)
+            .addProfiler(GCProfiler.class);
+        if (! commandLine.getResultFormat().hasValue())
+            options.resultFormat(ResultFormatType.JSON);
+        if (! commandLine.getResult().hasValue())
+            options.result(DEFAULT_RESULT_FILE);
+        new Runner(options.build()).run();
+    }
+
+    private static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+}
@@ -0,0 +1,453 @@
+/* ProjectImageBenchmark.java
+ *
+ *  Part of ImageEditor benchmarks - measures the throughput of every public
+ *  operation of ProjectImage, on each benchmark image as grayscale and as
+ *  packed color.
+ *
+ *  Each benchmark keeps one image for the whole trial, so that the buffers
+ *  its operations leave for reuse are there as they are in the editor.
+ *  Every operation starts by putting the original pixels back into it with
+ *  setPixels(), which copies them into a reused buffer, so that nothing the
+ *  size of the image is allocated outside the operation itself; resetImage
+ *  measures that copy alone, to be taken off the others.  The pixels are
+ *  not put back by a setup method run for each call, since most of these
+ *  calls take well under a millisecond, too little for JMH to time such a
+ *  method apart from them.
+ *
+ *  Some operations are only recorded when they are called and carried out
+ *  when the pixels are next needed, so each benchmark finishes by asking for
+ *  the image's BufferedImage view - this performs any work that is still
+ *  outstanding without copying the pixels.
+ */
+
+package imageeditor.benchmarks;
+
+import imageeditor.GrayScaleColorModel;
+import imageeditor.ProjectImage;
+import imageeditor.Selection;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms6g", "-Xmx6g", "-Djava.awt.headless=true" })
+public class ProjectImageBenchmark
+{
+    /**************************************************************************
+     * Images
+     *************************************************************************/
+
+    /** An image to operate on, grayscale or color
+     */
+    @State(Scope.Thread)
+    public static class ImageState
+    {
+        /** Load the original pixels of the image, and make the image kept
+         *  for the trial
+         *
+         *  @exception IOException if the bundled image cannot be read
+         */
+        @Setup(Level.Trial)
+        public void loadPixels() throws IOException
+        {
+            boolean color = model.equals("color");
+            pixels = BenchmarkImages.load(image, color);
+            ColorModel colorModel = color ? ColorModel.getRGBdefault()
+                                          : new GrayScaleColorModel();
+            projectImage = new ProjectImage(colorModel, pixels.width, pixels.height,
+                                            pixels.data.clone());
+        }
+
+        /** Put the original pixels back into the image, whatever the last
+         *  operation did to it
+         *
+         *  @return the image
+         */
+        ProjectImage reset()
+        {
+            projectImage.setPixels(pixels.width, pixels.height, pixels.data);
+            return projectImage;
+        }
+
+        @Param({ "parrots", "1mp", "16mp", "64mp" })
+        public String image;
+
+        @Param({ "gray", "color" })
+        public String model;
+
+        ProjectImage projectImage;
+
+        private BenchmarkImages.Pixels pixels;
+    }
+
+    /** A grayscale image, for the operations that only apply to grayscale
+     *  values
+     */
+    @State(Scope.Thread)
+    public static class GrayImageState
+    {
+        /** Load the pixels of the image
+         *
+         *  @exception IOException if the bundled image cannot be read
+         */
+        @Setup(Level.Trial)
+        public void loadPixels() throws IOException
+        {
+            BenchmarkImages.Pixels pixels = BenchmarkImages.load(image, false);
+            projectImage = new ProjectImage(new GrayScaleColorModel(),
+                                            pixels.width, pixels.height,
+                                            pixels.data.clone());
+            editedRows = new int [EDITED_ROWS * pixels.width];
+        }
+
+        @Param({ "parrots", "1mp", "16mp", "64mp" })
+        public String image;
+
+        ProjectImage projectImage;
+        int [] editedRows;
+    }
+
+    /**************************************************************************
+     * Mutators
+     *************************************************************************/
+
+    /** Only put the original pixels back, as every mutator benchmark does
+     *  before its operation
+     */
+    @Benchmark
+    public BufferedImage resetImage(ImageState state)
+    {
+        return state.reset().getBufferedImage();
+    }
+
+    @Benchmark
+    public BufferedImage lighten(ImageState state)
+    {
+        ProjectImage image = state.reset();
+        image.lighten();
+        return image.getBufferedImage();
+    }
+
+    @Benchmark
+    public BufferedImage darken(ImageState state)
+    {
+        ProjectImage image = state.reset();
+        image.darken();
+        return image.getBufferedImage();
+    }
+
+    @Benchmark
+    public BufferedImage negative(ImageState state)
+    {
+        ProjectImage image = state.reset();
+        image.negative();
+        return image.getBufferedImage();
+    }
+
+    @Benchmark
+    public BufferedImage reduceContrast(ImageState state)
+    {
+        ProjectImage image = state.reset();
+        image.reduceContrast();
+        return image.getBufferedImage();
+    }
+
+    @Benchmark
+    public BufferedImage enhanceContrast(ImageState state)
+    {
+        ProjectImage image = state.reset();
+        image.enhanceContrast();
+        return image.getBufferedImage();
+    }
+
+    @Benchmark
+    public BufferedImage flipHorizontally(ImageState state)
+    {
+        ProjectImage image = state.reset();
+        image.flipHorizontally();
+        return image.getBufferedImage();
+    }
+
+    @Benchmark
+    public BufferedImage flipVertically(ImageState state)
+    {
+        ProjectImage image = state.reset();
+        image.flipVertically();
+        return image.getBufferedImage();
+    }
+
+    @Benchmark
+    public BufferedImage encryptDecrypt(ImageState state)
+    {
+        ProjectImage image = state.reset();
+        image.encryptDecrypt(ENCRYPTION_KEY);
+        return image.getBufferedImage();
+    }
+
+    @Benchmark
+    public BufferedImage halve(ImageState state)
+    {
+        ProjectImage image = state.reset();
+        image.halve();
+        return image.getBufferedImage();
+    }
+
+    @Benchmark
+    public BufferedImage shiftHorizontally(ImageState state)
+    {
+        ProjectImage image = state.reset();
+        image.shiftHorizontally(1);
+        return image.getBufferedImage();
+    }
+
+    @Benchmark
+    public BufferedImage shiftVertically(ImageState state)
+    {
+        ProjectImage image = state.reset();
+        image.shiftVertically(1);
+        return image.getBufferedImage();
+    }
+
+    @Benchmark
+    public BufferedImage rotate(ImageState state)
+    {
+        ProjectImage image = state.reset();
+        image.rotate();
+        return image.getBufferedImage();
+    }
+
+    @Benchmark
+    public BufferedImage rotate180(ImageState state)
+    {
+        ProjectImage image = state.reset();
+        image.rotate180();
+        return image.getBufferedImage();
+    }
+
+    @Benchmark
+    public BufferedImage rotateByAngle(ImageState state)
+    {
+        ProjectImage image = state.reset();
+        image.rotate(ROTATION_DEGREES);
+        return image.getBufferedImage();
+    }
+
+    @Benchmark
+    public BufferedImage doubleSize(ImageState state)
+    {
+        ProjectImage image = state.reset();
+        image.doubleSize();
+        return image.getBufferedImage();
+    }
+
+    @Benchmark
+    public BufferedImage resizeToThumbnail(ImageState state)
+    {
+        ProjectImage image = state.reset();
+        int height = Math.max(1, (int) ((long) image.getHeight() * THUMBNAIL_WIDTH / image.getWidth()));
+        image.resize(THUMBNAIL_WIDTH, height, ProjectImage.ResizeFilter.LANCZOS);
+        return image.getBufferedImage();
+    }
+
+    @Benchmark
+    public BufferedImage resizeByThreeQuarters(ImageState state)
+    {
+        ProjectImage image = state.reset();
+        image.resize(image.getWidth() * 3 / 4, image.getHeight() * 3 / 4,
+                     ProjectImage.ResizeFilter.BICUBIC);
+        return image.getBufferedImage();
+    }
+
+    @Benchmark
+    public BufferedImage applyBlurFilter(ImageState state)
+    {
+        ProjectImage image = state.reset();
+        image.applyFilter(BLUR_FILTER);
+        return image.getBufferedImage();
+    }
+
+    @Benchmark
+    public BufferedImage applySharpenFilter(ImageState state)
+    {
+        ProjectImage image = state.reset();
+        image.applyFilter(SHARPEN_FILTER);
+        return image.getBufferedImage();
+    }
+
+    @Benchmark
+    public BufferedImage applyEdgeFilter(ImageState state)
+    {
+        ProjectImage image = state.reset();
+        image.applyFilter(EDGE_FILTER);
+        return image.getBufferedImage();
+    }
+
+    @Benchmark
+    public BufferedImage applyLargeFilter(ImageState state)
+    {
+        ProjectImage image = state.reset();
+        image.applyFilter(LARGE_FILTER);
+        return image.getBufferedImage();
+    }
+
+    @Benchmark
+    public BufferedImage medianFilter(ImageState state)
+    {
+        ProjectImage image = state.reset();
+        image.medianFilter(MEDIAN_RADIUS);
+        return image.getBufferedImage();
+    }
+
+    @Benchmark
+    public BufferedImage bilateralFilter(ImageState state)
+    {
+        ProjectImage image = state.reset();
+        image.bilateralFilter(BILATERAL_SPATIAL_SIGMA, BILATERAL_RANGE_SIGMA);
+        return image.getBufferedImage();
+    }
+
+    @Benchmark
+    public BufferedImage lightenSelection(ImageState state)
+    {
+        ProjectImage image = state.reset();
+        image.setSelection(centralSelection(image));
+        image.lighten();
+        return image.getBufferedImage();
+    }
+
+    @Benchmark
+    public BufferedImage applySharpenFilterToSelection(ImageState state)
+    {
+        ProjectImage image = state.reset();
+        image.setSelection(centralSelection(image));
+        image.applyFilter(SHARPEN_FILTER);
+        return image.getBufferedImage();
+    }
+
+    /** Select a rectangle in the middle of an image, a fraction of its width
+     *  and height across, so that the selection benchmarks show how the cost
+     *  follows the selected area rather than the whole image
+     *
+     *  @param image the image to select part of
+     *  @return the selection
+     */
+    private static Selection centralSelection(ProjectImage image)
+    {
+        int width = Math.max(1, image.getWidth() / SELECTION_FRACTION);
+        int height = Math.max(1, image.getHeight() / SELECTION_FRACTION);
+        return Selection.rectangle((image.getWidth() - width) / 2,
+                                   (image.getHeight() - height) / 2,
+                                   width, height);
+    }
+
+    /** Create an emboss filter that is neither a box nor separable, so that
+     *  only the direct way or the Fourier transform can apply it
+     *
+     *  @param size the number of rows and columns
+     *  @return the filter
+     */
+    private static double [] [] embossFilter(int size)
+    {
+        double [] [] filter = new double [size] [size];
+        for (int y = 0; y < size; y ++)
+            for (int x = 0; x < size; x ++)
+                filter[y][x] = (double) (x - y) / (size * size);
+        filter[size / 2][size / 2] += 1;
+        return filter;
+    }
+
+    /**************************************************************************
+     * Accessors
+     *************************************************************************/
+
+    @Benchmark
+    public int [] calculateHistogram(GrayImageState state)
+    {
+        return state.projectImage.calculateHistogram();
+    }
+
+    @Benchmark
+    public int [] getPixelsIntRGB(ImageState state)
+    {
+        return state.projectImage.getPixelsIntRGB();
+    }
+
+    /** Repaint a view showing the image at an eighth of its size after an
+     *  edit to a few rows.  The image is kept from one call to the next, so
+     *  this measures bringing the reduced copy up to date, not building it
+     */
+    @Benchmark
+    public BufferedImage getDisplayImageAfterEdit(GrayImageState state)
+    {
+        state.projectImage.setRows(0, EDITED_ROWS, state.editedRows);
+        return state.projectImage.getDisplayImage(DISPLAY_SCALE);
+    }
+
+    // The rows getDisplayImageAfterEdit() changes, and the scale it shows
+    // the image at
+
+    private static final int EDITED_ROWS = 16;
+    private static final double DISPLAY_SCALE = 0.125;
+
+    // The width resizeToThumbnail() shrinks images to
+
+    private static final int THUMBNAIL_WIDTH = 256;
+
+    // The angle rotateByAngle() turns images by
+
+    private static final double ROTATION_DEGREES = 30.0;
+
+    // The share of each side of the image the selection benchmarks select
+
+    private static final int SELECTION_FRACTION = 8;
+
+    // The sizes of the noise filters
+
+    private static final int MEDIAN_RADIUS = 5;
+    private static final double BILATERAL_SPATIAL_SIGMA = 8.0;
+    private static final double BILATERAL_RANGE_SIGMA = 20.0;
+
+    // The filters offered by the GUI's Blur, Sharpen and Edges buttons
+
+    private static final double [] [] BLUR_FILTER = {
+        { 1.0/16.0, 1.0/16.0, 1.0/16.0 },
+        { 1.0/16.0, 1.0/2.0, 1.0/16.0 },
+        { 1.0/16.0, 1.0/16.0, 1.0/16.0 }
+    };
+
+    private static final double [] [] SHARPEN_FILTER = {
+        { -0.1, -0.1, -0.1 },
+        { -0.1, 1.8, -0.1 },
+        { -0.1, -0.1, -0.1 }
+    };
+
+    private static final double [] [] EDGE_FILTER = {
+        { -1, -1, -1, -1, -1 },
+        { -1,  1,  1,  1, -1 },
+        { -1,  1,  8,  1, -1 },
+        { -1,  1,  1,  1, -1 },
+        { -1, -1, -1, -1, -1 }
+    };
+
+    // A filter of the size used for custom deblur and emboss filters
+
+    private static final double [] [] LARGE_FILTER = embossFilter(15);
+
+    private static final int ENCRYPTION_KEY = 12345;
+}
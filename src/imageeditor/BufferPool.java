@@ -0,0 +1,126 @@
+/* BufferPool.java
+ *
+ *  Part of ImageEditor project - buffers a ProjectImage has finished with,
+ *  kept to be handed out again.  An operation takes the buffer for its
+ *  result, and any large scratch buffer it needs, from the pool, and the
+ *  image gives back the buffer it held before.  So an operation that leaves
+ *  the size as it was writes into the buffer the one before it gave up, the
+ *  two buffers taking turns to hold the image, and editing allocates
+ *  nothing once the pool holds the buffers it needs.  Buffers whose size
+ *  comes round again - as when an edit that changes the size is undone -
+ *  are reused the same way.
+ *
+ *  A buffer is matched by its width, its height and the kind of array it
+ *  holds.  A buffer taken from the pool holds whatever was last written to
+ *  it, so whoever takes one must write every pixel it reads.  The pool
+ *  holds a few buffers at most, discarding the one given longest ago to
+ *  make room.  It is used by one operation at a time, and only from the
+ *  thread that carries the operation out - never from the tasks it hands to
+ *  ParallelEngine.
+ */
+
+package imageeditor;
+
+import java.util.ArrayList;
+
+final class BufferPool
+{
+    /** Constructor
+     *
+     *  @param capacity the most buffers the pool may hold
+     */
+    BufferPool(int capacity)
+    {
+        this.capacity = capacity;
+        buffers = new ArrayList<PixelBuffer>(capacity);
+    }
+
+    /** Get a compact buffer of ints, from the pool if it holds one of the
+     *  right size
+     *
+     *  @param width the number of pixels in each row
+     *  @param height the number of rows
+     *  @return the buffer - its pixels may hold anything
+     */
+    PixelBuffer take(int width, int height)
+    {
+        PixelBuffer buffer = remove(width, height, false);
+        return buffer != null ? buffer : new PixelBuffer(width, height);
+    }
+
+    /** Get a compact buffer of bytes, from the pool if it holds one of the
+     *  right size
+     *
+     *  @param width the number of pixels in each row
+     *  @param height the number of rows
+     *  @return the buffer - its pixels may hold anything
+     */
+    PixelBuffer takeBytes(int width, int height)
+    {
+        PixelBuffer buffer = remove(width, height, true);
+        return buffer != null ? buffer : PixelBuffer.ofBytes(width, height);
+    }
+
+    /** Get a compact buffer of the same kind of array as another buffer
+     *
+     *  @param width the number of pixels in each row
+     *  @param height the number of rows
+     *  @param like a buffer holding the kind of array wanted
+     *  @return the buffer - its pixels may hold anything
+     */
+    PixelBuffer takeLike(int width, int height, PixelBuffer like)
+    {
+        return like.holdsBytes() ? takeBytes(width, height) : take(width, height);
+    }
+
+    /** Give a buffer back to the pool.  Nothing else may use it afterwards.
+     *  A buffer that shares its array with pixels outside it is not kept
+     *
+     *  @param buffer the buffer given up, or null
+     */
+    void give(PixelBuffer buffer)
+    {
+        if (buffer == null || capacity == 0 || ! buffer.isCompact()
+            || buffer.getArrayLength() != buffer.getWidth() * buffer.getHeight())
+            return;
+        if (buffers.size() == capacity)
+            buffers.remove(0);
+        buffers.add(buffer);
+    }
+
+    /** Discard every buffer the pool holds
+     */
+    void clear()
+    {
+        buffers.clear();
+    }
+
+    /** Take a buffer out of the pool
+     *
+     *  @param width the width wanted
+     *  @param height the height wanted
+     *  @param bytes true if a buffer of bytes is wanted
+     *  @return the buffer given most recently that matches, or null if none
+     *          does
+     */
+    private PixelBuffer remove(int width, int height, boolean bytes)
+    {
+        for (int i = buffers.size() - 1; i >= 0; i --)
+        {
+            PixelBuffer buffer = buffers.get(i);
+            if (buffer.getWidth() == width && buffer.getHeight() == height
+                && buffer.holdsBytes() == bytes)
+                return buffers.remove(i);
+        }
+        return null;
+    }
+
+    // A pool that keeps nothing, for work whose buffers are not reused
+
+    static final BufferPool NONE = new BufferPool(0);
+
+    // The buffers held, the one given longest ago first
+
+    private final int capacity;
+    private final ArrayList<PixelBuffer> buffers;
+}
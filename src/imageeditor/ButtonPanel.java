@@ -25,6 +25,51 @@ public class ButtonPanel extends JPanel
     {
         super();
         setLayout(new GridLayout(3, 0));
+        
+        // Keep an undo history for every image opened from now on
+        
+        ProjectImage.setDefaultHistoryBudget(HISTORY_BUDGET);
+        
+        // Measure every operation, so that the time the last one took can
+        // be shown beside the buttons, and the figures read through JMX
+        
+        OperationMetrics.setEnabled(true);
+        OperationMetrics.registerMBean();
+        statusLabel = new JLabel("", SwingConstants.CENTER);
+        
+        // Edits are carried out in the background - while any are queued or
+        // running, the wait cursor is shown and they can be cancelled
+        
+        final JButton cancelButton = new JButton("Cancel");
+        cancelButton.setEnabled(false);
+        executor = new EditExecutor(new EditExecutor.Listener() {
+            public void busyChanged(boolean busy)
+            {
+                cancelButton.setEnabled(busy);
+                gui.getFrame().setCursor(busy
+                    ? Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR) : null);
+            }
+
+            public void editsFinished(ProjectImage image)
+            {
+                if (image == gui.getImage())
+                    redisplay(gui);
+                showStatus();
+            }
+
+            public void editFailed(ProjectImage image, Throwable problem)
+            {
+                if (image == gui.getImage())
+                    redisplay(gui);
+                showStatus();
+                JOptionPane.showMessageDialog(gui.getFrame(),
+                    problem instanceof OutOfMemoryError
+                        ? "Resulting image would be too big"
+                        : String.valueOf(problem.getMessage()),
+                    "Error",
+                    JOptionPane.ERROR_MESSAGE);
+            }
+        });
 
         // Create the individual buttons
 
@@ -33,9 +78,7 @@ public class ButtonPanel extends JPanel
         lightenButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e)
             {
-                if (gui.getImage() == null) return;
-                gui.getImage().lighten();
-                gui.redisplayImage(false);
+                submit(gui, EditExecutor.pointOperation(ProjectImage.PointOperation.LIGHTEN));
             }
         });
         
@@ -45,9 +88,7 @@ public class ButtonPanel extends JPanel
         darkenButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e)
             {
-                if (gui.getImage() == null) return;
-                gui.getImage().darken();
-                gui.redisplayImage(false);
+                submit(gui, EditExecutor.pointOperation(ProjectImage.PointOperation.DARKEN));
             }
         });
         
@@ -57,9 +98,7 @@ public class ButtonPanel extends JPanel
         negativeButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e)
             {
-                if (gui.getImage() == null) return;
-                gui.getImage().negative();
-                gui.redisplayImage(false);
+                submit(gui, EditExecutor.pointOperation(ProjectImage.PointOperation.NEGATIVE));
             }
         });
 
@@ -69,9 +108,7 @@ public class ButtonPanel extends JPanel
         reduceContrastButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e)
             {
-                if (gui.getImage() == null) return;
-                gui.getImage().reduceContrast();
-                gui.redisplayImage(false);
+                submit(gui, EditExecutor.pointOperation(ProjectImage.PointOperation.REDUCE_CONTRAST));
             }
         });
 
@@ -81,9 +118,7 @@ public class ButtonPanel extends JPanel
         enhanceContrastButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e)
             {
-                if (gui.getImage() == null) return;
-                gui.getImage().enhanceContrast();
-                gui.redisplayImage(false);
+                submit(gui, EditExecutor.pointOperation(ProjectImage.PointOperation.ENHANCE_CONTRAST));
             }
         });
 
@@ -93,9 +128,7 @@ public class ButtonPanel extends JPanel
         flipHButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e)
             {
-                if (gui.getImage() == null) return;
-                gui.getImage().flipHorizontally();
-                gui.redisplayImage(false);
+                submit(gui, EditExecutor.flip(true));
             }
         });
         
@@ -105,9 +138,7 @@ public class ButtonPanel extends JPanel
         flipVButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e)
             {
-                if (gui.getImage() == null) return;
-                gui.getImage().flipVertically();
-                gui.redisplayImage(false);
+                submit(gui, EditExecutor.flip(false));
             }
         });
 
@@ -118,7 +149,7 @@ public class ButtonPanel extends JPanel
             public void actionPerformed(ActionEvent e)
             {
                 if (gui.getImage() == null) return;
-                int seed;
+                final int seed;
                 String keyString = JOptionPane.showInputDialog(
                     gui.getFrame(), "Key?", "", JOptionPane.QUESTION_MESSAGE);
                 if (keyString != null)
@@ -128,8 +159,12 @@ public class ButtonPanel extends JPanel
                         seed = Integer.parseInt(keyString);
                         if (seed <= 0)
                             throw new NumberFormatException();
-                        gui.getImage().encryptDecrypt(seed);
-                        gui.redisplayImage(false);
+                        submit(gui, new EditExecutor.Edit() {
+                            void apply(ProjectImage image)
+                            {
+                                image.encryptDecrypt(seed);
+                            }
+                        });
                     }
                     catch(NumberFormatException exception)
                     {
@@ -154,7 +189,23 @@ public class ButtonPanel extends JPanel
 // setHistogram with a null parameter (which uses the professor's version) and
 // remove the comment symbol from the line that calls your version.
 //                gui.showHistogram(null);
-                gui.showHistogram(gui.getImage().calculateHistogram());
+                submit(gui, new EditExecutor.Edit() {
+                    void apply(ProjectImage image)
+                    {
+                        final int [] histogram = image.calculateHistogram();
+                        SwingUtilities.invokeLater(new Runnable() {
+                            public void run()
+                            {
+                                gui.showHistogram(histogram);
+                            }
+                        });
+                    }
+                    
+                    boolean changesImage()
+                    {
+                        return false;
+                    }
+                });
             }
         });
         JButton halveButton = new JButton("Halve");
@@ -162,9 +213,12 @@ public class ButtonPanel extends JPanel
         halveButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e)
             {
-                if (gui.getImage() == null) return;
-                gui.getImage().halve();
-                gui.redisplayImage(true);
+                submit(gui, new EditExecutor.Edit() {
+                    void apply(ProjectImage image)
+                    {
+                        image.halve();
+                    }
+                });
             }
         });
 
@@ -173,9 +227,7 @@ public class ButtonPanel extends JPanel
         shiftLeftButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e)
             {
-                if (gui.getImage() == null) return;
-                gui.getImage().shiftHorizontally(-1);
-                gui.redisplayImage(false);
+                submit(gui, EditExecutor.shift(0, -1));
             }
         });
 
@@ -185,9 +237,7 @@ public class ButtonPanel extends JPanel
         shiftRightButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e)
             {
-                if (gui.getImage() == null) return;
-                gui.getImage().shiftHorizontally(1);
-                gui.redisplayImage(false);
+                submit(gui, EditExecutor.shift(0, 1));
             }
         });
 
@@ -197,9 +247,7 @@ public class ButtonPanel extends JPanel
         shiftUpButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e)
             {
-                if (gui.getImage() == null) return;
-                gui.getImage().shiftVertically(-1);
-                gui.redisplayImage(false);
+                submit(gui, EditExecutor.shift(-1, 0));
             }
         });
 
@@ -209,9 +257,7 @@ public class ButtonPanel extends JPanel
         shiftDownButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e)
             {
-                if (gui.getImage() == null) return;
-                gui.getImage().shiftVertically(1);
-                gui.redisplayImage(false);
+                submit(gui, EditExecutor.shift(1, 0));
             }
         });
 
@@ -221,9 +267,12 @@ public class ButtonPanel extends JPanel
         rotateButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e)
             {
-                if (gui.getImage() == null) return;
-                gui.getImage().rotate();
-                gui.redisplayImage(true);
+                submit(gui, new EditExecutor.Edit() {
+                    void apply(ProjectImage image)
+                    {
+                        image.rotate();
+                    }
+                });
             }
         });
 
@@ -233,24 +282,17 @@ public class ButtonPanel extends JPanel
         doubleButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e)
             {
-                if (gui.getImage() == null) return;
-                ColorModel savedColorModel = gui.getImage().getColorModel();
-                int [] [] savedPixels = gui.getImage().getPixels();
-                try
-                {
-                    gui.getImage().doubleSize();
-                    gui.redisplayImage(true);
-                }
-                catch(OutOfMemoryError exception)
-                {
-                    gui.setImage(new ProjectImage(savedColorModel,
-                                                  savedPixels));
-                    gui.redisplayImage(false);
-                    JOptionPane.showMessageDialog(gui.getFrame(),
-                        "Resulting image would be too big",
-                        "Error",
-                        JOptionPane.ERROR_MESSAGE);
-                }
+                
+                // doubleSize() only replaces the image once the new buffer
+                // has been allocated, so if that fails the image is unchanged,
+                // and the failure is reported by editFailed()
+                
+                submit(gui, new EditExecutor.Edit() {
+                    void apply(ProjectImage image)
+                    {
+                        image.doubleSize();
+                    }
+                });
             }
         });
 
@@ -260,13 +302,16 @@ public class ButtonPanel extends JPanel
         blurButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent E)
             {
-                if (gui.getImage() == null) return;
-                double [] [] filter = { { 1.0/16.0, 1.0/16.0, 1.0/16.0 },
+                final double [] [] filter = { { 1.0/16.0, 1.0/16.0, 1.0/16.0 },
                                         { 1.0/16.0, 1.0/2.0, 1.0/16.0 },
                                         { 1.0/16.0, 1.0/16.0, 1.0/16.0 }
                                      };
-                gui.getImage().applyFilter(filter);
-                gui.redisplayImage(false);
+                submit(gui, new EditExecutor.Edit() {
+                    void apply(ProjectImage image)
+                    {
+                        image.applyFilter(filter);
+                    }
+                });
             }
         });
 
@@ -276,13 +321,16 @@ public class ButtonPanel extends JPanel
         sharpenButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent E)
             {
-                if (gui.getImage() == null) return;
-                double [] [] filter = { { -0.1, -0.1, -0.1 },
+                final double [] [] filter = { { -0.1, -0.1, -0.1 },
                                         { -0.1, 1.8, -0.1 },
                                         { -0.1, -0.1, -0.1 }
                                      };
-                gui.getImage().applyFilter(filter);
-                gui.redisplayImage(false);
+                submit(gui, new EditExecutor.Edit() {
+                    void apply(ProjectImage image)
+                    {
+                        image.applyFilter(filter);
+                    }
+                });
             }
         });
 
@@ -292,17 +340,132 @@ public class ButtonPanel extends JPanel
         edgeButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent E)
             {
-                if (gui.getImage() == null) return;
-                double [] [] filter = { { -1, -1, -1, -1, -1 },
+                final double [] [] filter = { { -1, -1, -1, -1, -1 },
                                         { -1,  1,  1,  1, -1 },
                                         { -1,  1,  8,  1, -1 },
                                         { -1,  1,  1,  1, -1 },
                                         { -1, -1, -1, -1, -1 }
                                      };
-                gui.getImage().applyFilter(filter);
-                gui.redisplayImage(false);
+                submit(gui, new EditExecutor.Edit() {
+                    void apply(ProjectImage image)
+                    {
+                        image.applyFilter(filter);
+                    }
+                });
+            }
+        });
+
+
+        JButton undoButton = new HoldableButton("Undo");
+        add(undoButton);
+        undoButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e)
+            {
+                submit(gui, new EditExecutor.Edit() {
+                    void apply(ProjectImage image)
+                    {
+                        if (image.canUndo())
+                            image.undo();
+                    }
+                });
             }
         });
 
+
+        JButton redoButton = new HoldableButton("Redo");
+        add(redoButton);
+        redoButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e)
+            {
+                submit(gui, new EditExecutor.Edit() {
+                    void apply(ProjectImage image)
+                    {
+                        if (image.canRedo())
+                            image.redo();
+                    }
+                });
+            }
+        });
+
+
+        add(cancelButton);
+        cancelButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e)
+            {
+                executor.cancel();
+            }
+        });
+
+        add(statusLabel);
+    }
+    
+    /** Queue an edit of the image being shown, if there is one.  A held
+     *  button clicks itself from a thread of its own, so the edit is passed
+     *  to the event dispatch thread first, where the image being shown is
+     *  changed
+     *
+     *  @param gui the gui showing the image
+     *  @param edit the edit to make
+     */
+    private void submit(final ImageEditorGUI gui, final EditExecutor.Edit edit)
+    {
+        if (! SwingUtilities.isEventDispatchThread())
+        {
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run()
+                {
+                    submit(gui, edit);
+                }
+            });
+            return;
+        }
+        if (gui.getImage() != null)
+            executor.submit(gui.getImage(), edit);
+    }
+    
+    /** Show the changes the last operation made to the image.  The GUI
+     *  rebuilds its whole view of the image when asked to redisplay it, so
+     *  the changes decide whether that is needed at all, and whether the
+     *  view has to be laid out again for a new size
+     *
+     *  @param gui the gui showing the image
+     */
+    private static void redisplay(ImageEditorGUI gui)
+    {
+        DirtyRegions changes = gui.getImage().takeDirtyRegions();
+        if (! changes.isEmpty())
+            gui.redisplayImage(changes.isSizeChanged());
+    }
+    
+    /** Show how long the last operation took, how long that operation
+     *  usually takes, and how much it allocated
+     */
+    private void showStatus()
+    {
+        OperationMetrics.Measurement latest = OperationMetrics.getLatest();
+        if (latest == null)
+            return;
+        statusLabel.setText(String.format("%s: %.1f ms", latest.getOperation().getLabel(),
+                                          latest.getMillis()));
+        OperationMetrics.Summary summary = OperationMetrics.getSummary(latest.getOperation());
+        String typical = summary == null ? ""
+            : String.format("median %.1f ms, 95%% %.1f ms over the last minute; ",
+                            summary.getMedianMillis(), summary.getP95Millis());
+        statusLabel.setToolTipText(latest.getBytes() < 0 ? typical
+            : typical + String.format("%.1f MB allocated", latest.getBytes() / BYTES_PER_MB));
     }
+    
+    // Carries out the edits away from the event dispatch thread
+    
+    private final EditExecutor executor;
+    
+    // Shows how long the last operation took
+    
+    private final JLabel statusLabel;
+    
+    // The most bytes of undo history kept for each image
+    
+    private static final long HISTORY_BUDGET = 256L * 1024 * 1024;
+    
+    private static final double BYTES_PER_MB = 1024.0 * 1024.0;
 }
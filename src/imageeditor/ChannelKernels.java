@@ -0,0 +1,396 @@
+/* ChannelKernels.java
+ *
+ *  Part of ImageEditor project - carries out the operations of a color
+ *  ProjectImage on each color of its pixels separately.  A color pixel is
+ *  an int holding alpha, red, green and blue, 8 bits each, from the most
+ *  significant end; doing arithmetic on the whole int would let one color
+ *  carry or borrow into the next.
+ *
+ *  The colors are taken apart with shifts and masks rather than through a
+ *  ColorModel.  Where possible several colors are worked on at once in one
+ *  int, each in its own lane of bits with room above it for a carry:
+ *
+ *  - lighten and darken add or subtract the amount from red and blue in one
+ *    step and green in another, and use the carry (or borrow) out of each
+ *    lane to force that lane to 255 (or 0)
+ *  - averages add alpha and green in one int and red and blue in another,
+ *    16 bits apart, so that the sum of four pixels cannot reach the next
+ *    lane
+ *
+ *  so each pixel takes a few operations with no branches, in loops simple
+ *  enough for the JIT compiler to vectorize.  Other operations use a table
+ *  for each color, or a buffer holding one color at a time.
+ *
+ *  Alpha is left as it is, except when pixels are averaged.
+ */
+
+package imageeditor;
+
+final class ChannelKernels
+{
+    // This class is not meant to be instantiated
+
+    private ChannelKernels()
+    {
+    }
+
+    /**************************************************************************
+     * Point operations
+     *************************************************************************/
+
+    /** Apply a point operation to each color of every pixel in a buffer,
+     *  one or more times over.  Results outside 0 .. 255 are forced into
+     *  that range
+     *
+     *  @param buffer the buffer holding the pixels
+     *  @param operation the operation to apply
+     *  @param times the number of times to apply it
+     *  @param maps the tables for the operation applied that many times -
+     *         from channelMaps(), for a single time
+     */
+    static void applyPointOperation(final PixelBuffer buffer,
+                                    final ProjectImage.PointOperation operation,
+                                    final int times, final int [] [] maps)
+    {
+        // Lightening or darkening repeatedly is the same as doing it once
+        // by the total amount, since each forces the result into range
+
+        final int amount = (int) Math.min(MAX_AMOUNT,
+                                          (long) ProjectImage.LIGHTEN_DARKEN_AMOUNT * times);
+        final int [] data = buffer.getData();
+        ParallelEngine.forEachRow(buffer.getHeight(), buffer.getWidth(),
+                                  new ParallelEngine.RowTask() {
+            public void processRows(int startRow, int endRow)
+            {
+                for (int row = startRow; row < endRow; row ++)
+                {
+                    int start = buffer.rowStart(row);
+                    int end = start + buffer.getWidth();
+                    switch (operation)
+                    {
+                        case LIGHTEN:
+                            for (int i = start; i < end; i ++)
+                                data[i] = lighten(data[i], amount);
+                            break;
+                        case DARKEN:
+                            for (int i = start; i < end; i ++)
+                                data[i] = darken(data[i], amount);
+                            break;
+                        case NEGATIVE:
+                            if (times % 2 != 0)
+                                for (int i = start; i < end; i ++)
+                                    data[i] ^= RGB_MASK;
+                            break;
+                        default:
+                            int [] red = maps[ImageStatistics.RED];
+                            int [] green = maps[ImageStatistics.GREEN];
+                            int [] blue = maps[ImageStatistics.BLUE];
+                            for (int i = start; i < end; i ++)
+                            {
+                                int pixel = data[i];
+                                data[i] = pixel & ALPHA_MASK
+                                        | red[pixel >> 16 & 0xff] << 16
+                                        | green[pixel >> 8 & 0xff] << 8
+                                        | blue[pixel & 0xff];
+                            }
+                            break;
+                    }
+                }
+            }
+        });
+    }
+
+    /** Build a table for each color giving the result of a point operation
+     *  on each value, forced into 0 .. 255.  The tables also say how the
+     *  counts of each value change
+     *
+     *  @param operation the operation
+     *  @param statistics the statistics of the image, giving the average of
+     *         each color - or null if the operation does not use them
+     *  @return the red, green and blue tables
+     */
+    static int [] [] channelMaps(ProjectImage.PointOperation operation,
+                                 ImageStatistics statistics)
+    {
+        int [] [] maps = new int [3] [256];
+        for (int channel = 0; channel < 3; channel ++)
+        {
+            int average = statistics == null ? 0 : statistics.getAverage(channel);
+            for (int value = 0; value < 256; value ++)
+                maps[channel][value] = Math.max(0, Math.min(255,
+                                           operation.apply(value, average)));
+        }
+        return maps;
+    }
+
+    /**************************************************************************
+     * Scaling - the same as ProjectImage.halved() and doubled(), with each
+     * color averaged separately
+     *************************************************************************/
+
+    /** Scale the pixels in a buffer by a factor of 0.5 in each dimension.
+     *  An odd last row or column is dropped
+     *
+     *  @param source the buffer holding the pixels to scale
+     *  @param pool the pool to take the result from
+     *  @return a buffer holding the result
+     */
+    static PixelBuffer halved(PixelBuffer source, BufferPool pool)
+    {
+        PixelBuffer newBuffer = pool.take(source.getWidth() / 2, source.getHeight() / 2);
+        halveInto(source, newBuffer);
+        return newBuffer;
+    }
+
+    /** Scale the pixels in a buffer by a factor of 0.5 in each dimension,
+     *  averaging each color separately, and write the result into another
+     *  buffer
+     *
+     *  @param source the buffer holding the pixels to scale
+     *  @param newBuffer the buffer to hold the result - half the width and
+     *         height of source, rounded down
+     */
+    static void halveInto(final PixelBuffer source, final PixelBuffer newBuffer)
+    {
+        final int [] data = source.getData();
+        final int [] newData = newBuffer.getData();
+        ParallelEngine.forEachRow(newBuffer.getHeight(), newBuffer.getWidth(),
+                                  new ParallelEngine.RowTask() {
+            public void processRows(int startRow, int endRow)
+            {
+                int newWidth = newBuffer.getWidth();
+                for (int row = startRow; row < endRow; row ++)
+                {
+                    int top = source.rowStart(2*row);
+                    int bottom = source.rowStart(2*row+1);
+                    int dst = newBuffer.rowStart(row);
+                    for (int col = 0; col < newWidth; col ++)
+                        newData[dst + col] = average4(data[top + 2*col], data[top + 2*col+1],
+                                                      data[bottom + 2*col], data[bottom + 2*col+1]);
+                }
+            }
+        });
+    }
+
+    /** Scale the pixels in a buffer by a factor of 2 in each dimension.
+     *  The new pixels between two old ones are their average, so the result
+     *  has 2n - 1 rows and columns
+     *
+     *  @param source the buffer holding the pixels to scale
+     *  @param pool the pool to take the result from
+     *  @return a buffer holding the result
+     */
+    static PixelBuffer doubled(final PixelBuffer source, BufferPool pool)
+    {
+        int newWidth = source.getWidth() * 2 - 1;
+        int newHeight = source.getHeight() * 2 - 1;
+        final PixelBuffer newBuffer = pool.take(newWidth, newHeight);
+        final int [] data = source.getData();
+        final int [] newData = newBuffer.getData();
+        ParallelEngine.forEachRow(newHeight, newWidth, new ParallelEngine.RowTask() {
+            public void processRows(int startRow, int endRow)
+            {
+                int newWidth = newBuffer.getWidth();
+                for (int row = startRow; row < endRow; row ++)
+                {
+                    int above = source.rowStart(row/2);
+                    int below = source.rowStart((row+1)/2);
+                    int dst = newBuffer.rowStart(row);
+
+                    // Even columns lie below (or on) an old pixel, odd ones
+                    // between two; in odd rows, the old pixels are those
+                    // diagonally either side, as in ProjectImage.doubled()
+
+                    for (int col = 0; col < newWidth; col += 2)
+                        newData[dst + col] = average2(data[above + col/2], data[below + col/2]);
+                    for (int col = 1; col < newWidth; col += 2)
+                        newData[dst + col] = average2(data[above + (col-1)/2], data[below + (col+1)/2]);
+                }
+            }
+        });
+        return newBuffer;
+    }
+
+    /**************************************************************************
+     * Filtering
+     *************************************************************************/
+
+    /** A filter applied to one color of an image at a time
+     */
+    interface ChannelFilter
+    {
+        /** Filter one color
+         *
+         *  @param channel a buffer holding the values of the color, 0 .. 255
+         *  @param pool the pool to take the result from
+         *  @return a buffer, the same size as channel, holding the filtered
+         *          values, 0 .. 255
+         */
+        PixelBuffer apply(PixelBuffer channel, BufferPool pool);
+    }
+
+    /** Apply a filter to each color of the pixels in a buffer.  Each color
+     *  in turn is copied into a buffer of its own and filtered there by
+     *  ConvolutionEngine, so the colors are filtered exactly as grayscale
+     *  values would be
+     *
+     *  @param source the buffer holding the pixels to filter
+     *  @param filter a square array of doubles specifying the filter to
+     *         apply - the number of rows and columns must be odd
+     *  @param pool the pool to take the result and working buffers from
+     *  @return a buffer, the same size as source, holding the result
+     */
+    static PixelBuffer convolve(PixelBuffer source, final double [] [] filter,
+                                BufferPool pool)
+    {
+        return filterChannels(source, new ChannelFilter() {
+            public PixelBuffer apply(PixelBuffer channel, BufferPool pool)
+            {
+                return ConvolutionEngine.convolve(channel, filter, true, pool);
+            }
+        }, pool);
+    }
+
+    /** Apply a grayscale filter to each color of the pixels in a buffer.
+     *  Each color in turn is copied into a buffer of its own and filtered
+     *  there; alpha is kept
+     *
+     *  @param source the buffer holding the pixels to filter
+     *  @param filter the filter to apply to each color
+     *  @param pool the pool to take the result and working buffers from.
+     *         The working buffers are given back to it
+     *  @return a buffer, the same size as source, holding the result
+     */
+    static PixelBuffer filterChannels(final PixelBuffer source, ChannelFilter filter,
+                                      BufferPool pool)
+    {
+        final int width = source.getWidth();
+        final PixelBuffer result = pool.take(width, source.getHeight());
+        final PixelBuffer channel = pool.take(width, source.getHeight());
+        final int [] data = source.getData();
+        final int [] resultData = result.getData();
+        final int [] channelData = channel.getData();
+        for (int shift = 16; shift >= 0; shift -= 8)
+        {
+            final int channelShift = shift;
+            ParallelEngine.forEachRow(source.getHeight(), width, new ParallelEngine.RowTask() {
+                public void processRows(int startRow, int endRow)
+                {
+                    for (int row = startRow; row < endRow; row ++)
+                    {
+                        int src = source.rowStart(row);
+                        int dst = channel.rowStart(row);
+                        for (int col = 0; col < width; col ++)
+                            channelData[dst + col] = data[src + col] >> channelShift & 0xff;
+                    }
+                }
+            });
+            final PixelBuffer filtered = filter.apply(channel, pool);
+            final int [] filteredData = filtered.getData();
+            ParallelEngine.forEachRow(source.getHeight(), width, new ParallelEngine.RowTask() {
+                public void processRows(int startRow, int endRow)
+                {
+                    for (int row = startRow; row < endRow; row ++)
+                    {
+                        int src = source.rowStart(row);
+                        int channelSrc = filtered.rowStart(row);
+                        int dst = result.rowStart(row);
+                        for (int col = 0; col < width; col ++)
+                        {
+                            // The first color written starts from the alpha
+                            // of the source
+
+                            int previous = channelShift == 16 ? data[src + col] & ALPHA_MASK
+                                                              : resultData[dst + col];
+                            resultData[dst + col] = previous | filteredData[channelSrc + col] << channelShift;
+                        }
+                    }
+                }
+            });
+            pool.give(filtered);
+        }
+        pool.give(channel);
+        return result;
+    }
+
+    /**************************************************************************
+     * Single pixels
+     *************************************************************************/
+
+    /** Add an amount to each color of a pixel, stopping at 255
+     *
+     *  @param pixel the pixel
+     *  @param amount the amount to add, 0 .. 255
+     *  @return the lightened pixel
+     */
+    static int lighten(int pixel, int amount)
+    {
+        // A sum above 255 sets the bit above its lane; subtracting that bit
+        // shifted down to the bottom of the lane gives a mask of the lane
+
+        int redBlue = (pixel & RED_BLUE_MASK) + (amount << 16 | amount);
+        int green = (pixel & GREEN_MASK) + (amount << 8);
+        int redBlueOver = redBlue & RED_BLUE_CARRY;
+        int greenOver = green & GREEN_CARRY;
+        redBlue = (redBlue | redBlueOver - (redBlueOver >>> 8)) & RED_BLUE_MASK;
+        green = (green | greenOver - (greenOver >>> 8)) & GREEN_MASK;
+        return pixel & ALPHA_MASK | redBlue | green;
+    }
+
+    /** Subtract an amount from each color of a pixel, stopping at 0
+     *
+     *  @param pixel the pixel
+     *  @param amount the amount to subtract, 0 .. 255
+     *  @return the darkened pixel
+     */
+    static int darken(int pixel, int amount)
+    {
+        // Each lane starts with the bit above it set, to be borrowed from;
+        // a difference below 0 clears it
+
+        int redBlue = (pixel & RED_BLUE_MASK | RED_BLUE_CARRY) - (amount << 16 | amount);
+        int green = (pixel & GREEN_MASK | GREEN_CARRY) - (amount << 8);
+        int redBlueUnder = ~redBlue & RED_BLUE_CARRY;
+        int greenUnder = ~green & GREEN_CARRY;
+        redBlue &= ~(redBlueUnder - (redBlueUnder >>> 8)) & RED_BLUE_MASK;
+        green &= ~(greenUnder - (greenUnder >>> 8)) & GREEN_MASK;
+        return pixel & ALPHA_MASK | redBlue | green;
+    }
+
+    /** Average each color, and alpha, of two pixels, rounding down
+     *
+     *  @param pixel1 the first of the two pixels
+     *  @param pixel2 the second of the two pixels
+     *  @return a pixel which is equal to their average
+     */
+    static int average2(int pixel1, int pixel2)
+    {
+        // The bits both pixels share, plus half the bits only one has -
+        // with the bit each lane would shift into the lane below dropped
+
+        return (pixel1 & pixel2) + ((pixel1 ^ pixel2) >>> 1 & 0x7f7f7f7f);
+    }
+
+    /** Average each color, and alpha, of four pixels, rounding down
+     *
+     *  @return a pixel which is equal to their average
+     */
+    static int average4(int pixel1, int pixel2, int pixel3, int pixel4)
+    {
+        int redBlue = (pixel1 & RED_BLUE_MASK) + (pixel2 & RED_BLUE_MASK)
+                    + (pixel3 & RED_BLUE_MASK) + (pixel4 & RED_BLUE_MASK);
+        int alphaGreen = (pixel1 >>> 8 & RED_BLUE_MASK) + (pixel2 >>> 8 & RED_BLUE_MASK)
+                       + (pixel3 >>> 8 & RED_BLUE_MASK) + (pixel4 >>> 8 & RED_BLUE_MASK);
+        return (alphaGreen >>> 2 & RED_BLUE_MASK) << 8 | redBlue >>> 2 & RED_BLUE_MASK;
+    }
+
+    // Constants
+
+    private static final int ALPHA_MASK = 0xff000000;
+    private static final int RGB_MASK = 0x00ffffff;
+    private static final int RED_BLUE_MASK = 0x00ff00ff;
+    private static final int GREEN_MASK = 0x0000ff00;
+    private static final int RED_BLUE_CARRY = 0x01000100;
+    private static final int GREEN_CARRY = 0x00010000;
+    private static final int MAX_AMOUNT = 255;
+}
@@ -0,0 +1,1176 @@
+/* ConvolutionEngine.java
+ *
+ *  Part of ImageEditor project - applies a square filter to a ProjectImage.
+ *  The filter is examined first, and the cheapest way of applying it is
+ *  chosen:
+ *
+ *  - a filter whose weights are all the same (a box filter) is applied using
+ *    a summed-area table, so the cost per pixel does not depend on its size
+ *  - a 3 x 3 or 5 x 5 filter whose weights depend only on how far they lie
+ *    from the center (as the GUI's Blur, Sharpen and Edges filters do) is
+ *    applied by summing each square ring of neighbors from column sums
+ *    shared along the row, then weighting the few ring sums in fixed-point
+ *  - a filter that is the product of a column and a row (a separable
+ *    filter) is applied as a horizontal pass followed by a vertical one
+ *  - any other filter is applied directly, using fixed-point integer
+ *    weights instead of doubles
+ *  - but a filter large enough that a separable or direct pass would cost
+ *    more than transforming the image is applied by way of the Fourier
+ *    transform (see FourierConvolver), whose cost per pixel grows only with
+ *    the logarithm of the filter's size.  The costs are estimated from the
+ *    size of the filter and of the image
+ *
+ *  Whichever way is used, pixels closer to an edge than half the filter size
+ *  lack neighbors on that side, and are copied unfiltered.  Filtered values
+ *  are rounded down and then forced into the range 0 .. 255.
+ *
+ *  A weight like 0.1 cannot be held exactly in fixed-point (or in a double),
+ *  so a filtered value that should come out as a whole number can land just
+ *  below it and be rounded down one step too far.  To prevent this, the
+ *  fixed-point paths add the largest error that rounding the weights could
+ *  have introduced before discarding the fraction bits.  That bias could in
+ *  turn lift a value lying just short of a whole number past it, so it is
+ *  only relied on when the weights are all fractions with a small common
+ *  denominator D, such as tenths or sixteenths: the filtered value is then a
+ *  multiple of 1/D, and a bias of less than half of 1/D cannot carry it to
+ *  the next whole number.  A path whose bias is too large for the filter's
+ *  denominator is not used.
+ *
+ *  Weights with no such denominator, such as those of a Gaussian, stand for
+ *  no exact value to round to.  They are summed in doubles and rounded down
+ *  with no bias, as the original loop did: a box filter of them scales its
+ *  window sums in doubles, and a separable one makes both of its passes in
+ *  doubles, and the Fourier transform adds no bias, so these paths keep
+ *  their lower cost and differ from the direct pass only for a value within
+ *  the error of double arithmetic of a whole number.
+ *
+ *  An image with pixels outside 0 .. 255 is always filtered directly: in
+ *  whole numbers of fractions, which round exactly, for a filter of
+ *  fractions, and otherwise in doubles.  So a filter of fractions gives the
+ *  same values whichever way it is applied, and whether the image was
+ *  examined as a whole or a band at a time.
+ */
+
+package imageeditor;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+final class ConvolutionEngine
+{
+    // This class is not meant to be instantiated
+
+    private ConvolutionEngine()
+    {
+    }
+
+    /** Apply a filter to the pixels in a buffer
+     *
+     *  @param source the buffer holding the pixels to filter
+     *  @param filter a square array of doubles specifying the filter to
+     *         apply - the number of rows and columns must be odd
+     *  @param pool the pool to take the result and working buffers from
+     *  @return a buffer, the same size as source, holding the result
+     */
+    static PixelBuffer convolve(PixelBuffer source, double [] [] filter, BufferPool pool)
+    {
+        return convolve(source, filter, isInByteRange(source), pool);
+    }
+
+    /** Apply a filter to the pixels in a buffer that may be only part of an
+     *  image, so that whether the integer paths can be used has to be decided
+     *  for the whole image rather than from these pixels alone
+     *
+     *  @param source the buffer holding the pixels to filter
+     *  @param filter a square array of doubles specifying the filter to
+     *         apply - the number of rows and columns must be odd
+     *  @param inByteRange true if every pixel of the image lies in 0 .. 255
+     *  @param pool the pool to take the result and working buffers from.
+     *         The working buffers are given back to it
+     *  @return a buffer, the same size as source, holding the result
+     */
+    static PixelBuffer convolve(PixelBuffer source, double [] [] filter,
+                                boolean inByteRange, BufferPool pool)
+    {
+        int size = filter.length;
+        int border = (size - 1) / 2;
+        PixelBuffer result = pool.take(source.getWidth(), source.getHeight());
+        copyBorders(source, result, border);
+        if (source.getWidth() <= 2 * border || source.getHeight() <= 2 * border)
+            return result;
+
+        // Weights with a small denominator are rounded exactly in
+        // fixed-point.  Weights with none, such as those of a Gaussian, are
+        // rounded down from doubles as the direct pass rounds them - but a
+        // box, separable or large filter of them still gets its cheaper pass
+
+        long denominator = commonDenominator(filter);
+
+        // The fixed-point paths and the Fourier transform rely on pixels
+        // lying in 0 .. 255 to keep their sums in range, so anything else
+        // (such as an encrypted image) is filtered directly - still rounding
+        // a filter of fractions exactly, so that the way chosen never
+        // changes the result
+
+        if (! inByteRange)
+        {
+            if (denominator == 0 || ! convolveExact(source, result, filter, denominator))
+                convolveDirect(source, result, filter);
+            return result;
+        }
+        if (isBox(filter) && convolveBox(source, result, size, filter[0][0], denominator, pool))
+            return result;
+        if (denominator != 0 && convolveRings(source, result, filter, denominator))
+            return result;
+
+        // The Fourier transform costs the same whatever the weights, so a
+        // large filter is transformed whether its weights are fractions or
+        // not.  Otherwise a separable pass is cheaper than a direct one
+
+        double [] [] factors = separate(filter, denominator == 0 ? DOUBLE_SEPARABLE_TOLERANCE
+                                                                 : SEPARABLE_TOLERANCE);
+        if (! prefersFourier(source.getWidth(), source.getHeight(), filter, factors))
+        {
+            if (factors != null && 2 * size < countTaps(filter))
+            {
+                if (denominator == 0)
+                {
+                    convolveSeparableDouble(source, result, factors[0], factors[1]);
+                    return result;
+                }
+                if (convolveSeparable(source, result, filter, factors[0], factors[1],
+                                      denominator, pool))
+                    return result;
+            }
+            if (denominator == 0)
+            {
+                convolveDirect(source, result, filter);
+                return result;
+            }
+            if (convolveFixedPoint(source, result, filter, denominator))
+                return result;
+        }
+        convolveFourier(source, result, filter,
+                        FourierConvolver.chooseTileSize(source.getWidth() - 2 * border,
+                                                        source.getHeight() - 2 * border,
+                                                        size),
+                        denominator != 0);
+        return result;
+    }
+
+    /** Decide whether a filter that is neither a box nor made of small rings
+     *  costs less to apply by way of the Fourier transform than by a
+     *  separable or direct pass.  Each pass is measured in weights applied
+     *  to a pixel
+     *
+     *  @param width the width of the image
+     *  @param height the height of the image
+     *  @param filter the filter
+     *  @param factors the column and row the filter is the product of, or
+     *         null if it is not separable
+     *  @return true if the Fourier transform is cheaper
+     */
+    static boolean prefersFourier(int width, int height, double [] [] filter,
+                                  double [] [] factors)
+    {
+        int size = filter.length;
+        int filteredWidth = width - (size - 1);
+        int filteredHeight = height - (size - 1);
+        double passCost = countTaps(filter);
+        if (factors != null)
+            passCost = Math.min(passCost, 2 * size);
+        int tileSize = FourierConvolver.chooseTileSize(filteredWidth, filteredHeight, size);
+        return (double) filteredWidth * filteredHeight * passCost
+               > FourierConvolver.cost(filteredWidth, filteredHeight, size, tileSize);
+    }
+
+    /** Count the weights of a filter that are not 0
+     *
+     *  @param filter the filter
+     *  @return the number of weights the direct pass applies to each pixel
+     */
+    private static int countTaps(double [] [] filter)
+    {
+        int count = 0;
+        for (int y = 0; y < filter.length; y ++)
+            for (int x = 0; x < filter.length; x ++)
+                if (filter[y][x] != 0)
+                    count ++;
+        return count;
+    }
+
+    /**************************************************************************
+     * Examining the filter
+     *************************************************************************/
+
+    /** Check whether all the weights of a filter are the same
+     *
+     *  @param filter the filter to check
+     *  @return true if every weight equals filter[0][0]
+     */
+    static boolean isBox(double [] [] filter)
+    {
+        for (int y = 0; y < filter.length; y ++)
+            for (int x = 0; x < filter.length; x ++)
+                if (filter[y][x] != filter[0][0])
+                    return false;
+        return true;
+    }
+
+    /** Try to express a filter as the product of a column and a row, so
+     *  that filter[y][x] == column[y] * row[x]
+     *
+     *  @param filter the filter to separate
+     *  @return an array holding column and row, or null if the filter is not
+     *          separable
+     */
+    static double [] [] separate(double [] [] filter)
+    {
+        return separate(filter, SEPARABLE_TOLERANCE);
+    }
+
+    /** Try to express a filter as the product of a column and a row, to
+     *  within a given tolerance
+     *
+     *  @param filter the filter to separate
+     *  @param tolerance the largest difference, relative to the largest
+     *         weight, allowed between a weight and the product standing for
+     *         it
+     *  @return an array holding column and row, or null if the filter is not
+     *          separable
+     */
+    private static double [] [] separate(double [] [] filter, double tolerance)
+    {
+        int size = filter.length;
+
+        // Use the largest weight as the pivot: its row, scaled, is the row
+        // factor and its column is the column factor
+
+        int pivotRow = 0;
+        int pivotCol = 0;
+        for (int y = 0; y < size; y ++)
+            for (int x = 0; x < size; x ++)
+                if (Math.abs(filter[y][x]) > Math.abs(filter[pivotRow][pivotCol]))
+                {
+                    pivotRow = y;
+                    pivotCol = x;
+                }
+        double pivot = filter[pivotRow][pivotCol];
+        if (pivot == 0)
+            return null;
+
+        double [] column = new double[size];
+        double [] row = new double[size];
+        for (int i = 0; i < size; i ++)
+        {
+            column[i] = filter[i][pivotCol] / pivot;
+            row[i] = filter[pivotRow][i];
+        }
+
+        double largestError = Math.abs(pivot) * tolerance;
+        for (int y = 0; y < size; y ++)
+            for (int x = 0; x < size; x ++)
+                if (Math.abs(column[y] * row[x] - filter[y][x]) > largestError)
+                    return null;
+        return new double [] [] { column, row };
+    }
+
+    /** Find the weight given to each square ring of a filter, if every
+     *  weight in a ring is the same.  Ring 0 is the center, ring 1 the eight
+     *  pixels around it, ring 2 the sixteen around those, and so on
+     *
+     *  @param filter the filter to examine
+     *  @return the weight of each ring, or null if some ring holds different
+     *          weights
+     */
+    static double [] ringWeights(double [] [] filter)
+    {
+        int border = (filter.length - 1) / 2;
+        double [] rings = new double[border + 1];
+        for (int ring = 0; ring <= border; ring ++)
+            rings[ring] = filter[border - ring][border - ring];
+        for (int y = 0; y < filter.length; y ++)
+            for (int x = 0; x < filter.length; x ++)
+                if (filter[y][x] != rings[Math.max(Math.abs(y - border),
+                                                   Math.abs(x - border))])
+                    return null;
+        return rings;
+    }
+
+    /** Find the smallest number that every weight of a filter is a whole
+     *  number of fractions of - 10 for a filter of tenths, 16 for one of
+     *  sixteenths.  A weight counts as a fraction if it is as close to one
+     *  as the nearest double is
+     *
+     *  @param filter the filter to examine
+     *  @return the denominator, or 0 if the weights have none up to
+     *          MAX_DENOMINATOR
+     */
+    static long commonDenominator(double [] [] filter)
+    {
+        long denominator = 1;
+        for (int y = 0; y < filter.length; y ++)
+            for (int x = 0; x < filter.length; x ++)
+            {
+                long own = denominatorOf(filter[y][x]);
+                if (own == 0)
+                    return 0;
+                long a = denominator;
+                long b = own;
+                while (b != 0)
+                {
+                    long remainder = a % b;
+                    a = b;
+                    b = remainder;
+                }
+                denominator = denominator / a * own;
+                if (denominator > MAX_DENOMINATOR)
+                    return 0;
+            }
+        return denominator;
+    }
+
+    /** Find the smallest denominator of a fraction that a weight stands
+     *  for, from the convergents of its continued fraction
+     *
+     *  @param weight the weight
+     *  @return the denominator, or 0 if it would be more than
+     *          MAX_DENOMINATOR
+     */
+    private static long denominatorOf(double weight)
+    {
+        if (Double.isNaN(weight) || Double.isInfinite(weight))
+            return 0;
+        double tolerance = Math.abs(weight) * FRACTION_TOLERANCE;
+        double whole = Math.floor(weight);
+        double remainder = weight - whole;
+        long numerator = (long) whole;
+        long denominator = 1;
+        long previousNumerator = 1;
+        long previousDenominator = 0;
+        while (Math.abs(weight - (double) numerator / denominator) > tolerance)
+        {
+            remainder = 1 / remainder;
+            double term = Math.floor(remainder);
+            remainder -= term;
+            if (term > MAX_DENOMINATOR)
+                return 0;
+            long nextNumerator = (long) term * numerator + previousNumerator;
+            long nextDenominator = (long) term * denominator + previousDenominator;
+            if (nextDenominator > MAX_DENOMINATOR)
+                return 0;
+            previousNumerator = numerator;
+            previousDenominator = denominator;
+            numerator = nextNumerator;
+            denominator = nextDenominator;
+        }
+        return denominator;
+    }
+
+    /** Choose how many fraction bits to give fixed-point weights.  There
+     *  must be few enough that a weighted sum of values in 0 .. 255, plus its
+     *  rounding bias, cannot overflow an int, but enough that the bias
+     *  rounds every value correctly
+     *
+     *  @param weights the weights that will be summed together
+     *  @param denominator the common denominator of the filter's weights
+     *  @return the number of fraction bits, or -1 if there is no such number
+     */
+    private static int chooseFractionBits(double [] weights, long denominator)
+    {
+        for (int bits = MAX_FRACTION_BITS; bits >= MIN_FRACTION_BITS; bits --)
+        {
+            long [] fixed = toFixed(weights, bits);
+            long total = 0;
+            for (int i = 0; i < weights.length; i ++)
+                total += Math.abs(fixed[i]);
+            long bias = roundingBias(weights, fixed, bits);
+            if (total * MAX_BRIGHTNESS + bias <= Integer.MAX_VALUE)
+                return roundsExactly(bias, bits, denominator) ? bits : -1;
+        }
+        return -1;
+    }
+
+    /** Check whether a rounding bias leaves every filtered value rounded
+     *  down to the whole number it truly lies in.  The bias, together with
+     *  the error it covers, lifts a value by at most twice the bias; a value
+     *  short of a whole number falls short by at least 1/denominator
+     *
+     *  @param bias the bias
+     *  @param bits the number of fraction bits it is measured in
+     *  @param denominator the common denominator of the filter's weights
+     *  @return true if twice the bias is less than 1/denominator
+     */
+    private static boolean roundsExactly(long bias, int bits, long denominator)
+    {
+        return denominator > 0 && 2 * bias * denominator < 1L << bits;
+    }
+
+    /** Find the largest error that using fixed-point weights can introduce
+     *  into a weighted sum of values in 0 .. 255, measured against the
+     *  fractions the weights stand for
+     *
+     *  @param weights the exact weights
+     *  @param fixed the fixed-point weights that stand in for them
+     *  @param bits the number of fraction bits in fixed
+     *  @return the largest possible error, in units of the last fraction bit
+     */
+    private static long roundingBias(double [] weights, long [] fixed, int bits)
+    {
+        double error = 0;
+        for (int i = 0; i < weights.length; i ++)
+            error += Math.abs(fixed[i] - weights[i] * Math.pow(2, bits))
+                   + Math.abs(weights[i]) * FRACTION_TOLERANCE * Math.pow(2, bits);
+        return (long) Math.ceil(error * MAX_BRIGHTNESS);
+    }
+
+    /**************************************************************************
+     * The ways of applying a filter.  Each of them fills in the pixels of
+     * result that are not on the border
+     *************************************************************************/
+
+    /** Apply a box filter using a summed-area table.  A weight that is a
+     *  fraction scales each window sum in fixed-point; any other weight
+     *  scales it in doubles, and the result is rounded down as the direct
+     *  pass rounds it
+     *
+     *  @param source the pixels to filter
+     *  @param result the buffer for the filtered pixels
+     *  @param size the number of rows and columns in the filter
+     *  @param weight the weight given to every pixel
+     *  @param denominator the denominator of the weight, or 0 if it has none
+     *  @param pool the pool to borrow the table from
+     *  @return true if the filter was applied, false if its weight is a
+     *          fraction that cannot be represented in fixed-point closely
+     *          enough
+     */
+    private static boolean convolveBox(final PixelBuffer source, final PixelBuffer result,
+                                       int size, final double weight, long denominator,
+                                       BufferPool pool)
+    {
+        // The window sums are scaled by the weight in fixed-point.  The
+        // largest sum is 255 * size * size, which decides how many fraction
+        // bits the weight can have without overflowing a long
+
+        long largestSum = (long) MAX_BRIGHTNESS * size * size;
+        int bits = BOX_FRACTION_BITS;
+        while (bits > 0 && Math.abs(weight) * Math.pow(2, bits) * largestSum >= Long.MAX_VALUE / 2)
+            bits --;
+        final int shift = bits;
+        final long fixedWeight = Math.round(weight * Math.pow(2, bits));
+        final long bias = (long) Math.ceil(
+            (Math.abs(fixedWeight - weight * Math.pow(2, bits))
+             + Math.abs(weight) * FRACTION_TOLERANCE * Math.pow(2, bits)) * largestSum);
+        final boolean fixedPoint = denominator != 0;
+        if (fixedPoint && ! roundsExactly(bias, shift, denominator))
+            return false;
+
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+        final int border = (size - 1) / 2;
+
+        // table[r * (width + 1) + c] holds the sum of all pixels above row r
+        // and left of column c.  The sums are kept as ints and allowed to
+        // wrap: the difference that gives the sum over one window is still
+        // exact, because that sum itself fits easily in an int
+
+        final int tableWidth = width + 1;
+        PixelBuffer tableBuffer = pool.take(tableWidth, height + 1);
+        final int [] table = tableBuffer.getData();
+
+        // A table from the pool may hold anything, so the first row and
+        // column, which are sums over no pixels at all, are cleared
+
+        Arrays.fill(table, 0, tableWidth, 0);
+        for (int row = 1; row <= height; row ++)
+            table[row * tableWidth] = 0;
+        final int [] data = source.getData();
+        ParallelEngine.forEachRow(height, width, new ParallelEngine.RowTask() {
+            public void processRows(int startRow, int endRow)
+            {
+                for (int row = startRow; row < endRow; row ++)
+                {
+                    int src = source.rowStart(row);
+                    int dst = (row + 1) * tableWidth + 1;
+                    int sum = 0;
+                    for (int col = 0; col < width; col ++)
+                    {
+                        sum += data[src + col];
+                        table[dst + col] = sum;
+                    }
+                }
+            }
+        });
+        for (int row = 1; row <= height; row ++)
+        {
+            int above = (row - 1) * tableWidth;
+            int here = row * tableWidth;
+            for (int col = 1; col <= width; col ++)
+                table[here + col] += table[above + col];
+        }
+
+        // Each window sum is then scaled by the weight
+
+        final int [] newData = result.getData();
+        ParallelEngine.forEachRow(height - 2 * border, width, new ParallelEngine.RowTask() {
+            public void processRows(int startRow, int endRow)
+            {
+                for (int row = startRow + border; row < endRow + border; row ++)
+                {
+                    int top = (row - border) * tableWidth;
+                    int bottom = (row + border + 1) * tableWidth;
+                    int dst = result.rowStart(row);
+                    for (int col = border; col < width - border; col ++)
+                    {
+                        int left = col - border;
+                        int right = col + border + 1;
+                        int sum = table[bottom + right] - table[bottom + left]
+                                - table[top + right] + table[top + left];
+                        newData[dst + col] = fixedPoint
+                                           ? clamp((fixedWeight * sum + bias) >> shift)
+                                           : clamp((long) Math.floor(weight * sum));
+                    }
+                }
+            }
+        });
+        pool.give(tableBuffer);
+        return true;
+    }
+
+    /** Apply a separable filter as a horizontal pass followed by a vertical
+     *  one, both in fixed-point
+     *
+     *  @param source the pixels to filter
+     *  @param result the buffer for the filtered pixels
+     *  @param filter the filter the column and row stand for
+     *  @param column the weights for the vertical pass
+     *  @param row the weights for the horizontal pass
+     *  @param denominator the common denominator of the filter's weights
+     *  @param pool the pool to borrow the horizontal pass's results from
+     *  @return true if the filter was applied, false if its weights cannot be
+     *          represented in fixed-point
+     */
+    private static boolean convolveSeparable(final PixelBuffer source,
+                                             final PixelBuffer result,
+                                             double [] [] filter,
+                                             double [] column, double [] row,
+                                             long denominator, BufferPool pool)
+    {
+        int rowBits = chooseFractionBits(row, denominator);
+        if (rowBits < 0)
+            return false;
+        final int size = row.length;
+        final int border = (size - 1) / 2;
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+        final long [] rowWeights = toFixed(row, rowBits);
+
+        // The vertical pass sums in a long, so the column weights can have as
+        // many fraction bits as keep that sum below 2 to the power 62 - the
+        // values it sums are below 2 to the power 31
+
+        double columnTotal = 0;
+        for (int i = 0; i < size; i ++)
+            columnTotal += Math.abs(column[i]);
+        int columnBits = Math.min(MAX_COLUMN_FRACTION_BITS,
+                                  30 - (int) Math.ceil(Math.log(columnTotal) / Math.log(2)));
+        if (columnBits < MIN_FRACTION_BITS)
+            return false;
+        final long [] columnWeights = toFixed(column, columnBits);
+
+        // The bias covers the error of the two sets of weights together,
+        // measured against the filter they stand in for - which the column
+        // and row, being separated in doubles, only match approximately
+
+        double [] exact = new double[size * size];
+        long [] fixed = new long[size * size];
+        for (int y = 0; y < size; y ++)
+            for (int x = 0; x < size; x ++)
+            {
+                exact[y * size + x] = filter[y][x];
+                fixed[y * size + x] = columnWeights[y] * rowWeights[x];
+            }
+        final int shift = rowBits + columnBits;
+        final long bias = roundingBias(exact, fixed, shift);
+        if (! roundsExactly(bias, shift, denominator))
+            return false;
+
+        // The horizontal pass produces every row, but only the columns that
+        // are not on the border.  Its results keep their fraction bits, so
+        // nothing is lost before the vertical pass
+
+        final int [] data = source.getData();
+        PixelBuffer partialBuffer = pool.take(width, height);
+        final int [] partial = partialBuffer.getData();
+        ParallelEngine.forEachRow(height, width * size, new ParallelEngine.RowTask() {
+            public void processRows(int startRow, int endRow)
+            {
+                for (int r = startRow; r < endRow; r ++)
+                {
+                    int src = source.rowStart(r) - border;
+                    int dst = r * width;
+                    for (int col = border; col < width - border; col ++)
+                    {
+                        int sum = 0;
+                        for (int x = 0; x < size; x ++)
+                            sum += (int) rowWeights[x] * data[src + col + x];
+                        partial[dst + col] = sum;
+                    }
+                }
+            }
+        });
+
+        final int [] newData = result.getData();
+        ParallelEngine.forEachRow(height - 2 * border, width * size, new ParallelEngine.RowTask() {
+            public void processRows(int startRow, int endRow)
+            {
+                for (int r = startRow + border; r < endRow + border; r ++)
+                {
+                    int src = (r - border) * width;
+                    int dst = result.rowStart(r);
+                    for (int col = border; col < width - border; col ++)
+                    {
+                        long sum = bias;
+                        for (int y = 0; y < size; y ++)
+                            sum += columnWeights[y] * partial[src + y * width + col];
+                        newData[dst + col] = clamp(sum >> shift);
+                    }
+                }
+            }
+        });
+        pool.give(partialBuffer);
+        return true;
+    }
+
+    /** Apply a separable filter as a horizontal pass followed by a vertical
+     *  one, both in doubles, rounding down as the direct pass does.  Each
+     *  band of rows is worked out a strip at a time, so that the horizontal
+     *  pass's results for a strip are still in the cache when the vertical
+     *  pass reads them
+     *
+     *  @param source the pixels to filter
+     *  @param result the buffer for the filtered pixels
+     *  @param column the weights for the vertical pass
+     *  @param row the weights for the horizontal pass
+     */
+    private static void convolveSeparableDouble(final PixelBuffer source,
+                                                final PixelBuffer result,
+                                                final double [] column, final double [] row)
+    {
+        final int size = row.length;
+        final int border = (size - 1) / 2;
+        final int width = source.getWidth();
+        final int stripRows = Math.max(STRIP_ROWS, size);
+        final int [] data = source.getData();
+        final int [] newData = result.getData();
+        ParallelEngine.forEachRow(source.getHeight() - 2 * border, width * 2 * size,
+                                  new ParallelEngine.RowTask() {
+            public void processRows(int startRow, int endRow)
+            {
+                // partial holds the horizontal pass's results for the rows a
+                // strip draws on, and sums the vertical pass's results for
+                // one row
+
+                int rows = Math.min(stripRows, endRow - startRow);
+                double [] partial = new double[(rows + 2 * border) * width];
+                double [] sums = new double[width];
+                for (int strip = startRow + border; strip < endRow + border; strip += rows)
+                {
+                    int stripEnd = Math.min(strip + rows, endRow + border);
+                    for (int r = strip - border; r < stripEnd + border; r ++)
+                    {
+                        int src = source.rowStart(r) - border;
+                        int dst = (r - strip + border) * width;
+                        for (int col = border; col < width - border; col ++)
+                        {
+                            double sum = 0;
+                            for (int x = 0; x < size; x ++)
+                                sum += row[x] * data[src + col + x];
+                            partial[dst + col] = sum;
+                        }
+                    }
+                    for (int r = strip; r < stripEnd; r ++)
+                    {
+                        Arrays.fill(sums, 0);
+                        for (int y = 0; y < size; y ++)
+                        {
+                            double weight = column[y];
+                            int src = (r - strip + y) * width;
+                            for (int col = border; col < width - border; col ++)
+                                sums[col] += weight * partial[src + col];
+                        }
+                        int dst = result.rowStart(r);
+                        for (int col = border; col < width - border; col ++)
+                            newData[dst + col] = clamp((long) Math.floor(sums[col]));
+                    }
+                }
+            }
+        });
+    }
+
+    /** Apply a 3 x 3 or 5 x 5 filter made of rings of equal weights, using
+     *  fixed-point weights.  For each row, the sums of the three (and five)
+     *  pixels above and below each column are found first; a ring's sum is
+     *  then a few of those, less the sum of the rings inside it.  The result
+     *  is the same as the direct fixed-point pass gives, since each pixel of
+     *  a ring would be given the same fixed-point weight
+     *
+     *  @param source the pixels to filter
+     *  @param result the buffer for the filtered pixels
+     *  @param filter the filter to apply
+     *  @param denominator the common denominator of the filter's weights
+     *  @return true if the filter was applied, false if it is not made of
+     *          rings, is too large, or its weights cannot be represented in
+     *          fixed-point
+     */
+    private static boolean convolveRings(final PixelBuffer source,
+                                         final PixelBuffer result,
+                                         double [] [] filter, long denominator)
+    {
+        final int size = filter.length;
+        if (size > MAX_RING_FILTER_SIZE)
+            return false;
+        double [] rings = ringWeights(filter);
+        if (rings == null)
+            return false;
+
+        // The fraction bits and rounding bias are worked out for the weights
+        // of every pixel, just as the direct pass would
+
+        double [] weights = new double[size * size];
+        for (int y = 0; y < size; y ++)
+            for (int x = 0; x < size; x ++)
+                weights[y * size + x] = filter[y][x];
+        final int bits = chooseFractionBits(weights, denominator);
+        if (bits < 0)
+            return false;
+        final int bias = (int) roundingBias(weights, toFixed(weights, bits), bits);
+        long [] fixed = toFixed(rings, bits);
+        final int centerWeight = (int) fixed[0];
+        final int innerWeight = (int) fixed[1];
+        final int outerWeight = size > 3 ? (int) fixed[2] : 0;
+
+        final int border = (size - 1) / 2;
+        final int width = source.getWidth();
+        final int [] data = source.getData();
+        final int [] newData = result.getData();
+        ParallelEngine.forEachRow(source.getHeight() - 2 * border, width * 2 * size,
+                                  new ParallelEngine.RowTask() {
+            public void processRows(int startRow, int endRow)
+            {
+                // inner[col] holds the sum of the three pixels centered on
+                // col in the row being filtered and the rows either side of
+                // it, and outer[col] the sum of five
+
+                int [] inner = new int[width];
+                int [] outer = size > 3 ? new int[width] : null;
+                for (int row = startRow + border; row < endRow + border; row ++)
+                {
+                    int above = source.rowStart(row - 1);
+                    int src = source.rowStart(row);
+                    int below = source.rowStart(row + 1);
+                    int dst = result.rowStart(row);
+                    for (int col = 0; col < width; col ++)
+                        inner[col] = data[above + col] + data[src + col] + data[below + col];
+                    if (outer == null)
+                    {
+                        for (int col = border; col < width - border; col ++)
+                        {
+                            int center = data[src + col];
+                            int ring1 = inner[col - 1] + inner[col] + inner[col + 1] - center;
+                            int sum = bias + centerWeight * center + innerWeight * ring1;
+                            newData[dst + col] = clamp(sum >> bits);
+                        }
+                    }
+                    else
+                    {
+                        int top = source.rowStart(row - 2);
+                        int bottom = source.rowStart(row + 2);
+                        for (int col = 0; col < width; col ++)
+                            outer[col] = inner[col] + data[top + col] + data[bottom + col];
+                        for (int col = border; col < width - border; col ++)
+                        {
+                            int center = data[src + col];
+                            int box3 = inner[col - 1] + inner[col] + inner[col + 1];
+                            int box5 = outer[col - 2] + outer[col - 1] + outer[col]
+                                     + outer[col + 1] + outer[col + 2];
+                            int sum = bias + centerWeight * center
+                                    + innerWeight * (box3 - center)
+                                    + outerWeight * (box5 - box3);
+                            newData[dst + col] = clamp(sum >> bits);
+                        }
+                    }
+                }
+            }
+        });
+        return true;
+    }
+
+    /** Apply a filter directly, using fixed-point weights
+     *
+     *  @param source the pixels to filter
+     *  @param result the buffer for the filtered pixels
+     *  @param filter the filter to apply
+     *  @param denominator the common denominator of the filter's weights
+     *  @return true if the filter was applied, false if its weights cannot be
+     *          represented in fixed-point
+     */
+    private static boolean convolveFixedPoint(final PixelBuffer source,
+                                              final PixelBuffer result,
+                                              double [] [] filter, long denominator)
+    {
+        int size = filter.length;
+        final int border = (size - 1) / 2;
+
+        // Flatten the filter into a list of (offset, weight) taps, where the
+        // offset is the distance in the buffer from the pixel being filtered.
+        // Taps with no weight are left out
+
+        int count = 0;
+        for (int y = 0; y < size; y ++)
+            for (int x = 0; x < size; x ++)
+                if (filter[y][x] != 0)
+                    count ++;
+        double [] weights = new double[count];
+        final int [] tapOffsets = new int[count];
+        count = 0;
+        for (int y = 0; y < size; y ++)
+            for (int x = 0; x < size; x ++)
+                if (filter[y][x] != 0)
+                {
+                    weights[count] = filter[y][x];
+                    tapOffsets[count ++] = (y - border) * source.getStride() + (x - border);
+                }
+        final int bits = chooseFractionBits(weights, denominator);
+        if (bits < 0)
+            return false;
+        long [] fixed = toFixed(weights, bits);
+        final int [] tapWeights = new int[count];
+        for (int k = 0; k < count; k ++)
+            tapWeights[k] = (int) fixed[k];
+        final int bias = (int) roundingBias(weights, fixed, bits);
+
+        final int width = source.getWidth();
+        final int taps = count;
+        final int [] data = source.getData();
+        final int [] newData = result.getData();
+        ParallelEngine.forEachRow(source.getHeight() - 2 * border, width * taps,
+                                  new ParallelEngine.RowTask() {
+            public void processRows(int startRow, int endRow)
+            {
+                for (int row = startRow + border; row < endRow + border; row ++)
+                {
+                    int src = source.rowStart(row);
+                    int dst = result.rowStart(row);
+                    for (int col = border; col < width - border; col ++)
+                    {
+                        int center = src + col;
+                        int sum = bias;
+                        for (int k = 0; k < taps; k ++)
+                            sum += tapWeights[k] * data[center + tapOffsets[k]];
+                        newData[dst + col] = clamp(sum >> bits);
+                    }
+                }
+            }
+        });
+        return true;
+    }
+
+    /** Apply a filter by way of the Fourier transform, a tile at a time.
+     *  This handles any filter, but only pixels in 0 .. 255
+     *
+     *  @param source the pixels to filter
+     *  @param result the buffer for the filtered pixels
+     *  @param filter the filter to apply
+     *  @param tileSize the size of tile to work in - see FourierConvolver
+     *  @param fractions true if the weights are fractions with a small common
+     *         denominator, which are rounded exactly
+     */
+    private static void convolveFourier(final PixelBuffer source, final PixelBuffer result,
+                                        double [] [] filter, int tileSize, boolean fractions)
+    {
+        final int border = (filter.length - 1) / 2;
+        final int width = source.getWidth() - 2 * border;
+        final int height = source.getHeight() - 2 * border;
+        final FourierConvolver convolver = new FourierConvolver(filter, tileSize, fractions);
+        final int step = convolver.getStep();
+
+        // Each row of tiles is a task of its own
+
+        int tileRows = (height + step - 1) / step;
+        final int tileCols = (width + step - 1) / step;
+        int rowCost = (int) Math.min(Integer.MAX_VALUE,
+                                     FourierConvolver.cost(width, step, filter.length, tileSize));
+        ParallelEngine.forEachRow(tileRows, rowCost, new ParallelEngine.RowTask() {
+            public void processRows(int startTileRow, int endTileRow)
+            {
+                FourierConvolver.Work work = convolver.newWork();
+                for (int tileRow = startTileRow; tileRow < endTileRow; tileRow ++)
+                    for (int tileCol = 0; tileCol < tileCols; tileCol ++)
+                    {
+                        int row = tileRow * step;
+                        int col = tileCol * step;
+                        convolver.filterTile(source, result, border + row, border + col,
+                                             Math.min(step, height - row),
+                                             Math.min(step, width - col), work);
+                    }
+            }
+        });
+    }
+
+    /** Apply a filter of fractions directly, summing whole numbers of
+     *  fractions in longs and rounding each sum down exactly.  This handles
+     *  any pixel values
+     *
+     *  @param source the pixels to filter
+     *  @param result the buffer for the filtered pixels
+     *  @param filter the filter to apply
+     *  @param denominator the common denominator of the filter's weights
+     *  @return true if the filter was applied, false if its numerators are
+     *          too large for the sums to fit in a long
+     */
+    private static boolean convolveExact(final PixelBuffer source, final PixelBuffer result,
+                                         double [] [] filter, final long denominator)
+    {
+        int size = filter.length;
+        final int border = (size - 1) / 2;
+
+        // Flatten the filter into (offset, numerator) taps, as the direct
+        // fixed-point pass does.  Each pixel is at most 2 to the power 31 in
+        // size, so the numerators must total less than 2 to the power 32
+
+        int count = countTaps(filter);
+        final long [] tapNumerators = new long[count];
+        final int [] tapOffsets = new int[count];
+        long total = 0;
+        count = 0;
+        for (int y = 0; y < size; y ++)
+            for (int x = 0; x < size; x ++)
+                if (filter[y][x] != 0)
+                {
+                    tapNumerators[count] = Math.round(filter[y][x] * denominator);
+                    tapOffsets[count] = (y - border) * source.getStride() + (x - border);
+                    total += Math.abs(tapNumerators[count ++]);
+                }
+        if (total >= 1L << 32)
+            return false;
+
+        final int width = source.getWidth();
+        final int taps = count;
+        final int [] data = source.getData();
+        final int [] newData = result.getData();
+        ParallelEngine.forEachRow(source.getHeight() - 2 * border, width * taps,
+                                  new ParallelEngine.RowTask() {
+            public void processRows(int startRow, int endRow)
+            {
+                for (int row = startRow + border; row < endRow + border; row ++)
+                {
+                    int src = source.rowStart(row);
+                    int dst = result.rowStart(row);
+                    for (int col = border; col < width - border; col ++)
+                    {
+                        int center = src + col;
+                        long sum = 0;
+                        for (int k = 0; k < taps; k ++)
+                            sum += tapNumerators[k] * data[center + tapOffsets[k]];
+                        newData[dst + col] = clamp(Math.floorDiv(sum, denominator));
+                    }
+                }
+            }
+        });
+        return true;
+    }
+
+    /** Apply a filter directly, using double arithmetic.  This handles any
+     *  filter and any pixel values
+     *
+     *  @param source the pixels to filter
+     *  @param result the buffer for the filtered pixels
+     *  @param filter the filter to apply
+     */
+    private static void convolveDirect(final PixelBuffer source, final PixelBuffer result,
+                                       final double [] [] filter)
+    {
+        final int size = filter.length;
+        final int border = (size - 1) / 2;
+        final int width = source.getWidth();
+        final int [] data = source.getData();
+        final int [] newData = result.getData();
+        ParallelEngine.forEachRow(source.getHeight() - 2 * border, width * size * size,
+                                  new ParallelEngine.RowTask() {
+            public void processRows(int startRow, int endRow)
+            {
+                for (int row = startRow + border; row < endRow + border; row ++)
+                {
+                    int dst = result.rowStart(row);
+                    for (int col = border; col < width - border; col ++)
+                    {
+                        double val = 0;
+                        for (int y = 0; y < size; y ++)
+                        {
+                            int tap = source.rowStart(row + y - border) + col - border;
+                            for (int x = 0; x < size; x ++)
+                                val += filter[y][x] * data[tap + x];
+                        }
+                        newData[dst + col] = clamp((int) val);
+                    }
+                }
+            }
+        });
+    }
+
+    /**************************************************************************
+     * Helpers
+     *************************************************************************/
+
+    /** Copy the pixels that lie within border of an edge unchanged
+     *
+     *  @param source the pixels being filtered
+     *  @param result the buffer for the filtered pixels
+     *  @param border the width of the border
+     */
+    static void copyBorders(PixelBuffer source, PixelBuffer result, int border)
+    {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int [] data = source.getData();
+        int [] newData = result.getData();
+        for (int row = 0; row < height; row ++)
+        {
+            int src = source.rowStart(row);
+            int dst = result.rowStart(row);
+            if (row < border || row >= height - border || width <= 2 * border)
+                System.arraycopy(data, src, newData, dst, width);
+            else
+            {
+                System.arraycopy(data, src, newData, dst, border);
+                System.arraycopy(data, src + width - border, newData,
+                                 dst + width - border, border);
+            }
+        }
+    }
+
+    /** Check whether every pixel in a buffer lies in the range 0 .. 255
+     *
+     *  @param source the buffer to check
+     *  @return true if all the pixels are in range
+     */
+    static boolean isInByteRange(final PixelBuffer source)
+    {
+        final int [] data = source.getData();
+        final AtomicBoolean inRange = new AtomicBoolean(true);
+        ParallelEngine.forEachRow(source.getHeight(), source.getWidth(),
+                                  new ParallelEngine.RowTask() {
+            public void processRows(int startRow, int endRow)
+            {
+                int bits = 0;
+                for (int row = startRow; row < endRow; row ++)
+                {
+                    int start = source.rowStart(row);
+                    int end = start + source.getWidth();
+                    for (int i = start; i < end; i ++)
+                        bits |= data[i];
+                }
+                if ((bits & ~MAX_BRIGHTNESS) != 0)
+                    inRange.set(false);
+            }
+        });
+        return inRange.get();
+    }
+
+    /** Convert weights to fixed-point
+     *
+     *  @param weights the weights to convert
+     *  @param bits the number of fraction bits
+     *  @return the weights, scaled by 2 to the power bits and rounded
+     */
+    private static long [] toFixed(double [] weights, int bits)
+    {
+        long [] result = new long[weights.length];
+        for (int i = 0; i < weights.length; i ++)
+            result[i] = Math.round(weights[i] * Math.pow(2, bits));
+        return result;
+    }
+
+    /** Force a value into the range 0 .. 255
+     *
+     *  @param value the value to force
+     *  @return the nearest value in range
+     */
+    private static int clamp(long value)
+    {
+        if (value < MIN_BRIGHTNESS)
+            return MIN_BRIGHTNESS;
+        else if (value > MAX_BRIGHTNESS)
+            return MAX_BRIGHTNESS;
+        else
+            return (int) value;
+    }
+
+    /** Force an int into the range 0 .. 255.  Filters such as Sharpen push
+     *  many values out of range in no predictable pattern, so this is done
+     *  without branches
+     *
+     *  @param value the value to force
+     *  @return the nearest value in range
+     */
+    private static int clamp(int value)
+    {
+        return Math.max(MIN_BRIGHTNESS, Math.min(MAX_BRIGHTNESS, value));
+    }
+
+    // Constants
+
+    private static final int MAX_BRIGHTNESS = 255;
+    private static final int MIN_BRIGHTNESS = 0;
+
+    // Fixed-point weights get as many fraction bits as possible, up to
+    // MAX_FRACTION_BITS.  If fewer than MIN_FRACTION_BITS would keep sums in
+    // range, the filter is applied using doubles instead
+
+    private static final int MAX_FRACTION_BITS = 20;
+    private static final int MIN_FRACTION_BITS = 8;
+
+    // The largest filter applied by summing rings of equal weights.  Larger
+    // ones are better served by the other paths
+
+    private static final int MAX_RING_FILTER_SIZE = 5;
+
+    // The vertical pass of a separable filter sums in a long, so its weights
+    // can have more
+
+    private static final int MAX_COLUMN_FRACTION_BITS = 28;
+
+    // The largest common denominator of a filter's weights for which the
+    // integer paths and the Fourier transform are used.  The Fourier
+    // transform's rounding bias, 2 to the power -20, must stay well below
+    // 1/MAX_DENOMINATOR for it to round correctly too
+
+    private static final long MAX_DENOMINATOR = 1 << 16;
+
+    // How close, relative to its size, a weight must be to a fraction to
+    // stand for it - far closer than any weight not meant as one would be,
+    // and far looser than the error of holding the fraction in a double
+
+    private static final double FRACTION_TOLERANCE = 1e-12;
+
+    // A box filter's single weight multiplies a long, so it can have more
+
+    private static final int BOX_FRACTION_BITS = 32;
+
+    // Largest difference, relative to the largest weight, allowed between a
+    // filter and the product of its factors for it to count as separable
+
+    private static final double SEPARABLE_TOLERANCE = 1e-9;
+
+    // The same for a filter whose weights are not fractions, which is
+    // applied in doubles: its factors must stand for it as closely as
+    // doubles hold it, so that the two passes round as the direct pass does
+
+    private static final double DOUBLE_SEPARABLE_TOLERANCE = 1e-13;
+
+    // The number of rows a separable filter applied in doubles works out at a
+    // time, unless the filter is taller
+
+    private static final int STRIP_ROWS = 64;
+}
@@ -0,0 +1,136 @@
+/* CounterKeystream.java
+ *
+ *  Part of ImageEditor project - the keystream used by the COUNTER mode of
+ *  ProjectImage.encryptDecrypt().  Pixel i of an image (counting row by row
+ *  from the top left, so the pixel at (row, col) is row * width + col) is
+ *  encrypted by exclusive-oring it with value i of the keystream.  Doing the
+ *  same again decrypts it.
+ *
+ *  Each value is worked out directly from the key and its index: a block of
+ *  64 bits is made for each pair of pixels by scrambling the key plus a
+ *  multiple of the block number with the SplitMix64 finalizer, and the low
+ *  and high halves go to the even and odd pixel.  So any part of an image
+ *  - a band of rows, a tile, a single scanline - can be encrypted or
+ *  decrypted on its own, in any order and by any number of threads, unlike
+ *  the RANDOM mode, whose java.util.Random has to be stepped through every
+ *  pixel before the one wanted.
+ *
+ *  Only the bits that hold the image are changed - the 8 bits of a
+ *  grayscale value, or the red, green and blue of a color pixel - so an
+ *  encrypted image is still a valid image.  Like the RANDOM mode, this
+ *  hides an image from casual view, but is not meant to resist analysis.
+ */
+
+package imageeditor;
+
+public final class CounterKeystream
+{
+    /** Constructor
+     *
+     *  @param seed the key
+     */
+    public CounterKeystream(int seed)
+    {
+        this.key = mix(seed);
+    }
+
+    /** Get a value of the keystream
+     *
+     *  @param index the index of the pixel the value is for
+     *  @return the value - all 32 bits of it
+     */
+    public int valueAt(long index)
+    {
+        return (int) (block(index >>> 1) >>> ((index & 1) << 5));
+    }
+
+    /** Encrypt or decrypt consecutive pixels
+     *
+     *  @param pixels the array holding the pixels, changed in place
+     *  @param offset the index in pixels of the first pixel
+     *  @param count the number of pixels
+     *  @param firstIndex the index in the image of the first pixel
+     *  @param color true if the pixels are packed colors, false if they are
+     *         grayscale values
+     */
+    public void apply(int [] pixels, int offset, int count, long firstIndex,
+                      boolean color)
+    {
+        int mask = color ? COLOR_MASK : GRAY_MASK;
+        int i = offset;
+        int end = offset + count;
+        long index = firstIndex;
+
+        // A pixel that is the second of its pair uses the high half of the
+        // block; after that, each block covers two pixels
+
+        if ((index & 1) != 0 && i < end)
+            pixels[i ++] ^= valueAt(index ++) & mask;
+        for (; i + 1 < end; i += 2, index += 2)
+        {
+            long bits = block(index >>> 1);
+            pixels[i] ^= (int) bits & mask;
+            pixels[i + 1] ^= (int) (bits >>> 32) & mask;
+        }
+        if (i < end)
+            pixels[i] ^= valueAt(index) & mask;
+    }
+
+    /** Encrypt or decrypt consecutive grayscale pixels held one byte each,
+     *  giving the same values as apply() does for them held as ints
+     *
+     *  @param pixels the array holding the pixels, changed in place
+     *  @param offset the index in pixels of the first pixel
+     *  @param count the number of pixels
+     *  @param firstIndex the index in the image of the first pixel
+     */
+    public void apply(byte [] pixels, int offset, int count, long firstIndex)
+    {
+        int i = offset;
+        int end = offset + count;
+        long index = firstIndex;
+        if ((index & 1) != 0 && i < end)
+            pixels[i ++] ^= (byte) valueAt(index ++);
+        for (; i + 1 < end; i += 2, index += 2)
+        {
+            long bits = block(index >>> 1);
+            pixels[i] ^= (byte) bits;
+            pixels[i + 1] ^= (byte) (bits >>> 32);
+        }
+        if (i < end)
+            pixels[i] ^= (byte) valueAt(index);
+    }
+
+    /** Work out a block of the keystream
+     *
+     *  @param blockNumber the number of the block
+     *  @return the 64 bits of the block
+     */
+    private long block(long blockNumber)
+    {
+        return mix(key + (blockNumber + 1) * GOLDEN_GAMMA);
+    }
+
+    /** Scramble 64 bits, so that every bit of the result depends on every
+     *  bit of the input - the SplitMix64 finalizer
+     *
+     *  @param value the bits to scramble
+     *  @return the scrambled bits
+     */
+    private static long mix(long value)
+    {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+
+    // Keystream data
+
+    private final long key;
+
+    // Constants
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    private static final int GRAY_MASK = 0xff;
+    private static final int COLOR_MASK = 0x00ffffff;
+}
@@ -0,0 +1,492 @@
+/* DenoiseEngine.java
+ *
+ *  Part of ImageEditor project - removes noise from an image while keeping
+ *  its edges sharp, for ProjectImage.medianFilter() and
+ *  ProjectImage.bilateralFilter().  Both filters cost the same per pixel
+ *  whatever their size, so a large one is as cheap as a small one.
+ *
+ *  The median filter replaces each pixel by the median of the square of
+ *  pixels within the radius of it, using the sliding histogram method of
+ *  Perreault and Hebert.  A histogram is kept for each column of the
+ *  square's height; moving down a row takes one pixel out of each and puts
+ *  one in.  The histogram of the square is then slid along the row by
+ *  adding the column histogram that comes into it and subtracting the one
+ *  that leaves.  Each histogram is kept at two levels - 16 coarse bins, and
+ *  16 fine bins within each - and the median is found in the coarse bins
+ *  first; the square's fine bins are only brought up to date for the coarse
+ *  bin the median falls in, when it is needed.  Like applyFilter(), the
+ *  pixels within the radius of an edge are copied unfiltered.
+ *
+ *  The bilateral filter averages each pixel with those near it in both
+ *  position and value, using the bilateral grid of Paris and Durand.  The
+ *  pixels are summed into a coarse three-dimensional grid - a cell for each
+ *  spatialSigma x spatialSigma square of the image and each rangeSigma
+ *  levels of brightness - which is blurred, and each pixel is then given
+ *  the average read from the grid at its position and value.  The grid is
+ *  worked out a slab of rows at a time, each with the few rows the blur
+ *  reaches either side of it, so the slabs can be done in parallel and the
+ *  memory used stays small.
+ *
+ *  Both filters work on values in 0 .. 255; grayscale pixels outside that
+ *  range are forced into it first.  The colors of a color image are
+ *  filtered separately, and alpha is kept - see ChannelKernels.
+ */
+
+package imageeditor;
+
+import java.util.Arrays;
+
+final class DenoiseEngine
+{
+    // This class is not meant to be instantiated
+
+    private DenoiseEngine()
+    {
+    }
+
+    /**************************************************************************
+     * Median filter
+     *************************************************************************/
+
+    /** Apply a median filter to the pixels in a buffer
+     *
+     *  @param source the buffer holding the pixels to filter
+     *  @param radius the distance the square of pixels reaches from its
+     *         centre, in each direction
+     *  @param color true if the pixels are packed colors
+     *  @param pool the pool to take the result from
+     *  @return a buffer, the same size as source, holding the result
+     */
+    static PixelBuffer median(PixelBuffer source, final int radius, boolean color,
+                              BufferPool pool)
+    {
+        if (color)
+            return ChannelKernels.filterChannels(source, new ChannelKernels.ChannelFilter() {
+                public PixelBuffer apply(PixelBuffer channel, BufferPool pool)
+                {
+                    return median(channel, radius, false, pool);
+                }
+            }, pool);
+        final int width = source.getWidth();
+        int height = source.getHeight();
+        final PixelBuffer result = pool.take(width, height);
+        ConvolutionEngine.copyBorders(source, result, radius);
+        if (width <= 2 * radius || height <= 2 * radius)
+            return result;
+        final PixelBuffer input = ConvolutionEngine.isInByteRange(source)
+                                  ? source : ResampleEngine.clamped(source);
+
+        // Each band of rows builds column histograms of its own
+
+        ParallelEngine.forEachRow(height - 2 * radius, width * MEDIAN_PIXEL_COST,
+                                  new ParallelEngine.RowTask() {
+            public void processRows(int startRow, int endRow)
+            {
+                medianRows(input, result, radius, startRow + radius, endRow + radius);
+            }
+        });
+        return result;
+    }
+
+    /** Work out a band of rows of a median filter
+     *
+     *  @param source the pixels being filtered, all in 0 .. 255
+     *  @param result the buffer for the filtered pixels
+     *  @param radius the distance the square reaches from its centre
+     *  @param startRow the first row to work out - at least radius
+     *  @param endRow one past the last row to work out - at most the height
+     *         less radius
+     */
+    private static void medianRows(PixelBuffer source, PixelBuffer result, int radius,
+                                   int startRow, int endRow)
+    {
+        int width = source.getWidth();
+        int size = 2 * radius + 1;
+        int [] data = source.getData();
+        int [] newData = result.getData();
+
+        // The histograms of the columns, each covering the rows the square
+        // centred on the current row covers.  Bin b of column c is at
+        // c * COARSE_BINS + b in columnCoarse, and value v of column c at
+        // c * LEVELS + v in columnFine
+
+        int [] columnCoarse = new int [width * COARSE_BINS];
+        int [] columnFine = new int [width * LEVELS];
+        for (int row = startRow - radius; row <= startRow + radius; row ++)
+        {
+            int src = source.rowStart(row);
+            for (int col = 0; col < width; col ++)
+            {
+                int value = data[src + col];
+                columnCoarse[col * COARSE_BINS + (value >> FINE_BITS)] ++;
+                columnFine[col * LEVELS + value] ++;
+            }
+        }
+
+        // The histograms of the square, and for each coarse bin, the column
+        // at which the square's fine bins within it were last brought up to
+        // date
+
+        int [] coarse = new int [COARSE_BINS];
+        int [] fine = new int [LEVELS];
+        int [] fineCol = new int [COARSE_BINS];
+        int rank = size * size / 2;
+        for (int row = startRow; row < endRow; row ++)
+        {
+            if (row > startRow)
+            {
+                int removed = source.rowStart(row - radius - 1);
+                int added = source.rowStart(row + radius);
+                for (int col = 0; col < width; col ++)
+                {
+                    int value = data[removed + col];
+                    columnCoarse[col * COARSE_BINS + (value >> FINE_BITS)] --;
+                    columnFine[col * LEVELS + value] --;
+                    value = data[added + col];
+                    columnCoarse[col * COARSE_BINS + (value >> FINE_BITS)] ++;
+                    columnFine[col * LEVELS + value] ++;
+                }
+            }
+
+            Arrays.fill(coarse, 0);
+            for (int col = 0; col < size; col ++)
+                for (int bin = 0; bin < COARSE_BINS; bin ++)
+                    coarse[bin] += columnCoarse[col * COARSE_BINS + bin];
+            Arrays.fill(fineCol, Integer.MIN_VALUE / 2);
+            int dst = result.rowStart(row);
+            for (int col = radius; col < width - radius; col ++)
+            {
+                if (col > radius)
+                {
+                    int added = (col + radius) * COARSE_BINS;
+                    int removed = (col - radius - 1) * COARSE_BINS;
+                    for (int bin = 0; bin < COARSE_BINS; bin ++)
+                        coarse[bin] += columnCoarse[added + bin] - columnCoarse[removed + bin];
+                }
+
+                // Find the coarse bin the median falls in, counting the
+                // values below it
+
+                int count = 0;
+                int bin = 0;
+                while (count + coarse[bin] <= rank)
+                    count += coarse[bin ++];
+
+                // Bring its fine bins up to date - by sliding them along from
+                // where they were last used, unless starting again is less
+                // work
+
+                int first = bin << FINE_BITS;
+                int last = first + FINE_BINS;
+                if (col - fineCol[bin] >= size)
+                {
+                    Arrays.fill(fine, first, last, 0);
+                    for (int k = col - radius; k <= col + radius; k ++)
+                        for (int value = first; value < last; value ++)
+                            fine[value] += columnFine[k * LEVELS + value];
+                }
+                else
+                    for (int k = fineCol[bin] + 1; k <= col; k ++)
+                    {
+                        int added = (k + radius) * LEVELS;
+                        int removed = (k - radius - 1) * LEVELS;
+                        for (int value = first; value < last; value ++)
+                            fine[value] += columnFine[added + value] - columnFine[removed + value];
+                    }
+                fineCol[bin] = col;
+
+                int value = first;
+                while (count + fine[value] <= rank)
+                    count += fine[value ++];
+                newData[dst + col] = value;
+            }
+        }
+    }
+
+    /**************************************************************************
+     * Bilateral filter
+     *************************************************************************/
+
+    /** Find how far from a row the pixels that the bilateral filter blends
+     *  into it can be
+     *
+     *  @param spatialSigma the spatial spread of the filter, in pixels
+     *  @return the number of rows either side of a row that affect it
+     */
+    static int bilateralReach(double spatialSigma)
+    {
+        // A row is read from two rows of the grid, each blurred from the two
+        // rows either side, each summed from the pixels within half a cell
+
+        return (int) Math.ceil((BLUR_REACH + 1.5) * spatialSigma) + 1;
+    }
+
+    /** Apply a bilateral filter to the pixels in a buffer, which may be a
+     *  band of rows of an image.  The grid is laid out from the top of the
+     *  image, so that filtering bands gives the same result as filtering the
+     *  whole image - except in the rows within bilateralReach() of the top
+     *  and bottom of a band, which lack some of the pixels blended into them
+     *
+     *  @param source the buffer holding the pixels to filter
+     *  @param firstRow the row of the image that is row 0 of source
+     *  @param spatialSigma the spatial spread of the filter, in pixels - at
+     *         least 1
+     *  @param rangeSigma the spread of the filter in brightness - at least 1
+     *  @param color true if the pixels are packed colors
+     *  @param pool the pool to take the result from
+     *  @return a buffer, the same size as source, holding the result
+     */
+    static PixelBuffer bilateral(PixelBuffer source, final int firstRow,
+                                 final double spatialSigma, final double rangeSigma,
+                                 boolean color, BufferPool pool)
+    {
+        if (color)
+            return ChannelKernels.filterChannels(source, new ChannelKernels.ChannelFilter() {
+                public PixelBuffer apply(PixelBuffer channel, BufferPool pool)
+                {
+                    return bilateral(channel, firstRow, spatialSigma, rangeSigma, false,
+                                     pool);
+                }
+            }, pool);
+        final PixelBuffer input = ConvolutionEngine.isInByteRange(source)
+                                  ? source : ResampleEngine.clamped(source);
+        final PixelBuffer result = pool.take(source.getWidth(), source.getHeight());
+        if (source.getWidth() == 0 || source.getHeight() == 0)
+            return result;
+
+        // Grid row g holds the rows of the image nearest g * spatialSigma.
+        // The rows of the buffer are read from grid rows firstGridRow ..
+        // lastGridRow, and a task works out those read from a run of them
+
+        final int firstGridRow = (int) Math.floor(firstRow / spatialSigma);
+        int lastGridRow = (int) Math.floor((firstRow + source.getHeight() - 1) / spatialSigma);
+        final BilateralGrid grid = new BilateralGrid(source.getWidth(), spatialSigma, rangeSigma);
+        int rowCost = (int) Math.min(Integer.MAX_VALUE / 2,
+                                     Math.ceil(spatialSigma) * source.getWidth() * BILATERAL_PIXEL_COST);
+        ParallelEngine.forEachRow(lastGridRow - firstGridRow + 1, rowCost,
+                                  new ParallelEngine.RowTask() {
+            public void processRows(int startGridRow, int endGridRow)
+            {
+                for (int start = startGridRow; start < endGridRow; start += grid.getSlabRows())
+                {
+                    int end = Math.min(endGridRow, start + grid.getSlabRows());
+                    grid.filterSlab(input, firstRow, result, firstGridRow + start,
+                                    firstGridRow + end);
+                }
+            }
+        });
+        return result;
+    }
+
+    /** The layout of the grid of a bilateral filter, and the work on a slab
+     *  of it
+     */
+    private static final class BilateralGrid
+    {
+        /** Constructor
+         *
+         *  @param width the width of the image
+         *  @param spatialSigma the size of a cell in pixels, across and down
+         *  @param rangeSigma the size of a cell in brightness
+         */
+        BilateralGrid(int width, double spatialSigma, double rangeSigma)
+        {
+            this.spatialSigma = spatialSigma;
+            this.rangeSigma = rangeSigma;
+
+            // Cells are added on each side for the blur to spread into, and
+            // one at the far end for reading between the last two
+
+            gridWidth = (int) ((width - 1) / spatialSigma) + 2 + 2 * BLUR_REACH;
+            gridDepth = (int) (MAX_BRIGHTNESS / rangeSigma) + 2 + 2 * BLUR_REACH;
+            slabRows = Math.max(1, SLAB_CELLS / (gridWidth * gridDepth) - 2 * BLUR_REACH - 1);
+        }
+
+        /** Get the number of grid rows a slab should be worked out for
+         *
+         *  @return the number of rows
+         */
+        int getSlabRows()
+        {
+            return slabRows;
+        }
+
+        /** Work out the rows of the result that are read from a run of grid
+         *  rows
+         *
+         *  @param source the pixels being filtered, all in 0 .. 255
+         *  @param firstRow the row of the image that is row 0 of source
+         *  @param result the buffer for the filtered pixels
+         *  @param startGridRow the first grid row of the run
+         *  @param endGridRow one past the last grid row of the run
+         */
+        void filterSlab(PixelBuffer source, int firstRow, PixelBuffer result,
+                        int startGridRow, int endGridRow)
+        {
+            // The slab holds the grid rows that the rows being worked out
+            // are read from - the run and the one after it - and those the
+            // blur reaches from either side of them
+
+            int slabFirst = startGridRow - BLUR_REACH;
+            int slabHeight = endGridRow - startGridRow + 1 + 2 * BLUR_REACH;
+            int rowCells = gridWidth * gridDepth;
+            float [] sums = new float [slabHeight * rowCells];
+            float [] weights = new float [slabHeight * rowCells];
+            int width = source.getWidth();
+            int [] data = source.getData();
+
+            // Sum each pixel into its nearest cell
+
+            int firstRead = Math.max(firstRow, (int) Math.floor((slabFirst - 0.5) * spatialSigma));
+            int endRead = Math.min(firstRow + source.getHeight(),
+                                   (int) Math.ceil((slabFirst + slabHeight + 0.5) * spatialSigma));
+            for (int row = firstRead; row < endRead; row ++)
+            {
+                int gridRow = (int) Math.floor(row / spatialSigma + 0.5) - slabFirst;
+                if (gridRow < 0 || gridRow >= slabHeight)
+                    continue;
+                int src = source.rowStart(row - firstRow);
+                for (int col = 0; col < width; col ++)
+                {
+                    int value = data[src + col];
+                    int cell = gridRow * rowCells
+                             + ((int) (col / spatialSigma + 0.5) + BLUR_REACH) * gridDepth
+                             + (int) (value / rangeSigma + 0.5) + BLUR_REACH;
+                    sums[cell] += value;
+                    weights[cell] ++;
+                }
+            }
+
+            // Blur along each of the three directions
+
+            float [] line = new float [Math.max(slabHeight, Math.max(gridWidth, gridDepth))];
+            for (int i = 0; i < slabHeight * gridWidth; i ++)
+            {
+                blurLine(sums, i * gridDepth, 1, gridDepth, line);
+                blurLine(weights, i * gridDepth, 1, gridDepth, line);
+            }
+            for (int gridRow = 0; gridRow < slabHeight; gridRow ++)
+                for (int z = 0; z < gridDepth; z ++)
+                {
+                    blurLine(sums, gridRow * rowCells + z, gridDepth, gridWidth, line);
+                    blurLine(weights, gridRow * rowCells + z, gridDepth, gridWidth, line);
+                }
+            for (int i = 0; i < rowCells; i ++)
+            {
+                blurLine(sums, i, rowCells, slabHeight, line);
+                blurLine(weights, i, rowCells, slabHeight, line);
+            }
+
+            // Read each pixel's value from between the eight cells around
+            // its position and value
+
+            int [] newData = result.getData();
+            int startRow = Math.max(firstRow, (int) Math.ceil(startGridRow * spatialSigma));
+            int endRow = Math.min(firstRow + source.getHeight(),
+                                  (int) Math.ceil(endGridRow * spatialSigma));
+            for (int row = startRow; row < endRow; row ++)
+            {
+                // Rounding can put a row on either side of the boundary
+                // between runs, so each run checks for itself
+
+                double y = row / spatialSigma;
+                int gridRow = (int) Math.floor(y);
+                if (gridRow < startGridRow || gridRow >= endGridRow)
+                    continue;
+                double fy = y - gridRow;
+                int rowBase = (gridRow - slabFirst) * rowCells;
+                int src = source.rowStart(row - firstRow);
+                int dst = result.rowStart(row - firstRow);
+                for (int col = 0; col < width; col ++)
+                {
+                    int value = data[src + col];
+                    double x = col / spatialSigma + BLUR_REACH;
+                    double z = value / rangeSigma + BLUR_REACH;
+                    int gridCol = (int) x;
+                    int gridZ = (int) z;
+                    double fx = x - gridCol;
+                    double fz = z - gridZ;
+                    int cell = rowBase + gridCol * gridDepth + gridZ;
+                    double sum = 0;
+                    double weight = 0;
+                    for (int corner = 0; corner < 8; corner ++)
+                    {
+                        int dy = corner >> 2;
+                        int dx = corner >> 1 & 1;
+                        int dz = corner & 1;
+                        double w = (dy == 0 ? 1 - fy : fy) * (dx == 0 ? 1 - fx : fx)
+                                 * (dz == 0 ? 1 - fz : fz);
+                        int index = cell + dy * rowCells + dx * gridDepth + dz;
+                        sum += w * sums[index];
+                        weight += w * weights[index];
+                    }
+                    int filtered = (int) (sum / weight + 0.5);
+                    newData[dst + col] = filtered > MAX_BRIGHTNESS ? MAX_BRIGHTNESS
+                                       : filtered < 0 ? 0 : filtered;
+                }
+            }
+        }
+
+        // The size of a cell, and of the grid across and in brightness
+
+        private final double spatialSigma;
+        private final double rangeSigma;
+        private final int gridWidth;
+        private final int gridDepth;
+        private final int slabRows;
+    }
+
+    /** Blur a line of cells of a grid with the weights 1 4 6 4 1, which
+     *  approximate a Gaussian of a spread of one cell.  Cells past the ends
+     *  of the line count as 0
+     *
+     *  @param grid the cells
+     *  @param start the index of the first cell of the line
+     *  @param stride the distance between one cell of the line and the next
+     *  @param length the number of cells in the line
+     *  @param line an array of at least length floats to work in
+     */
+    private static void blurLine(float [] grid, int start, int stride, int length,
+                                 float [] line)
+    {
+        for (int i = 0; i < length; i ++)
+            line[i] = grid[start + i * stride];
+        for (int i = 0; i < length; i ++)
+        {
+            float sum = 6 * line[i];
+            if (i >= 1)
+                sum += 4 * line[i - 1];
+            if (i >= 2)
+                sum += line[i - 2];
+            if (i + 1 < length)
+                sum += 4 * line[i + 1];
+            if (i + 2 < length)
+                sum += line[i + 2];
+            grid[start + i * stride] = sum;
+        }
+    }
+
+    // Constants
+
+    private static final int MAX_BRIGHTNESS = 255;
+
+    // The histograms of the median filter: LEVELS values, in COARSE_BINS
+    // coarse bins of FINE_BINS values each
+
+    private static final int LEVELS = 256;
+    private static final int FINE_BITS = 4;
+    private static final int FINE_BINS = 1 << FINE_BITS;
+    private static final int COARSE_BINS = LEVELS / FINE_BINS;
+
+    // The number of cells either side that the blur of the bilateral grid
+    // reaches, and the most cells a slab of the grid is given
+
+    private static final int BLUR_REACH = 2;
+    private static final int SLAB_CELLS = 1 << 20;
+
+    // The work of filtering a pixel, relative to copying it - for deciding
+    // whether a band of rows is worth splitting
+
+    private static final int MEDIAN_PIXEL_COST = 64;
+    private static final int BILATERAL_PIXEL_COST = 32;
+}
@@ -0,0 +1,158 @@
+/* DirtyRegions.java
+ *
+ *  Part of ImageEditor project - the parts of a ProjectImage that have
+ *  changed since it was last shown, so that a view of the image need only
+ *  fetch and repaint those parts.
+ *
+ *  The parts are kept as rectangles in the coordinates of the image (x is
+ *  the column, y the row).  A rectangle added next to or overlapping one
+ *  already held is merged with it whenever their bounding rectangle is no
+ *  bigger than the two of them together - so the rows of a band written one
+ *  after another, or the tiles rewritten by undo, become a few large
+ *  rectangles rather than many small ones.  If there are still more than
+ *  MAX_REGIONS rectangles, they are replaced by their bounding rectangle.
+ */
+
+package imageeditor;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+
+public final class DirtyRegions
+{
+    /** Constructor - nothing has changed
+     */
+    DirtyRegions()
+    {
+        regions = new ArrayList<Rectangle>();
+    }
+
+    /**************************************************************************
+     * Accessors
+     *************************************************************************/
+
+    /** Find out whether anything has changed
+     *
+     *  @return true if there is nothing to repaint
+     */
+    public boolean isEmpty()
+    {
+        return regions.isEmpty();
+    }
+
+    /** Find out whether the size of the image has changed.  A view then has
+     *  to lay itself out again and show the whole image
+     *
+     *  @return true if it has
+     */
+    public boolean isSizeChanged()
+    {
+        return sizeChanged;
+    }
+
+    /** Get the parts of the image that have changed
+     *
+     *  @return the changed rectangles, which do not extend outside the image
+     *          but may overlap each other
+     */
+    public Rectangle [] getRegions()
+    {
+        Rectangle [] result = new Rectangle [regions.size()];
+        for (int i = 0; i < result.length; i ++)
+            result[i] = new Rectangle(regions.get(i));
+        return result;
+    }
+
+    /** Get a single rectangle covering every part that has changed
+     *
+     *  @return the bounding rectangle, which is empty if nothing has changed
+     */
+    public Rectangle getBounds()
+    {
+        Rectangle result = new Rectangle();
+        for (Rectangle region : regions)
+            result = result.isEmpty() ? new Rectangle(region) : result.union(region);
+        return result;
+    }
+
+    /**************************************************************************
+     * Recording changes
+     *************************************************************************/
+
+    /** Note that part of the image has changed
+     *
+     *  @param x the first column changed
+     *  @param y the first row changed
+     *  @param width the number of columns changed - nothing is added if
+     *         this is not positive
+     *  @param height the number of rows changed - nothing is added if this
+     *         is not positive
+     */
+    void add(int x, int y, int width, int height)
+    {
+        if (width <= 0 || height <= 0)
+            return;
+        Rectangle added = new Rectangle(x, y, width, height);
+
+        // Each merge makes the rectangle bigger, which may let it merge with
+        // one that was checked before, so the search starts again after each
+
+        boolean merged = true;
+        while (merged)
+        {
+            merged = false;
+            for (int i = 0; i < regions.size(); i ++)
+            {
+                Rectangle region = regions.get(i);
+                if (region.contains(added))
+                    return;
+                Rectangle union = added.union(region);
+                if (area(union) <= area(added) + area(region))
+                {
+                    regions.remove(i);
+                    added = union;
+                    merged = true;
+                    break;
+                }
+            }
+        }
+        regions.add(added);
+        if (regions.size() > MAX_REGIONS)
+        {
+            Rectangle bounds = getBounds();
+            regions.clear();
+            regions.add(bounds);
+        }
+    }
+
+    /** Note that the size of the image has changed, so all of it has
+     *
+     *  @param width the new width of the image
+     *  @param height the new height of the image
+     */
+    void sizeChanged(int width, int height)
+    {
+        sizeChanged = true;
+        regions.clear();
+        add(0, 0, width, height);
+    }
+
+    /** Find the number of pixels in a rectangle
+     *
+     *  @param rectangle the rectangle
+     *  @return its area
+     */
+    private static long area(Rectangle rectangle)
+    {
+        return (long) rectangle.width * rectangle.height;
+    }
+
+    // The changed rectangles, and whether the size has changed
+
+    private final ArrayList<Rectangle> regions;
+    private boolean sizeChanged;
+
+    // Constants
+
+    private static final int MAX_REGIONS = 16;
+}
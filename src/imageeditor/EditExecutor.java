@@ -0,0 +1,457 @@
+/* EditExecutor.java
+ *
+ *  Part of ImageEditor project - carries out edits of a ProjectImage on a
+ *  thread of its own, so that the event dispatch thread is free to keep the
+ *  window responsive while a long operation runs.
+ *
+ *  Edits are queued in the order they are submitted and carried out one at
+ *  a time.  An edit submitted while the last one queued has not started is
+ *  combined with it if the two together have the same effect as a single
+ *  edit - twelve presses of Lighten become one lightening by twelve times
+ *  the amount, a run of shifts becomes one shift by their total, and two
+ *  flips the same way cancel out - so holding a button down never queues
+ *  more work than the image can keep up with.
+ *
+ *  The edit being carried out can be cancelled.  It is stopped at the next
+ *  band of rows (see ParallelEngine), and the image is put back as it was
+ *  from its history; an image with no history cannot be put back, so its
+ *  edits always run to the end.  Nor can an edit that only looks at the
+ *  image, such as working out its histogram, be stopped - it has nothing to
+ *  put back, and is soon done.
+ *
+ *  Edits are submitted on the event dispatch thread; one submitted from any
+ *  other thread is passed to it first.  Each edit is carried out holding the
+ *  image's lock, which the accessors of ProjectImage that a view uses also
+ *  take, so the image can be looked at from the event dispatch thread at
+ *  any time without seeing an edit half done.  When the queue empties, the
+ *  listener is told on the event dispatch thread, so that it can show the
+ *  result - only the result of the last edit is shown, not the states the
+ *  image passed through.
+ */
+
+package imageeditor;
+
+import java.util.LinkedList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.swing.SwingUtilities;
+
+final class EditExecutor
+{
+    /** Something to be told about the edits being carried out.  Each
+     *  method is called on the event dispatch thread
+     */
+    interface Listener
+    {
+        /** Called when edits are submitted while none are queued, and when
+         *  the last of them has finished
+         *
+         *  @param busy true if edits are now queued or running
+         */
+        void busyChanged(boolean busy);
+
+        /** Called when the queue has emptied, so the image can be shown
+         *
+         *  @param image the image the last edit was made to
+         */
+        void editsFinished(ProjectImage image);
+
+        /** Called when an edit fails.  The edits after it still run
+         *
+         *  @param image the image the edit was made to
+         *  @param problem the exception or error the edit threw
+         */
+        void editFailed(ProjectImage image, Throwable problem);
+    }
+
+    /** An edit that can be carried out in the background
+     */
+    abstract static class Edit
+    {
+        /** Carry out this edit
+         *
+         *  @param image the image to change
+         */
+        abstract void apply(ProjectImage image);
+
+        /** Find out whether this edit changes the image.  One that only
+         *  looks at it cannot be stopped part way through
+         *
+         *  @return true unless this edit only looks at the image
+         */
+        boolean changesImage()
+        {
+            return true;
+        }
+
+        /** Combine this edit with the one submitted after it
+         *
+         *  @param next the edit submitted after this one
+         *  @return an edit having the same effect as this one followed by
+         *          next, or null if there is none
+         */
+        Edit followedBy(Edit next)
+        {
+            return null;
+        }
+    }
+
+    /** Constructor - start the thread that carries out the edits
+     *
+     *  @param listener the listener to tell about the edits
+     */
+    EditExecutor(Listener listener)
+    {
+        this.listener = listener;
+        queue = new LinkedList<Submitted>();
+        Thread worker = new Thread(new Runnable() {
+            public void run()
+            {
+                work();
+            }
+        }, "Image editor");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**************************************************************************
+     * Methods called on the event dispatch thread
+     *************************************************************************/
+
+    /** Queue an edit.  If this is called on some other thread, the edit is
+     *  queued once the event dispatch thread gets to it
+     *
+     *  @param image the image to change
+     *  @param edit the edit to make
+     */
+    void submit(final ProjectImage image, final Edit edit)
+    {
+        if (! SwingUtilities.isEventDispatchThread())
+        {
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run()
+                {
+                    submit(image, edit);
+                }
+            });
+            return;
+        }
+        boolean started;
+        synchronized (this)
+        {
+            if (! queue.isEmpty() && queue.getLast().image == image)
+            {
+                Edit combined = queue.getLast().edit.followedBy(edit);
+                if (combined != null)
+                {
+                    queue.getLast().edit = combined;
+                    return;
+                }
+            }
+            queue.addLast(new Submitted(image, edit));
+            started = ! busy;
+            busy = true;
+            notifyAll();
+        }
+        if (started)
+            listener.busyChanged(true);
+    }
+
+    /** Discard the edits that are queued, and stop the one running
+     */
+    void cancel()
+    {
+        synchronized (this)
+        {
+            queue.clear();
+            if (cancelFlag != null)
+            {
+                // The listener is told when the edit has stopped
+
+                cancelFlag.set(true);
+                return;
+            }
+            if (! busy)
+                return;
+            busy = false;
+        }
+        listener.busyChanged(false);
+    }
+
+    /** Find out whether edits are queued or running
+     *
+     *  @return true if they are, in which case the image must not be looked
+     *          at
+     */
+    synchronized boolean isBusy()
+    {
+        return busy;
+    }
+
+    /**************************************************************************
+     * The thread carrying out the edits
+     *************************************************************************/
+
+    /** Carry out each edit as it is queued - for ever
+     */
+    private void work()
+    {
+        while (true)
+        {
+            Submitted next;
+            AtomicBoolean cancelled = new AtomicBoolean(false);
+            synchronized (this)
+            {
+                while (queue.isEmpty())
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch(InterruptedException exception)
+                    {
+                        // Nothing to do but carry on waiting
+                    }
+                }
+                next = queue.removeFirst();
+                cancelFlag = cancelled;
+            }
+
+            ParallelEngine.setCancelFlag(next.edit.changesImage() && next.image.canRevert()
+                                         ? cancelled : null);
+            synchronized (next.image)
+            {
+                try
+                {
+                    next.image.startBackgroundOperation();
+                    next.edit.apply(next.image);
+                }
+                catch(CancellationException exception)
+                {
+                    ParallelEngine.setCancelFlag(null);
+                    next.image.revertEdit();
+                }
+                catch(RuntimeException | OutOfMemoryError problem)
+                {
+                    reportFailure(next.image, problem);
+                }
+                finally
+                {
+                    ParallelEngine.setCancelFlag(null);
+                }
+            }
+
+            synchronized (this)
+            {
+                cancelFlag = null;
+                if (queue.isEmpty())
+                    publish(next.image);
+            }
+        }
+    }
+
+    /** Tell the listener that the queue has emptied, unless more edits
+     *  have been submitted by the time the event dispatch thread gets to it
+     *
+     *  @param image the image the last edit was made to
+     */
+    private void publish(final ProjectImage image)
+    {
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run()
+            {
+                // Edits are only queued on this thread, so none can start
+                // while the listener looks at the image
+
+                synchronized (EditExecutor.this)
+                {
+                    if (! queue.isEmpty() || cancelFlag != null)
+                        return;
+                    busy = false;
+                }
+                listener.busyChanged(false);
+                listener.editsFinished(image);
+            }
+        });
+    }
+
+    /** Tell the listener that an edit has failed
+     *
+     *  @param image the image the edit was made to
+     *  @param problem the exception or error it threw
+     */
+    private void reportFailure(final ProjectImage image, final Throwable problem)
+    {
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run()
+            {
+                listener.editFailed(image, problem);
+            }
+        });
+    }
+
+    /**************************************************************************
+     * Edits that can be combined
+     *************************************************************************/
+
+    /** Create an edit applying a point operation, which combines with the
+     *  same operation into one applying it several times over
+     *
+     *  @param operation the operation
+     *  @return the edit
+     */
+    static Edit pointOperation(ProjectImage.PointOperation operation)
+    {
+        return new PointOperationEdit(operation, 1);
+    }
+
+    /** Create an edit shifting the image, which combines with other shifts
+     *  into one shifting by their total
+     *
+     *  @param rows the number of rows to shift down by
+     *  @param cols the number of columns to shift right by
+     *  @return the edit
+     */
+    static Edit shift(int rows, int cols)
+    {
+        return new ShiftEdit(rows, cols);
+    }
+
+    /** Create an edit flipping the image, which cancels out with the same
+     *  flip
+     *
+     *  @param horizontally true to flip horizontally, false vertically
+     *  @return the edit
+     */
+    static Edit flip(boolean horizontally)
+    {
+        return new FlipEdit(horizontally);
+    }
+
+    /** A point operation applied a number of times
+     */
+    private static class PointOperationEdit extends Edit
+    {
+        PointOperationEdit(ProjectImage.PointOperation operation, int times)
+        {
+            this.operation = operation;
+            this.times = times;
+        }
+
+        void apply(ProjectImage image)
+        {
+            image.repeatPointOperation(operation, times);
+        }
+
+        Edit followedBy(Edit next)
+        {
+            if (! (next instanceof PointOperationEdit)
+                || ((PointOperationEdit) next).operation != operation)
+                return null;
+            int total = times + ((PointOperationEdit) next).times;
+
+            // Two negatives cancel out
+
+            if (operation == ProjectImage.PointOperation.NEGATIVE)
+                return total % 2 == 0 ? NOTHING : new PointOperationEdit(operation, 1);
+            return new PointOperationEdit(operation, total);
+        }
+
+        private final ProjectImage.PointOperation operation;
+        private final int times;
+    }
+
+    /** A shift in either or both directions
+     */
+    private static class ShiftEdit extends Edit
+    {
+        ShiftEdit(int rows, int cols)
+        {
+            this.rows = rows;
+            this.cols = cols;
+        }
+
+        void apply(ProjectImage image)
+        {
+            if (cols != 0)
+                image.shiftHorizontally(cols);
+            if (rows != 0)
+                image.shiftVertically(rows);
+        }
+
+        Edit followedBy(Edit next)
+        {
+            if (! (next instanceof ShiftEdit))
+                return null;
+            return new ShiftEdit(rows + ((ShiftEdit) next).rows,
+                                 cols + ((ShiftEdit) next).cols);
+        }
+
+        private final int rows;
+        private final int cols;
+    }
+
+    /** A flip
+     */
+    private static class FlipEdit extends Edit
+    {
+        FlipEdit(boolean horizontally)
+        {
+            this.horizontally = horizontally;
+        }
+
+        void apply(ProjectImage image)
+        {
+            if (horizontally)
+                image.flipHorizontally();
+            else
+                image.flipVertically();
+        }
+
+        Edit followedBy(Edit next)
+        {
+            if (next instanceof FlipEdit && ((FlipEdit) next).horizontally == horizontally)
+                return NOTHING;
+            return null;
+        }
+
+        private final boolean horizontally;
+    }
+
+    // An edit that leaves the image as it is, left in the queue when two
+    // edits cancel out.  Whatever follows takes its place
+
+    private static final Edit NOTHING = new Edit() {
+        void apply(ProjectImage image)
+        {
+        }
+
+        Edit followedBy(Edit next)
+        {
+            return next;
+        }
+    };
+
+    /** An edit waiting in the queue, with the image it is for
+     */
+    private static class Submitted
+    {
+        Submitted(ProjectImage image, Edit edit)
+        {
+            this.image = image;
+            this.edit = edit;
+        }
+
+        final ProjectImage image;
+        Edit edit;
+    }
+
+    // Executor data - busy is set from when an edit is submitted until the
+    // listener is told the queue has emptied.  cancelFlag is the flag of
+    // the edit running, or null if none is
+
+    private final Listener listener;
+    private final LinkedList<Submitted> queue;
+    private boolean busy;
+    private AtomicBoolean cancelFlag;
+}
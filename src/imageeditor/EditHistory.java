@@ -0,0 +1,550 @@
+/* EditHistory.java
+ *
+ *  Part of ImageEditor project - the undo/redo history of a ProjectImage.
+ *
+ *  Each state in the history records the image's buffer as a grid of tiles
+ *  of TILE_SIZE x TILE_SIZE pixels, together with the operations that were
+ *  still deferred when it was recorded.  Tiles are never changed once
+ *  recorded, so a state shares every tile that an edit left unchanged with
+ *  the state before it, and only holds new copies of the tiles that the edit
+ *  changed.  Each state also lists which tiles those were, so that stepping
+ *  to a neighbouring state only has to rewrite those tiles in the buffer.
+ *
+ *  A tile is copied in the same kind of array as the buffer - bytes for a
+ *  grayscale image held in bytes, otherwise ints - and is compared with the
+ *  buffer by value, so a tile can be shared whichever kind it was copied
+ *  from.
+ *
+ *  The history is limited to a budget of bytes of tile data.  When recording
+ *  a state takes it over the budget, the oldest states are discarded.
+ */
+
+package imageeditor;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+
+final class EditHistory
+{
+    /** Constructor
+     *
+     *  @param budget the most bytes of tile data the history may hold
+     */
+    EditHistory(long budget)
+    {
+        setBudget(budget);
+        states = new ArrayList<State>();
+        current = -1;
+    }
+
+    /** Change the budget, discarding old states if need be
+     *
+     *  @param budget the most bytes of tile data the history may hold
+     */
+    void setBudget(long budget)
+    {
+        if (budget < 0)
+            throw new IllegalArgumentException("Budget must not be negative");
+        this.budget = budget;
+        if (states != null)
+            evict();
+    }
+
+    /** Find out whether there is a state before the current one
+     *
+     *  @return true if undo() can be called
+     */
+    boolean canUndo()
+    {
+        return current > 0;
+    }
+
+    /** Find out whether there is a state after the current one
+     *
+     *  @return true if redo() can be called
+     */
+    boolean canRedo()
+    {
+        return current < states.size() - 1;
+    }
+
+    /**************************************************************************
+     * Recording
+     *************************************************************************/
+
+    /** Record a new state after the current one, discarding any states that
+     *  could have been redone
+     *
+     *  @param buffer the buffer holding the image
+     *  @param unchanged true if the buffer is known to hold exactly the tiles
+     *         of the current state, so that they need not be compared
+     *  @param written the part of buffer that may have been written since
+     *         the current state was recorded, or null if that may be
+     *         anywhere.  Only the tiles it touches are compared
+     *  @param transform the transform that was pending
+     *  @param pendingMap the point operation table that was pending, or null
+     *  @param knownHistograms the histograms that were known, or null
+     */
+    void record(final PixelBuffer buffer, boolean unchanged, final Rectangle written,
+                PixelTransform transform, int [] pendingMap,
+                int [] [] knownHistograms)
+    {
+        while (states.size() > current + 1)
+            size -= states.remove(states.size() - 1).ownBytes;
+
+        final State previous = current < 0 ? null : states.get(current);
+        final State state = new State(buffer.getWidth(), buffer.getHeight(),
+                                      buffer.holdsBytes(),
+                                      transform, copyOf(pendingMap),
+                                      copyOf(knownHistograms));
+        if (previous != null && unchanged && previous.sameSize(state))
+        {
+            state.tiles = previous.tiles;
+            state.changedTiles = new int [0];
+        }
+        else if (previous != null && previous.sameSize(state))
+        {
+            // Compare each row of tiles with the previous state, sharing
+            // the tiles that are the same
+
+            final PixelBuffer [] tiles = new PixelBuffer [state.tileCount()];
+            final boolean [] changed = new boolean [tiles.length];
+            ParallelEngine.forEachRow(state.tileRows, buffer.getWidth() * TILE_SIZE,
+                                      new ParallelEngine.RowTask() {
+                public void processRows(int startRow, int endRow)
+                {
+                    for (int tileRow = startRow; tileRow < endRow; tileRow ++)
+                        for (int tileCol = 0; tileCol < state.tileCols; tileCol ++)
+                        {
+                            int index = tileRow * state.tileCols + tileCol;
+                            PixelBuffer tile = previous.tiles[index];
+                            if (written != null
+                                && ! written.intersects(tileCol * TILE_SIZE, tileRow * TILE_SIZE,
+                                                        TILE_SIZE, TILE_SIZE))
+                                tiles[index] = tile;
+                            else if (state.tileMatches(buffer, tileRow, tileCol, tile))
+                                tiles[index] = tile;
+                            else
+                            {
+                                tiles[index] = state.copyTile(buffer, tileRow, tileCol);
+                                changed[index] = true;
+                            }
+                        }
+                }
+            });
+            state.tiles = tiles;
+            int changedCount = 0;
+            for (int index = 0; index < changed.length; index ++)
+                if (changed[index])
+                    changedCount ++;
+            state.changedTiles = new int [changedCount];
+            changedCount = 0;
+            for (int index = 0; index < changed.length; index ++)
+                if (changed[index])
+                {
+                    state.changedTiles[changedCount ++] = index;
+                    state.ownBytes += state.tileBytes(index);
+                }
+        }
+        else
+        {
+            // Nothing to share with - copy every tile
+
+            final PixelBuffer [] tiles = new PixelBuffer [state.tileCount()];
+            ParallelEngine.forEachRow(state.tileRows, buffer.getWidth() * TILE_SIZE,
+                                      new ParallelEngine.RowTask() {
+                public void processRows(int startRow, int endRow)
+                {
+                    for (int tileRow = startRow; tileRow < endRow; tileRow ++)
+                        for (int tileCol = 0; tileCol < state.tileCols; tileCol ++)
+                            tiles[tileRow * state.tileCols + tileCol] =
+                                state.copyTile(buffer, tileRow, tileCol);
+                }
+            });
+            state.tiles = tiles;
+            state.changedTiles = null;
+            state.ownBytes = state.totalBytes();
+        }
+
+        states.add(state);
+        current ++;
+        size += state.ownBytes;
+        evict();
+    }
+
+    /** Discard the oldest states until the history is within its budget.
+     *  The current state is always kept
+     */
+    private void evict()
+    {
+        int discard = 0;
+        while (size > budget && discard < current)
+        {
+            // The next state becomes the oldest, and so becomes the only
+            // owner of the tiles it shared with the state discarded
+
+            State next = states.get(discard + 1);
+            size -= states.get(discard).ownBytes + next.ownBytes;
+            next.ownBytes = next.totalBytes();
+            next.changedTiles = null;
+            size += next.ownBytes;
+            discard ++;
+        }
+        if (discard > 0)
+        {
+            states.subList(0, discard).clear();
+            current -= discard;
+        }
+    }
+
+    /**************************************************************************
+     * Moving through the history
+     *************************************************************************/
+
+    /** Step back to the previous state
+     *
+     *  @param buffer the buffer holding the image
+     *  @param unchanged true if the buffer is known to hold exactly the tiles
+     *         of the current state
+     *  @param pool the pool to take a buffer of another size or kind from
+     *  @return the buffer holding the state now current - the buffer passed,
+     *          with the tiles that differ rewritten, if that is the right
+     *          size and kind, or otherwise one taken from pool
+     */
+    PixelBuffer undo(PixelBuffer buffer, boolean unchanged, BufferPool pool)
+    {
+        State from = states.get(current);
+        State to = states.get(-- current);
+        return restore(buffer, unchanged, from, to, from.changedTiles, pool);
+    }
+
+    /** Step forward to the next state
+     *
+     *  @param buffer the buffer holding the image
+     *  @param unchanged true if the buffer is known to hold exactly the tiles
+     *         of the current state
+     *  @param pool the pool to take a buffer of another size or kind from
+     *  @return the buffer holding the state now current, as for undo()
+     */
+    PixelBuffer redo(PixelBuffer buffer, boolean unchanged, BufferPool pool)
+    {
+        State from = states.get(current);
+        State to = states.get(++ current);
+        return restore(buffer, unchanged, from, to, to.changedTiles, pool);
+    }
+
+    /** Get the current state
+     *
+     *  @return the state most recently recorded or stepped to
+     */
+    State getCurrentState()
+    {
+        return states.get(current);
+    }
+
+    /** Make a buffer hold the current state again, after an edit that was
+     *  stopped part way through may have left it holding anything
+     *
+     *  @param buffer the buffer holding the image
+     *  @param pool the pool to take a buffer of another size or kind from
+     *  @return the buffer holding the current state, as for undo()
+     */
+    PixelBuffer revert(PixelBuffer buffer, BufferPool pool)
+    {
+        State state = states.get(current);
+        return restore(buffer, false, state, state, null, pool);
+    }
+
+    /** Find out which tiles the last undo(), redo() or revert() rewrote
+     *
+     *  @return the index of each tile rewritten in the buffer it was passed
+     *          (tileRow * the number of tiles across + tileCol), or null if
+     *          it returned a new buffer.  The array must not be changed
+     */
+    int [] getRestoredTiles()
+    {
+        return restoredTiles;
+    }
+
+    /** Make a buffer hold the tiles of a state
+     *
+     *  @param buffer the buffer holding the image
+     *  @param unchanged true if the buffer holds exactly the tiles of from
+     *  @param from the state being left
+     *  @param to the state being restored
+     *  @param changedTiles the tiles that differ between from and to, or
+     *         null if not known
+     *  @param pool the pool to take a buffer from, if buffer is not the
+     *         right size and kind
+     *  @return the buffer holding the tiles of to
+     */
+    private PixelBuffer restore(final PixelBuffer buffer, boolean unchanged,
+                                State from, final State to, int [] changedTiles,
+                                BufferPool pool)
+    {
+        if (buffer.getWidth() != to.width || buffer.getHeight() != to.height
+            || buffer.holdsBytes() != to.bytes)
+        {
+            // Every tile is written, so whatever the buffer held does not
+            // matter
+
+            final PixelBuffer result = to.bytes ? pool.takeBytes(to.width, to.height)
+                                                : pool.take(to.width, to.height);
+            ParallelEngine.forEachRow(to.tileRows, to.width * TILE_SIZE,
+                                      new ParallelEngine.RowTask() {
+                public void processRows(int startRow, int endRow)
+                {
+                    for (int tileRow = startRow; tileRow < endRow; tileRow ++)
+                        for (int tileCol = 0; tileCol < to.tileCols; tileCol ++)
+                            to.writeTile(result, tileRow, tileCol);
+                }
+            });
+            restoredTiles = null;
+            return result;
+        }
+
+        if (unchanged && changedTiles != null && from.sameSize(to))
+        {
+            for (int index : changedTiles)
+                to.writeTile(buffer, index / to.tileCols, index % to.tileCols);
+            restoredTiles = changedTiles;
+        }
+        else
+        {
+            // The buffer's content is not known, so each tile has to be
+            // checked - but only the ones that differ are written
+
+            final boolean [] written = new boolean [to.tileCount()];
+            ParallelEngine.forEachRow(to.tileRows, to.width * TILE_SIZE,
+                                      new ParallelEngine.RowTask() {
+                public void processRows(int startRow, int endRow)
+                {
+                    for (int tileRow = startRow; tileRow < endRow; tileRow ++)
+                        for (int tileCol = 0; tileCol < to.tileCols; tileCol ++)
+                        {
+                            int index = tileRow * to.tileCols + tileCol;
+                            if (! to.tileMatches(buffer, tileRow, tileCol, to.tiles[index]))
+                            {
+                                to.writeTile(buffer, tileRow, tileCol);
+                                written[index] = true;
+                            }
+                        }
+                }
+            });
+            int writtenCount = 0;
+            for (int index = 0; index < written.length; index ++)
+                if (written[index])
+                    writtenCount ++;
+            restoredTiles = new int [writtenCount];
+            writtenCount = 0;
+            for (int index = 0; index < written.length; index ++)
+                if (written[index])
+                    restoredTiles[writtenCount ++] = index;
+        }
+        return buffer;
+    }
+
+    /** Copy an array, if there is one
+     *
+     *  @param array the array to copy, or null
+     *  @return a copy of array, or null
+     */
+    private static int [] copyOf(int [] array)
+    {
+        return array == null ? null : array.clone();
+    }
+
+    /** Copy an array of arrays, and the arrays in it, if there is one
+     *
+     *  @param array the array to copy, or null
+     *  @return a copy of array, or null
+     */
+    private static int [] [] copyOf(int [] [] array)
+    {
+        if (array == null)
+            return null;
+        int [] [] result = new int [array.length] [];
+        for (int i = 0; i < array.length; i ++)
+            result[i] = array[i].clone();
+        return result;
+    }
+
+    /**************************************************************************
+     * A recorded state
+     *************************************************************************/
+
+    /** A state of the image - its buffer, split into tiles, and the
+     *  operations that were still deferred
+     */
+    static final class State
+    {
+        /** Constructor
+         *
+         *  @param width the width of the buffer
+         *  @param height the height of the buffer
+         *  @param bytes true if the buffer held bytes
+         *  @param transform the transform that was pending
+         *  @param pendingMap the point operation table that was pending
+         *  @param knownHistograms the histograms that were known
+         */
+        State(int width, int height, boolean bytes, PixelTransform transform,
+              int [] pendingMap, int [] [] knownHistograms)
+        {
+            this.width = width;
+            this.height = height;
+            this.bytes = bytes;
+            this.tileCols = (width + TILE_SIZE - 1) / TILE_SIZE;
+            this.tileRows = (height + TILE_SIZE - 1) / TILE_SIZE;
+            this.transform = transform;
+            this.pendingMap = pendingMap;
+            this.knownHistograms = knownHistograms;
+        }
+
+        // Accessors for the deferred operations.  The arrays are copied,
+        // since the image may change them
+
+        PixelTransform getTransform()
+        {
+            return transform;
+        }
+
+        int [] getPendingMap()
+        {
+            return copyOf(pendingMap);
+        }
+
+        int [] [] getKnownHistograms()
+        {
+            return copyOf(knownHistograms);
+        }
+
+        // Tile geometry
+
+        private boolean sameSize(State other)
+        {
+            return width == other.width && height == other.height;
+        }
+
+        private int tileCount()
+        {
+            return tileRows * tileCols;
+        }
+
+        private int tileWidth(int tileCol)
+        {
+            return Math.min(TILE_SIZE, width - tileCol * TILE_SIZE);
+        }
+
+        private int tileHeight(int tileRow)
+        {
+            return Math.min(TILE_SIZE, height - tileRow * TILE_SIZE);
+        }
+
+        private long tileBytes(int index)
+        {
+            PixelBuffer tile = tiles[index];
+            return (long) tile.getWidth() * tile.getHeight()
+                * (tile.holdsBytes() ? 1 : BYTES_PER_INT);
+        }
+
+        private long totalBytes()
+        {
+            long total = 0;
+            for (int index = 0; index < tiles.length; index ++)
+                total += tileBytes(index);
+            return total;
+        }
+
+        /** Copy a tile out of a buffer
+         *
+         *  @param buffer the buffer to copy from
+         *  @param tileRow the row of the tile in the grid
+         *  @param tileCol the column of the tile in the grid
+         *  @return a compact buffer holding the pixels of the tile
+         */
+        private PixelBuffer copyTile(PixelBuffer buffer, int tileRow, int tileCol)
+        {
+            return tileOf(buffer, tileRow, tileCol).compactCopy();
+        }
+
+        /** Copy a tile of this state into a buffer
+         *
+         *  @param buffer the buffer to copy into
+         *  @param tileRow the row of the tile in the grid
+         *  @param tileCol the column of the tile in the grid
+         */
+        private void writeTile(PixelBuffer buffer, int tileRow, int tileCol)
+        {
+            tiles[tileRow * tileCols + tileCol].copyTo(tileOf(buffer, tileRow, tileCol));
+        }
+
+        /** Compare a tile of a buffer with recorded pixels
+         *
+         *  @param buffer the buffer to compare
+         *  @param tileRow the row of the tile in the grid
+         *  @param tileCol the column of the tile in the grid
+         *  @param tile the recorded pixels of the tile
+         *  @return true if the buffer holds exactly those pixels
+         */
+        private boolean tileMatches(PixelBuffer buffer, int tileRow, int tileCol,
+                                    PixelBuffer tile)
+        {
+            return tile.sameValues(tileOf(buffer, tileRow, tileCol));
+        }
+
+        /** Describe the pixels of a buffer under a tile
+         *
+         *  @param buffer the buffer holding the pixels
+         *  @param tileRow the row of the tile in the grid
+         *  @param tileCol the column of the tile in the grid
+         *  @return a buffer sharing the pixels of the tile
+         */
+        private PixelBuffer tileOf(PixelBuffer buffer, int tileRow, int tileCol)
+        {
+            return buffer.region(tileRow * TILE_SIZE, tileCol * TILE_SIZE,
+                                 tileHeight(tileRow), tileWidth(tileCol));
+        }
+
+        // The buffer, as tiles
+
+        private final int width;
+        private final int height;
+        private final boolean bytes;
+        private final int tileCols;
+        private final int tileRows;
+        private PixelBuffer [] tiles;
+
+        // The tiles that differ from the state before this one, or null if
+        // this state is the oldest or has a different size
+
+        private int [] changedTiles;
+
+        // The bytes of tile data that only this state (and perhaps later
+        // ones) refers to - the tiles it did not share with the state before
+
+        private long ownBytes;
+
+        // The deferred operations
+
+        private final PixelTransform transform;
+        private final int [] pendingMap;
+        private final int [] [] knownHistograms;
+    }
+
+    // History data
+
+    private final ArrayList<State> states;
+    private int current;
+    private long size;
+    private long budget;
+
+    // The tiles the last undo(), redo() or revert() rewrote - see
+    // getRestoredTiles()
+
+    private int [] restoredTiles;
+
+    // Constants
+
+    static final int TILE_SIZE = 64;
+    private static final int BYTES_PER_INT = 4;
+}
@@ -0,0 +1,439 @@
+/* FourierConvolver.java
+ *
+ *  Part of ImageEditor project - applies a filter to an image by way of the
+ *  discrete Fourier transform, for ConvolutionEngine.  Filtering a square
+ *  of T x T pixels directly costs T * T multiplications for each weight of
+ *  the filter, but transforming the square, multiplying it by the transform
+ *  of the filter, and transforming it back costs about T * T * log2(T) in
+ *  all - so for a large filter this is far cheaper.
+ *
+ *  The image is filtered a tile at a time (the overlap-save method).  Each
+ *  tile is a square of T x T pixels, T a power of 2, and gives the filtered
+ *  values of the T - size + 1 x T - size + 1 pixels whose neighborhoods lie
+ *  wholly inside it; those squares of results meet without overlapping, so
+ *  the tiles can be worked out in parallel and written straight into the
+ *  result.  Parts of a tile that lie beyond the image are filled with 0,
+ *  but no result is ever taken from them, so the pixels on the border are
+ *  left for the caller to copy exactly as the other ways of filtering do.
+ *
+ *  Each tile is real, so only half of its transform is worked out: each
+ *  pair of rows is transformed as the real and imaginary parts of a single
+ *  complex row, and only the columns 0 .. T/2 of the result are transformed
+ *  down - the others are their complex conjugates.  Going back, the same
+ *  is done in reverse.
+ *
+ *  The transform is worked out in doubles.  For a filter of fractions, its
+ *  error is many times smaller than the rounding bias added before the
+ *  fraction is dropped, so the results come out as the fixed-point ways of
+ *  filtering give them.  For a filter of other weights no bias is added, and
+ *  the results are rounded down as the direct double pass rounds them.
+ */
+
+package imageeditor;
+
+final class FourierConvolver
+{
+    /** Constructor - work out the transform of a filter for tiles of a
+     *  given size
+     *
+     *  @param filter a square array of doubles specifying the filter to
+     *         apply - the number of rows and columns must be odd
+     *  @param tileSize the number of rows and columns in a tile - a power of
+     *         2, no less than the size of the filter
+     *  @param fractions true if the weights are fractions with a small common
+     *         denominator (see ConvolutionEngine), so that a rounding bias
+     *         is added before the fraction is dropped
+     */
+    FourierConvolver(double [] [] filter, int tileSize, boolean fractions)
+    {
+        this.filterSize = filter.length;
+        this.tileSize = tileSize;
+        roundingBias = fractions ? ROUNDING_BIAS : 0;
+        halfColumns = tileSize / 2 + 1;
+        cos = new double [tileSize / 2];
+        sin = new double [tileSize / 2];
+        for (int i = 0; i < tileSize / 2; i ++)
+        {
+            cos[i] = Math.cos(2 * Math.PI * i / tileSize);
+            sin[i] = Math.sin(2 * Math.PI * i / tileSize);
+        }
+        reversed = new int [tileSize];
+        int bits = Integer.numberOfTrailingZeros(tileSize);
+        for (int i = 0; i < tileSize; i ++)
+            reversed[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+
+        // Multiplying transforms convolves, which turns the filter round
+        // compared with the weighted sum a filter gives - so the filter is
+        // turned round first.  The scaling of the inverse transform is
+        // folded in here too
+
+        double [] tile = new double [tileSize * tileSize];
+        int last = filterSize - 1;
+        double scale = 1.0 / ((double) tileSize * tileSize);
+        for (int y = 0; y < filterSize; y ++)
+            for (int x = 0; x < filterSize; x ++)
+                tile[y * tileSize + x] = filter[last - y][last - x] * scale;
+        filterRe = new double [tileSize * halfColumns];
+        filterIm = new double [tileSize * halfColumns];
+        forward(tile, filterRe, filterIm, new double [tileSize], new double [tileSize]);
+    }
+
+    /** Choose the size of tile that filters a rectangle with the least
+     *  work
+     *
+     *  @param width the number of columns to be filtered
+     *  @param height the number of rows to be filtered
+     *  @param filterSize the number of rows and columns in the filter
+     *  @return the size of tile
+     */
+    static int chooseTileSize(int width, int height, int filterSize)
+    {
+        int best = 0;
+        double bestCost = Double.MAX_VALUE;
+        int largest = Integer.highestOneBit(Math.max(width, height) + filterSize - 1) * 2;
+        for (int size = MIN_TILE_SIZE; size <= Math.min(MAX_TILE_SIZE, largest); size *= 2)
+            if (size >= filterSize)
+            {
+                double cost = cost(width, height, filterSize, size);
+                if (cost < bestCost)
+                {
+                    best = size;
+                    bestCost = cost;
+                }
+            }
+        return best == 0 ? Math.max(MIN_TILE_SIZE, Integer.highestOneBit(filterSize) * 2) : best;
+    }
+
+    /** Estimate the work of filtering a rectangle this way, in the same units
+     *  as one weight applied to one pixel in fixed-point
+     *
+     *  @param width the number of columns to be filtered
+     *  @param height the number of rows to be filtered
+     *  @param filterSize the number of rows and columns in the filter
+     *  @param tileSize the size of tile
+     *  @return the estimated work
+     */
+    static double cost(int width, int height, int filterSize, int tileSize)
+    {
+        // Each tile takes about tileSize transforms of length tileSize each
+        // way - tileSize * tileSize * log2(tileSize) butterflies in all
+
+        int step = tileSize - filterSize + 1;
+        double tiles = Math.ceil((double) width / step) * Math.ceil((double) height / step);
+        int log = Integer.numberOfTrailingZeros(tileSize);
+        return tiles * tileSize * tileSize * (log * BUTTERFLY_COST + TILE_PIXEL_COST);
+    }
+
+    /** Get the number of rows and columns of results that each tile gives
+     *
+     *  @return the step from one tile to the next
+     */
+    int getStep()
+    {
+        return tileSize - filterSize + 1;
+    }
+
+    /**************************************************************************
+     * Filtering
+     *************************************************************************/
+
+    /** Filter the pixels of one tile
+     *
+     *  @param source the pixels being filtered, all in 0 .. 255
+     *  @param result the buffer for the filtered pixels
+     *  @param row the first row of the results the tile gives
+     *  @param col the first column of the results the tile gives
+     *  @param rows the number of rows of results wanted - at most getStep()
+     *  @param cols the number of columns of results wanted - at most
+     *         getStep()
+     *  @param work the arrays to work in, from newWork()
+     */
+    void filterTile(PixelBuffer source, PixelBuffer result, int row, int col,
+                    int rows, int cols, Work work)
+    {
+        // The tile starts half the filter's size above and to the left of
+        // the first result
+
+        int border = (filterSize - 1) / 2;
+        int firstRow = row - border;
+        int firstCol = col - border;
+        int tileRows = Math.min(tileSize, source.getHeight() - firstRow);
+        int tileCols = Math.min(tileSize, source.getWidth() - firstCol);
+        double [] tile = work.tile;
+        int [] data = source.getData();
+        for (int y = 0; y < tileSize; y ++)
+        {
+            int dst = y * tileSize;
+            if (y < tileRows)
+            {
+                int src = source.rowStart(firstRow + y) + firstCol;
+                for (int x = 0; x < tileCols; x ++)
+                    tile[dst + x] = data[src + x];
+                for (int x = tileCols; x < tileSize; x ++)
+                    tile[dst + x] = 0;
+            }
+            else
+                for (int x = 0; x < tileSize; x ++)
+                    tile[dst + x] = 0;
+        }
+
+        double [] re = work.re;
+        double [] im = work.im;
+        forward(tile, re, im, work.lineRe, work.lineIm);
+        for (int i = 0; i < re.length; i ++)
+        {
+            double r = re[i] * filterRe[i] - im[i] * filterIm[i];
+            im[i] = re[i] * filterIm[i] + im[i] * filterRe[i];
+            re[i] = r;
+        }
+        inverse(re, im, tile, work.lineRe, work.lineIm);
+
+        // The result for the pixel at (row + y, col + x) comes out at
+        // (y + filterSize - 1, x + filterSize - 1) of the tile
+
+        int [] newData = result.getData();
+        int offset = filterSize - 1;
+        for (int y = 0; y < rows; y ++)
+        {
+            int src = (y + offset) * tileSize + offset;
+            int dst = result.rowStart(row + y) + col;
+            for (int x = 0; x < cols; x ++)
+            {
+                double value = Math.floor(tile[src + x] + roundingBias);
+                newData[dst + x] = value < MIN_BRIGHTNESS ? MIN_BRIGHTNESS
+                                 : value > MAX_BRIGHTNESS ? MAX_BRIGHTNESS : (int) value;
+            }
+        }
+    }
+
+    /** Create the arrays one thread needs to filter tiles
+     *
+     *  @return the arrays
+     */
+    Work newWork()
+    {
+        return new Work(tileSize, halfColumns);
+    }
+
+    /** The arrays a thread works in - a thread at a time can use them
+     */
+    static final class Work
+    {
+        /** Constructor
+         *
+         *  @param tileSize the number of rows and columns in a tile
+         *  @param halfColumns the number of columns of the transform kept
+         */
+        private Work(int tileSize, int halfColumns)
+        {
+            tile = new double [tileSize * tileSize];
+            re = new double [tileSize * halfColumns];
+            im = new double [tileSize * halfColumns];
+            lineRe = new double [tileSize];
+            lineIm = new double [tileSize];
+        }
+
+        private final double [] tile;
+        private final double [] re;
+        private final double [] im;
+        private final double [] lineRe;
+        private final double [] lineIm;
+    }
+
+    /**************************************************************************
+     * The two-dimensional transforms
+     *************************************************************************/
+
+    /** Transform a real tile, keeping columns 0 .. tileSize / 2
+     *
+     *  @param tile the tile, row by row
+     *  @param re the real parts of the result, tileSize rows of halfColumns
+     *  @param im the imaginary parts of the result
+     *  @param lineRe an array of tileSize doubles to work in
+     *  @param lineIm another
+     */
+    private void forward(double [] tile, double [] re, double [] im,
+                         double [] lineRe, double [] lineIm)
+    {
+        int n = tileSize;
+
+        // Rows y and y + 1 are transformed together as z = a + ib.  Because
+        // a and b are real, A[m] = (Z[m] + conj(Z[n - m])) / 2 and
+        // B[m] = (Z[m] - conj(Z[n - m])) / 2i
+
+        for (int y = 0; y < n; y += 2)
+        {
+            System.arraycopy(tile, y * n, lineRe, 0, n);
+            System.arraycopy(tile, (y + 1) * n, lineIm, 0, n);
+            transform(lineRe, lineIm, false);
+            for (int m = 0; m < halfColumns; m ++)
+            {
+                int mirror = (n - m) & (n - 1);
+                double zr = lineRe[m];
+                double zi = lineIm[m];
+                double wr = lineRe[mirror];
+                double wi = lineIm[mirror];
+                re[y * halfColumns + m] = (zr + wr) / 2;
+                im[y * halfColumns + m] = (zi - wi) / 2;
+                re[(y + 1) * halfColumns + m] = (zi + wi) / 2;
+                im[(y + 1) * halfColumns + m] = (wr - zr) / 2;
+            }
+        }
+        transformColumns(re, im, false, lineRe, lineIm);
+    }
+
+    /** Transform back to a real tile.  The result is not divided by
+     *  tileSize * tileSize - the filter's transform has been divided already
+     *
+     *  @param re the real parts of columns 0 .. tileSize / 2 of the
+     *         transform - overwritten
+     *  @param im the imaginary parts - overwritten
+     *  @param tile the tile to fill in, row by row
+     *  @param lineRe an array of tileSize doubles to work in
+     *  @param lineIm another
+     */
+    private void inverse(double [] re, double [] im, double [] tile,
+                         double [] lineRe, double [] lineIm)
+    {
+        int n = tileSize;
+        transformColumns(re, im, true, lineRe, lineIm);
+
+        // Rows y and y + 1 are real, so they come back together as the real
+        // and imaginary parts of the inverse of A + iB.  Only the rows
+        // results are taken from are needed
+
+        for (int y = (filterSize - 1) & ~1; y < n; y += 2)
+        {
+            for (int m = 0; m < n; m ++)
+            {
+                // The columns past n / 2 are the conjugates of those before
+
+                int kept = m < halfColumns ? m : n - m;
+                double sign = m < halfColumns ? 1 : -1;
+                double ar = re[y * halfColumns + kept];
+                double ai = sign * im[y * halfColumns + kept];
+                double br = re[(y + 1) * halfColumns + kept];
+                double bi = sign * im[(y + 1) * halfColumns + kept];
+                lineRe[m] = ar - bi;
+                lineIm[m] = ai + br;
+            }
+            transform(lineRe, lineIm, true);
+            System.arraycopy(lineRe, 0, tile, y * n, n);
+            System.arraycopy(lineIm, 0, tile, (y + 1) * n, n);
+        }
+    }
+
+    /** Transform each kept column of a half transform, a column at a time
+     *
+     *  @param re the real parts, tileSize rows of halfColumns
+     *  @param im the imaginary parts
+     *  @param inverse true to transform back
+     *  @param lineRe an array of tileSize doubles to work in
+     *  @param lineIm another
+     */
+    private void transformColumns(double [] re, double [] im, boolean inverse,
+                                  double [] lineRe, double [] lineIm)
+    {
+        for (int m = 0; m < halfColumns; m ++)
+        {
+            for (int y = 0; y < tileSize; y ++)
+            {
+                lineRe[y] = re[y * halfColumns + m];
+                lineIm[y] = im[y * halfColumns + m];
+            }
+            transform(lineRe, lineIm, inverse);
+            for (int y = 0; y < tileSize; y ++)
+            {
+                re[y * halfColumns + m] = lineRe[y];
+                im[y * halfColumns + m] = lineIm[y];
+            }
+        }
+    }
+
+    /** Transform a line of complex values in place - the iterative radix-2
+     *  fast Fourier transform
+     *
+     *  @param re the real parts, tileSize of them
+     *  @param im the imaginary parts
+     *  @param inverse true to transform back, without dividing by tileSize
+     */
+    private void transform(double [] re, double [] im, boolean inverse)
+    {
+        int n = tileSize;
+        for (int i = 0; i < n; i ++)
+        {
+            int j = reversed[i];
+            if (j > i)
+            {
+                double t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
+        }
+        for (int half = 1; half < n; half *= 2)
+        {
+            int step = n / (2 * half);
+            for (int k = 0; k < half; k ++)
+            {
+                double wr = cos[k * step];
+                double wi = inverse ? sin[k * step] : - sin[k * step];
+                for (int a = k; a < n; a += 2 * half)
+                {
+                    int b = a + half;
+                    double tr = re[b] * wr - im[b] * wi;
+                    double ti = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+
+    // The filter, and its transform for tiles of this size, turned round and
+    // scaled
+
+    private final int filterSize;
+    private final double [] filterRe;
+    private final double [] filterIm;
+
+    // Added to each value before its fraction is dropped - ROUNDING_BIAS
+    // for a filter of fractions, otherwise 0
+
+    private final double roundingBias;
+
+    // The size of tile, the number of columns of a transform kept, and the
+    // tables for transforming a line
+
+    private final int tileSize;
+    private final int halfColumns;
+    private final double [] cos;
+    private final double [] sin;
+    private final int [] reversed;
+
+    // Constants
+
+    private static final int MIN_BRIGHTNESS = 0;
+    private static final int MAX_BRIGHTNESS = 255;
+    private static final int MIN_TILE_SIZE = 16;
+    private static final int MAX_TILE_SIZE = 512;
+
+    // Added before the fraction is dropped, like the rounding bias of the
+    // fixed-point ways of filtering - well above the error of the transform
+    // (around 1e-9 of a brightness level for the largest tiles), but small
+    // enough not to round up a value that truly falls just short of a whole
+    // number
+
+    private static final double ROUNDING_BIAS = 1.0 / (1 << 20);
+
+    // The work of a butterfly for each pixel of a tile at each of log2 of
+    // its size steps, and of the rest of the work for each pixel of a tile,
+    // relative to applying one weight in fixed-point
+
+    private static final double BUTTERFLY_COST = 4.0;
+    private static final double TILE_PIXEL_COST = 12.0;
+}
@@ -0,0 +1,300 @@
+/* ImagePyramid.java
+ *
+ *  Part of ImageEditor project - smaller copies of a ProjectImage, for
+ *  showing it at a fraction of its size.  Level 0 is the image itself, and
+ *  each level after that is the one before it halved, exactly as by
+ *  ProjectImage.halve(), so level k is 1/2^k of the size of the image.  A
+ *  view that shows the image small can then be given the level nearest the
+ *  size it shows, rather than every pixel of the image.
+ *
+ *  A level is only built when it is first asked for, and is then kept up
+ *  to date a tile at a time.  Each level is divided into tiles of
+ *  TILE_SIZE x TILE_SIZE pixels; when part of the image is written, the
+ *  tiles of each level that the part is averaged into are marked as out of
+ *  date, and the next request for a level rebuilds just those tiles, from
+ *  the pixels under them in the level before.  So keeping the levels up to
+ *  date costs in proportion to the area that changed, however big the
+ *  image.
+ */
+
+package imageeditor;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DirectColorModel;
+import java.util.Arrays;
+
+final class ImagePyramid
+{
+    /** Constructor
+     *
+     *  @param base the buffer holding the image, row by row.  It is used
+     *         directly, and must be invalidated whenever it is written.  It
+     *         may hold bytes; the levels after it always hold ints
+     *  @param color true if the pixels are packed colors, to be averaged a
+     *         color at a time
+     *  @param displayModel the color model for the images of the levels
+     */
+    ImagePyramid(PixelBuffer base, boolean color, DirectColorModel displayModel)
+    {
+        this(base, null, base.getWidth(), base.getHeight(), color, displayModel);
+    }
+
+    /** Constructor
+     *
+     *  @param base the image held off the heap.  It must be invalidated
+     *         whenever it is written.  Level 1 is built from it a tile at a
+     *         time, so no level needs the whole image on the heap
+     *  @param color true if the pixels are packed colors, to be averaged a
+     *         color at a time
+     *  @param displayModel the color model for the images of the levels
+     */
+    ImagePyramid(MappedImage base, boolean color, DirectColorModel displayModel)
+    {
+        this(null, base, base.getWidth(), base.getHeight(), color, displayModel);
+    }
+
+    /** Constructor
+     *
+     *  @param buffer the buffer holding the image, or null
+     *  @param mappedImage the image held off the heap, if buffer is null
+     *  @param width the width of the image
+     *  @param height the height of the image
+     *  @param color true if the pixels are packed colors
+     *  @param displayModel the color model for the images of the levels
+     */
+    private ImagePyramid(PixelBuffer buffer, MappedImage mappedImage,
+                         int width, int height, boolean color,
+                         DirectColorModel displayModel)
+    {
+        this.mappedImage = mappedImage;
+        this.width = width;
+        this.height = height;
+        this.color = color;
+        this.displayModel = displayModel;
+
+        // Halving stops when it would leave no pixels
+
+        int levelCount = 1;
+        while ((width >> levelCount) > 0 && (height >> levelCount) > 0)
+            levelCount ++;
+        levels = new PixelBuffer [levelCount];
+        levels[0] = buffer;
+        images = new BufferedImage [levelCount];
+        dirtyTiles = new boolean [levelCount] [];
+        dirtyCounts = new int [levelCount];
+    }
+
+    /** Find the level to show an image at a given scale.  That is the
+     *  smallest level at least as big as the image will be shown, so the
+     *  level never has to be enlarged, and never has to be reduced by as
+     *  much as half
+     *
+     *  @param scale the size the image will be shown at, as a fraction of
+     *         its own size - must be more than 0
+     *  @return the level wanted, which may be more than the image has
+     */
+    static int levelFor(double scale)
+    {
+        int level = 0;
+        while (level < MAX_LEVEL && Math.scalb(1.0, -(level + 1)) >= scale)
+            level ++;
+        return level;
+    }
+
+    /** Get the number of levels
+     *
+     *  @return the number of levels, counting level 0 - one more than the
+     *          number of times the image can be halved before a dimension
+     *          reaches 0
+     */
+    int getLevelCount()
+    {
+        return levels.length;
+    }
+
+    /** Get a level as an image for display, bringing it up to date first.
+     *  The same object is returned for a level every time, and its pixels
+     *  are updated in place, so it should not be written to
+     *
+     *  @param level the level wanted, 1 .. getLevelCount() - 1
+     *  @return an image sharing the pixels of the level
+     */
+    BufferedImage getImage(int level)
+    {
+        update(level);
+        if (images[level] == null)
+            images[level] = new BufferedImage(displayModel,
+                levels[level].createRaster(displayModel.getMasks()), false, null);
+        return images[level];
+    }
+
+    /**************************************************************************
+     * Invalidation
+     *************************************************************************/
+
+    /** Note that part of the image has been written
+     *
+     *  @param startRow the first row written
+     *  @param startCol the first column written
+     *  @param rowCount the number of rows written
+     *  @param colCount the number of columns written
+     */
+    void invalidate(int startRow, int startCol, int rowCount, int colCount)
+    {
+        if (rowCount <= 0 || colCount <= 0)
+            return;
+        for (int level = 1; level < levels.length; level ++)
+        {
+            PixelBuffer buffer = levels[level];
+            boolean [] dirty = dirtyTiles[level];
+            if (buffer == null || dirtyCounts[level] == dirty.length)
+                continue;
+
+            // The pixel at (row, col) of the image is averaged into the
+            // pixel at (row >> level, col >> level) of the level - unless
+            // that is in an odd last row or column dropped by halving
+
+            int firstRow = startRow >> level;
+            int lastRow = Math.min((startRow + rowCount - 1) >> level,
+                                   buffer.getHeight() - 1);
+            int firstCol = startCol >> level;
+            int lastCol = Math.min((startCol + colCount - 1) >> level,
+                                   buffer.getWidth() - 1);
+            int tileCols = tileCount(buffer.getWidth());
+            for (int tileRow = firstRow / TILE_SIZE; tileRow <= lastRow / TILE_SIZE; tileRow ++)
+                for (int tileCol = firstCol / TILE_SIZE; tileCol <= lastCol / TILE_SIZE; tileCol ++)
+                {
+                    int index = tileRow * tileCols + tileCol;
+                    if (! dirty[index])
+                    {
+                        dirty[index] = true;
+                        dirtyCounts[level] ++;
+                    }
+                }
+        }
+    }
+
+    /** Note that the whole image may have been written
+     */
+    void invalidateAll()
+    {
+        for (int level = 1; level < levels.length; level ++)
+            if (levels[level] != null)
+            {
+                Arrays.fill(dirtyTiles[level], true);
+                dirtyCounts[level] = dirtyTiles[level].length;
+            }
+    }
+
+    /**************************************************************************
+     * Building the levels
+     *************************************************************************/
+
+    /** Bring a level, and the levels it is made from, up to date
+     *
+     *  @param level the level wanted
+     */
+    private void update(int level)
+    {
+        for (int next = 1; next <= level; next ++)
+        {
+            if (levels[next] == null)
+            {
+                levels[next] = new PixelBuffer(width >> next, height >> next);
+                dirtyTiles[next] = new boolean [tileCount(width >> next)
+                                                * tileCount(height >> next)];
+                Arrays.fill(dirtyTiles[next], true);
+                dirtyCounts[next] = dirtyTiles[next].length;
+            }
+            if (dirtyCounts[next] > 0)
+                rebuild(next);
+        }
+    }
+
+    /** Rebuild the tiles of a level that are out of date, from the level
+     *  before it, which must be up to date
+     *
+     *  @param level the level to rebuild
+     */
+    private void rebuild(int level)
+    {
+        final PixelBuffer target = levels[level];
+        final PixelBuffer source = levels[level - 1];
+        final int tileCols = tileCount(target.getWidth());
+        boolean [] dirty = dirtyTiles[level];
+        final int [] tiles = new int [dirtyCounts[level]];
+        int count = 0;
+        for (int index = 0; index < dirty.length; index ++)
+            if (dirty[index])
+                tiles[count ++] = index;
+
+        ParallelEngine.forEachRow(tiles.length, TILE_SIZE * TILE_SIZE,
+                                  new ParallelEngine.RowTask() {
+            public void processRows(int startTile, int endTile)
+            {
+                // Level 1 of an image held off the heap is made from the
+                // pixels under each tile, read into a buffer of their own
+
+                PixelBuffer read = null;
+                for (int i = startTile; i < endTile; i ++)
+                {
+                    int row = tiles[i] / tileCols * TILE_SIZE;
+                    int col = tiles[i] % tileCols * TILE_SIZE;
+                    int rows = Math.min(TILE_SIZE, target.getHeight() - row);
+                    int cols = Math.min(TILE_SIZE, target.getWidth() - col);
+                    PixelBuffer from;
+                    if (source != null)
+                        from = source.region(2 * row, 2 * col, 2 * rows, 2 * cols);
+                    else
+                    {
+                        if (read == null)
+                            read = new PixelBuffer(2 * TILE_SIZE, 2 * TILE_SIZE);
+                        from = read.region(0, 0, 2 * rows, 2 * cols);
+                        mappedImage.read(2 * row, 2 * col, from);
+                    }
+                    PixelBuffer to = target.region(row, col, rows, cols);
+                    if (color)
+                        ChannelKernels.halveInto(from, to);
+                    else
+                        ProjectImage.halveInto(from, to);
+                }
+            }
+        });
+        Arrays.fill(dirty, false);
+        dirtyCounts[level] = 0;
+    }
+
+    /** Find the number of tiles needed to cover a number of pixels
+     *
+     *  @param pixels the width or height to cover
+     *  @return the number of tiles across or down
+     */
+    private static int tileCount(int pixels)
+    {
+        return (pixels + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    // The image - in levels[0], or off the heap in mappedImage, in which
+    // case levels[0] is null
+
+    private final MappedImage mappedImage;
+    private final int width;
+    private final int height;
+    private final boolean color;
+    private final DirectColorModel displayModel;
+
+    // The levels, each null until it is first asked for, with the images
+    // sharing their pixels.  For each level, a flag for each of its tiles,
+    // row by row, which is set while the tile is out of date, and the
+    // number of flags set
+
+    private final PixelBuffer [] levels;
+    private final BufferedImage [] images;
+    private final boolean [] [] dirtyTiles;
+    private final int [] dirtyCounts;
+
+    // Constants
+
+    static final int TILE_SIZE = 64;
+    private static final int MAX_LEVEL = 30;
+}
@@ -0,0 +1,295 @@
+/* ImageStatistics.java
+ *
+ *  Part of ImageEditor project - statistics of the pixel values of a
+ *  ProjectImage: for each channel (the gray value of a grayscale image, or
+ *  red, green and blue of a color one), the number of pixels having each
+ *  value 0 .. 255, and the total, average, smallest and largest values and
+ *  percentiles worked out from those counts.
+ *
+ *  Objects of this class are immutable, and are cheap to create from the
+ *  counts - a ProjectImage keeps the counts up to date as point operations
+ *  change the pixels, so it can hand out new statistics without counting
+ *  the pixels again.
+ */
+
+package imageeditor;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public final class ImageStatistics
+{
+    /** Constructor
+     *
+     *  @param histograms for each channel, the number of pixels having each
+     *         value 0 .. 255.  The arrays are not copied
+     */
+    ImageStatistics(int [] [] histograms)
+    {
+        this.histograms = histograms;
+        long count = 0;
+        for (int value = 0; value < 256; value ++)
+            count += histograms[0][value];
+        this.pixelCount = count;
+        this.sums = new long [histograms.length];
+        this.minimums = new int [histograms.length];
+        this.maximums = new int [histograms.length];
+        for (int channel = 0; channel < histograms.length; channel ++)
+        {
+            int [] histogram = histograms[channel];
+            long sum = 0;
+            int minimum = -1;
+            int maximum = 0;
+            for (int value = 0; value < 256; value ++)
+                if (histogram[value] != 0)
+                {
+                    sum += (long) histogram[value] * value;
+                    if (minimum < 0)
+                        minimum = value;
+                    maximum = value;
+                }
+            sums[channel] = sum;
+            minimums[channel] = Math.max(minimum, 0);
+            maximums[channel] = maximum;
+        }
+    }
+
+    /**************************************************************************
+     * Accessors.  Each takes the channel wanted: 0 for a grayscale image, or
+     * RED, GREEN or BLUE for a color one.  For an image with no pixels, the
+     * values are all 0
+     *************************************************************************/
+
+    /** Get the number of channels
+     *
+     *  @return 1 for a grayscale image, 3 for a color one
+     */
+    public int getChannelCount()
+    {
+        return histograms.length;
+    }
+
+    /** Get the number of pixels
+     *
+     *  @return the number of pixels counted in each channel
+     */
+    public long getPixelCount()
+    {
+        return pixelCount;
+    }
+
+    /** Get the histogram of a channel
+     *
+     *  @param channel the channel wanted
+     *  @return 256-element array - the number of pixels having each value
+     */
+    public int [] getHistogram(int channel)
+    {
+        return histograms[channel].clone();
+    }
+
+    /** Get the total of the values of a channel
+     *
+     *  @param channel the channel wanted
+     *  @return the sum of the values over every pixel
+     */
+    public long getSum(int channel)
+    {
+        return sums[channel];
+    }
+
+    /** Get the average value of a channel
+     *
+     *  @param channel the channel wanted
+     *  @return the mean of the values
+     */
+    public double getMean(int channel)
+    {
+        return pixelCount == 0 ? 0 : (double) sums[channel] / pixelCount;
+    }
+
+    /** Get the smallest value of a channel
+     *
+     *  @param channel the channel wanted
+     *  @return the smallest value any pixel has
+     */
+    public int getMinimum(int channel)
+    {
+        return minimums[channel];
+    }
+
+    /** Get the largest value of a channel
+     *
+     *  @param channel the channel wanted
+     *  @return the largest value any pixel has
+     */
+    public int getMaximum(int channel)
+    {
+        return maximums[channel];
+    }
+
+    /** Get a percentile of a channel
+     *
+     *  @param channel the channel wanted
+     *  @param percent the percentage of pixels wanted, 0 .. 100
+     *  @return the smallest value that at least that percentage of the
+     *          pixels are less than or equal to - 50 gives the median
+     */
+    public int getPercentile(int channel, double percent)
+    {
+        if (! (percent >= 0 && percent <= 100))
+            throw new IllegalArgumentException("Percentage must be 0 .. 100");
+        long wanted = Math.max(1, (long) Math.ceil(percent / 100 * pixelCount));
+        int [] histogram = histograms[channel];
+        long seen = 0;
+        for (int value = 0; value < 256; value ++)
+        {
+            seen += histogram[value];
+            if (seen >= wanted)
+                return value;
+        }
+        return 0;
+    }
+
+    /** Get the average value of a channel, rounded down as the contrast
+     *  operations want it
+     *
+     *  @param channel the channel wanted
+     *  @return the mean of the values, rounded down
+     */
+    int getAverage(int channel)
+    {
+        return pixelCount == 0 ? 0 : (int) (sums[channel] / pixelCount);
+    }
+
+    /**************************************************************************
+     * Counting
+     *************************************************************************/
+
+    /** Count the pixels in a buffer having each value in each channel.
+     *  Each band of rows is counted into its own bins, and the bins are
+     *  then added together
+     *
+     *  @param source the buffer to count
+     *  @param color true to count red, green and blue separately; otherwise
+     *         each pixel is one grayscale value
+     *  @return the counts for each channel, or null if some grayscale pixel
+     *          lies outside 0 .. 255
+     */
+    static int [] [] count(final PixelBuffer source, final boolean color)
+    {
+        final int channels = color ? 3 : 1;
+
+        // An empty image has no bands to count, but has counts all the same
+
+        if ((long) source.getWidth() * source.getHeight() == 0)
+            return new int [channels] [256];
+        final int [] data = source.getData();
+        final byte [] bytes = source.getBytes();
+        final int [] [] [] bandCounts = new int [source.getHeight()] [] [];
+        final AtomicBoolean outOfRange = new AtomicBoolean(false);
+        ParallelEngine.forEachRow(source.getHeight(), source.getWidth(),
+                                  new ParallelEngine.RowTask() {
+            public void processRows(int startRow, int endRow)
+            {
+                int [] [] counts = new int [channels] [256];
+                for (int row = startRow; row < endRow; row ++)
+                {
+                    int start = source.rowStart(row);
+                    int end = start + source.getWidth();
+                    if (color)
+                    {
+                        int [] red = counts[RED];
+                        int [] green = counts[GREEN];
+                        int [] blue = counts[BLUE];
+                        for (int i = start; i < end; i ++)
+                        {
+                            int pixel = data[i];
+                            red[pixel >> 16 & 0xff] ++;
+                            green[pixel >> 8 & 0xff] ++;
+                            blue[pixel & 0xff] ++;
+                        }
+                    }
+                    else if (bytes != null)
+                    {
+                        // Bytes always lie in range
+
+                        int [] gray = counts[0];
+                        for (int i = start; i < end; i ++)
+                            gray[bytes[i] & 0xff] ++;
+                    }
+                    else
+                    {
+                        int [] gray = counts[0];
+                        for (int i = start; i < end; i ++)
+                        {
+                            if ((data[i] & ~0xff) != 0)
+                            {
+                                outOfRange.set(true);
+                                return;
+                            }
+                            gray[data[i]] ++;
+                        }
+                    }
+                }
+                bandCounts[startRow] = counts;
+            }
+        });
+        if (outOfRange.get())
+            return null;
+
+        // Each band left its counts in the entry for its first row
+
+        int [] [] result = new int [channels] [256];
+        for (int row = 0; row < source.getHeight(); row ++)
+            if (bandCounts[row] != null)
+                add(result, bandCounts[row]);
+        return result;
+    }
+
+    /** Add counts to a running total
+     *
+     *  @param total the counts to add to
+     *  @param counts the counts to add, for the same channels
+     */
+    static void add(int [] [] total, int [] [] counts)
+    {
+        for (int channel = 0; channel < total.length; channel ++)
+            for (int value = 0; value < 256; value ++)
+                total[channel][value] += counts[channel][value];
+    }
+
+    /** Find the counts of the values produced by passing pixels through a
+     *  value map
+     *
+     *  @param histogram the counts of the values before the map
+     *  @param map the map from old values to new ones
+     *  @return the counts of the new values, or null if some pixel would be
+     *          mapped outside 0 .. 255
+     */
+    static int [] remap(int [] histogram, int [] map)
+    {
+        int [] result = new int [256];
+        for (int value = 0; value < 256; value ++)
+            if (histogram[value] != 0)
+            {
+                if ((map[value] & ~0xff) != 0)
+                    return null;
+                result[map[value]] += histogram[value];
+            }
+        return result;
+    }
+
+    // The channels of a color image
+
+    public static final int RED = 0;
+    public static final int GREEN = 1;
+    public static final int BLUE = 2;
+
+    // Statistics data
+
+    private final int [] [] histograms;
+    private final long pixelCount;
+    private final long [] sums;
+    private final int [] minimums;
+    private final int [] maximums;
+}
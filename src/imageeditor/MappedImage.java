@@ -0,0 +1,760 @@
+/* MappedImage.java
+ *
+ *  Part of ImageEditor project - carries out the operations of a
+ *  ProjectImage whose pixels are kept in a MappedPixelStore rather than on
+ *  the heap.
+ *
+ *  Only a band of rows is brought onto the heap at a time, so the memory an
+ *  operation needs depends on the width of the image rather than its size.
+ *  Each band is processed by the same code that processes a whole image on
+ *  the heap, and gives the same result:
+ *
+ *  - operations that work within each row (the point operations, the
+ *    horizontal flip and shift, and encryption) rewrite each band in place
+ *  - the other operations write a new store, reading for each band of the
+ *    result the rows it comes from - plus, for a filter, the rows around
+ *    them that the filter reaches - or, for rotate, the columns it comes from
+ *  - an operation restricted to a Selection reads only the bands holding
+ *    rows of the selection, and rewrites them in place - see
+ *    processSelection()
+ */
+
+package imageeditor;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Random;
+
+final class MappedImage
+{
+    /** Constructor
+     *
+     *  @param store the store holding the pixels
+     */
+    MappedImage(MappedPixelStore store)
+    {
+        this.store = store;
+    }
+
+    /** Create an image holding a copy of the pixels in a buffer
+     *
+     *  @param source the buffer to copy
+     *  @return the new image
+     *  @exception IOException if the store cannot be created
+     */
+    static MappedImage copyOf(PixelBuffer source) throws IOException
+    {
+        MappedPixelStore store = new MappedPixelStore(source.getWidth(), source.getHeight());
+        store.write(0, 0, source);
+        return new MappedImage(store);
+    }
+
+    /**************************************************************************
+     * Accessors
+     *************************************************************************/
+
+    int getWidth()
+    {
+        return store.getWidth();
+    }
+
+    int getHeight()
+    {
+        return store.getHeight();
+    }
+
+    /** Copy rows of pixels out of this image
+     *
+     *  @param startRow the first row to copy
+     *  @param target the buffer to copy into - the whole width of the image,
+     *         and as many rows as wanted
+     */
+    void read(int startRow, PixelBuffer target)
+    {
+        store.read(startRow, 0, target);
+    }
+
+    /** Copy a rectangle of pixels out of this image
+     *
+     *  @param startRow the first row to copy
+     *  @param startCol the first column to copy
+     *  @param target the buffer to copy into - its width and height are
+     *         those of the rectangle
+     */
+    void read(int startRow, int startCol, PixelBuffer target)
+    {
+        store.read(startRow, startCol, target);
+    }
+
+    /** Copy rows of pixels into this image
+     *
+     *  @param startRow the first row to copy into
+     *  @param source the buffer to copy from - the whole width of the image,
+     *         and as many rows as wanted
+     */
+    void write(int startRow, PixelBuffer source)
+    {
+        store.write(startRow, 0, source);
+    }
+
+    /** Count the pixels having each value in each channel
+     *
+     *  @param color true to count red, green and blue separately
+     *  @return the counts for each channel, or null if some grayscale pixel
+     *          lies outside 0 .. 255
+     */
+    int [] [] calculateHistograms(final boolean color)
+    {
+        final int [] [] pixelNumber = new int [color ? 3 : 1] [256];
+        final boolean [] inByteRange = { true };
+        scanBands(new BandTask() {
+            public PixelBuffer processBand(int startRow, PixelBuffer band)
+            {
+                int [] [] counts = inByteRange[0] ? ImageStatistics.count(band, color) : null;
+                if (counts == null)
+                    inByteRange[0] = false;
+                else
+                    ImageStatistics.add(pixelNumber, counts);
+                return band;
+            }
+        });
+        return inByteRange[0] ? pixelNumber : null;
+    }
+
+    /**************************************************************************
+     * Operations restricted to a selection
+     *************************************************************************/
+
+    /** Work on the rows of the image a selection covers, a band at a time,
+     *  in order
+     *
+     *  @param selection the pixels to work on, all within the image
+     *  @param reach the number of rows either side of a selected pixel that
+     *         task reads, which are read with each band - but only the
+     *         selected pixels of the band itself are given to task
+     *  @param writeBack true to write each band back once task has
+     *         processed it
+     *  @param task what to do with each band.  Its changes must be made in
+     *         place, to the selected pixels only
+     */
+    void processSelection(Selection selection, int reach, boolean writeBack,
+                          SelectionKernels.RegionTask task)
+    {
+        int width = getWidth();
+        int height = getHeight();
+        int firstRow = selection.getFirstRow();
+        int endRow = firstRow + selection.getRowCount();
+        int bandRows = Math.max(bandRows(width), reach);
+
+        // A band is written back only once the next has been read, so that
+        // the rows the next band reads above itself are as they were.  Rows
+        // further up are out of reach, so two buffers are enough
+
+        PixelBuffer [] fulls = { new PixelBuffer(width, bandRows + 2 * reach),
+                                 writeBack ? new PixelBuffer(width, bandRows + 2 * reach) : null };
+        PixelBuffer pending = null;
+        int pendingRow = 0;
+        int bands = 0;
+        for (int startRow = firstRow; startRow < endRow; startRow += bandRows)
+        {
+            int bandEnd = Math.min(endRow, startRow + bandRows);
+            int firstRead = Math.max(0, startRow - reach);
+            int endRead = Math.min(height, bandEnd + reach);
+            PixelBuffer band = rows(fulls[writeBack ? bands ++ % 2 : 0], 0, endRead - firstRead);
+            store.read(firstRead, 0, band);
+            Selection selected = selection.clipped(0, startRow, width, bandEnd - startRow)
+                                          .moved(0, - firstRead);
+            task.processRegion(firstRead, 0, band, selected);
+            if (writeBack)
+            {
+                if (pending != null)
+                    store.write(pendingRow, 0, pending);
+                pending = rows(band, startRow - firstRead, bandEnd - startRow);
+                pendingRow = startRow;
+            }
+        }
+        if (pending != null)
+            store.write(pendingRow, 0, pending);
+    }
+
+    /**************************************************************************
+     * Operations that work within each row
+     *************************************************************************/
+
+    /** Apply a point operation to every pixel
+     *
+     *  @param operation the operation to apply
+     *  @param color true to apply it to each color separately
+     */
+    void applyPointOperation(final ProjectImage.PointOperation operation, boolean color)
+    {
+        if (color)
+        {
+            ImageStatistics statistics = null;
+            if (operation.usesAverage())
+                statistics = new ImageStatistics(calculateHistograms(true));
+            final int [] [] maps = ChannelKernels.channelMaps(operation, statistics);
+            updateBands(new BandTask() {
+                public PixelBuffer processBand(int startRow, PixelBuffer band)
+                {
+                    ChannelKernels.applyPointOperation(band, operation, 1, maps);
+                    return band;
+                }
+            });
+            return;
+        }
+        final int averageColor = operation.usesAverage() ? averageColor() : 0;
+        updateBands(new BandTask() {
+            public PixelBuffer processBand(int startRow, final PixelBuffer band)
+            {
+                final int [] data = band.getData();
+                ParallelEngine.forEachRow(band.getHeight(), band.getWidth(),
+                                          new ParallelEngine.RowTask() {
+                    public void processRows(int startBandRow, int endBandRow)
+                    {
+                        for (int row = startBandRow; row < endBandRow; row ++)
+                        {
+                            int start = band.rowStart(row);
+                            int end = start + band.getWidth();
+                            for (int i = start; i < end; i ++)
+                                data[i] = operation.apply(data[i], averageColor);
+                        }
+                    }
+                });
+                return band;
+            }
+        });
+    }
+
+    /** Encrypt or decrypt the image, exactly as ProjectImage does
+     *
+     *  @param seed the key
+     */
+    void encryptDecrypt(final int seed)
+    {
+        // The random numbers are used in row order, so the bands must be
+        // processed in order, one pixel at a time
+
+        final Random random = new Random(seed);
+        updateBands(new BandTask() {
+            public PixelBuffer processBand(int startRow, PixelBuffer band)
+            {
+                int [] data = band.getData();
+                for (int row = 0; row < band.getHeight(); row ++)
+                {
+                    int start = band.rowStart(row);
+                    for (int i = start; i < start + band.getWidth(); i ++)
+                        data[i] = data[i] ^ seed + random.nextInt(MAX_BRIGHTNESS + 1);
+                }
+                return band;
+            }
+        });
+    }
+
+    /** Encrypt or decrypt the image with a keystream whose values depend
+     *  only on the position of each pixel, so the rows can be done at once
+     *
+     *  @param keystream the keystream
+     *  @param color true if the pixels are packed colors
+     */
+    void encryptDecrypt(final CounterKeystream keystream, final boolean color)
+    {
+        final long width = getWidth();
+        updateBands(new BandTask() {
+            public PixelBuffer processBand(final int startRow, final PixelBuffer band)
+            {
+                ParallelEngine.forEachRow(band.getHeight(), band.getWidth(),
+                                          new ParallelEngine.RowTask() {
+                    public void processRows(int startBandRow, int endBandRow)
+                    {
+                        for (int row = startBandRow; row < endBandRow; row ++)
+                            keystream.apply(band.getData(), band.rowStart(row),
+                                            band.getWidth(),
+                                            (startRow + row) * width, color);
+                    }
+                });
+                return band;
+            }
+        });
+    }
+
+    /** Flip the image horizontally
+     */
+    void flipHorizontally()
+    {
+        final PixelTransform flip = PixelTransform.IDENTITY.flipHorizontally(getWidth());
+        updateBands(new BandTask() {
+            public PixelBuffer processBand(int startRow, PixelBuffer band)
+            {
+                return flip.apply(band, BufferPool.NONE);
+            }
+        });
+    }
+
+    /** Shift the image horizontally, wrapping around at the edges
+     *
+     *  @param x the number of columns to shift right - negative for left
+     */
+    void shiftHorizontally(final int x)
+    {
+        updateBands(new BandTask() {
+            public PixelBuffer processBand(int startRow, PixelBuffer band)
+            {
+                return PixelTransform.IDENTITY
+                    .shift(0, x, band.getWidth(), band.getHeight())
+                    .apply(band, BufferPool.NONE);
+            }
+        });
+    }
+
+    /**************************************************************************
+     * Operations that write a new store
+     *************************************************************************/
+
+    /** Flip the image vertically
+     */
+    void flipVertically()
+    {
+        int width = getWidth();
+        int height = getHeight();
+        MappedPixelStore result = newStore(width, height);
+        PixelBuffer full = new PixelBuffer(width, bandRows(width));
+        for (int startRow = 0; startRow < height; startRow += full.getHeight())
+        {
+            PixelBuffer band = rows(full, 0, Math.min(full.getHeight(), height - startRow));
+            store.read(height - startRow - band.getHeight(), 0, band);
+            result.write(startRow, 0, PixelTransform.IDENTITY
+                         .flipVertically(band.getHeight()).apply(band, BufferPool.NONE));
+        }
+        store = result;
+    }
+
+    /** Shift the image vertically, wrapping around at the edges
+     *
+     *  @param y the number of rows to shift down - negative for up
+     */
+    void shiftVertically(int y)
+    {
+        int width = getWidth();
+        int height = getHeight();
+        if (height == 0)
+            return;
+        int amount = ((y % height) + height) % height;
+        MappedPixelStore result = newStore(width, height);
+        PixelBuffer full = new PixelBuffer(width, bandRows(width));
+        for (int startRow = 0; startRow < height; startRow += full.getHeight())
+        {
+            // Row r of the result is row (r - amount) of the image, so the
+            // rows of a band come from at most two runs of rows
+
+            PixelBuffer band = rows(full, 0, Math.min(full.getHeight(), height - startRow));
+            int sourceRow = (startRow - amount + height) % height;
+            int firstRun = Math.min(band.getHeight(), height - sourceRow);
+            store.read(sourceRow, 0, rows(band, 0, firstRun));
+            if (firstRun < band.getHeight())
+                store.read(0, 0, rows(band, firstRun, band.getHeight() - firstRun));
+            result.write(startRow, 0, band);
+        }
+        store = result;
+    }
+
+    /** Rotate the image clockwise by a multiple of 90 degrees, in a single
+     *  pass
+     *
+     *  @param quarterTurns the number of times to rotate by 90 degrees -
+     *         1, 2 or 3
+     */
+    void rotate(int quarterTurns)
+    {
+        int width = getWidth();
+        int height = getHeight();
+        if (quarterTurns == 2)
+        {
+            // Each band of rows of the result is a band of rows from the
+            // other end of the image, turned round
+
+            MappedPixelStore result = newStore(width, height);
+            PixelBuffer full = new PixelBuffer(width, bandRows(width));
+            for (int startRow = 0; startRow < height; startRow += full.getHeight())
+            {
+                PixelBuffer band = rows(full, 0, Math.min(full.getHeight(), height - startRow));
+                store.read(startRow, 0, band);
+                result.write(height - startRow - band.getHeight(), 0, PixelTransform.IDENTITY
+                             .rotate(2, width, band.getHeight()).apply(band, BufferPool.NONE));
+            }
+            store = result;
+            return;
+        }
+
+        // Each band of rows of the result is a strip of columns of the image
+        // - for a quarter turn counterclockwise, from the other end
+
+        MappedPixelStore result = newStore(height, width);
+        int stripCols = bandRows(height);
+        for (int startCol = 0; startCol < width; startCol += stripCols)
+        {
+            PixelBuffer strip = new PixelBuffer(Math.min(stripCols, width - startCol), height);
+            store.read(0, startCol, strip);
+            int startRow = quarterTurns == 1 ? startCol : width - startCol - strip.getWidth();
+            result.write(startRow, 0, PixelTransform.IDENTITY
+                         .rotate(quarterTurns, strip.getWidth(), height).apply(strip, BufferPool.NONE));
+        }
+        store = result;
+    }
+
+    /** Rotate the image by any angle - see RotationEngine.  The result is
+     *  worked out a tile at a time, from the rectangle of the image under
+     *  each tile
+     *
+     *  @param degrees the angle to rotate by, clockwise
+     *  @param color true to blend each color separately
+     */
+    void rotate(double degrees, boolean color)
+    {
+        RotationEngine.Rotation rotation =
+            new RotationEngine.Rotation(getWidth(), getHeight(), degrees);
+        int newWidth = rotation.getWidth();
+        int newHeight = rotation.getHeight();
+        int tileSize = RotationEngine.TILE_SIZE;
+        MappedPixelStore result = newStore(newWidth, newHeight);
+        PixelBuffer full = new PixelBuffer(newWidth, tileSize);
+        for (int startRow = 0; startRow < newHeight; startRow += tileSize)
+        {
+            PixelBuffer band = rows(full, 0, Math.min(tileSize, newHeight - startRow));
+            for (int startCol = 0; startCol < newWidth; startCol += tileSize)
+            {
+                int cols = Math.min(tileSize, newWidth - startCol);
+                int [] bounds = rotation.sourceBounds(startRow, startCol, band.getHeight(), cols);
+                PixelBuffer window = new PixelBuffer(bounds[3], bounds[2]);
+                store.read(bounds[0], bounds[1], window);
+                rotation.fill(window, bounds[0], bounds[1],
+                              RotationEngine.region(band, 0, startCol, band.getHeight(), cols),
+                              startRow, startCol, color);
+            }
+            result.write(startRow, 0, band);
+        }
+        store = result;
+    }
+
+    /** Scale the image by a factor of 0.5 in each dimension
+     *
+     *  @param color true to average each color separately
+     */
+    void halve(boolean color)
+    {
+        int width = getWidth();
+        int height = getHeight();
+        MappedPixelStore result = newStore(width / 2, height / 2);
+        PixelBuffer full = new PixelBuffer(width, 2 * Math.max(1, bandRows(width) / 2));
+        for (int startRow = 0; startRow < height / 2; startRow += full.getHeight() / 2)
+        {
+            PixelBuffer band = rows(full, 0, Math.min(full.getHeight(), 2 * (height / 2 - startRow)));
+            store.read(2 * startRow, 0, band);
+            result.write(startRow, 0, color ? ChannelKernels.halved(band, BufferPool.NONE)
+                                            : ProjectImage.halved(band, BufferPool.NONE));
+        }
+        store = result;
+    }
+
+    /** Scale the image by a factor of 2 in each dimension
+     *
+     *  @param color true to average each color separately
+     */
+    void doubleSize(boolean color)
+    {
+        int width = getWidth();
+        int height = getHeight();
+        MappedPixelStore result = newStore(width * 2 - 1, height * 2 - 1);
+
+        // A band of rows r .. s of the image gives rows 2r .. 2s of the
+        // result.  The last row of each band is read again as the first row
+        // of the next, so that the rows between them can be worked out
+
+        PixelBuffer full = new PixelBuffer(width, Math.max(2, bandRows(width)));
+        int startRow = 0;
+        while (true)
+        {
+            PixelBuffer band = rows(full, 0, Math.min(full.getHeight(), height - startRow));
+            store.read(startRow, 0, band);
+            result.write(2 * startRow, 0, color ? ChannelKernels.doubled(band, BufferPool.NONE)
+                                                : ProjectImage.doubled(band, BufferPool.NONE));
+            if (startRow + band.getHeight() >= height)
+                break;
+            startRow += band.getHeight() - 1;
+        }
+        store = result;
+    }
+
+    /** Resize the image to any width and height
+     *
+     *  @param newWidth the width of the result
+     *  @param newHeight the height of the result
+     *  @param filter how the pixels around each point are weighted
+     *  @param color true to resize each color separately
+     */
+    void resize(int newWidth, int newHeight, ProjectImage.ResizeFilter filter,
+                boolean color)
+    {
+        int width = getWidth();
+        int height = getHeight();
+        ResampleEngine.Weights columns = new ResampleEngine.Weights(width, newWidth, filter);
+        ResampleEngine.Weights rows = new ResampleEngine.Weights(height, newHeight, filter);
+        MappedPixelStore result = newStore(newWidth, newHeight);
+
+        // Each band of rows of the result is worked out from the rows of the
+        // image it draws on, so a band is made small enough that those fit
+        // in a band of the image too
+
+        double rowsPerRow = Math.max(1.0, (double) height / Math.max(1, newHeight));
+        int bandRows = Math.max(1, (int) Math.min(bandRows(newWidth), bandRows(width) / rowsPerRow));
+        for (int startRow = 0; startRow < newHeight; startRow += bandRows)
+        {
+            int endRow = Math.min(newHeight, startRow + bandRows);
+            int firstRead = rows.getStart(startRow);
+            PixelBuffer band = new PixelBuffer(width, rows.getEnd(endRow - 1) - firstRead);
+            store.read(firstRead, 0, band);
+            result.write(startRow, 0, ResampleEngine.resample(band, firstRead, columns, rows,
+                                                              startRow, endRow, color));
+        }
+        store = result;
+    }
+
+    /** Apply a filter to the image
+     *
+     *  @param filter a square array of doubles specifying the filter to
+     *         apply - the number of rows and columns must be odd
+     *  @param color true to filter each color separately
+     */
+    void applyFilter(final double [] [] filter, final boolean color)
+    {
+        final boolean inByteRange = color || isInByteRange();
+        filterBands((filter.length - 1) / 2, new BandTask() {
+            public PixelBuffer processBand(int startRow, PixelBuffer band)
+            {
+                return color ? ChannelKernels.convolve(band, filter, BufferPool.NONE)
+                             : ConvolutionEngine.convolve(band, filter, inByteRange,
+                                                         BufferPool.NONE);
+            }
+        });
+    }
+
+    /** Apply a median filter to the image
+     *
+     *  @param radius the distance the square of pixels reaches from its
+     *         centre
+     *  @param color true to filter each color separately
+     */
+    void medianFilter(final int radius, final boolean color)
+    {
+        filterBands(radius, new BandTask() {
+            public PixelBuffer processBand(int startRow, PixelBuffer band)
+            {
+                return DenoiseEngine.median(band, radius, color, BufferPool.NONE);
+            }
+        });
+    }
+
+    /** Apply a bilateral filter to the image
+     *
+     *  @param spatialSigma the spatial spread of the filter, in pixels
+     *  @param rangeSigma the spread of the filter in brightness
+     *  @param color true to filter each color separately
+     */
+    void bilateralFilter(final double spatialSigma, final double rangeSigma,
+                         final boolean color)
+    {
+        filterBands(DenoiseEngine.bilateralReach(spatialSigma), new BandTask() {
+            public PixelBuffer processBand(int startRow, PixelBuffer band)
+            {
+                return DenoiseEngine.bilateral(band, startRow, spatialSigma, rangeSigma, color,
+                                               BufferPool.NONE);
+            }
+        });
+    }
+
+    /**************************************************************************
+     * Private helpers
+     *************************************************************************/
+
+    /** Work out the average pixel value.  The total is kept in a long, since
+     *  an image too big for the heap can easily overflow an int
+     *
+     *  @return the average value, rounded down
+     */
+    private int averageColor()
+    {
+        final long [] totalColor = new long [1];
+        scanBands(new BandTask() {
+            public PixelBuffer processBand(int startRow, PixelBuffer band)
+            {
+                int [] data = band.getData();
+                long total = 0;
+                for (int row = 0; row < band.getHeight(); row ++)
+                {
+                    int start = band.rowStart(row);
+                    for (int i = start; i < start + band.getWidth(); i ++)
+                        total += data[i];
+                }
+                totalColor[0] += total;
+                return band;
+            }
+        });
+        return (int) (totalColor[0] / ((long) getWidth() * getHeight()));
+    }
+
+    /** Check whether every pixel lies in the range 0 .. 255
+     *
+     *  @return true if they all do
+     */
+    private boolean isInByteRange()
+    {
+        final boolean [] inByteRange = { true };
+        scanBands(new BandTask() {
+            public PixelBuffer processBand(int startRow, PixelBuffer band)
+            {
+                if (inByteRange[0] && ! ConvolutionEngine.isInByteRange(band))
+                    inByteRange[0] = false;
+                return band;
+            }
+        });
+        return inByteRange[0];
+    }
+
+    /** Work on the image a band of rows at a time, in order
+     */
+    private interface BandTask
+    {
+        /** Process a band of rows
+         *
+         *  @param startRow the row of the image the band starts at
+         *  @param band the pixels of the band
+         *  @return a buffer the same size as band, holding the pixels the
+         *          band should be left with - possibly band itself
+         */
+        PixelBuffer processBand(int startRow, PixelBuffer band);
+    }
+
+    /** Read the image a band at a time
+     *
+     *  @param task what to do with each band - its result is ignored
+     */
+    private void scanBands(BandTask task)
+    {
+        processBands(task, false);
+    }
+
+    /** Read the image a band at a time, writing each band back once it has
+     *  been processed
+     *
+     *  @param task what to do with each band
+     */
+    private void updateBands(BandTask task)
+    {
+        processBands(task, true);
+    }
+
+    /** Read the image a band at a time
+     *
+     *  @param task what to do with each band
+     *  @param writeBack true to write the result of task back to the image
+     */
+    private void processBands(BandTask task, boolean writeBack)
+    {
+        int width = getWidth();
+        int height = getHeight();
+        PixelBuffer full = new PixelBuffer(width, bandRows(width));
+        for (int startRow = 0; startRow < height; startRow += full.getHeight())
+        {
+            PixelBuffer band = rows(full, 0, Math.min(full.getHeight(), height - startRow));
+            store.read(startRow, 0, band);
+            PixelBuffer processed = task.processBand(startRow, band);
+            if (writeBack)
+                store.write(startRow, 0, processed);
+        }
+    }
+
+    /** Replace the image by a filtered copy, worked out a band at a time
+     *
+     *  @param reach the number of rows either side of a pixel that the
+     *         filter reads
+     *  @param filter the filter - given a band of rows, together with the
+     *         rows within reach above and below it, and the row of the image
+     *         they start at
+     */
+    private void filterBands(int reach, BandTask filter)
+    {
+        int width = getWidth();
+        int height = getHeight();
+        MappedPixelStore result = newStore(width, height);
+        int bandRows = bandRows(width);
+        PixelBuffer full = new PixelBuffer(width, bandRows + 2 * reach);
+        for (int startRow = 0; startRow < height; startRow += bandRows)
+        {
+            // Read the rows the filter reaches above and below the band too.
+            // Rows of the band within reach of the edge of what was read are
+            // then only left unfiltered if they are within reach of the edge
+            // of the image as well
+
+            int endRow = Math.min(height, startRow + bandRows);
+            int firstRead = Math.max(0, startRow - reach);
+            int endRead = Math.min(height, endRow + reach);
+            PixelBuffer band = rows(full, 0, endRead - firstRead);
+            store.read(firstRead, 0, band);
+            PixelBuffer filtered = filter.processBand(firstRead, band);
+            result.write(startRow, 0, rows(filtered, startRow - firstRead, endRow - startRow));
+        }
+        store = result;
+    }
+
+    /** Describe some of the rows of a buffer
+     *
+     *  @param buffer the buffer
+     *  @param startRow the first row wanted
+     *  @param count the number of rows wanted
+     *  @return a buffer sharing the storage of those rows
+     */
+    private static PixelBuffer rows(PixelBuffer buffer, int startRow, int count)
+    {
+        if (startRow == 0 && count == buffer.getHeight())
+            return buffer;
+        return new PixelBuffer(buffer.getData(), buffer.rowStart(startRow),
+                               buffer.getStride(), buffer.getWidth(), count);
+    }
+
+    /** Decide how many rows of a given width to bring onto the heap at once
+     *
+     *  @param width the number of pixels in each row
+     *  @return the number of rows in a band
+     */
+    private static int bandRows(int width)
+    {
+        return Math.max(1, BAND_PIXELS / Math.max(1, width));
+    }
+
+    /** Create a store for the result of an operation
+     *
+     *  @param width the width of the result
+     *  @param height the height of the result
+     *  @return the new store
+     */
+    private static MappedPixelStore newStore(int width, int height)
+    {
+        try
+        {
+            return new MappedPixelStore(width, height);
+        }
+        catch(IOException exception)
+        {
+            throw new UncheckedIOException(exception);
+        }
+    }
+
+    // Image data
+
+    private MappedPixelStore store;
+
+    // Constants
+
+    private static final int BAND_PIXELS = 1 << 22;
+    private static final int MAX_BRIGHTNESS = 255;
+}
@@ -0,0 +1,165 @@
+/* MappedPixelStore.java
+ *
+ *  Part of ImageEditor project - storage for the pixels of an image that is
+ *  too big to hold on the heap.  The pixels are kept row by row in a
+ *  temporary file that is mapped into memory, so the operating system pages
+ *  them in and out as they are used and the garbage collector never sees
+ *  them.  A file can only be mapped up to 2 GB at a time, so the rows are
+ *  mapped in chunks of at most MAX_CHUNK_BYTES.
+ *
+ *  The file is deleted as soon as it has been mapped (or, where the
+ *  operating system does not allow that, when the program exits); its space
+ *  is given back once the store is no longer referenced.
+ *
+ *  Pixels are copied in and out of a store a rectangle at a time, through an
+ *  ordinary PixelBuffer.
+ */
+
+package imageeditor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+final class MappedPixelStore
+{
+    /** Constructor - create a store with every pixel 0
+     *
+     *  @param width the number of pixels in each row
+     *  @param height the number of rows
+     *  @exception IOException if the temporary file cannot be created
+     */
+    MappedPixelStore(int width, int height) throws IOException
+    {
+        if (width < 0 || height < 0)
+            throw new IllegalArgumentException("Size must not be negative");
+        long rowBytes = (long) Math.max(width, 1) * BYTES_PER_PIXEL;
+        if (rowBytes > MAX_CHUNK_BYTES)
+            throw new IllegalArgumentException("Rows too long to map");
+        this.width = width;
+        this.height = height;
+        this.rowsPerChunk = (int) Math.min(MAX_CHUNK_BYTES / rowBytes, Integer.MAX_VALUE);
+        this.chunks = new IntBuffer [(int) ((height + (long) rowsPerChunk - 1) / rowsPerChunk)];
+
+        File file = File.createTempFile("imageeditor", ".pixels");
+        try
+        {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try
+            {
+                FileChannel channel = randomAccessFile.getChannel();
+                for (int chunk = 0; chunk < chunks.length; chunk ++)
+                {
+                    int rows = Math.min(rowsPerChunk, height - chunk * rowsPerChunk);
+                    long position = (long) chunk * rowsPerChunk * width * BYTES_PER_PIXEL;
+                    long size = (long) rows * width * BYTES_PER_PIXEL;
+                    chunks[chunk] = channel.map(FileChannel.MapMode.READ_WRITE, position, size)
+                                           .order(ByteOrder.nativeOrder())
+                                           .asIntBuffer();
+                }
+            }
+            finally
+            {
+                // The mappings stay valid after the file is closed
+
+                randomAccessFile.close();
+            }
+        }
+        finally
+        {
+            if (! file.delete())
+                file.deleteOnExit();
+        }
+    }
+
+    /** Copy a rectangle of pixels out of this store
+     *
+     *  @param startRow the first row of the rectangle
+     *  @param startCol the first column of the rectangle
+     *  @param target the buffer to copy into - its width and height are
+     *         those of the rectangle
+     */
+    void read(final int startRow, final int startCol, final PixelBuffer target)
+    {
+        final int [] data = target.getData();
+        ParallelEngine.forEachRow(target.getHeight(), target.getWidth(),
+                                  new ParallelEngine.RowTask() {
+            public void processRows(int startBandRow, int endBandRow)
+            {
+                for (int row = startBandRow; row < endBandRow; row ++)
+                    rowView(startRow + row, startCol)
+                        .get(data, target.rowStart(row), target.getWidth());
+            }
+        });
+    }
+
+    /** Copy a rectangle of pixels into this store
+     *
+     *  @param startRow the first row of the rectangle
+     *  @param startCol the first column of the rectangle
+     *  @param source the buffer to copy from - its width and height are
+     *         those of the rectangle.  A buffer of bytes is widened a row at
+     *         a time as it is copied
+     */
+    void write(final int startRow, final int startCol, final PixelBuffer source)
+    {
+        final int [] data = source.getData();
+        ParallelEngine.forEachRow(source.getHeight(), source.getWidth(),
+                                  new ParallelEngine.RowTask() {
+            public void processRows(int startBandRow, int endBandRow)
+            {
+                int [] widened = data == null ? new int [source.getWidth()] : null;
+                for (int row = startBandRow; row < endBandRow; row ++)
+                    if (widened != null)
+                    {
+                        source.copyRow(row, widened, 0);
+                        rowView(startRow + row, startCol).put(widened);
+                    }
+                    else
+                        rowView(startRow + row, startCol)
+                            .put(data, source.rowStart(row), source.getWidth());
+            }
+        });
+    }
+
+    /** Get a view of part of a row.  Each call returns a new view, so views
+     *  can be used by several threads at once
+     *
+     *  @param row the row wanted
+     *  @param col the column the view starts at
+     *  @return a buffer positioned at that pixel
+     */
+    private IntBuffer rowView(int row, int col)
+    {
+        IntBuffer view = chunks[row / rowsPerChunk].duplicate();
+        view.position((row % rowsPerChunk) * width + col);
+        return view;
+    }
+
+    // Accessors for the size
+
+    int getWidth()
+    {
+        return width;
+    }
+
+    int getHeight()
+    {
+        return height;
+    }
+
+    // Store data
+
+    private final int width;
+    private final int height;
+    private final int rowsPerChunk;
+    private final IntBuffer [] chunks;
+
+    // Constants
+
+    private static final long MAX_CHUNK_BYTES = 1L << 30;
+    private static final int BYTES_PER_PIXEL = 4;
+}
@@ -0,0 +1,660 @@
+/* OperationMetrics.java
+ *
+ *  Part of ImageEditor project - measures the operations of ProjectImage,
+ *  so that a slow one can be found.  Each mutator, calculateHistogram() and
+ *  getPixelsIntRGB() records how long it took and how many bytes the thread
+ *  calling it allocated, together with the size of the image and whether it
+ *  was in color.
+ *
+ *  For each operation the totals since the metrics were last reset are
+ *  kept, along with a histogram of the times taken in the last minute.  The
+ *  histogram has four buckets for each power of two nanoseconds, so a
+ *  percentile read from it is within about 12% of the true value.  The
+ *  figures can be read through JMX, as the OperationMetricsMXBean registered
+ *  by registerMBean(), and the GUI shows the latest measurement.
+ *
+ *  Measuring is off unless it is turned on, by setEnabled() or by setting
+ *  the system property imageeditor.metrics to true.  While it is off an
+ *  operation only reads one volatile flag.  An operation called from within
+ *  another - as encryptDecrypt() does in RANDOM mode - is counted as part of
+ *  the outer one.
+ *
+ *  The bytes allocated are those of the calling thread only.  That thread
+ *  allocates every new buffer, so this is most of it; the little that the
+ *  bands run on ParallelEngine's pool allocate is not counted.
+ */
+
+package imageeditor;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.function.Supplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+public final class OperationMetrics
+{
+    /** The operations measured
+     */
+    public enum Operation
+    {
+        LIGHTEN("Lighten"),
+        DARKEN("Darken"),
+        NEGATIVE("Negative"),
+        REDUCE_CONTRAST("Reduce contrast"),
+        ENHANCE_CONTRAST("Enhance contrast"),
+        FLIP_HORIZONTALLY("Flip horizontally"),
+        FLIP_VERTICALLY("Flip vertically"),
+        ENCRYPT_DECRYPT("Encrypt/decrypt"),
+        CALCULATE_HISTOGRAM("Histogram"),
+        GET_PIXELS("Get pixels"),
+        HALVE("Halve"),
+        SHIFT_HORIZONTALLY("Shift horizontally"),
+        SHIFT_VERTICALLY("Shift vertically"),
+        ROTATE("Rotate"),
+        DOUBLE_SIZE("Double"),
+        RESIZE("Resize"),
+        APPLY_FILTER("Filter"),
+        MEDIAN_FILTER("Median filter"),
+        BILATERAL_FILTER("Bilateral filter"),
+        SET_ROWS("Set rows"),
+        SET_PIXELS("Set pixels"),
+        UNDO("Undo"),
+        REDO("Redo");
+
+        Operation(String label)
+        {
+            this.label = label;
+        }
+
+        /** Get the name of this operation as the GUI shows it
+         *
+         *  @return the name
+         */
+        public String getLabel()
+        {
+            return label;
+        }
+
+        /** Find the operation that applies a point operation
+         *
+         *  @param operation the point operation
+         *  @return the operation
+         */
+        static Operation of(ProjectImage.PointOperation operation)
+        {
+            switch (operation)
+            {
+                case LIGHTEN:
+                    return LIGHTEN;
+                case DARKEN:
+                    return DARKEN;
+                case NEGATIVE:
+                    return NEGATIVE;
+                case REDUCE_CONTRAST:
+                    return REDUCE_CONTRAST;
+                default:
+                    return ENHANCE_CONTRAST;
+            }
+        }
+
+        private final String label;
+    }
+
+    // This class is not meant to be instantiated
+
+    private OperationMetrics()
+    {
+    }
+
+    /**************************************************************************
+     * Configuration
+     *************************************************************************/
+
+    /** Turn measuring on or off.  The figures gathered so far are kept
+     *
+     *  @param enabled true to measure operations from now on
+     */
+    public static void setEnabled(boolean enabled)
+    {
+        OperationMetrics.enabled = enabled;
+    }
+
+    /** Find out whether operations are being measured
+     *
+     *  @return true if they are
+     */
+    public static boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /** Discard the figures gathered so far
+     */
+    public static void reset()
+    {
+        for (Totals totals : TOTALS)
+            totals.reset();
+        latest = null;
+    }
+
+    /** Make the figures readable through JMX, as an OperationMetricsMXBean
+     *  named by MBEAN_NAME.  Registering a second time does nothing
+     */
+    public static synchronized void registerMBean()
+    {
+        try
+        {
+            ObjectName name = new ObjectName(MBEAN_NAME);
+            if (! ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), name);
+        }
+        catch(JMException exception)
+        {
+            // The name is constant and the bean compliant, so this cannot
+            // happen
+
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    /**************************************************************************
+     * Reading the figures
+     *************************************************************************/
+
+    /** Get the figures for every operation that has been measured since the
+     *  metrics were last reset
+     *
+     *  @return a summary for each such operation, in the order of Operation
+     */
+    public static Summary [] getSummaries()
+    {
+        long now = System.nanoTime();
+        int count = 0;
+        Summary [] summaries = new Summary [TOTALS.length];
+        for (Totals totals : TOTALS)
+        {
+            Summary summary = totals.summarize(now);
+            if (summary != null)
+                summaries[count ++] = summary;
+        }
+        Summary [] result = new Summary [count];
+        System.arraycopy(summaries, 0, result, 0, count);
+        return result;
+    }
+
+    /** Get the figures for one operation
+     *
+     *  @param operation the operation
+     *  @return its summary, or null if it has not been measured since the
+     *          metrics were last reset
+     */
+    public static Summary getSummary(Operation operation)
+    {
+        return TOTALS[operation.ordinal()].summarize(System.nanoTime());
+    }
+
+    /** Get the most recent measurement
+     *
+     *  @return the measurement, or null if nothing has been measured since
+     *          the metrics were last reset
+     */
+    static Measurement getLatest()
+    {
+        return latest;
+    }
+
+    /** The figures for one operation.  The totals cover everything since the
+     *  metrics were last reset, the percentiles the last minute
+     */
+    public static final class Summary
+    {
+        Summary(Operation operation, long count, long totalNanos, long maxNanos,
+                long totalBytes, long recentCount, long [] percentiles)
+        {
+            this.operation = operation;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            this.totalBytes = totalBytes;
+            this.recentCount = recentCount;
+            this.percentiles = percentiles;
+        }
+
+        public String getOperation()
+        {
+            return operation.name();
+        }
+
+        public long getCount()
+        {
+            return count;
+        }
+
+        public double getMeanMillis()
+        {
+            return count == 0 ? 0 : totalNanos / (count * NANOS_PER_MILLI);
+        }
+
+        public double getMaxMillis()
+        {
+            return maxNanos / NANOS_PER_MILLI;
+        }
+
+        /** Get the bytes allocated, on average, by each time the operation
+         *  was carried out
+         *
+         *  @return the average - or -1 if the JVM cannot measure it
+         */
+        public long getMeanBytesAllocated()
+        {
+            return totalBytes < 0 || count == 0 ? -1 : totalBytes / count;
+        }
+
+        public long getRecentCount()
+        {
+            return recentCount;
+        }
+
+        public double getMedianMillis()
+        {
+            return percentiles[0] / NANOS_PER_MILLI;
+        }
+
+        public double getP95Millis()
+        {
+            return percentiles[1] / NANOS_PER_MILLI;
+        }
+
+        public double getP99Millis()
+        {
+            return percentiles[2] / NANOS_PER_MILLI;
+        }
+
+        private final Operation operation;
+        private final long count;
+        private final long totalNanos;
+        private final long maxNanos;
+        private final long totalBytes;
+        private final long recentCount;
+        private final long [] percentiles;
+    }
+
+    /**************************************************************************
+     * Measuring - ProjectImage carries out each operation by measure(),
+     * which calls start() and finish() around it
+     *************************************************************************/
+
+    /** Carry out an operation, measuring it
+     *
+     *  @param operation the operation
+     *  @param image the image it is carried out on
+     *  @param body the work of the operation
+     */
+    static void measure(Operation operation, ProjectImage image, Runnable body)
+    {
+        Measurement measurement = start(operation, image);
+        try
+        {
+            body.run();
+        }
+        finally
+        {
+            finish(measurement);
+        }
+    }
+
+    /** Carry out an operation that gives a result, measuring it
+     *
+     *  @param operation the operation
+     *  @param image the image it is carried out on
+     *  @param body the work of the operation
+     *  @return the result of the operation
+     */
+    static <T> T measure(Operation operation, ProjectImage image, Supplier<T> body)
+    {
+        Measurement measurement = start(operation, image);
+        try
+        {
+            return body.get();
+        }
+        finally
+        {
+            finish(measurement);
+        }
+    }
+
+    /** Start measuring an operation
+     *
+     *  @param operation the operation
+     *  @param image the image it is carried out on
+     *  @return the measurement to hand to finish() - or null if measuring is
+     *          off, or another operation is already being measured on this
+     *          thread
+     */
+    static Measurement start(Operation operation, ProjectImage image)
+    {
+        if (! enabled || CURRENT.get() != null)
+            return null;
+        Measurement measurement = new Measurement(operation, image.getWidth(),
+                                                  image.getHeight(), image.isColor());
+        CURRENT.set(measurement);
+        measurement.startBytes = allocatedBytes();
+        measurement.startNanos = System.nanoTime();
+        return measurement;
+    }
+
+    /** Finish measuring an operation, whether it succeeded or not
+     *
+     *  @param measurement the measurement returned by start()
+     */
+    static void finish(Measurement measurement)
+    {
+        if (measurement == null)
+            return;
+        long now = System.nanoTime();
+        measurement.nanos = now - measurement.startNanos;
+        long bytes = allocatedBytes();
+        measurement.bytes = bytes < 0 ? -1 : bytes - measurement.startBytes;
+        CURRENT.remove();
+        TOTALS[measurement.operation.ordinal()].add(measurement, now);
+        latest = measurement;
+    }
+
+    /** One operation, as measured
+     */
+    static final class Measurement
+    {
+        Measurement(Operation operation, int width, int height, boolean color)
+        {
+            this.operation = operation;
+            this.width = width;
+            this.height = height;
+            this.color = color;
+        }
+
+        Operation getOperation()
+        {
+            return operation;
+        }
+
+        int getWidth()
+        {
+            return width;
+        }
+
+        int getHeight()
+        {
+            return height;
+        }
+
+        boolean isColor()
+        {
+            return color;
+        }
+
+        double getMillis()
+        {
+            return nanos / NANOS_PER_MILLI;
+        }
+
+        /** Get the bytes the calling thread allocated
+         *
+         *  @return the number of bytes, or -1 if the JVM cannot measure it
+         */
+        long getBytes()
+        {
+            return bytes;
+        }
+
+        // The operation and the image it was carried out on
+
+        private final Operation operation;
+        private final int width;
+        private final int height;
+        private final boolean color;
+
+        // The time and allocation counter when it started, and the time it
+        // took and the bytes it allocated
+
+        private long startNanos;
+        private long startBytes;
+        private long nanos;
+        private long bytes;
+    }
+
+    /**************************************************************************
+     * Private helpers
+     *************************************************************************/
+
+    /** Read the number of bytes this thread has allocated since it started
+     *
+     *  @return the number of bytes, or -1 if the JVM cannot tell
+     */
+    private static long allocatedBytes()
+    {
+        if (ALLOCATION_COUNTER == null)
+            return -1;
+        return ALLOCATION_COUNTER.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /** Find the allocation counter of the JVM, if it has one that is turned
+     *  on
+     *
+     *  @return the counter, or null
+     */
+    private static com.sun.management.ThreadMXBean allocationCounter()
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (! (threads instanceof com.sun.management.ThreadMXBean))
+            return null;
+        com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) threads;
+        if (! counter.isThreadAllocatedMemorySupported()
+            || ! counter.isThreadAllocatedMemoryEnabled())
+            return null;
+        return counter;
+    }
+
+    /** Find the histogram bucket that a time falls in - four for each power
+     *  of two
+     *
+     *  @param nanos the time, in nanoseconds
+     *  @return the index of the bucket
+     */
+    private static int bucket(long nanos)
+    {
+        if (nanos < BUCKETS_PER_OCTAVE)
+            return 0;
+        int octave = 63 - Long.numberOfLeadingZeros(nanos);
+        return octave * BUCKETS_PER_OCTAVE + (int) (nanos >> (octave - 2) & 3);
+    }
+
+    /** Find the time in the middle of a histogram bucket
+     *
+     *  @param bucket the index of the bucket
+     *  @return the time, in nanoseconds
+     */
+    private static long bucketMiddle(int bucket)
+    {
+        int octave = bucket / BUCKETS_PER_OCTAVE;
+        if (octave < 2)
+            return 0;
+        long start = (long) (BUCKETS_PER_OCTAVE + bucket % BUCKETS_PER_OCTAVE) << (octave - 2);
+        return start + (1L << (octave - 2)) / 2;
+    }
+
+    /** The figures gathered for one operation
+     */
+    private static final class Totals
+    {
+        Totals(Operation operation)
+        {
+            this.operation = operation;
+        }
+
+        /** Add a measurement
+         *
+         *  @param measurement the measurement
+         *  @param now the time it finished, from System.nanoTime()
+         */
+        synchronized void add(Measurement measurement, long now)
+        {
+            count ++;
+            totalNanos += measurement.nanos;
+            maxNanos = Math.max(maxNanos, measurement.nanos);
+            totalBytes = measurement.bytes < 0 || totalBytes < 0
+                         ? -1 : totalBytes + measurement.bytes;
+
+            // The histogram of the slice of time now falls in is started
+            // again if it was last used a whole window ago
+
+            if (slices == null)
+            {
+                slices = new long [SLICES] [BUCKET_COUNT];
+                sliceIds = new long [SLICES];
+                Arrays.fill(sliceIds, Long.MIN_VALUE);
+            }
+            long sliceId = Math.floorDiv(now, SLICE_NANOS);
+            int slice = (int) Math.floorMod(sliceId, (long) SLICES);
+            if (sliceIds[slice] != sliceId)
+            {
+                Arrays.fill(slices[slice], 0);
+                sliceIds[slice] = sliceId;
+            }
+            slices[slice][bucket(measurement.nanos)] ++;
+        }
+
+        /** Sum up the figures
+         *
+         *  @param now the time, from System.nanoTime()
+         *  @return the summary, or null if there have been no measurements
+         */
+        synchronized Summary summarize(long now)
+        {
+            if (count == 0)
+                return null;
+            long [] recent = new long [BUCKET_COUNT];
+            long recentCount = 0;
+            long sliceId = Math.floorDiv(now, SLICE_NANOS);
+            for (int slice = 0; slice < SLICES; slice ++)
+                if (sliceIds[slice] > sliceId - SLICES)
+                    for (int bucket = 0; bucket < BUCKET_COUNT; bucket ++)
+                    {
+                        recent[bucket] += slices[slice][bucket];
+                        recentCount += slices[slice][bucket];
+                    }
+
+            long [] percentiles = new long [PERCENTILES.length];
+            for (int i = 0; i < PERCENTILES.length; i ++)
+            {
+                long rank = (long) Math.ceil(PERCENTILES[i] * recentCount);
+                long seen = 0;
+                int bucket = 0;
+                while (bucket < BUCKET_COUNT - 1 && seen + recent[bucket] < rank)
+                    seen += recent[bucket ++];
+                percentiles[i] = recentCount == 0 ? 0 : bucketMiddle(bucket);
+            }
+            return new Summary(operation, count, totalNanos, maxNanos, totalBytes,
+                               recentCount, percentiles);
+        }
+
+        /** Discard the figures
+         */
+        synchronized void reset()
+        {
+            count = 0;
+            totalNanos = 0;
+            maxNanos = 0;
+            totalBytes = 0;
+            slices = null;
+            sliceIds = null;
+        }
+
+        // The totals, and the histograms of the slices of the last minute -
+        // created when first needed, since most operations are never used
+
+        private final Operation operation;
+        private long count;
+        private long totalNanos;
+        private long maxNanos;
+        private long totalBytes;
+        private long [] [] slices;
+        private long [] sliceIds;
+    }
+
+    /** The MXBean through which JMX reads the figures
+     */
+    private static final class Bean implements OperationMetricsMXBean
+    {
+        public boolean isEnabled()
+        {
+            return OperationMetrics.isEnabled();
+        }
+
+        public void setEnabled(boolean enabled)
+        {
+            OperationMetrics.setEnabled(enabled);
+        }
+
+        public Summary [] getOperations()
+        {
+            return getSummaries();
+        }
+
+        public String getLatest()
+        {
+            Measurement measurement = latest;
+            if (measurement == null)
+                return null;
+            return String.format("%s of %dx%d %s image: %.3f ms, %d bytes",
+                                 measurement.operation.name(), measurement.width,
+                                 measurement.height,
+                                 measurement.color ? "color" : "gray",
+                                 measurement.getMillis(), measurement.bytes);
+        }
+
+        public void reset()
+        {
+            OperationMetrics.reset();
+        }
+    }
+
+    // The name the MXBean is registered under
+
+    public static final String MBEAN_NAME = "imageeditor:type=OperationMetrics";
+
+    // Whether operations are being measured, the one being measured on each
+    // thread, and the latest measured
+
+    private static volatile boolean enabled = Boolean.getBoolean("imageeditor.metrics");
+    private static final ThreadLocal<Measurement> CURRENT = new ThreadLocal<Measurement>();
+    private static volatile Measurement latest;
+
+    // The figures for each operation, indexed by its ordinal
+
+    private static final Totals [] TOTALS = new Totals [Operation.values().length];
+    static
+    {
+        for (Operation operation : Operation.values())
+            TOTALS[operation.ordinal()] = new Totals(operation);
+    }
+
+    private static final com.sun.management.ThreadMXBean ALLOCATION_COUNTER = allocationCounter();
+
+    // Constants
+
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    // The histograms: buckets for each power of two nanoseconds up to 2^63,
+    // and a minute kept in slices of ten seconds
+
+    private static final int BUCKETS_PER_OCTAVE = 4;
+    private static final int BUCKET_COUNT = 64 * BUCKETS_PER_OCTAVE;
+    private static final int SLICES = 6;
+    private static final long SLICE_NANOS = 10_000_000_000L;
+
+    // The percentiles reported: the median, 95th and 99th
+
+    private static final double [] PERCENTILES = { 0.5, 0.95, 0.99 };
+}
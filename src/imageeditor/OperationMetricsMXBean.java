@@ -0,0 +1,40 @@
+/* OperationMetricsMXBean.java
+ *
+ *  Part of ImageEditor project - the view JMX tools such as JConsole get of
+ *  OperationMetrics, once OperationMetrics.registerMBean() has been called.
+ */
+
+package imageeditor;
+
+public interface OperationMetricsMXBean
+{
+    /** Find out whether operations are being measured
+     *
+     *  @return true if they are
+     */
+    boolean isEnabled();
+
+    /** Turn measuring on or off
+     *
+     *  @param enabled true to measure operations from now on
+     */
+    void setEnabled(boolean enabled);
+
+    /** Get the figures for every operation measured since the last reset
+     *
+     *  @return a summary for each such operation
+     */
+    OperationMetrics.Summary [] getOperations();
+
+    /** Describe the most recent measurement
+     *
+     *  @return the operation, the image it was carried out on, the time it
+     *          took and the bytes it allocated - or null if nothing has been
+     *          measured since the last reset
+     */
+    String getLatest();
+
+    /** Discard the figures gathered so far
+     */
+    void reset();
+}
@@ -0,0 +1,246 @@
+/* ParallelEngine.java
+ *
+ *  Part of ImageEditor project - runs the row loops of ProjectImage
+ *  operations on a fork/join pool.  An operation hands over the range of
+ *  rows it has to produce; the range is split into bands that are processed
+ *  concurrently.  Small images are processed sequentially on the calling
+ *  thread, since splitting them costs more than it saves.
+ *
+ *  Every operation run this way computes each output row from its inputs
+ *  alone, so the result does not depend on how the rows were split - it is
+ *  identical to running the same loop sequentially.
+ *
+ *  A thread can give the engine a flag that stops the row loops it runs:
+ *  once the flag is set, each loop throws CancellationException before
+ *  starting its next band, leaving the operation unfinished.
+ */
+
+package imageeditor;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public final class ParallelEngine
+{
+    /** The body of a row loop
+     */
+    interface RowTask
+    {
+        /** Process a band of rows
+         *
+         *  @param startRow the first row of the band
+         *  @param endRow one past the last row of the band
+         */
+        void processRows(int startRow, int endRow);
+    }
+
+    // This class is not meant to be instantiated
+
+    private ParallelEngine()
+    {
+    }
+
+    /**************************************************************************
+     * Configuration
+     *************************************************************************/
+
+    /** Set the number of threads used for parallel operations
+     *
+     *  @param parallelism the number of threads - 1 makes every operation
+     *         sequential
+     */
+    public static synchronized void setParallelism(int parallelism)
+    {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        if (parallelism == ParallelEngine.parallelism)
+            return;
+        ForkJoinPool oldPool = pool;
+        ParallelEngine.parallelism = parallelism;
+        pool = null;
+        if (oldPool != null)
+            oldPool.shutdown();
+    }
+
+    /** Get the number of threads used for parallel operations
+     *
+     *  @return the number of threads
+     */
+    public static int getParallelism()
+    {
+        return parallelism;
+    }
+
+    /** Set the size below which operations are run sequentially
+     *
+     *  @param pixels the number of pixels an operation must touch before it
+     *         is split across threads
+     */
+    public static void setSequentialThreshold(int pixels)
+    {
+        if (pixels < 0)
+            throw new IllegalArgumentException("Threshold must not be negative");
+        sequentialThreshold = pixels;
+    }
+
+    /** Get the size below which operations are run sequentially
+     *
+     *  @return the threshold, in pixels
+     */
+    public static int getSequentialThreshold()
+    {
+        return sequentialThreshold;
+    }
+
+    /** Set the flag that stops the row loops run by the calling thread
+     *
+     *  @param flag the flag - once it is set, each loop throws
+     *         CancellationException.  Null for loops that cannot be stopped
+     */
+    static void setCancelFlag(AtomicBoolean flag)
+    {
+        cancelFlag.set(flag);
+    }
+
+    /** Get the flag that stops the row loops run by the calling thread
+     *
+     *  @return the flag, or null if there is none
+     */
+    static AtomicBoolean getCancelFlag()
+    {
+        return cancelFlag.get();
+    }
+
+    /**************************************************************************
+     * Execution
+     *************************************************************************/
+
+    /** Run a row loop, in parallel if it is big enough
+     *
+     *  @param rows the number of rows to process - the task is given
+     *         bands covering 0 .. rows - 1 exactly once
+     *  @param width the number of pixels in each row, used to decide
+     *         whether the loop is worth splitting
+     *  @param task the loop body
+     */
+    static void forEachRow(int rows, int width, RowTask task)
+    {
+        AtomicBoolean cancelled = cancelFlag.get();
+        checkCancelled(cancelled);
+        int threads = parallelism;
+        if (threads == 1 || rows < 2 || (long) rows * width < sequentialThreshold)
+        {
+            if (cancelled == null)
+                task.processRows(0, rows);
+            else
+            {
+                // A loop that can be stopped is run in bands of about the
+                // size worth splitting, so that it can stop between them
+
+                int band = Math.max(1, sequentialThreshold / Math.max(1, width));
+                for (int startRow = 0; startRow < rows; startRow += band)
+                {
+                    checkCancelled(cancelled);
+                    task.processRows(startRow, Math.min(rows, startRow + band));
+                }
+            }
+            return;
+        }
+
+        // A few bands per thread lets threads that finish early take over
+        // some of the work of slower ones
+
+        int grain = Math.max(1, rows / (threads * BANDS_PER_THREAD));
+        try
+        {
+            getPool().invoke(new BandAction(task, 0, rows, grain, cancelled));
+        }
+        catch(RejectedExecutionException exception)
+        {
+            // The pool was replaced by setParallelism() before the work was
+            // accepted, so none of it has been done yet
+
+            task.processRows(0, rows);
+        }
+    }
+
+    /** Stop a loop if its flag has been set
+     *
+     *  @param cancelled the flag, or null if the loop cannot be stopped
+     *  @exception CancellationException if the flag is set
+     */
+    private static void checkCancelled(AtomicBoolean cancelled)
+    {
+        if (cancelled != null && cancelled.get())
+            throw new CancellationException("Operation cancelled");
+    }
+
+    /** Get the pool, creating it if need be
+     *
+     *  @return the pool used for parallel operations
+     */
+    private static synchronized ForkJoinPool getPool()
+    {
+        if (pool == null)
+            pool = new ForkJoinPool(parallelism);
+        return pool;
+    }
+
+    /** A band of rows, split in half until it is no bigger than the grain
+     */
+    private static class BandAction extends RecursiveAction
+    {
+        BandAction(RowTask task, int startRow, int endRow, int grain,
+                   AtomicBoolean cancelled)
+        {
+            this.task = task;
+            this.startRow = startRow;
+            this.endRow = endRow;
+            this.grain = grain;
+            this.cancelled = cancelled;
+        }
+
+        protected void compute()
+        {
+            if (endRow - startRow <= grain)
+            {
+                checkCancelled(cancelled);
+                task.processRows(startRow, endRow);
+            }
+            else
+            {
+                int middle = (startRow + endRow) >>> 1;
+                invokeAll(new BandAction(task, startRow, middle, grain, cancelled),
+                          new BandAction(task, middle, endRow, grain, cancelled));
+            }
+        }
+
+        private final RowTask task;
+        private final int startRow;
+        private final int endRow;
+        private final int grain;
+        private final AtomicBoolean cancelled;
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    // Constants
+
+    private static final int DEFAULT_SEQUENTIAL_THRESHOLD = 1 << 16;
+    private static final int BANDS_PER_THREAD = 4;
+
+    // Configuration
+
+    private static volatile int parallelism =
+        Runtime.getRuntime().availableProcessors();
+    private static volatile int sequentialThreshold = DEFAULT_SEQUENTIAL_THRESHOLD;
+    private static ForkJoinPool pool;
+
+    // The flag that stops the loops run by each thread, if it has one
+
+    private static final ThreadLocal<AtomicBoolean> cancelFlag =
+        new ThreadLocal<AtomicBoolean>();
+}
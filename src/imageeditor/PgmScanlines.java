@@ -0,0 +1,196 @@
+/* PgmScanlines.java
+ *
+ *  Part of ImageEditor project - reads and writes grayscale images in the
+ *  binary PGM format a row at a time, so that a ScanlinePipeline can process
+ *  image files of any size.  PGM is used because its pixels are stored row
+ *  by row with no compression, so a row can be decoded as soon as its bytes
+ *  have been read.
+ *
+ *  A PGM file is the characters "P5", then the width, the height and the
+ *  largest value, as decimal numbers separated by whitespace (which may
+ *  include comments running from # to the end of a line), then a single
+ *  whitespace character, then the pixels - one byte each if the largest
+ *  value is below 256, otherwise two bytes each, most significant first.
+ */
+
+package imageeditor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+public final class PgmScanlines
+{
+    // This class is not meant to be instantiated
+
+    private PgmScanlines()
+    {
+    }
+
+    /** Start reading a PGM image.  The header is read straight away, so the
+     *  size of the image is known
+     *
+     *  @param in the stream to read from - it is not closed
+     *  @return a source supplying the rows of the image, with values scaled
+     *          to the range 0 .. 255
+     *  @exception IOException if the stream does not hold a PGM image
+     */
+    public static ScanlineSource reader(InputStream in) throws IOException
+    {
+        return new Reader(in);
+    }
+
+    /** Start writing a PGM image
+     *
+     *  @param out the stream to write to - it is flushed when the image is
+     *         finished, but not closed
+     *  @return a sink writing the rows it is given.  Values outside the range
+     *          0 .. 255 cannot be stored, and are forced into it
+     */
+    public static ScanlineSink writer(OutputStream out)
+    {
+        return new Writer(out);
+    }
+
+    /** The source returned by reader()
+     */
+    private static class Reader implements ScanlineSource
+    {
+        Reader(InputStream in) throws IOException
+        {
+            this.in = new DataInputStream(new BufferedInputStream(in));
+            if (this.in.read() != 'P' || this.in.read() != '5')
+                throw new IOException("Not a binary PGM image");
+            width = readNumber();
+            height = readNumber();
+            maxValue = readNumber();
+            if (maxValue == 0 || maxValue > MAX_SAMPLE)
+                throw new IOException("Bad PGM maximum value " + maxValue);
+            bytes = new byte [maxValue > MAX_BRIGHTNESS ? 2 * width : width];
+        }
+
+        public int getWidth()
+        {
+            return width;
+        }
+
+        public int getHeight()
+        {
+            return height;
+        }
+
+        public void readRow(int [] row) throws IOException
+        {
+            in.readFully(bytes);
+            if (maxValue > MAX_BRIGHTNESS)
+            {
+                for (int col = 0; col < width; col ++)
+                {
+                    int value = (bytes[2*col] & 0xff) << 8 | bytes[2*col+1] & 0xff;
+                    row[col] = (value * MAX_BRIGHTNESS + maxValue / 2) / maxValue;
+                }
+            }
+            else if (maxValue == MAX_BRIGHTNESS)
+            {
+                for (int col = 0; col < width; col ++)
+                    row[col] = bytes[col] & 0xff;
+            }
+            else
+            {
+                for (int col = 0; col < width; col ++)
+                    row[col] = ((bytes[col] & 0xff) * MAX_BRIGHTNESS + maxValue / 2) / maxValue;
+            }
+        }
+
+        /** Read a number from the header, skipping whitespace and comments
+         *  before it, and the single whitespace character after it
+         *
+         *  @return the number
+         *  @exception IOException if there is no number
+         */
+        private int readNumber() throws IOException
+        {
+            int c = in.read();
+            while (c == '#' || Character.isWhitespace(c))
+            {
+                if (c == '#')
+                {
+                    while (c != '\n' && c != '\r' && c != -1)
+                        c = in.read();
+                }
+                else
+                    c = in.read();
+            }
+            if (c == -1)
+                throw new EOFException("PGM header is incomplete");
+            if (c < '0' || c > '9')
+                throw new IOException("Bad PGM header");
+            int value = 0;
+            while (c >= '0' && c <= '9')
+            {
+                if (value > (Integer.MAX_VALUE - 9) / 10)
+                    throw new IOException("PGM size too large");
+                value = value * 10 + (c - '0');
+                c = in.read();
+            }
+            if (! Character.isWhitespace(c))
+                throw new IOException("Bad PGM header");
+            return value;
+        }
+
+        private final DataInputStream in;
+        private final int width;
+        private final int height;
+        private final int maxValue;
+        private final byte [] bytes;
+    }
+
+    /** The sink returned by writer()
+     */
+    private static class Writer implements ScanlineSink
+    {
+        Writer(OutputStream out)
+        {
+            this.out = new BufferedOutputStream(out);
+        }
+
+        public void start(int width, int height) throws IOException
+        {
+            String header = "P5\n" + width + " " + height + "\n" + MAX_BRIGHTNESS + "\n";
+            out.write(header.getBytes(StandardCharsets.US_ASCII));
+            bytes = new byte [width];
+        }
+
+        public void writeRow(int [] row) throws IOException
+        {
+            for (int col = 0; col < bytes.length; col ++)
+            {
+                int value = row[col];
+                if (value < 0)
+                    value = 0;
+                else if (value > MAX_BRIGHTNESS)
+                    value = MAX_BRIGHTNESS;
+                bytes[col] = (byte) value;
+            }
+            out.write(bytes);
+        }
+
+        public void finish() throws IOException
+        {
+            out.flush();
+        }
+
+        private final BufferedOutputStream out;
+        private byte [] bytes;
+    }
+
+    // Constants
+
+    private static final int MAX_BRIGHTNESS = 255;
+    private static final int MAX_SAMPLE = 65535;
+}
@@ -0,0 +1,443 @@
+/* PixelBuffer.java
+ *
+ *  Part of ImageEditor project - contiguous storage for the pixels of a
+ *  ProjectImage.  All rows live in a single array; a row/column pair is
+ *  located through a width/stride/offset descriptor rather than through an
+ *  array of separate row objects.
+ *
+ *  The array is normally of ints.  A grayscale image whose values all lie in
+ *  0 .. 255 can instead be held in an array of bytes, one per pixel, read as
+ *  unsigned values - a quarter of the memory, and a quarter of the traffic
+ *  for every pass over the pixels.  Code that works on the array directly
+ *  asks holdsBytes() and uses getData() or getBytes() accordingly; get(),
+ *  set() and the copying methods work with either.
+ */
+
+package imageeditor;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+final class PixelBuffer
+{
+    /** Constructor - allocate a new, compact buffer of ints
+     *
+     *  @param width the number of pixels in each row
+     *  @param height the number of rows
+     */
+    PixelBuffer(int width, int height)
+    {
+        this(new int[width * height], 0, width, width, height);
+    }
+
+    /** Constructor - describe pixels held in an existing array of ints
+     *
+     *  @param data the array holding the pixels
+     *  @param offset the index in data of the pixel at row 0, column 0
+     *  @param stride the distance in data between the start of one row and
+     *         the start of the next - must be at least width
+     *  @param width the number of pixels in each row
+     *  @param height the number of rows
+     */
+    PixelBuffer(int [] data, int offset, int stride, int width, int height)
+    {
+        this(data, null, data.length, offset, stride, width, height);
+    }
+
+    /** Constructor - describe grayscale pixels held in an existing array of
+     *  bytes, each read as a value 0 .. 255
+     *
+     *  @param bytes the array holding the pixels
+     *  @param offset the index in bytes of the pixel at row 0, column 0
+     *  @param stride the distance in bytes between the start of one row and
+     *         the start of the next - must be at least width
+     *  @param width the number of pixels in each row
+     *  @param height the number of rows
+     */
+    PixelBuffer(byte [] bytes, int offset, int stride, int width, int height)
+    {
+        this(null, bytes, bytes.length, offset, stride, width, height);
+    }
+
+    /** Constructor - the common part of the others
+     *
+     *  @param data the array of ints holding the pixels, or null
+     *  @param bytes the array of bytes holding the pixels, if data is null
+     *  @param length the length of the array holding the pixels
+     *  @param offset the index of the pixel at row 0, column 0
+     *  @param stride the distance between the start of one row and the
+     *         start of the next
+     *  @param width the number of pixels in each row
+     *  @param height the number of rows
+     */
+    private PixelBuffer(int [] data, byte [] bytes, int length, int offset,
+                        int stride, int width, int height)
+    {
+        if (width < 0 || height < 0 || stride < width || offset < 0
+            || (height > 0 && offset + (height - 1) * stride + width > length))
+            throw new IllegalArgumentException("Descriptor does not fit data");
+        this.data = data;
+        this.bytes = bytes;
+        this.offset = offset;
+        this.stride = stride;
+        this.width = width;
+        this.height = height;
+    }
+
+    /** Allocate a new, compact buffer of bytes
+     *
+     *  @param width the number of pixels in each row
+     *  @param height the number of rows
+     *  @return a buffer whose pixels are all 0
+     */
+    static PixelBuffer ofBytes(int width, int height)
+    {
+        return new PixelBuffer(new byte[width * height], 0, width, width, height);
+    }
+
+    /** Create a compact buffer holding a copy of a two-dimensional array
+     *
+     *  @param pixels the pixels to copy - height rows of width values each
+     *  @return a new buffer of ints holding the same values
+     */
+    static PixelBuffer fromArray(int [] [] pixels)
+    {
+        int height = pixels.length;
+        int width = height == 0 ? 0 : pixels[0].length;
+        PixelBuffer result = new PixelBuffer(width, height);
+        for (int row = 0; row < height; row ++)
+            System.arraycopy(pixels[row], 0, result.data, row * width, width);
+        return result;
+    }
+
+    /** Copy the contents of this buffer into a new two-dimensional array
+     *
+     *  @return an array having height rows, each containing width values
+     */
+    int [] [] toArray()
+    {
+        int [] [] result = new int [height] [width];
+        for (int row = 0; row < height; row ++)
+            copyRow(row, result[row], 0);
+        return result;
+    }
+
+    /** Copy a row of this buffer into an array of ints
+     *
+     *  @param row the row to copy
+     *  @param target the array to copy into
+     *  @param targetOffset the index in target of the first pixel
+     */
+    void copyRow(int row, int [] target, int targetOffset)
+    {
+        int start = rowStart(row);
+        if (bytes == null)
+            System.arraycopy(data, start, target, targetOffset, width);
+        else
+            for (int col = 0; col < width; col ++)
+                target[targetOffset + col] = bytes[start + col] & 0xff;
+    }
+
+    /** Copy the contents of this buffer into a new, compact buffer
+     *
+     *  @return a buffer with offset 0 and stride equal to width, holding
+     *          its pixels in the same kind of array as this one
+     */
+    PixelBuffer compactCopy()
+    {
+        PixelBuffer result = bytes == null ? new PixelBuffer(width, height)
+                                           : ofBytes(width, height);
+        for (int row = 0; row < height; row ++)
+            System.arraycopy(array(), rowStart(row), result.array(), row * width, width);
+        return result;
+    }
+
+    /** Copy the contents of this buffer into a compact buffer of ints
+     *
+     *  @param pool the pool to take the result from
+     *  @return a buffer of ints holding the same values
+     */
+    PixelBuffer widened(BufferPool pool)
+    {
+        final PixelBuffer result = pool.take(width, height);
+        ParallelEngine.forEachRow(height, width, new ParallelEngine.RowTask() {
+            public void processRows(int startRow, int endRow)
+            {
+                for (int row = startRow; row < endRow; row ++)
+                    copyRow(row, result.data, row * width);
+            }
+        });
+        return result;
+    }
+
+    /** Get a buffer of bytes holding the same values as a buffer, if they
+     *  all lie in 0 .. 255
+     *
+     *  @param source the buffer whose values are wanted
+     *  @param pool the pool to take the result from
+     *  @return source itself if it already holds bytes, a compact buffer of
+     *          bytes holding its values, or null if some value lies outside
+     *          0 .. 255
+     */
+    static PixelBuffer narrowed(final PixelBuffer source, BufferPool pool)
+    {
+        if (source.holdsBytes())
+            return source;
+
+        // The values are checked as they are copied, and each band gives up
+        // as soon as any band has found one out of range
+
+        final PixelBuffer result = pool.takeBytes(source.width, source.height);
+        final AtomicBoolean outOfRange = new AtomicBoolean(false);
+        ParallelEngine.forEachRow(source.height, source.width,
+                                  new ParallelEngine.RowTask() {
+            public void processRows(int startRow, int endRow)
+            {
+                int [] data = source.data;
+                byte [] newBytes = result.bytes;
+                for (int row = startRow; row < endRow && ! outOfRange.get(); row ++)
+                {
+                    int src = source.rowStart(row);
+                    int dst = row * source.width;
+                    for (int col = 0; col < source.width; col ++)
+                    {
+                        int value = data[src + col];
+                        if ((value & ~0xff) != 0)
+                        {
+                            outOfRange.set(true);
+                            return;
+                        }
+                        newBytes[dst + col] = (byte) value;
+                    }
+                }
+            }
+        });
+        if (! outOfRange.get())
+            return result;
+        pool.give(result);
+        return null;
+    }
+
+    /** Copy the pixels of this buffer into another buffer of the same size,
+     *  which may hold a different kind of array.  Values copied into bytes
+     *  must lie in 0 .. 255
+     *
+     *  @param target the buffer to copy into
+     */
+    void copyTo(PixelBuffer target)
+    {
+        for (int row = 0; row < height; row ++)
+        {
+            int src = rowStart(row);
+            int dst = target.rowStart(row);
+            if (holdsBytes() == target.holdsBytes())
+                System.arraycopy(array(), src, target.array(), dst, width);
+            else if (target.bytes == null)
+                copyRow(row, target.data, dst);
+            else
+                for (int col = 0; col < width; col ++)
+                    target.bytes[dst + col] = (byte) data[src + col];
+        }
+    }
+
+    /** Compare the pixels of this buffer with those of another buffer of
+     *  the same size, which may hold a different kind of array
+     *
+     *  @param other the buffer to compare with
+     *  @return true if every pixel has the same value in both
+     */
+    boolean sameValues(PixelBuffer other)
+    {
+        for (int row = 0; row < height; row ++)
+        {
+            int src = rowStart(row);
+            int dst = other.rowStart(row);
+            if (bytes == null && other.bytes == null)
+            {
+                for (int col = 0; col < width; col ++)
+                    if (data[src + col] != other.data[dst + col])
+                        return false;
+            }
+            else if (bytes != null && other.bytes != null)
+            {
+                for (int col = 0; col < width; col ++)
+                    if (bytes[src + col] != other.bytes[dst + col])
+                        return false;
+            }
+            else
+            {
+                // Only an int in 0 .. 255 can match a byte
+
+                int [] ints = bytes == null ? data : other.data;
+                byte [] narrow = bytes == null ? other.bytes : bytes;
+                int intStart = bytes == null ? src : dst;
+                int byteStart = bytes == null ? dst : src;
+                for (int col = 0; col < width; col ++)
+                    if (ints[intStart + col] != (narrow[byteStart + col] & 0xff))
+                        return false;
+            }
+        }
+        return true;
+    }
+
+    /** Describe a rectangle of the pixels in this buffer
+     *
+     *  @param row the first row of the rectangle
+     *  @param col the first column of the rectangle
+     *  @param rows the number of rows in the rectangle
+     *  @param cols the number of columns in the rectangle
+     *  @return a buffer sharing the pixels of the rectangle
+     */
+    PixelBuffer region(int row, int col, int rows, int cols)
+    {
+        return new PixelBuffer(data, bytes, getArrayLength(), rowStart(row) + col,
+                               stride, cols, rows);
+    }
+
+    /** Create a raster that reads and writes the pixels of this buffer in
+     *  place, without copying them.  This buffer must hold ints
+     *
+     *  @param bandMasks the bit masks that extract each band of the raster
+     *         from a stored pixel value
+     *  @return a raster sharing this buffer's storage
+     */
+    WritableRaster createRaster(int [] bandMasks)
+    {
+        DataBufferInt dataBuffer = new DataBufferInt(data, data.length - offset, offset);
+        SinglePixelPackedSampleModel sampleModel = new SinglePixelPackedSampleModel(
+            DataBuffer.TYPE_INT, width, height, stride, bandMasks);
+        return Raster.createWritableRaster(sampleModel, dataBuffer, null);
+    }
+
+    /** Create a single-band raster that reads and writes the pixels of this
+     *  buffer in place, without copying them.  This buffer must hold bytes
+     *
+     *  @return a raster sharing this buffer's storage
+     */
+    WritableRaster createByteRaster()
+    {
+        DataBufferByte dataBuffer = new DataBufferByte(bytes, bytes.length - offset, offset);
+        PixelInterleavedSampleModel sampleModel = new PixelInterleavedSampleModel(
+            DataBuffer.TYPE_BYTE, width, height, 1, stride, new int [] { 0 });
+        return Raster.createWritableRaster(sampleModel, dataBuffer, null);
+    }
+
+    /** Find out whether the rows of this buffer are packed end to end
+     *
+     *  @return true if offset is 0 and stride is equal to width
+     */
+    boolean isCompact()
+    {
+        return offset == 0 && stride == width;
+    }
+
+    /** Find out which kind of array holds the pixels
+     *
+     *  @return true if they are held in getBytes(), false if in getData()
+     */
+    boolean holdsBytes()
+    {
+        return bytes != null;
+    }
+
+    /** Locate the first pixel of a row
+     *
+     *  @param row the row wanted
+     *  @return the index in the array of the pixel at column 0 of row
+     */
+    int rowStart(int row)
+    {
+        return offset + row * stride;
+    }
+
+    /** Get a single pixel
+     *
+     *  @param row the row of the pixel
+     *  @param col the column of the pixel
+     *  @return the value stored for that pixel
+     */
+    int get(int row, int col)
+    {
+        int index = offset + row * stride + col;
+        return bytes == null ? data[index] : bytes[index] & 0xff;
+    }
+
+    /** Set a single pixel
+     *
+     *  @param row the row of the pixel
+     *  @param col the column of the pixel
+     *  @param value the new value for that pixel - 0 .. 255 if this buffer
+     *         holds bytes
+     */
+    void set(int row, int col, int value)
+    {
+        int index = offset + row * stride + col;
+        if (bytes == null)
+            data[index] = value;
+        else
+            bytes[index] = (byte) value;
+    }
+
+    /** Get the array holding the pixels, whichever kind it is
+     *
+     *  @return getData() or getBytes()
+     */
+    private Object array()
+    {
+        return bytes == null ? data : bytes;
+    }
+
+    // Accessors for the descriptor.  Only one of getData() and getBytes()
+    // returns an array; the other returns null
+
+    int [] getData()
+    {
+        return data;
+    }
+
+    byte [] getBytes()
+    {
+        return bytes;
+    }
+
+    int getArrayLength()
+    {
+        return bytes == null ? data.length : bytes.length;
+    }
+
+    int getOffset()
+    {
+        return offset;
+    }
+
+    int getStride()
+    {
+        return stride;
+    }
+
+    int getWidth()
+    {
+        return width;
+    }
+
+    int getHeight()
+    {
+        return height;
+    }
+
+    // Buffer data - in data, or for a buffer of bytes in bytes, in which
+    // case data is null
+
+    private final int [] data;
+    private final byte [] bytes;
+    private final int offset;
+    private final int stride;
+    private final int width;
+    private final int height;
+}
@@ -0,0 +1,320 @@
+/* PixelTransform.java
+ *
+ *  Part of ImageEditor project - describes how the pixels of a ProjectImage
+ *  are laid out in its buffer, so that flipping, rotating and shifting the
+ *  image can be done by changing the description instead of moving pixels.
+ *
+ *  The pixel the image shows at (row, col) is found in two steps:
+ *
+ *  - the circular shifts are undone, giving a position (a, b) in the
+ *    oriented image:  a = (row - rowOffset) mod height and
+ *    b = (col - colOffset) mod width
+ *  - the orientation maps (a, b) to a position in the buffer: if transposed,
+ *    a selects a buffer column and b a buffer row rather than the other way
+ *    around, and then flipRows and flipCols count buffer rows and columns
+ *    from the far end
+ *
+ *  The three orientation flags give the 8 combinations of flips and
+ *  rotations by multiples of 90 degrees.  Objects of this class are
+ *  immutable: each operation returns a new transform.
+ */
+
+package imageeditor;
+
+final class PixelTransform
+{
+    /** Constructor
+     *
+     *  @param transposed true if image rows run down buffer columns
+     *  @param flipRows true if buffer rows are counted from the bottom
+     *  @param flipCols true if buffer columns are counted from the right
+     *  @param rowOffset the number of rows the image has been shifted down
+     *  @param colOffset the number of columns the image has been shifted right
+     */
+    private PixelTransform(boolean transposed, boolean flipRows, boolean flipCols,
+                           int rowOffset, int colOffset)
+    {
+        this.transposed = transposed;
+        this.flipRows = flipRows;
+        this.flipCols = flipCols;
+        this.rowOffset = rowOffset;
+        this.colOffset = colOffset;
+    }
+
+    /**************************************************************************
+     * Accessors
+     *************************************************************************/
+
+    /** Find out whether this transform leaves the buffer as it is
+     *
+     *  @return true if the image is laid out in the buffer row by row, with
+     *          no flip or shift
+     */
+    boolean isIdentity()
+    {
+        return ! transposed && ! flipRows && ! flipCols
+            && rowOffset == 0 && colOffset == 0;
+    }
+
+    /** Find out whether image rows run down buffer columns
+     *
+     *  @return true if the width and height of the image are the height and
+     *          width of the buffer
+     */
+    boolean isTransposed()
+    {
+        return transposed;
+    }
+
+    /**************************************************************************
+     * Operations - each takes the current width and height of the image
+     * and returns the transform that results from applying the operation
+     *************************************************************************/
+
+    /** Flip the image horizontally
+     *
+     *  @param width the width of the image
+     *  @return the resulting transform
+     */
+    PixelTransform flipHorizontally(int width)
+    {
+        // Mirroring column b of the oriented image mirrors a buffer column,
+        // or a buffer row if transposed; the shift is mirrored too
+
+        return new PixelTransform(transposed, flipRows ^ transposed,
+                                  flipCols ^ ! transposed, rowOffset,
+                                  wrap(- colOffset, width));
+    }
+
+    /** Flip the image vertically
+     *
+     *  @param height the height of the image
+     *  @return the resulting transform
+     */
+    PixelTransform flipVertically(int height)
+    {
+        return new PixelTransform(transposed, flipRows ^ ! transposed,
+                                  flipCols ^ transposed,
+                                  wrap(- rowOffset, height), colOffset);
+    }
+
+    /** Rotate the image 90 degrees clockwise
+     *
+     *  @param width the width of the image before rotating
+     *  @param height the height of the image before rotating
+     *  @return the resulting transform
+     */
+    PixelTransform rotate(int width, int height)
+    {
+        // The new image at (r, c) shows the old one at (height - 1 - c, r).
+        // Old columns become rows, so the column shift becomes the row shift,
+        // and old rows are read backwards, so the row shift is negated
+
+        if (transposed)
+            return new PixelTransform(false, flipRows, ! flipCols,
+                                      colOffset, wrap(- rowOffset, height));
+        else
+            return new PixelTransform(true, ! flipRows, flipCols,
+                                      colOffset, wrap(- rowOffset, height));
+    }
+
+    /** Rotate the image clockwise by a number of quarter turns
+     *
+     *  @param quarterTurns the number of times to rotate by 90 degrees -
+     *         negative to rotate counterclockwise
+     *  @param width the width of the image before rotating
+     *  @param height the height of the image before rotating
+     *  @return the resulting transform
+     */
+    PixelTransform rotate(int quarterTurns, int width, int height)
+    {
+        PixelTransform result = this;
+        for (int turn = 0; turn < (quarterTurns & 3); turn ++)
+        {
+            result = result.rotate(width, height);
+            int newWidth = height;
+            height = width;
+            width = newWidth;
+        }
+        return result;
+    }
+
+    /** Shift the image, wrapping around at the edges
+     *
+     *  @param rows the number of rows to shift down - negative for up
+     *  @param cols the number of columns to shift right - negative for left
+     *  @param width the width of the image
+     *  @param height the height of the image
+     *  @return the resulting transform
+     */
+    PixelTransform shift(int rows, int cols, int width, int height)
+    {
+        return new PixelTransform(transposed, flipRows, flipCols,
+                                  wrap(rowOffset + rows, height),
+                                  wrap(colOffset + cols, width));
+    }
+
+    /**************************************************************************
+     * Materializing the image
+     *************************************************************************/
+
+    /** Lay the pixels of an image out row by row in a new buffer
+     *
+     *  @param source the buffer the image is stored in, laid out according
+     *         to this transform
+     *  @param pool the pool to take the result from
+     *  @return a buffer holding the same image with no transform, in the
+     *          same kind of array as source
+     */
+    PixelBuffer apply(final PixelBuffer source, BufferPool pool)
+    {
+        final int width = transposed ? source.getHeight() : source.getWidth();
+        final int height = transposed ? source.getWidth() : source.getHeight();
+        final PixelBuffer result = pool.takeLike(width, height, source);
+        ParallelEngine.forEachRow(height, width, new ParallelEngine.RowTask() {
+            public void processRows(int startRow, int endRow)
+            {
+                if (transposed)
+                    copyTransposedRows(source, result, startRow, endRow);
+                else
+                    copyRows(source, result, startRow, endRow);
+            }
+        });
+        return result;
+    }
+
+    /** Fill in rows of the result when image rows run along buffer rows.
+     *  Each image row is one buffer row, possibly reversed, rotated left by
+     *  colOffset - so it is copied as two runs of consecutive pixels
+     *
+     *  @param source the buffer the image is stored in
+     *  @param result the buffer being filled in
+     *  @param startRow the first image row to fill in
+     *  @param endRow one past the last image row to fill in
+     */
+    private void copyRows(PixelBuffer source, PixelBuffer result,
+                          int startRow, int endRow)
+    {
+        int width = result.getWidth();
+        int height = result.getHeight();
+        int [] data = source.getData();
+        int [] newData = result.getData();
+        byte [] bytes = source.getBytes();
+        byte [] newBytes = result.getBytes();
+        for (int row = startRow; row < endRow; row ++)
+        {
+            int a = wrap(row - rowOffset, height);
+            int src = source.rowStart(flipRows ? height - 1 - a : a);
+            int dst = result.rowStart(row);
+
+            // Columns colOffset .. width - 1 show b = 0 .. width - 1 - colOffset,
+            // and columns 0 .. colOffset - 1 show the rest
+
+            if (! flipCols)
+            {
+                Object from = bytes != null ? bytes : data;
+                Object to = bytes != null ? newBytes : newData;
+                System.arraycopy(from, src, to, dst + colOffset, width - colOffset);
+                System.arraycopy(from, src + width - colOffset, to, dst, colOffset);
+            }
+            else if (bytes != null)
+            {
+                int last = src + width - 1;
+                for (int col = colOffset; col < width; col ++)
+                    newBytes[dst + col] = bytes[last - (col - colOffset)];
+                for (int col = 0; col < colOffset; col ++)
+                    newBytes[dst + col] = bytes[last - (col - colOffset + width)];
+            }
+            else
+            {
+                int last = src + width - 1;
+                for (int col = colOffset; col < width; col ++)
+                    newData[dst + col] = data[last - (col - colOffset)];
+                for (int col = 0; col < colOffset; col ++)
+                    newData[dst + col] = data[last - (col - colOffset + width)];
+            }
+        }
+    }
+
+    /** Fill in rows of the result when image rows run down buffer columns.
+     *  The rows are filled in a block of columns at a time, so that the
+     *  buffer rows being read stay in the cache for the whole block
+     *
+     *  @param source the buffer the image is stored in
+     *  @param result the buffer being filled in
+     *  @param startRow the first image row to fill in
+     *  @param endRow one past the last image row to fill in
+     */
+    private void copyTransposedRows(PixelBuffer source, PixelBuffer result,
+                                    int startRow, int endRow)
+    {
+        int width = result.getWidth();
+        int height = result.getHeight();
+        int [] data = source.getData();
+        int [] newData = result.getData();
+        byte [] bytes = source.getBytes();
+        byte [] newBytes = result.getBytes();
+
+        // Image row a is buffer column a (or height - 1 - a); image column b
+        // is buffer row b (or width - 1 - b)
+
+        int stride = flipRows ? - source.getStride() : source.getStride();
+        int firstRowStart = source.rowStart(flipRows ? width - 1 : 0);
+        for (int blockStart = 0; blockStart < width; blockStart += BLOCK_SIZE)
+        {
+            int blockEnd = Math.min(blockStart + BLOCK_SIZE, width);
+            for (int row = startRow; row < endRow; row ++)
+            {
+                int a = wrap(row - rowOffset, height);
+                int column = firstRowStart + (flipCols ? height - 1 - a : a);
+                int dst = result.rowStart(row);
+                if (bytes != null)
+                    for (int col = blockStart; col < blockEnd; col ++)
+                    {
+                        int b = col - colOffset;
+                        if (b < 0)
+                            b += width;
+                        newBytes[dst + col] = bytes[column + b * stride];
+                    }
+                else
+                    for (int col = blockStart; col < blockEnd; col ++)
+                    {
+                        int b = col - colOffset;
+                        if (b < 0)
+                            b += width;
+                        newData[dst + col] = data[column + b * stride];
+                    }
+            }
+        }
+    }
+
+    /** Reduce a value to the range 0 .. modulus - 1
+     *
+     *  @param value the value to reduce
+     *  @param modulus the size of the range
+     *  @return value mod modulus, never negative
+     */
+    private static int wrap(int value, int modulus)
+    {
+        if (modulus == 0)
+            return 0;
+        value %= modulus;
+        return value < 0 ? value + modulus : value;
+    }
+
+    // The transform that leaves the buffer as it is
+
+    static final PixelTransform IDENTITY = new PixelTransform(false, false, false, 0, 0);
+
+    // Transform data
+
+    private final boolean transposed;
+    private final boolean flipRows;
+    private final boolean flipCols;
+    private final int rowOffset;
+    private final int colOffset;
+
+    // Constants
+
+    private static final int BLOCK_SIZE = 64;
+}
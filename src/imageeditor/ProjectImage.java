@@ -11,8 +11,17 @@
 package imageeditor;
 
 import java.io.*;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
+import java.awt.image.DirectColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import imageeditor.OperationMetrics.Operation;
 
 public class ProjectImage
 {
@@ -24,14 +33,84 @@ public class ProjectImage
      *      having height rows, each containing width values.  If this is a
      *      grayscale image, then each element lies in the range 0 .. 255.  If
      *      this is a color image, then each element is a packed 24 bit color
-     *      with alpha value
+     *      with alpha value.  The values are copied into a single contiguous
+     *      buffer - of bytes, for a grayscale image whose values all lie in
+     *      range - so later changes to this array do not affect the image
      */
     public ProjectImage(ColorModel colorModel, int [] [] pixels)
     { 
+        this(colorModel, PixelBuffer.fromArray(pixels));
+    }
+    
+    /** Constructor
+     *
+     *  @param colorModel the color model to use for interpreting the
+     *         pixel values
+     *  @param width the width of the image
+     *  @param height the height of the image
+     *  @param pixels the data content of this image - a one-dimensional array
+     *      holding height rows of width values each, one row after another.
+     *      The array is used directly, not copied - except for a grayscale
+     *      image whose values all lie in 0 .. 255, whose values are copied
+     *      into a byte for each pixel.  Once an operation has replaced it,
+     *      the image may reuse it for another result
+     */
+    public ProjectImage(ColorModel colorModel, int width, int height,
+                        int [] pixels)
+    {
+        this(colorModel, new PixelBuffer(pixels, 0, width, width, height));
+    }
+    
+    /** Constructor
+     *
+     *  @param colorModel the color model to use for interpreting the
+     *         pixel values
+     *  @param buffer the buffer holding the data content of this image
+     */
+    ProjectImage(ColorModel colorModel, PixelBuffer buffer)
+    {
         this.colorModel = colorModel;
-        this.pixels = pixels;
-        this.height = pixels.length;
-        this.width = pixels[0].length;
+        
+        // The buffer given is not handed to the pool when it is narrowed,
+        // since the caller may still be using it
+        
+        PixelBuffer narrowed = isColor() ? null : PixelBuffer.narrowed(buffer, pool);
+        setBuffer(narrowed != null ? narrowed : buffer);
+        sizeChanged();
+        if (defaultHistoryBudget > 0)
+            history = new EditHistory(defaultHistoryBudget);
+    }
+    
+    /** Constructor
+     *
+     *  @param colorModel the color model to use for interpreting the
+     *         pixel values
+     *  @param mappedImage the image holding the data content of this image
+     *         off the heap
+     */
+    private ProjectImage(ColorModel colorModel, MappedImage mappedImage)
+    {
+        this.colorModel = colorModel;
+        setMappedImage(mappedImage);
+        sizeChanged();
+    }
+    
+    /** Create an image whose pixels are kept off the heap, in a temporary
+     *  file mapped into memory, so that it can be far bigger than the heap.
+     *  Its pixels start out as 0, and can be filled in with setRows()
+     *
+     *  @param colorModel the color model to use for interpreting the
+     *         pixel values
+     *  @param width the width of the image
+     *  @param height the height of the image
+     *  @return the new image
+     *  @exception IOException if the temporary file cannot be created
+     */
+    public static ProjectImage createMapped(ColorModel colorModel, int width,
+                                            int height) throws IOException
+    {
+        return new ProjectImage(colorModel,
+                                new MappedImage(new MappedPixelStore(width, height)));
     }
     
     /**************************************************************************
@@ -51,22 +130,36 @@ public class ProjectImage
      */
     public static boolean isColorCapable()
     {
-        return false;
+        return true;
     }
     
     /**************************************************************************
-     * Accessors for information about this image
+     * Accessors for information about this image.  Those a view of the
+     * image uses are synchronized: an EditExecutor holds this image's lock
+     * while it carries out an edit on a thread of its own, so they wait for
+     * the edit to finish rather than see the image half changed.  So are the
+     * methods further on that read or set the pixels, the statistics, the
+     * selection, the storage or the history outside an edit
      *************************************************************************/
      
     /** Get the pixels
      *
      *  @return the pixels for this image - represented as a 2 dimensional
      *          array of integers, to be interpreted according to the
-     *          color model
+     *          color model.  The array is built on demand as a copy of the
+     *          image, so changing it does not change the image
      */
-    public int [] [] getPixels()
+    public synchronized int [] [] getPixels()
     {
-        return pixels;
+        if (mappedImage != null)
+        {
+            int [] [] result = new int [height] [width];
+            for (int row = 0; row < height; row ++)
+                mappedImage.read(row, new PixelBuffer(result[row], 0, width, width, 1));
+            return result;
+        }
+        applyPendingOperations();
+        return buffer.toArray();
     }
     
     /** Get the pixels of this image as a one-dimensional array of packed RGB
@@ -76,22 +169,162 @@ public class ProjectImage
      *  @return the pixels of this image - represented as a 1 dimensional
      *          array of integers representing packed RGB values
      */
-    public int [] getPixelsIntRGB()
+    public synchronized int [] getPixelsIntRGB()
     {
-        int [] result = new int[height * width];
-        for (int row = 0; row < height; row ++)
-            for (int col = 0; col < width; col ++)
-                result[row * width + col] = isColor()
-                  ? pixels[row][col]
-                  : pixels[row][col] * 0x10101; // Makes all three colors same
-        return result;
+        return OperationMetrics.measure(Operation.GET_PIXELS, this, new Supplier<int []>() {
+            public int [] get()
+            {
+                int [] result = new int[height * width];
+                if (mappedImage != null)
+                {
+                    mappedImage.read(0, new PixelBuffer(result, 0, width, width, height));
+                    if (! isColor())
+                        for (int i = 0; i < result.length; i ++)
+                            result[i] *= 0x10101;
+                    return result;
+                }
+                applyPendingOperations();
+                int [] data = buffer.getData();
+                byte [] bytes = buffer.getBytes();
+                if (isColor())
+                    for (int row = 0; row < height; row ++)
+                        System.arraycopy(data, buffer.rowStart(row),
+                                         result, row * width, width);
+                else if (bytes != null)
+                    for (int row = 0; row < height; row ++)
+                    {
+                        int src = buffer.rowStart(row);
+                        int dst = row * width;
+                        for (int col = 0; col < width; col ++)
+                            result[dst + col] = (bytes[src + col] & 0xff) * 0x10101;
+                    }
+                else
+                    for (int row = 0; row < height; row ++)
+                    {
+                        int src = buffer.rowStart(row);
+                        int dst = row * width;
+                        for (int col = 0; col < width; col ++)
+                            result[dst + col] = data[src + col] * 0x10101; // Makes all three colors same
+                    }
+                return result;
+            }
+        });
+    }
+
+    /** Get this image as a BufferedImage for display.  The result does not
+     *  hold a copy of the pixels: its raster reads this image's own buffer,
+     *  so it always shows the current content without any per-frame copying
+     *  or allocation.  The same object is returned on every call until an
+     *  operation replaces the buffer (for example by changing the size of the
+     *  image), so callers should ask again after each operation rather than
+     *  keep the result.
+     *
+     *  Grayscale pixels are expanded to gray RGB by the color model of the
+     *  result, which reads the same 8 bits for red, green and blue - or, for
+     *  pixels held in bytes, looks each byte up in a table of grays.
+     *
+     *  An image kept off the heap has no buffer to share, so for one of those
+     *  the result is a copy, and writing to it does not change the image.
+     *
+     *  A BufferedImage cannot be empty, so there is none for an image with
+     *  no rows or no columns (such as halving one of a single pixel gives).
+     *
+     *  @return a BufferedImage sharing the pixels of this image, or null if
+     *          this image is empty
+     */
+    public synchronized BufferedImage getBufferedImage()
+    {
+        if (width == 0 || height == 0)
+            return null;
+        if (mappedImage != null)
+        {
+            DirectColorModel displayModel = isColor() ? RGB_DISPLAY_MODEL
+                                                      : GRAY_DISPLAY_MODEL;
+            PixelBuffer copy = new PixelBuffer(width, height);
+            mappedImage.read(0, copy);
+            return new BufferedImage(displayModel,
+                                     copy.createRaster(displayModel.getMasks()),
+                                     false, null);
+        }
+        applyPendingOperations();
+        
+        // The caller can write to the pixels through the result, so the
+        // history can no longer assume they are as it last saw them
+        
+        pixelsWritten();
+        if (bufferedImage == null && buffer.holdsBytes())
+            bufferedImage = new BufferedImage(GRAY_BYTE_DISPLAY_MODEL,
+                                              buffer.createByteRaster(), false, null);
+        else if (bufferedImage == null)
+        {
+            DirectColorModel displayModel = isColor() ? RGB_DISPLAY_MODEL
+                                                      : GRAY_DISPLAY_MODEL;
+            WritableRaster raster = buffer.createRaster(displayModel.getMasks());
+            bufferedImage = new BufferedImage(displayModel, raster, false, null);
+        }
+        return bufferedImage;
+    }
+    
+    /** Get a raster that reads and writes the pixels of this image in place.
+     *  Like the result of getBufferedImage(), it is only valid until an
+     *  operation replaces the buffer.
+     *
+     *  @return a raster sharing the pixels of this image, or null if this
+     *          image is empty
+     */
+    public synchronized WritableRaster getRaster()
+    {
+        BufferedImage image = getBufferedImage();
+        return image == null ? null : image.getRaster();
+    }
+    
+    /** Get this image reduced for display at a fraction of its size.  The
+     *  result is the level of an ImagePyramid nearest the size wanted - the
+     *  image halved as many times as it can be without becoming smaller
+     *  than that - so the caller need scale it down by less than half, or
+     *  not at all.  The levels are kept from one call to the next, and only
+     *  the tiles of them that edits have changed since are rebuilt, so
+     *  repainting a view of a big image costs in proportion to the size of
+     *  the view rather than the size of the image.
+     *
+     *  Like the result of getBufferedImage(), the result should be asked
+     *  for again after each operation.  Below full size it is not the image
+     *  itself, so it should not be written to.
+     *
+     *  @param scale the size the image will be shown at, as a fraction of
+     *         its own size
+     *  @return the image, or a reduced copy of it; its width divided by
+     *          getWidth() is the scale it holds the image at.  Null if this
+     *          image is empty
+     */
+    public synchronized BufferedImage getDisplayImage(double scale)
+    {
+        if (! (scale > 0))
+            throw new IllegalArgumentException("Scale must be more than 0");
+        int level = ImagePyramid.levelFor(scale);
+        if (level == 0 || width == 0 || height == 0)
+            return getBufferedImage();
+        if (mappedImage == null)
+            applyPendingOperations();
+        if (pyramid == null)
+        {
+            DirectColorModel displayModel = isColor() ? RGB_DISPLAY_MODEL
+                                                      : GRAY_DISPLAY_MODEL;
+            pyramid = mappedImage != null
+                ? new ImagePyramid(mappedImage, isColor(), displayModel)
+                : new ImagePyramid(buffer, isColor(), displayModel);
+        }
+        level = Math.min(level, pyramid.getLevelCount() - 1);
+        if (level == 0)
+            return getBufferedImage();
+        return pyramid.getImage(level);
     }
 
     /** Get the width of this image
      *
      *  @return the width of this image
      */
-    public int getWidth()
+    public synchronized int getWidth()
     {
         return width;
     }
@@ -100,7 +333,7 @@ public class ProjectImage
      *
      *  @return the height of this image
      */
-    public int getHeight()
+    public synchronized int getHeight()
     {
         return height;
     }
@@ -122,11 +355,64 @@ public class ProjectImage
     {
         return ! (colorModel instanceof GrayScaleColorModel);
     }
+    
+    /** Find out which parts of this image look different since this was
+     *  last called, and start collecting changes afresh.  A view of the
+     *  image need only fetch and repaint those parts - or, if the size has
+     *  changed, lay itself out again - and need do nothing at all if the
+     *  result is empty.  A new image counts as having changed size
+     *
+     *  @return the changes since the last call
+     */
+    public synchronized DirtyRegions takeDirtyRegions()
+    {
+        DirtyRegions result = dirtyRegions;
+        dirtyRegions = new DirtyRegions();
+        return result;
+    }
 
     /**************************************************************************
      * Mutators to alter this image.  Some of these will alter the
      * image "in place", while others will change the width and/or height,
-     * resulting in the creation of a new array of pixels.
+     * resulting in the creation of a new buffer of pixels.
+     *
+     * They are not synchronized themselves: an EditExecutor calls them
+     * holding this image's lock, and any other thread that shares the image
+     * with one must hold it too.
+     *
+     * All of them work on the contiguous buffer directly.  Once any
+     * deferred operations have been applied, the pixel at (row, col) lives
+     * at data[buffer.rowStart(row) + col].  (An image kept off the heap has
+     * no buffer, and hands each operation to its MappedImage instead.)
+     *
+     * A grayscale image is held one byte per pixel, in buffer.getBytes(),
+     * whenever its values all lie in 0 .. 255.  The point operations,
+     * moves, halve(), doubleSize(), encryption with a CounterKeystream and
+     * the histogram all work on the bytes directly.  The other operations
+     * work out their results in ints, which are narrowed back to bytes
+     * afterwards if they still fit; encryptDecrypt(seed), which can take
+     * values out of range, holds the image in ints until they fit again.
+     *
+     * Two kinds of operation are deferred until the pixels are next needed,
+     * and are then carried out together by applyPendingOperations():
+     *
+     * - the point operations (lighten through enhanceContrast) change each
+     *   pixel according to its value alone.  They are composed into a single
+     *   256-entry table - see applyPointOperation() below.
+     * - the flips, shifts and rotate only move pixels around.  They are
+     *   recorded in transform, which says where each pixel of the image is
+     *   found in buffer - see PixelTransform.
+     *
+     * In a color image, the operations that change pixel values work on
+     * each color separately, so that one color never carries into the
+     * next - see ChannelKernels.  Their point operations are not deferred.
+     *
+     * While there is a selection, the point operations, applyFilter() and
+     * encryptDecrypt() change only the pixels selected, and the histogram
+     * and statistics count only those.  Any deferred operations are carried
+     * out first; after that, only the selected pixels are visited - see
+     * SelectionKernels - so the cost depends on how many are selected.
+     * The other operations work on the whole image regardless.
      *************************************************************************/
     
 
@@ -136,13 +422,13 @@ public class ProjectImage
      */
     public void lighten()
     {
-        for (int row = 0; row < height; row ++)
-            for (int col = 0; col < width; col ++)
+        OperationMetrics.measure(Operation.LIGHTEN, this, new Runnable() {
+            public void run()
             {
-                pixels[row][col] += LIGHTEN_DARKEN_AMOUNT;
-                if (pixels[row][col] > MAX_BRIGHTNESS)
-                    pixels[row][col] = MAX_BRIGHTNESS;
+                beginEdit();
+                applyPointOperation(PointOperation.LIGHTEN, 1);
             }
+        });
     }
     
     
@@ -152,13 +438,13 @@ public class ProjectImage
      */
     public void darken()
     {
-        for (int row = 0; row < height; row ++)
-            for (int col = 0; col < width; col ++)
+        OperationMetrics.measure(Operation.DARKEN, this, new Runnable() {
+            public void run()
             {
-                pixels[row][col] -= LIGHTEN_DARKEN_AMOUNT;
-                if (pixels[row][col] < MIN_BRIGHTNESS)
-                    pixels[row][col] = MIN_BRIGHTNESS;
+                beginEdit();
+                applyPointOperation(PointOperation.DARKEN, 1);
             }
+        });
     }
     
     
@@ -168,11 +454,13 @@ public class ProjectImage
      */
     public void negative()
     {
-        for (int row = 0; row < height; row ++)
-            for (int col = 0; col < width; col ++)
+        OperationMetrics.measure(Operation.NEGATIVE, this, new Runnable() {
+            public void run()
             {
-                pixels[row][col] = MAX_BRIGHTNESS - pixels[row][col];
+                beginEdit();
+                applyPointOperation(PointOperation.NEGATIVE, 1);
             }
+        });
     }
     
     
@@ -182,27 +470,13 @@ public class ProjectImage
      */
     public void reduceContrast()
     {
-    int totalColor;
-    totalColor = 0;
-    
-    //First nested for-loop to find the total and average color of the image
-    
-    for (int row = 0; row < height; row ++)
-        for (int col = 0; col < width; col ++)
-            totalColor += pixels[row][col];
-            int averageColor;
-            averageColor = totalColor/(width*height);
-            
-    //A second nested for-loop to actually compare color values and contrast
-    
-    for (int row = 0; row < height; row ++)
-        for (int col = 0; col < width; col ++)
-        {
-            if (pixels[row][col] > averageColor)
-                pixels[row][col] -= LIGHTEN_DARKEN_AMOUNT;
-            else if (pixels[row][col] < averageColor)
-                pixels[row][col] += LIGHTEN_DARKEN_AMOUNT; 
+        OperationMetrics.measure(Operation.REDUCE_CONTRAST, this, new Runnable() {
+            public void run()
+            {
+                beginEdit();
+                applyPointOperation(PointOperation.REDUCE_CONTRAST, 1);
             }
+        });
     }
     
     
@@ -212,71 +486,61 @@ public class ProjectImage
      */
     public void enhanceContrast()
     {
-    int totalColor;
-    totalColor = 0;
-    for (int row = 0; row < height; row ++)
-        for (int col = 0; col < width; col ++)
-            totalColor += pixels[row][col];
-            int averageColor;
-            averageColor = totalColor/(width*height);
-    for (int row = 0; row < height; row ++)
-        for (int col = 0; col < width; col ++)
-        {
-            if (pixels[row][col] > averageColor)
-                pixels[row][col] += LIGHTEN_DARKEN_AMOUNT;
-            if (pixels[row][col] < averageColor)
-                pixels[row][col] -= LIGHTEN_DARKEN_AMOUNT;
-            
-            // Fixes super bright/super dark colors to make sure they don't
-            // become negative color values (black -> white & vice versa)
-            
-            // Used 4 if statements because it is possible that more than one
-            // if statement is used
-            if (pixels[row][col] < MIN_BRIGHTNESS)
-                pixels[row][col] = MIN_BRIGHTNESS;
-            if (pixels[row][col] > MAX_BRIGHTNESS)
-                pixels[row][col] = MAX_BRIGHTNESS;
+        OperationMetrics.measure(Operation.ENHANCE_CONTRAST, this, new Runnable() {
+            public void run()
+            {
+                beginEdit();
+                applyPointOperation(PointOperation.ENHANCE_CONTRAST, 1);
             }
+        });
     }
    
     
     
     
-    /** Flips the image horizontally
+    /** Flips the image horizontally.  Only the description of how the
+     *  image is laid out in its buffer changes - see PixelTransform
      */
     public void flipHorizontally()
     {
-    for (int row = 0; row < height; row ++)
-        for (int col = 0; col < width/2; col ++)
-        {
-            //Storing the 2 color values in variables colorFirst and colorSecond
-            //This makes switching the colors much much easier
-            int colorFirst;
-            int colorSecond;
-            colorFirst = pixels[row][col];
-            colorSecond = pixels[row][width-col-1];
-            pixels[row][width-col-1] = colorFirst;
-            pixels[row][col] = colorSecond;
-        }
+        OperationMetrics.measure(Operation.FLIP_HORIZONTALLY, this, new Runnable() {
+            public void run()
+            {
+                beginEdit();
+                imageChanged();
+                if (mappedImage != null)
+                {
+                    mappedImage.flipHorizontally();
+                    pixelsWritten();
+                    return;
+                }
+                transform = transform.flipHorizontally(width);
+            }
+        });
     }
     
     
     
     
-    /** Flips the image horizontally
+    /** Flips the image vertically.  Only the description of how the
+     *  image is laid out in its buffer changes - see PixelTransform
      */
     public void flipVertically()
     {
-    for (int col = 0; col < width; col ++)
-        for (int row = 0; row < height/2; row ++)
-        {
-            int colorFirst;
-            int colorSecond;
-            colorFirst = pixels[row][col];
-            colorSecond = pixels[height-row-1][col];
-            pixels[height-row-1][col] = colorFirst;
-            pixels[row][col] = colorSecond;
-        }
+        OperationMetrics.measure(Operation.FLIP_VERTICALLY, this, new Runnable() {
+            public void run()
+            {
+                beginEdit();
+                imageChanged();
+                if (mappedImage != null)
+                {
+                    mappedImage.flipVertically();
+                    pixelsWritten();
+                    return;
+                }
+                transform = transform.flipVertically(height);
+            }
+        });
     }
     
     
@@ -292,18 +556,120 @@ public class ProjectImage
     // Random random = new Random (seed)
     public void encryptDecrypt(int seed)
     {
-        Random random = new Random(seed);
-	for (int row = 0; row < height; row ++)
-            for (int col = 0; col < width; col ++)
+        OperationMetrics.measure(Operation.ENCRYPT_DECRYPT, this, new Runnable() {
+            public void run()
             {
-                // I made a semi-random number/variable that allows
-                // the picture to be encrypted while making it possible to
-                // be decrypted (randomNumber)
+                beginEdit();
+                if (selection != null)
+                {
+                    encryptSelection(seed, null);
+                    return;
+                }
+                imageChanged();
+                if (mappedImage != null)
+                {
+                    mappedImage.encryptDecrypt(seed);
+                    pixelsWritten();
+                    return;
+                }
+                applyPendingOperations();
+                pixelValuesChanged();
+                promote();
+                Random random = new Random(seed);
+                int [] data = buffer.getData();
+                for (int row = 0; row < height; row ++)
+                {
+                    int start = buffer.rowStart(row);
+                    for (int i = start; i < start + width; i ++)
+                    {
+                        // I made a semi-random number/variable that allows
+                        // the picture to be encrypted while making it possible to
+                        // be decrypted (randomNumber)
                 
-                int randomNumber;
-                randomNumber = random.nextInt(MAX_BRIGHTNESS + 1);
-                pixels[row][col] = pixels[row][col] ^ seed + randomNumber;
+                        int randomNumber;
+                        randomNumber = random.nextInt(MAX_BRIGHTNESS + 1);
+                        data[i] = data[i] ^ seed + randomNumber;
+                    }
+                }
+            
+                // Decrypting brings the values back into range
+            
+                PixelBuffer narrowed = isColor() ? null : PixelBuffer.narrowed(buffer, pool);
+                if (narrowed != null)
+                    setBuffer(narrowed);
+            }
+        });
+    }
+    
+    /** Encrypt or decrypt the image given a key, choosing how the keystream
+     *  is made
+     *
+     *  @param seed the secret key that will be used to encode and decode
+     *         the image
+     *  @param mode RANDOM to do the same as encryptDecrypt(seed), which can
+     *         decrypt images encrypted by earlier versions; COUNTER to use
+     *         a CounterKeystream, which encrypts every row at once and
+     *         leaves the values in range
+     */
+    public void encryptDecrypt(int seed, EncryptionMode mode)
+    {
+        OperationMetrics.measure(Operation.ENCRYPT_DECRYPT, this, new Runnable() {
+            public void run()
+            {
+                if (mode == EncryptionMode.RANDOM)
+                {
+                    encryptDecrypt(seed);
+                    return;
+                }
+                beginEdit();
+                final CounterKeystream keystream = new CounterKeystream(seed);
+                if (selection != null)
+                {
+                    encryptSelection(seed, keystream);
+                    return;
+                }
+                imageChanged();
+                final boolean color = isColor();
+                if (mappedImage != null)
+                {
+                    mappedImage.encryptDecrypt(keystream, color);
+                    pixelsWritten();
+                    return;
+                }
+                applyPendingOperations();
+                pixelValuesChanged();
+                final PixelBuffer source = buffer;
+                ParallelEngine.forEachRow(height, width, new ParallelEngine.RowTask() {
+                    public void processRows(int startRow, int endRow)
+                    {
+                        for (int row = startRow; row < endRow; row ++)
+                            if (source.holdsBytes())
+                                keystream.apply(source.getBytes(), source.rowStart(row),
+                                                source.getWidth(),
+                                                (long) row * source.getWidth());
+                            else
+                                keystream.apply(source.getData(), source.rowStart(row),
+                                                source.getWidth(),
+                                                (long) row * source.getWidth(), color);
+                    }
+                });
             }
+        });
+    }
+    
+    /** The ways encryptDecrypt() can make its keystream
+     */
+    public enum EncryptionMode
+    {
+        // One java.util.Random seeded with the key, stepped through the
+        // pixels in order
+        
+        RANDOM,
+        
+        // A CounterKeystream, whose value for each pixel is worked out from
+        // the key and the position of the pixel
+        
+        COUNTER
     }
     
     
@@ -312,23 +678,63 @@ public class ProjectImage
     /** Calculate the histogram  for the image
     *
     * @return 256-element array. with each element representing a count
-    * the number of pixels in the image having that particular brightness
+    * the number of pixels in the image having that particular brightness.
+    * For a color image, the red, green and blue values of each pixel are
+    * all counted.  While there is a selection, only the pixels selected
+    * are counted
     */
-    public int [] calculateHistogram()
+    public synchronized int [] calculateHistogram()
     {
-        // We need to build a 1-dimensional array to keep track
-        // of the number of times each color appears in the image
-        
-	int [] pixelNumber = new int [256];
-	for (int row = 0; row < height; row ++)
-            for (int col = 0; col < width; col ++)
+        Operation operation = Operation.CALCULATE_HISTOGRAM;
+        return OperationMetrics.measure(operation, this, new Supplier<int []>() {
+            public int [] get()
             {
-                pixelNumber[pixels[row][col]] += 1;
+                ImageStatistics statistics = getStatistics();
+                int [] pixelNumber = statistics.getHistogram(0);
+                for (int channel = 1; channel < statistics.getChannelCount(); channel ++)
+                {
+                    int [] counts = statistics.getHistogram(channel);
+                    for (int value = 0; value < 256; value ++)
+                        pixelNumber[value] += counts[value];
+                }
+                return pixelNumber;
             }
-        
-        // Return the array for the histogram button to display
-        
-        return pixelNumber;
+        });
+    }
+    
+    /** Get the statistics of the pixel values of this image - see
+     *  ImageStatistics
+     *
+     *  @return the statistics for the image as it is now - or, while there
+     *          is a selection, for the pixels selected
+     *  @exception IllegalStateException if a grayscale pixel lies outside
+     *             the range 0 .. 255, as it may after encryption
+     */
+    public synchronized ImageStatistics getStatistics()
+    {
+        int [] [] histograms;
+        if (selection != null)
+            histograms = countSelection(selectedPixels());
+        else if (mappedImage != null)
+            histograms = mappedImage.calculateHistograms(isColor());
+        else
+        {
+            // While only point operations have been applied since the pixels
+            // were last counted, the counts have been carried over to the new
+            // values without looking at the pixels again
+            
+            histograms = pendingMap == null ? knownHistograms
+                                            : remappedHistograms(pendingMap);
+            if (histograms == null)
+            {
+                applyPendingMap();
+                knownHistograms = ImageStatistics.count(buffer, isColor());
+                histograms = knownHistograms;
+            }
+        }
+        if (histograms == null)
+            throw new IllegalStateException("Pixel values outside 0 .. 255");
+        return new ImageStatistics(histograms);
     }
 	
     
@@ -338,316 +744,1988 @@ public class ProjectImage
      */
     public void halve()
     {
-        // We need to build a new image in a separate array, and then make
-        // it our current image
-        
-        int newWidth = width / 2;
-        int newHeight = height / 2;
-        int [] [] newPixels = new int [newHeight] [newWidth];
-        
-        // Each pixel in the new image is an average of a 2 x 2 square of pixels
-        // in the original image
-        
-        for (int row = 0; row < newHeight; row ++)
-            for (int col = 0; col < newWidth; col ++)
-              newPixels[row][col] = (pixels[2*row][2*col] + pixels[2*row+1][2*col] +
-                                     pixels[2*row][2*col+1] + pixels[2*row+1][2*col+1])/4;
-            
-        // Now replace the current image with the one we just created
+        OperationMetrics.measure(Operation.HALVE, this, new Runnable() {
+            public void run()
+            {
+                beginEdit();
+                if (mappedImage != null)
+                {
+                    mappedImage.halve(isColor());
+                    setMappedImage(mappedImage);
+                    sizeChanged();
+                    return;
+                }
+                applyPendingOperations();
+                pixelValuesChanged();
+
+                // We need to build a new image in a separate buffer, and then make
+                // it our current image
         
-        width = newWidth;
-        height = newHeight;
-        pixels = newPixels;
+                setBuffer(isColor() ? ChannelKernels.halved(buffer, pool) : halved(buffer, pool));
+                sizeChanged();
+            }
+        });
     }
 
 
     
     
-    /**Shifts the image left and right horizontally
+    /**Shifts the image left and right horizontally, wrapping the pixels that
+    * fall off one edge around to the other.  Only the description of how the
+    * image is laid out in its buffer changes - see PixelTransform
     *
-    * @param x is an integer (-1 or 1) that determines whether or not the
-    * image will shift left or shift right.
-    * A noticeable amount of this function is built around parameter x
-    * since this one function powers two different buttons
+    * @param x is the number of columns to shift by - positive values
+    * shift right and negative values shift left.  The buttons use -1 and 1
     */
     public void shiftHorizontally(int x)
     {
-        
-    // I created variables that define the bounds of the for-loops based on
-    // whether or not the parameter is equal to -1 or 1
-        
-    int startColumn;
-    int endColumn;
-    if (x == -1)
-    {
-        startColumn = 0;
-        endColumn = width - 1;
-    }
-    else
-    {
-        startColumn = 1;
-        endColumn = width;
-    }
-    
-    int [] [] newPixels = new int [height] [width];
-    for (int row = 0; row < height; row ++)
-        for (int col = startColumn; col < endColumn; col ++)
-        {
-            // Each if/else statement appropriately executes a directional shift
-            // depending on whether or not x == -1 or 1
-            
-            if (x == 1)
-            {
-                newPixels[row][col] = pixels[row][col-1];
-                if (col == width - 1)
-                    newPixels[row][0] = pixels[row][width-1];
-            }
-            else
+        OperationMetrics.measure(Operation.SHIFT_HORIZONTALLY, this, new Runnable() {
+            public void run()
             {
-                newPixels[row][col] = pixels[row][col+1];
-                if (col == width - 2)
-                    newPixels[row][width-1] = pixels[row][0];
-
+                beginEdit();
+                if (x != 0)
+                    imageChanged();
+                if (mappedImage != null)
+                {
+                    mappedImage.shiftHorizontally(x);
+                    pixelsWritten();
+                    return;
+                }
+                transform = transform.shift(0, x, width, height);
             }
-        }
-    
-    // Set the old pixels equal to the newPixels array we just created
-    // newPixels is the shifted image we just created
-    
-    pixels = newPixels;
-    }        
+        });
+    }
     
     
     
     
-    /**Shifts the image up and down vertically
+    /**Shifts the image up and down vertically, wrapping the rows that fall
+    * off one edge around to the other.  Only the description of how the
+    * image is laid out in its buffer changes - see PixelTransform
     *
-    * @param y is an integer (-1 or 1) that determines whether or not the
-    * image will shift up or shift down.
-    * A noticeable amount of this function is built around parameter y
-    * since this one function powers two different buttons
+    * @param y is the number of rows to shift by - positive values shift
+    * down and negative values shift up.  The buttons use -1 and 1
     */
     public void shiftVertically(int y)
     {
-    int startRow;
-    int endRow;
-    if (y == -1)
-    {
-        startRow = 0;
-        endRow = height - 1;
+        OperationMetrics.measure(Operation.SHIFT_VERTICALLY, this, new Runnable() {
+            public void run()
+            {
+                beginEdit();
+                if (y != 0)
+                    imageChanged();
+                if (mappedImage != null)
+                {
+                    mappedImage.shiftVertically(y);
+                    pixelsWritten();
+                    return;
+                }
+                transform = transform.shift(y, 0, width, height);
+            }
+        });
     }
-    else
+    
+    
+    
+    
+    /** Rotates the image 90 degrees clockwise.  Only the description of how
+     *  the image is laid out in its buffer changes - see PixelTransform
+     */
+    public void rotate()
     {
-        startRow = 1;
-        endRow = height;
-    }
-    int [] [] newPixels = new int [height] [width];
-    for (int col = 0; col < width; col ++)
-        for (int row = startRow; row < endRow; row ++)
-        {
-            if (y == 1)
+        OperationMetrics.measure(Operation.ROTATE, this, new Runnable() {
+            public void run()
             {
-                newPixels[row][col] = pixels[row-1][col];
-                if (row == height - 1)
-                    newPixels[0][col] = pixels[height-1][col];
+                rotateQuarterTurns(1);
             }
-            else
+        });
+    }
+    
+    
+    
+    
+    /** Rotates the image 180 degrees, in one step rather than two rotate()s
+     */
+    public void rotate180()
+    {
+        OperationMetrics.measure(Operation.ROTATE, this, new Runnable() {
+            public void run()
             {
-                newPixels[row][col] = pixels[row+1][col];
-                if (row == height - 2)
-                    newPixels[height-1][col] = pixels[0][col];
+                rotateQuarterTurns(2);
             }
-        } 
-   pixels = newPixels;
-    }        
+        });
+    }
     
     
     
     
-    /** Rotates the image 90 degrees clockwise
+    /** Rotates the image 270 degrees clockwise (90 degrees counterclockwise),
+     *  in one step rather than three rotate()s
      */
-    public void rotate()
+    public void rotate270()
     {
-        int newWidth = height;
-        int newHeight = width;
-        int [] [] newPixels = new int [newHeight] [newWidth];
-        for (int row = 0; row < newHeight; row ++)
-            for (int col = 0; col < newWidth; col ++)
+        OperationMetrics.measure(Operation.ROTATE, this, new Runnable() {
+            public void run()
             {
-                newPixels[row][col] = pixels[newWidth-1-col][row];
+                rotateQuarterTurns(3);
             }
-        
-        width = newWidth;
-        height = newHeight;
-        pixels = newPixels;
+        });
     }
     
     
     
     
-    /** Scale the image by a factor of 2 in each dimension
+    /** Rotates the image clockwise by any angle.  A multiple of 90 degrees
+     *  is done exactly, as by rotate(), rotate180() or rotate270().  Any
+     *  other angle makes the image big enough to hold the whole of the
+     *  rotated image, with black corners, and blends the pixels it falls
+     *  between - see RotationEngine
+     *
+     *  @param degrees the angle to rotate by - negative for counterclockwise
      */
-    public void doubleSize()
+    public void rotate(double degrees)
     {
-        int newWidth = width * 2 - 1;
-        int newHeight = height * 2 - 1;
-        int [] [] newPixels = new int [newHeight] [newWidth];
-        
-        for (int row = 0; row < newHeight; row ++)
-            for (int col = 0; col < newWidth; col ++)
+        OperationMetrics.measure(Operation.ROTATE, this, new Runnable() {
+            public void run()
             {
-                // The doubleSize() algorithm can be expressed using
-                // modulus operators and some if statements
-                
-                if (row%2 == 0 && col%2 == 0)
-                    newPixels[row][col] = pixels[row/2][col/2];
-                else if (row%2 == 0 && col%2 == 1)
-                    newPixels[row][col] = (pixels[row/2][(col-1)/2] + pixels[row/2][(col+1)/2])/2;
-                else if (row%2 == 1 && col%2 == 0)
-                    newPixels[row][col] = (pixels[(row-1)/2][col/2] + pixels[(row+1)/2][col/2])/2;
-                else if (row%2 == 1 && col%2 == 1)
-                    newPixels[row][col] = (pixels[(row-1)/2][(col-1)/2] + pixels[(row+1)/2][(col+1)/2])/2;
+                if (Double.isNaN(degrees) || Double.isInfinite(degrees))
+                    throw new IllegalArgumentException("Angle must be a number");
+            
+                // Whole turns are taken off first, which is exact, so that the
+                // number of quarter turns left always fits in an int
+            
+                double angle = degrees % 360;
+                double quarterTurns = angle / 90;
+                if (quarterTurns == Math.rint(quarterTurns))
+                {
+                    rotateQuarterTurns(Math.floorMod((int) quarterTurns, 4));
+                    return;
+                }
+                beginEdit();
+                if (mappedImage != null)
+                {
+                    mappedImage.rotate(angle, isColor());
+                    setMappedImage(mappedImage);
+                    sizeChanged();
+                    return;
+                }
+                applyPendingOperations();
+                pixelValuesChanged();
+                PixelBuffer pixels = intPixels();
+                PixelBuffer rotated = RotationEngine.rotate(pixels, angle, isColor(), pool);
+                release(pixels);
+                setResult(rotated);
+                sizeChanged();
             }
-        
-        width = newWidth;
-        height = newHeight;
-        pixels = newPixels;
+        });
     }
     
     
     
     
-    /** Apply a filter to this image
-    * @param filter a square array of doubles specifying the filter to
-    * apply - the number of rows and columns must be odd
-    */
-    public void applyFilter(double [][] filter)
+    /** Scale the image by a factor of 2 in each dimension
+     */
+    public void doubleSize()
     {
-        int [] [] newPixels = new int [height][width];
-        int size = filter.length;
-        for (int row = 0; row < height; row ++)
-            for (int col = 0; col < width; col ++)
+        OperationMetrics.measure(Operation.DOUBLE_SIZE, this, new Runnable() {
+            public void run()
             {
-                // The row and column for-loop bounds can be expressed in terms
-                // of the size of the filter array
-                
-                // The following if statement makes sure that the image borders
-                // are not filtered due to a lack of neighboring pixels
-                
-                if (row <= (size-3)/2 || col <= (size-3)/2
-                    || row >= height-(size-1)/2 ||col >= width-(size-1)/2)
+                beginEdit();
+                if (mappedImage != null)
                 {
-                    newPixels[row][col] = pixels[row][col];
+                    mappedImage.doubleSize(isColor());
+                    setMappedImage(mappedImage);
+                    sizeChanged();
+                    return;
                 }
-                
-                // The following else if statement does the filtering on all
-                // of the remaining non-border pixels
-                
-                else if (row > (size-3)/2 && row < height-(size-1)/2
-                         && col > (size-3)/2 && col < width-(size-1)/2)
-                {
-                    // double val finds the filtered pixel value
-                    double val = 0;
-                    
-                    // Idea of a second nested for-loop from Betzy;
-                    // Expression to find double val was developed by myself
-                    for (int y = 0; y < size; y ++)
-                        for (int x = 0; x < size; x ++)
-                            {
-                                val += filter[y][x] * pixels[row + y - ((size-1)/2)]
-                                                            [col + x - ((size-1)/2)]; 
-                            }
+                applyPendingOperations();
+                pixelValuesChanged();
 
-                    // Casting val as an int variable for convenience
-                    int integerVal = (int)val;
-                    
-                    //Color fix
-                    //Corrects all "sharpen" colors to what they should be
-                    if  (integerVal < MIN_BRIGHTNESS)
-                        integerVal = MIN_BRIGHTNESS;
-                    else if (integerVal > MAX_BRIGHTNESS)
-                        integerVal = MAX_BRIGHTNESS;
-                    newPixels[row][col] = integerVal;
-                    
-                } 
+                setBuffer(isColor() ? ChannelKernels.doubled(buffer, pool) : doubled(buffer, pool));
+                sizeChanged();
             }
-        pixels = newPixels;
+        });
     }
     
     
-    /* *************************************************************************
-     * Utility methods for working with colorized images
-     * ************************************************************************/
-     
-    /** If we are using a full color representation of the image, then pack 
-     *  three colors into a single pixel, along with a 100% alpha value.
-     *  If any color value is greater than the maximum or less than the minimum,
-     *  it is forced to the maximum or minimum value (as the case may be)
-     *  before packing.  
-     *
-     *  @param red the red value to pack
-     *  @param green the green value to pack
-     *  @param blue the blue value to pack
-     *  @return the packed RGB representation for this pixel
-     */
-    private int pack(int red, int green, int blue)
-    {
-        if (red > MAX_BRIGHTNESS)
-            red = MAX_BRIGHTNESS;
-        else if (red < MIN_BRIGHTNESS)
-            red = MIN_BRIGHTNESS;
-            
-        if (green > MAX_BRIGHTNESS)
-            green = MAX_BRIGHTNESS;
-        else if (green < MIN_BRIGHTNESS)
-            green = MIN_BRIGHTNESS;
-            
-        if (blue > MAX_BRIGHTNESS)
-            blue = MAX_BRIGHTNESS;
-        else if (blue < MIN_BRIGHTNESS)
-            blue = MIN_BRIGHTNESS;
-            
-        // If we are using a simple 8 bit gray-scale representation for the 
-        // image, then all colors are the same and we can simply return any one
-        // of them.  Otherwise, we must let the color model pack them correctly
-        
-        if (colorModel instanceof GrayScaleColorModel)
-            return red;
-        else
-        {
-            int [] components = { red, green, blue, 255 };
-            return colorModel.getDataElement(components, 0);
-        }
-    }
     
-    /** Average two pixels
+    
+    /** Resize the image to any width and height.  Unlike halve() and
+     *  doubleSize(), every pixel of the image contributes to the result, and
+     *  the result has exactly the size asked for - see ResampleEngine
      *
-     *  @param pixel1 the first of the two pixels
-     *  @param pixel2 the second of the two pixels
-     *  @return a pixel which is equal to their average
+     *  @param newWidth the width of the result
+     *  @param newHeight the height of the result
+     *  @param filter how the pixels around each point are weighted
      */
-    private int averagePixels(int pixel1, int pixel2)
+    public void resize(int newWidth, int newHeight, ResizeFilter filter)
     {
-        int red = (colorModel.getRed(pixel1) + colorModel.getRed(pixel2)) / 2;
-        int green = (colorModel.getGreen(pixel1) + colorModel.getGreen(pixel2)) / 2;
-        int blue = (colorModel.getBlue(pixel1) + colorModel.getBlue(pixel2)) / 2;
-        
-        return pack(red, green, blue);
+        OperationMetrics.measure(Operation.RESIZE, this, new Runnable() {
+            public void run()
+            {
+                if (newWidth < 0 || newHeight < 0)
+                    throw new IllegalArgumentException("Size must not be negative");
+                if ((width == 0 || height == 0) && newWidth > 0 && newHeight > 0)
+                    throw new IllegalArgumentException("Cannot resize an empty image");
+                beginEdit();
+                if (mappedImage != null)
+                {
+                    mappedImage.resize(newWidth, newHeight, filter, isColor());
+                    setMappedImage(mappedImage);
+                    sizeChanged();
+                    return;
+                }
+                applyPendingOperations();
+                pixelValuesChanged();
+                PixelBuffer pixels = intPixels();
+                PixelBuffer resized = ResampleEngine.resize(pixels, newWidth, newHeight, filter,
+                                                            isColor());
+                release(pixels);
+                setResult(resized);
+                sizeChanged();
+            }
+        });
     }
+    
+    /** The filters resize() can weight pixels with.  Each is a function of
+     *  the distance from the point of the image a result pixel corresponds
+     *  to, stretched when the image is made smaller so that it covers the
+     *  whole of the result pixel
+     */
+    public enum ResizeFilter
+    {
+        // Equal weights within half a pixel: an average over the area of
+        // each result pixel when shrinking, the nearest pixel when enlarging
         
-            
+        BOX,
+        
+        // Weights falling off in a straight line to 0 one pixel away
+        
+        BILINEAR,
+        
+        // The Catmull-Rom cubic, reaching 2 pixels away - sharper than
+        // bilinear
+        
+        BICUBIC,
+        
+        // The Lanczos windowed sinc, reaching 3 pixels away - the sharpest,
+        // at the cost of slight ringing next to hard edges
+        
+        LANCZOS
+    }
     
-    // Image data
     
-    private ColorModel colorModel;
-    private int [] [] pixels;
+    
+    
+    /** Apply a filter to this image.  Box filters, separable filters and
+    * all others are each applied in the fastest way that suits them - see
+    * ConvolutionEngine.  While there is a selection, only the pixels
+    * selected are filtered, from the values of all the pixels around them
+    *
+    * @param filter a square array of doubles specifying the filter to
+    * apply - the number of rows and columns must be odd
+    */
+    public void applyFilter(double [][] filter)
+    {
+        OperationMetrics.measure(Operation.APPLY_FILTER, this, new Runnable() {
+            public void run()
+            {
+                beginEdit();
+        
+                // Pixels within half the filter's size of the edge are left as they
+                // are
+        
+                int border = (filter.length - 1) / 2;
+                if (selection != null)
+                {
+                    filterSelection(filter);
+                    return;
+                }
+                imageChanged(border, border, height - 2 * border, width - 2 * border);
+                if (mappedImage != null)
+                {
+                    mappedImage.applyFilter(filter, isColor());
+                    pixelsWritten();
+                    return;
+                }
+                applyPendingOperations();
+                pixelValuesChanged();
+                if (isColor())
+                    setBuffer(ChannelKernels.convolve(buffer, filter, pool));
+                else
+                {
+                    PixelBuffer pixels = intPixels();
+                    PixelBuffer filtered = ConvolutionEngine.convolve(pixels, filter, pool);
+                    release(pixels);
+                    setResult(filtered);
+                }
+            }
+        });
+    }
+
+    /** Apply a median filter to this image, replacing each pixel by the
+    * median of the square of pixels around it - which removes specks of
+    * noise while keeping edges sharp.  It takes the same time per pixel
+    * whatever the radius - see DenoiseEngine
+    *
+    * @param radius the distance the square reaches from the pixel in each
+    * direction.  As with applyFilter(), pixels within this distance of the
+    * edge are left as they are
+    * @exception IllegalArgumentException if radius is negative
+    */
+    public void medianFilter(int radius)
+    {
+        OperationMetrics.measure(Operation.MEDIAN_FILTER, this, new Runnable() {
+            public void run()
+            {
+                if (radius < 0)
+                    throw new IllegalArgumentException("Radius must not be negative");
+                if (radius == 0)
+                    return;
+                beginEdit();
+                imageChanged(radius, radius, height - 2 * radius, width - 2 * radius);
+                if (mappedImage != null)
+                {
+                    mappedImage.medianFilter(radius, isColor());
+                    pixelsWritten();
+                    return;
+                }
+                applyPendingOperations();
+                pixelValuesChanged();
+                PixelBuffer pixels = intPixels();
+                PixelBuffer filtered = DenoiseEngine.median(pixels, radius, isColor(), pool);
+                release(pixels);
+                setResult(filtered);
+            }
+        });
+    }
+
+    /** Apply a bilateral filter to this image, averaging each pixel with
+    * those near it that are also near it in value - which smooths noise
+    * away without blurring edges.  It takes much the same time per pixel
+    * whatever the spreads - see DenoiseEngine
+    *
+    * @param spatialSigma how far, in pixels, the pixels averaged reach -
+    * at least 1
+    * @param rangeSigma how far, in brightness, the values averaged reach -
+    * at least 1
+    * @exception IllegalArgumentException if either spread is less than 1
+    */
+    public void bilateralFilter(double spatialSigma, double rangeSigma)
+    {
+        OperationMetrics.measure(Operation.BILATERAL_FILTER, this, new Runnable() {
+            public void run()
+            {
+                if (! (spatialSigma >= 1 && rangeSigma >= 1))
+                    throw new IllegalArgumentException("Spreads must be at least 1");
+                beginEdit();
+                imageChanged();
+                if (mappedImage != null)
+                {
+                    mappedImage.bilateralFilter(spatialSigma, rangeSigma, isColor());
+                    pixelsWritten();
+                    return;
+                }
+                applyPendingOperations();
+                pixelValuesChanged();
+                PixelBuffer pixels = intPixels();
+                PixelBuffer filtered = DenoiseEngine.bilateral(pixels, 0, spatialSigma, rangeSigma,
+                                                               isColor(), pool);
+                release(pixels);
+                setResult(filtered);
+            }
+        });
+    }
+
+    
+    /**************************************************************************
+     * Selection.  Restricts the point operations, applyFilter(),
+     * encryptDecrypt() and the histogram to some of the pixels - see the
+     * mutators above
+     *************************************************************************/
+    
+    /** Choose the pixels that the operations which heed a selection work on.
+     *  The selection stays as it is when the image is moved or resized;
+     *  only the part of it inside the image is used
+     *
+     *  @param selection the pixels to work on, or null to work on the whole
+     *         image
+     */
+    public synchronized void setSelection(Selection selection)
+    {
+        this.selection = selection;
+    }
+    
+    /** Get the pixels that the operations which heed a selection work on
+     *
+     *  @return the selection, or null if they work on the whole image
+     */
+    public synchronized Selection getSelection()
+    {
+        return selection;
+    }
+    
+    /**************************************************************************
+     * Storage.  An image's pixels are normally held on the heap.  They can be
+     * moved off it, into a temporary file mapped into memory, so that the
+     * image can be bigger than the heap - see MappedImage.  Such an image
+     * keeps no undo history, and getPixels(), getPixelsIntRGB() and
+     * getBufferedImage() build copies on the heap, so for a really big image
+     * the pixels should be read with getRows() instead, and shown with
+     * getDisplayImage(), which reads them a tile at a time
+     *************************************************************************/
+    
+    /** Move the pixels of this image off the heap.  Every operation
+     *  carries on working, a band of rows at a time
+     *
+     *  @exception IOException if the temporary file cannot be created
+     */
+    public synchronized void useMappedStorage() throws IOException
+    {
+        if (mappedImage != null)
+            return;
+        applyPendingOperations();
+        setMappedImage(MappedImage.copyOf(buffer));
+    }
+    
+    /** Find out whether the pixels of this image are kept off the heap
+     *
+     *  @return true if they are
+     */
+    public synchronized boolean isMapped()
+    {
+        return mappedImage != null;
+    }
+    
+    /** Copy some of the rows of this image into an array
+     *
+     *  @param startRow the first row to copy
+     *  @param rowCount the number of rows to copy
+     *  @param pixels the array to copy into - rowCount rows of width values
+     *         each, one row after another
+     */
+    public synchronized void getRows(int startRow, int rowCount, int [] pixels)
+    {
+        checkRows(startRow, rowCount);
+        PixelBuffer target = new PixelBuffer(pixels, 0, width, width, rowCount);
+        if (mappedImage != null)
+            mappedImage.read(startRow, target);
+        else
+        {
+            applyPendingOperations();
+            for (int row = 0; row < rowCount; row ++)
+                buffer.copyRow(startRow + row, pixels, row * width);
+        }
+    }
+    
+    /** Replace some of the rows of this image with values from an array
+     *
+     *  @param startRow the first row to replace
+     *  @param rowCount the number of rows to replace
+     *  @param pixels the new values - rowCount rows of width values each,
+     *         one row after another
+     */
+    public synchronized void setRows(int startRow, int rowCount, int [] pixels)
+    {
+        OperationMetrics.measure(Operation.SET_ROWS, this, new Runnable() {
+            public void run()
+            {
+                checkRows(startRow, rowCount);
+                beginEdit();
+                imageChanged(startRow, 0, rowCount, width);
+                PixelBuffer source = new PixelBuffer(pixels, 0, width, width, rowCount);
+                if (mappedImage != null)
+                    mappedImage.write(startRow, source);
+                else
+                {
+                    applyPendingOperations();
+                    knownHistograms = null;
+                    if (buffer.holdsBytes() && ! ConvolutionEngine.isInByteRange(source))
+                        promote();
+                    source.copyTo(buffer.region(startRow, 0, rowCount, width));
+                }
+                pixelsWritten(startRow, 0, rowCount, width);
+            }
+        });
+    }
+
+    /** Replace all of this image, whatever its size, with values from an
+     *  array.  Unlike creating a new image, this writes into the buffers
+     *  that earlier operations have left for reuse
+     *
+     *  @param newWidth the new width
+     *  @param newHeight the new height
+     *  @param pixels the new values - newHeight rows of newWidth values
+     *         each, one row after another.  They are copied.  An image kept
+     *         off the heap must keep its size
+     */
+    public synchronized void setPixels(int newWidth, int newHeight, int [] pixels)
+    {
+        OperationMetrics.measure(Operation.SET_PIXELS, this, new Runnable() {
+            public void run()
+            {
+                if (newWidth < 0 || newHeight < 0
+                    || pixels.length < (long) newWidth * newHeight)
+                    throw new IllegalArgumentException("Pixels do not fill image");
+                PixelBuffer source = new PixelBuffer(pixels, 0, newWidth, newWidth, newHeight);
+                if (mappedImage != null)
+                {
+                    if (newWidth != width || newHeight != height)
+                        throw new IllegalArgumentException("Mapped image cannot be resized");
+                    beginEdit();
+                    mappedImage.write(0, source);
+                    imageChanged();
+                    return;
+                }
+                beginEdit();
+                boolean resized = newWidth != width || newHeight != height;
+                PixelBuffer newBuffer = isColor() ? null : PixelBuffer.narrowed(source, pool);
+                if (newBuffer == null)
+                {
+                    newBuffer = pool.take(newWidth, newHeight);
+                    source.copyTo(newBuffer);
+                }
+                pendingMap = null;
+                knownHistograms = null;
+                setBuffer(newBuffer);
+                if (resized)
+                    sizeChanged();
+                else
+                    imageChanged();
+            }
+        });
+    }
+
+    /**************************************************************************
+     * Undo and redo.  Each mutator records the state of the image before it
+     * changes anything (unless that state has been recorded already), so the
+     * history holds every state up to the one before the latest edit.  The
+     * methods below record the latest state too before looking at the
+     * history.
+     * See EditHistory for how the states are stored
+     *************************************************************************/
+    
+    /** Set the number of bytes of history kept by images created from now on
+     *
+     *  @param bytes the budget for each image's history - 0 for no history
+     */
+    public static void setDefaultHistoryBudget(long bytes)
+    {
+        if (bytes < 0)
+            throw new IllegalArgumentException("Budget must not be negative");
+        defaultHistoryBudget = bytes;
+    }
+    
+    /** Get the number of bytes of history kept by images created from now on
+     *
+     *  @return the budget for each image's history - 0 for no history
+     */
+    public static long getDefaultHistoryBudget()
+    {
+        return defaultHistoryBudget;
+    }
+    
+    /** Set the number of bytes of history kept by this image.  When the
+     *  history grows past this, its oldest states are discarded
+     *
+     *  @param bytes the budget for the history - 0 discards it and keeps
+     *         no more.  An image kept off the heap keeps no history
+     */
+    public synchronized void setHistoryBudget(long bytes)
+    {
+        if (bytes < 0)
+            throw new IllegalArgumentException("Budget must not be negative");
+        if (bytes == 0 || mappedImage != null)
+            history = null;
+        else if (history == null)
+        {
+            history = new EditHistory(bytes);
+            historyCurrent = false;
+        }
+        else
+            history.setBudget(bytes);
+    }
+    
+    /** Find out whether there is an edit that can be undone
+     *
+     *  @return true if undo() will change the image
+     */
+    public synchronized boolean canUndo()
+    {
+        recordHistory();
+        return history != null && history.canUndo();
+    }
+    
+    /** Find out whether there is an edit that can be redone
+     *
+     *  @return true if redo() will change the image
+     */
+    public synchronized boolean canRedo()
+    {
+        recordHistory();
+        return history != null && history.canRedo();
+    }
+    
+    /** Undo the most recent edit that has not been undone.  Only the tiles
+     *  of the image that the edit changed are rewritten
+     */
+    public void undo()
+    {
+        OperationMetrics.measure(Operation.UNDO, this, new Runnable() {
+            public void run()
+            {
+                recordHistory();
+                if (history != null && history.canUndo())
+                {
+                    editBegun = true;
+                    restoreHistory(history.undo(buffer, ! bufferChanged, pool));
+                }
+            }
+        });
+    }
+    
+    /** Redo the most recent edit that has been undone.  Only the tiles of
+     *  the image that the edit changed are rewritten
+     */
+    public void redo()
+    {
+        OperationMetrics.measure(Operation.REDO, this, new Runnable() {
+            public void run()
+            {
+                recordHistory();
+                if (history != null && history.canRedo())
+                {
+                    editBegun = true;
+                    restoreHistory(history.redo(buffer, ! bufferChanged, pool));
+                }
+            }
+        });
+    }
+    
+    /**************************************************************************
+     * Background editing - see EditExecutor.  An edit run in the background
+     * can be stopped part way through by ParallelEngine's cancel flag, which
+     * leaves this image half changed; the history is then used to put it
+     * back as it was
+     *************************************************************************/
+    
+    /** Apply a point operation a number of times, as a single edit.  The
+     *  pixels are rewritten at most once, however many times it is
+     *
+     *  @param operation the operation to apply
+     *  @param times the number of times to apply it
+     */
+    void repeatPointOperation(PointOperation operation, int times)
+    {
+        OperationMetrics.measure(Operation.of(operation), this, new Runnable() {
+            public void run()
+            {
+                beginEdit();
+                applyPointOperation(operation, times);
+            }
+        });
+    }
+    
+    /** Find out whether an edit that is stopped part way through can be
+     *  undone by revertEdit()
+     *
+     *  @return true if this image keeps a history
+     */
+    boolean canRevert()
+    {
+        return history != null;
+    }
+    
+    /** Note that an operation is about to be carried out in the background,
+     *  so that revertEdit() can tell whether it has begun changing the image
+     */
+    void startBackgroundOperation()
+    {
+        editBegun = false;
+    }
+    
+    /** Put this image back as it was before an edit that was stopped part
+     *  way through - or, for undo() or redo(), as it was to be after it.
+     *  Nothing is done if the operation stopped had not begun an edit since
+     *  startBackgroundOperation(), since the history's current state is then
+     *  not the state before it, and going back to it would lose earlier edits
+     */
+    void revertEdit()
+    {
+        if (history != null && editBegun)
+            restoreHistory(history.revert(buffer, pool));
+    }
+    
+    /* *************************************************************************
+     * Private helpers for the mutators
+     * ************************************************************************/
+     
+    /** Prepare for an edit: make sure the history holds the state of the
+     *  image before it
+     */
+    private void beginEdit()
+    {
+        recordHistory();
+        historyCurrent = false;
+        editBegun = true;
+    }
+    
+    /** Record the state of the image in the history, unless it has been
+     *  recorded already
+     */
+    private void recordHistory()
+    {
+        if (history == null || historyCurrent)
+            return;
+        
+        // A state recorded part way could not be returned to, so recording
+        // is never cancelled
+        
+        AtomicBoolean cancelFlag = ParallelEngine.getCancelFlag();
+        ParallelEngine.setCancelFlag(null);
+        try
+        {
+            history.record(buffer, ! bufferChanged, writtenArea, transform, pendingMap,
+                           knownHistograms);
+        }
+        finally
+        {
+            ParallelEngine.setCancelFlag(cancelFlag);
+        }
+        historyCurrent = true;
+        bufferChanged = false;
+    }
+    
+    /** Make the state the history has stepped to the current content of
+     *  this image
+     *
+     *  @param restored the buffer holding that state
+     */
+    private void restoreHistory(PixelBuffer restored)
+    {
+        EditHistory.State state = history.getCurrentState();
+        int oldWidth = width;
+        int oldHeight = height;
+        PixelTransform oldTransform = transform;
+        int [] oldMap = pendingMap;
+        
+        // If the history rewrote the tiles of buffer that differ, only those
+        // tiles have changed
+        
+        int [] restoredTiles = null;
+        if (restored == buffer)
+        {
+            restoredTiles = history.getRestoredTiles();
+            for (int index : restoredTiles)
+                pixelsWritten(tileRow(index) * EditHistory.TILE_SIZE,
+                              tileCol(index) * EditHistory.TILE_SIZE,
+                              EditHistory.TILE_SIZE, EditHistory.TILE_SIZE);
+            width = restored.getWidth();
+            height = restored.getHeight();
+        }
+        else
+            setBuffer(restored);
+        transform = state.getTransform();
+        if (transform.isTransposed())
+        {
+            width = restored.getHeight();
+            height = restored.getWidth();
+        }
+        pendingMap = state.getPendingMap();
+        knownHistograms = state.getKnownHistograms();
+        historyCurrent = true;
+        bufferChanged = false;
+        
+        // While buffer holds the image as it looks, with nothing deferred,
+        // the tiles rewritten are the parts of the image that look different
+        
+        if (width != oldWidth || height != oldHeight)
+            sizeChanged();
+        else if (restoredTiles != null && oldTransform.isIdentity()
+                 && transform.isIdentity() && Arrays.equals(oldMap, pendingMap))
+        {
+            for (int index : restoredTiles)
+                imageChanged(tileRow(index) * EditHistory.TILE_SIZE,
+                             tileCol(index) * EditHistory.TILE_SIZE,
+                             EditHistory.TILE_SIZE, EditHistory.TILE_SIZE);
+        }
+        else
+            imageChanged();
+    }
+    
+    /** Find the row of a tile of buffer in the history's grid of tiles
+     *
+     *  @param index the index of the tile, as given by the history
+     *  @return the row of the tile in the grid
+     */
+    private int tileRow(int index)
+    {
+        return index / ((buffer.getWidth() + EditHistory.TILE_SIZE - 1) / EditHistory.TILE_SIZE);
+    }
+    
+    /** Find the column of a tile of buffer in the history's grid of tiles
+     *
+     *  @param index the index of the tile, as given by the history
+     *  @return the column of the tile in the grid
+     */
+    private int tileCol(int index)
+    {
+        return index % ((buffer.getWidth() + EditHistory.TILE_SIZE - 1) / EditHistory.TILE_SIZE);
+    }
+    
+    /** Scale the pixels in a buffer by a factor of 0.5 in each dimension.
+     *  An odd last row or column is dropped
+     *
+     *  @param source the buffer holding the pixels to scale
+     *  @param pool the pool to take the result from
+     *  @return a buffer holding the result, in the same kind of array as
+     *          source
+     */
+    static PixelBuffer halved(PixelBuffer source, BufferPool pool)
+    {
+        PixelBuffer newBuffer = pool.takeLike(source.getWidth() / 2,
+                                              source.getHeight() / 2, source);
+        halveInto(source, newBuffer);
+        return newBuffer;
+    }
+    
+    /** Scale the pixels in a buffer by a factor of 0.5 in each dimension,
+     *  writing the result into another buffer
+     *
+     *  @param source the buffer holding the pixels to scale
+     *  @param newBuffer the buffer to hold the result - half the width and
+     *         height of source, rounded down.  It may hold bytes only if
+     *         source does
+     */
+    static void halveInto(final PixelBuffer source, final PixelBuffer newBuffer)
+    {
+        final int [] data = source.getData();
+        final int [] newData = newBuffer.getData();
+        final byte [] bytes = source.getBytes();
+        final byte [] newBytes = newBuffer.getBytes();
+        
+        // Each pixel in the new image is an average of a 2 x 2 square of pixels
+        // in the original image
+        
+        ParallelEngine.forEachRow(newBuffer.getHeight(), newBuffer.getWidth(),
+                                  new ParallelEngine.RowTask() {
+            public void processRows(int startRow, int endRow)
+            {
+                int newWidth = newBuffer.getWidth();
+                for (int row = startRow; row < endRow; row ++)
+                {
+                    int top = source.rowStart(2*row);
+                    int bottom = source.rowStart(2*row+1);
+                    int dst = newBuffer.rowStart(row);
+                    if (bytes == null)
+                        for (int col = 0; col < newWidth; col ++)
+                            newData[dst + col] = (data[top + 2*col] + data[bottom + 2*col] +
+                                                  data[top + 2*col+1] + data[bottom + 2*col+1])/4;
+                    else
+                        for (int col = 0; col < newWidth; col ++)
+                        {
+                            int value = ((bytes[top + 2*col] & 0xff) + (bytes[bottom + 2*col] & 0xff) +
+                                         (bytes[top + 2*col+1] & 0xff) +
+                                         (bytes[bottom + 2*col+1] & 0xff))/4;
+                            if (newBytes != null)
+                                newBytes[dst + col] = (byte) value;
+                            else
+                                newData[dst + col] = value;
+                        }
+                }
+            }
+        });
+    }
+    
+    /** Scale the pixels in a buffer by a factor of 2 in each dimension.
+     *  The new pixels between two old ones are their average, so the result
+     *  has 2n - 1 rows and columns
+     *
+     *  @param source the buffer holding the pixels to scale
+     *  @param pool the pool to take the result from
+     *  @return a buffer holding the result, in the same kind of array as
+     *          source
+     */
+    static PixelBuffer doubled(final PixelBuffer source, BufferPool pool)
+    {
+        int newWidth = source.getWidth() * 2 - 1;
+        int newHeight = source.getHeight() * 2 - 1;
+        if (source.holdsBytes())
+            return doubledBytes(source, newWidth, newHeight, pool);
+        final PixelBuffer newBuffer = pool.take(newWidth, newHeight);
+        final int [] data = source.getData();
+        final int [] newData = newBuffer.getData();
+        
+        ParallelEngine.forEachRow(newHeight, newWidth, new ParallelEngine.RowTask() {
+            public void processRows(int startRow, int endRow)
+            {
+                int newWidth = newBuffer.getWidth();
+                for (int row = startRow; row < endRow; row ++)
+                {
+                    // Even rows come from a single old row; odd rows lie between
+                    // two of them
+                    
+                    int above = source.rowStart(row/2);
+                    int below = source.rowStart((row+1)/2);
+                    int dst = newBuffer.rowStart(row);
+                    for (int col = 0; col < newWidth; col ++)
+                    {
+                        // The doubleSize() algorithm can be expressed using
+                        // modulus operators and some if statements
+                        
+                        if (row%2 == 0 && col%2 == 0)
+                            newData[dst + col] = data[above + col/2];
+                        else if (row%2 == 0 && col%2 == 1)
+                            newData[dst + col] = (data[above + (col-1)/2] + data[above + (col+1)/2])/2;
+                        else if (row%2 == 1 && col%2 == 0)
+                            newData[dst + col] = (data[above + col/2] + data[below + col/2])/2;
+                        else
+                            newData[dst + col] = (data[above + (col-1)/2] + data[below + (col+1)/2])/2;
+                    }
+                }
+            }
+        });
+        return newBuffer;
+    }
+    
+    /** Scale the pixels in a buffer of bytes by a factor of 2 in each
+     *  dimension, as doubled() does
+     *
+     *  @param source the buffer holding the pixels to scale
+     *  @param newWidth the width of the result
+     *  @param newHeight the height of the result
+     *  @param pool the pool to take the result from
+     *  @return a buffer of bytes holding the result
+     */
+    private static PixelBuffer doubledBytes(final PixelBuffer source, int newWidth,
+                                            int newHeight, BufferPool pool)
+    {
+        final PixelBuffer newBuffer = pool.takeBytes(newWidth, newHeight);
+        final byte [] bytes = source.getBytes();
+        final byte [] newBytes = newBuffer.getBytes();
+        
+        ParallelEngine.forEachRow(newHeight, newWidth, new ParallelEngine.RowTask() {
+            public void processRows(int startRow, int endRow)
+            {
+                int newWidth = newBuffer.getWidth();
+                for (int row = startRow; row < endRow; row ++)
+                {
+                    // The cases of doubled() folded together: each new pixel
+                    // averages the old pixels above left and below right of
+                    // it, which are one and the same on an old row or column
+                    
+                    int above = source.rowStart(row/2);
+                    int below = source.rowStart((row+1)/2);
+                    int dst = newBuffer.rowStart(row);
+                    for (int col = 0; col < newWidth; col ++)
+                    {
+                        int left = col/2;
+                        int right = (col+1)/2;
+                        int value;
+                        if (row%2 == 0)
+                            value = ((bytes[above + left] & 0xff) + (bytes[above + right] & 0xff))/2;
+                        else
+                            value = ((bytes[above + left] & 0xff) + (bytes[below + right] & 0xff))/2;
+                        newBytes[dst + col] = (byte) value;
+                    }
+                }
+            }
+        });
+        return newBuffer;
+    }
+    
+    /** Make an image held off the heap the current content of this image
+     *
+     *  @param newMappedImage the image holding the new content
+     */
+    private void setMappedImage(MappedImage newMappedImage)
+    {
+        mappedImage = newMappedImage;
+        buffer = null;
+        pool.clear();
+        bufferedImage = null;
+        pyramid = null;
+        transform = PixelTransform.IDENTITY;
+        pendingMap = null;
+        knownHistograms = null;
+        history = null;
+        width = newMappedImage.getWidth();
+        height = newMappedImage.getHeight();
+    }
+    
+    /** Check that a range of rows lies within this image
+     *
+     *  @param startRow the first row of the range
+     *  @param rowCount the number of rows in the range
+     */
+    private void checkRows(int startRow, int rowCount)
+    {
+        if (startRow < 0 || rowCount < 0 || startRow > height - rowCount)
+            throw new IllegalArgumentException("Rows outside image");
+    }
+    
+    /** Rotate the image clockwise by a multiple of 90 degrees.  Only the
+     *  description of how the image is laid out in its buffer changes - see
+     *  PixelTransform
+     *
+     *  @param quarterTurns the number of times to rotate by 90 degrees -
+     *         0 .. 3
+     */
+    private void rotateQuarterTurns(int quarterTurns)
+    {
+        if (quarterTurns == 0)
+            return;
+        beginEdit();
+        if (mappedImage != null)
+        {
+            mappedImage.rotate(quarterTurns);
+            setMappedImage(mappedImage);
+        }
+        else
+        {
+            transform = transform.rotate(quarterTurns, width, height);
+            if (quarterTurns != 2)
+            {
+                int newWidth = height;
+                height = width;
+                width = newWidth;
+            }
+        }
+        
+        // Turning half way round leaves the size as it was
+        
+        if (quarterTurns == 2)
+            imageChanged();
+        else
+            sizeChanged();
+    }
+    
+    /** Make a buffer the current content of this image.  The buffer it
+     *  replaces is given to the pool, for a later operation to write its
+     *  result into
+     *
+     *  @param newBuffer the buffer holding the new content, row by row
+     */
+    private void setBuffer(PixelBuffer newBuffer)
+    {
+        // Levels made from another buffer may not even be the right size
+
+        if (newBuffer != buffer)
+        {
+            pyramid = null;
+            pool.give(buffer);
+        }
+        buffer = newBuffer;
+        pixelsWritten();
+        transform = PixelTransform.IDENTITY;
+        bufferedImage = null;
+        width = newBuffer.getWidth();
+        height = newBuffer.getHeight();
+    }
+    
+    /** Make the result of an operation the current content of this image.
+     *  A grayscale result whose values all lie in 0 .. 255 is held in bytes,
+     *  and the ints it was worked out in are given to the pool
+     *
+     *  @param newBuffer the buffer holding the new content, row by row
+     */
+    private void setResult(PixelBuffer newBuffer)
+    {
+        PixelBuffer narrowed = isColor() ? null : PixelBuffer.narrowed(newBuffer, pool);
+        if (narrowed == null || narrowed == newBuffer)
+            setBuffer(newBuffer);
+        else
+        {
+            setBuffer(narrowed);
+            pool.give(newBuffer);
+        }
+    }
+    
+    /** Get the pixels as ints, for an operation that only works on those.
+     *  The result should be passed to release() once the operation is done
+     *  with it, before its result is set
+     *
+     *  @return buffer, or a copy of it in ints if it holds bytes
+     */
+    private PixelBuffer intPixels()
+    {
+        return buffer.holdsBytes() ? buffer.widened(pool) : buffer;
+    }
+    
+    /** Give a copy made by intPixels() to the pool
+     *
+     *  @param pixels the buffer intPixels() returned
+     */
+    private void release(PixelBuffer pixels)
+    {
+        if (pixels != buffer)
+            pool.give(pixels);
+    }
+    
+    /** Hold the pixels in ints from now on, before writing values to them
+     *  that may lie outside 0 .. 255.  Any deferred operations still apply
+     */
+    private void promote()
+    {
+        if (! buffer.holdsBytes())
+            return;
+        PixelBuffer bytes = buffer;
+        buffer = bytes.widened(pool);
+        pool.give(bytes);
+        bufferedImage = null;
+        pyramid = null;
+    }
+    
+    /** Apply a point operation, deferring it if possible.  The operation is
+     *  folded into pendingMap, which maps each value a pixel held when the
+     *  buffer was last written to the value it should hold now.  The pixels
+     *  themselves are only rewritten, all at once, by
+     *  applyPendingOperations().
+     *
+     *  Operations that only move pixels around (the flips, shifts and
+     *  rotate) give the same result whether the table is applied before or
+     *  after them, so the table can be applied to the buffer whatever its
+     *  transform.
+     *
+     *  Deferring needs a histogram of the buffer, both to check that every
+     *  pixel can index the table and to find the average for the contrast
+     *  operations without a pass over the pixels.  An image with a value
+     *  outside 0 .. 255 (such as an encrypted one) cannot use the table, and
+     *  has the operation applied to its pixels straight away.
+     *
+     *  @param operation the operation to apply
+     *  @param times the number of times to apply it, one after another
+     */
+    private void applyPointOperation(final PointOperation operation, int times)
+    {
+        if (selection != null)
+        {
+            applyPointOperation(operation, times, selectedPixels());
+            return;
+        }
+        if (mappedImage != null)
+        {
+            for (int time = 0; time < times; time ++)
+                mappedImage.applyPointOperation(operation, isColor());
+            pixelsWritten();
+            imageChanged();
+            return;
+        }
+        if (knownHistograms == null && pendingMap == null)
+            knownHistograms = ImageStatistics.count(buffer, isColor());
+        if (isColor())
+        {
+            // Each color is worked on separately, so the table, which is
+            // indexed by the whole pixel, cannot be used.  The counts of
+            // each color are carried over to the new values instead, and
+            // give the average for the next time the operation is applied,
+            // so the tables for every time can be composed into one
+            
+            int [] [] maps = new int [3] [256];
+            for (int channel = 0; channel < 3; channel ++)
+                for (int value = 0; value < 256; value ++)
+                    maps[channel][value] = value;
+            int [] [] histograms = knownHistograms.clone();
+            for (int time = 0; time < times; time ++)
+            {
+                ImageStatistics statistics = null;
+                if (operation.usesAverage())
+                    statistics = new ImageStatistics(histograms);
+                int [] [] step = ChannelKernels.channelMaps(operation, statistics);
+                for (int channel = 0; channel < 3; channel ++)
+                {
+                    for (int value = 0; value < 256; value ++)
+                        maps[channel][value] = step[channel][maps[channel][value]];
+                    histograms[channel] = ImageStatistics.remap(histograms[channel],
+                                                                step[channel]);
+                }
+            }
+            if (! changesValues(maps, knownHistograms))
+                return;
+            ChannelKernels.applyPointOperation(buffer, operation, times, maps);
+            knownHistograms = histograms;
+            pixelsWritten();
+            imageChanged();
+            return;
+        }
+        if (knownHistograms == null)
+        {
+            // Pixels held in bytes always lie in range, so these are ints
+            
+            final PixelBuffer source = buffer;
+            final int [] data = source.getData();
+            for (int time = 0; time < times; time ++)
+            {
+                final int averageColor = operation.usesAverage() ? averageColor() : 0;
+                ParallelEngine.forEachRow(source.getHeight(), source.getWidth(),
+                                          new ParallelEngine.RowTask() {
+                    public void processRows(int startRow, int endRow)
+                    {
+                        for (int row = startRow; row < endRow; row ++)
+                        {
+                            int start = source.rowStart(row);
+                            int end = start + source.getWidth();
+                            for (int i = start; i < end; i ++)
+                                data[i] = operation.apply(data[i], averageColor);
+                        }
+                    }
+                });
+            }
+            pixelsWritten();
+            imageChanged();
+            return;
+        }
+        
+        if (pendingMap == null)
+        {
+            pendingMap = new int [256];
+            for (int value = 0; value < 256; value ++)
+                pendingMap[value] = value;
+        }
+        int [] oldMap = pendingMap.clone();
+        for (int time = 0; time < times; time ++)
+        {
+            // The average is worked out from the counts, without looking at
+            // the pixels.  The map may have taken values outside 0 .. 255,
+            // so the total is worked out directly rather than from statistics
+            
+            int averageColor = 0;
+            if (operation.usesAverage())
+            {
+                long totalColor = 0;
+                for (int value = 0; value < 256; value ++)
+                    totalColor += (long) knownHistograms[0][value] * pendingMap[value];
+                averageColor = (int) (totalColor/((long) width*height));
+            }
+            for (int value = 0; value < 256; value ++)
+                pendingMap[value] = operation.apply(pendingMap[value], averageColor);
+        }
+        
+        // The image only looks different if some value that a pixel has
+        // now maps somewhere else
+        
+        for (int value = 0; value < 256; value ++)
+            if (pendingMap[value] != oldMap[value] && knownHistograms[0][value] != 0)
+            {
+                imageChanged();
+                break;
+            }
+    }
+    
+    /** Apply a point operation to the pixels of a selection only.  As for
+     *  the whole of a color image, the operation is composed into a table
+     *  for each channel, from the counts of the values selected, and the
+     *  counts for the whole image are carried over to the new values
+     *
+     *  @param operation the operation to apply
+     *  @param times the number of times to apply it, one after another
+     *  @param selected the pixels to apply it to, all within the image
+     */
+    private void applyPointOperation(final PointOperation operation, int times,
+                                     Selection selected)
+    {
+        if (selected.isEmpty())
+            return;
+        final boolean color = isColor();
+        int [] [] counts = countSelection(selected);
+        if (counts == null)
+        {
+            // A grayscale value outside 0 .. 255 cannot index a table, so
+            // each time is applied to the pixels in turn
+            
+            for (int time = 0; time < times; time ++)
+            {
+                final int averageColor = operation.usesAverage()
+                    ? (int) (totalSelection(selected) / selected.getArea()) : 0;
+                forSelection(selected, 0, true, new SelectionKernels.RegionTask() {
+                    public void processRegion(int startRow, int startCol,
+                                              PixelBuffer pixels, Selection inside)
+                    {
+                        SelectionKernels.applyOperation(pixels, inside, operation,
+                                                        averageColor);
+                    }
+                });
+            }
+            knownHistograms = null;
+            selectionWritten(selected);
+            return;
+        }
+        
+        // Each time the average is worked out from the counts, carried over
+        // to the values the time before gave them
+        
+        final int [] [] maps = new int [counts.length] [256];
+        for (int channel = 0; channel < counts.length; channel ++)
+            for (int value = 0; value < 256; value ++)
+                maps[channel][value] = value;
+        int [] [] histograms = counts.clone();
+        for (int time = 0; time < times; time ++)
+            if (color)
+            {
+                ImageStatistics statistics = null;
+                if (operation.usesAverage())
+                    statistics = new ImageStatistics(histograms);
+                int [] [] step = ChannelKernels.channelMaps(operation, statistics);
+                for (int channel = 0; channel < 3; channel ++)
+                {
+                    for (int value = 0; value < 256; value ++)
+                        maps[channel][value] = step[channel][maps[channel][value]];
+                    histograms[channel] = ImageStatistics.remap(histograms[channel],
+                                                                step[channel]);
+                }
+            }
+            else
+            {
+                // The map may have taken values outside 0 .. 255, so the
+                // total is worked out directly rather than from statistics
+                
+                int averageColor = 0;
+                if (operation.usesAverage())
+                {
+                    long totalColor = 0;
+                    for (int value = 0; value < 256; value ++)
+                        totalColor += (long) counts[0][value] * maps[0][value];
+                    averageColor = (int) (totalColor / selected.getArea());
+                }
+                for (int value = 0; value < 256; value ++)
+                    maps[0][value] = operation.apply(maps[0][value], averageColor);
+            }
+        if (! changesValues(maps, counts))
+            return;
+        if (! color && mappedImage == null && buffer.holdsBytes())
+            for (int value = 0; value < 256; value ++)
+                if (counts[0][value] != 0 && (maps[0][value] & ~0xff) != 0)
+                {
+                    promote();
+                    break;
+                }
+        forSelection(selected, 0, true, new SelectionKernels.RegionTask() {
+            public void processRegion(int startRow, int startCol, PixelBuffer pixels,
+                                      Selection inside)
+            {
+                SelectionKernels.applyMaps(pixels, inside, maps, color);
+            }
+        });
+        
+        // The counts of the pixels selected are taken out of those for the
+        // whole image, and put back with their new values
+        
+        if (knownHistograms != null)
+        {
+            int [] [] updated = new int [counts.length] [];
+            for (int channel = 0; channel < counts.length && updated != null; channel ++)
+            {
+                int [] remapped = ImageStatistics.remap(counts[channel], maps[channel]);
+                if (remapped == null)
+                    updated = null;
+                else
+                {
+                    updated[channel] = knownHistograms[channel].clone();
+                    for (int value = 0; value < 256; value ++)
+                        updated[channel][value] += remapped[value] - counts[channel][value];
+                }
+            }
+            knownHistograms = updated;
+        }
+        selectionWritten(selected);
+    }
+    
+    /** Encrypt or decrypt the pixels of the selection only, giving each the
+     *  value that encrypting the whole image would with a CounterKeystream.
+     *  With RANDOM, the random numbers go to the pixels selected, in order
+     *
+     *  @param seed the key
+     *  @param keystream the keystream made from the key, or null to use
+     *         java.util.Random as encryptDecrypt(seed) does
+     */
+    private void encryptSelection(final int seed, final CounterKeystream keystream)
+    {
+        Selection selected = selectedPixels();
+        if (selected.isEmpty())
+            return;
+        if (mappedImage == null)
+            applyPendingOperations();
+        knownHistograms = null;
+        final boolean color = isColor();
+        if (keystream != null)
+        {
+            final long imageWidth = width;
+            forSelection(selected, 0, true, new SelectionKernels.RegionTask() {
+                public void processRegion(int startRow, int startCol, PixelBuffer pixels,
+                                          Selection inside)
+                {
+                    SelectionKernels.encrypt(pixels, inside, keystream, color,
+                                             startRow, startCol, imageWidth);
+                }
+            });
+        }
+        else
+        {
+            // The values can leave 0 .. 255, so they are held in ints until
+            // decrypting brings them back
+            
+            if (mappedImage == null)
+                promote();
+            final Random random = new Random(seed);
+            forSelection(selected, 0, true, new SelectionKernels.RegionTask() {
+                public void processRegion(int startRow, int startCol, PixelBuffer pixels,
+                                          Selection inside)
+                {
+                    SelectionKernels.encrypt(pixels, inside, random, seed);
+                }
+            });
+            if (mappedImage == null && ! color)
+            {
+                PixelBuffer narrowed = PixelBuffer.narrowed(buffer, pool);
+                if (narrowed != null)
+                    setBuffer(narrowed);
+            }
+        }
+        selectionWritten(selected);
+    }
+    
+    /** Apply a filter to the pixels of the selection only.  The filter is
+     *  applied to the smallest rectangle holding the selection and the
+     *  pixels the filter reaches around it, and the selected pixels of the
+     *  result are copied back
+     *
+     *  @param filter the filter to apply
+     */
+    private void filterSelection(final double [] [] filter)
+    {
+        Selection selected = selectedPixels();
+        if (selected.isEmpty())
+            return;
+        if (mappedImage == null)
+            applyPendingOperations();
+        knownHistograms = null;
+        final boolean color = isColor();
+        final BufferPool buffers = mappedImage != null ? BufferPool.NONE : pool;
+        forSelection(selected, (filter.length - 1) / 2, true,
+                     new SelectionKernels.RegionTask() {
+            public void processRegion(int startRow, int startCol, PixelBuffer pixels,
+                                      Selection inside)
+            {
+                PixelBuffer source = pixels.holdsBytes() ? pixels.widened(buffers) : pixels;
+                PixelBuffer filtered = color ? ChannelKernels.convolve(source, filter, buffers)
+                                             : ConvolutionEngine.convolve(source, filter, buffers);
+                SelectionKernels.copy(filtered, pixels, inside);
+                buffers.give(filtered);
+                if (source != pixels)
+                    buffers.give(source);
+            }
+        });
+        selectionWritten(selected);
+    }
+    
+    /** Count the selected pixels having each value in each channel.  Any
+     *  deferred operations are carried out first
+     *
+     *  @param selected the pixels to count, all within the image
+     *  @return the counts for each channel, or null if some grayscale pixel
+     *          selected lies outside 0 .. 255
+     */
+    private int [] [] countSelection(Selection selected)
+    {
+        if (mappedImage == null)
+            applyPendingOperations();
+        final boolean color = isColor();
+        final int [] [] counts = new int [color ? 3 : 1] [256];
+        final boolean [] inByteRange = { true };
+        forSelection(selected, 0, false, new SelectionKernels.RegionTask() {
+            public void processRegion(int startRow, int startCol, PixelBuffer pixels,
+                                      Selection inside)
+            {
+                int [] [] regionCounts = inByteRange[0]
+                    ? SelectionKernels.count(pixels, inside, color) : null;
+                if (regionCounts == null)
+                    inByteRange[0] = false;
+                else
+                    ImageStatistics.add(counts, regionCounts);
+            }
+        });
+        return inByteRange[0] ? counts : null;
+    }
+    
+    /** Add up the values of the selected pixels of a grayscale image held
+     *  in ints
+     *
+     *  @param selected the pixels to add up, all within the image
+     *  @return the total
+     */
+    private long totalSelection(Selection selected)
+    {
+        final long [] total = new long [1];
+        forSelection(selected, 0, false, new SelectionKernels.RegionTask() {
+            public void processRegion(int startRow, int startCol, PixelBuffer pixels,
+                                      Selection inside)
+            {
+                total[0] += SelectionKernels.total(pixels, inside);
+            }
+        });
+        return total[0];
+    }
+    
+    /** Work on the pixels a selection covers.  On the heap they are worked
+     *  on in one region, the smallest rectangle of buffer holding them and
+     *  the pixels within reach of them; any deferred operations must have
+     *  been carried out.  Off the heap they are worked on a band of rows at
+     *  a time - see MappedImage.processSelection()
+     *
+     *  @param selected the pixels to work on, all within the image
+     *  @param reach the distance from a selected pixel that task reads
+     *  @param writeBack true if task changes the pixels
+     *  @param task what to do with each region
+     */
+    private void forSelection(Selection selected, int reach, boolean writeBack,
+                              SelectionKernels.RegionTask task)
+    {
+        if (selected.isEmpty())
+            return;
+        if (mappedImage != null)
+        {
+            mappedImage.processSelection(selected, reach, writeBack, task);
+            return;
+        }
+        Rectangle bounds = selected.getBounds();
+        int startRow = Math.max(0, bounds.y - reach);
+        int startCol = Math.max(0, bounds.x - reach);
+        int endRow = Math.min(height, bounds.y + bounds.height + reach);
+        int endCol = Math.min(width, bounds.x + bounds.width + reach);
+        task.processRegion(startRow, startCol,
+                           buffer.region(startRow, startCol, endRow - startRow,
+                                         endCol - startCol),
+                           selected.moved(- startCol, - startRow));
+    }
+    
+    /** Get the pixels of the selection that lie within the image
+     *
+     *  @return the pixels selected
+     */
+    private Selection selectedPixels()
+    {
+        return selection.clipped(0, 0, width, height);
+    }
+    
+    /** Note that the pixels of a selection have been written
+     *
+     *  @param selected the pixels written
+     */
+    private void selectionWritten(Selection selected)
+    {
+        Rectangle bounds = selected.getBounds();
+        pixelsWritten(bounds.y, bounds.x, bounds.height, bounds.width);
+        imageChanged(bounds.y, bounds.x, bounds.height, bounds.width);
+    }
+    
+    /** Rewrite the pixels with any operations that have been deferred, so
+     *  that buffer holds the image row by row as it should now look
+     */
+    private void applyPendingOperations()
+    {
+        applyPendingMap();
+        if (! transform.isIdentity())
+            setBuffer(transform.apply(buffer, pool));
+    }
+    
+    /** Rewrite the pixels with any point operations that have been deferred
+     */
+    private void applyPendingMap()
+    {
+        if (pendingMap == null)
+            return;
+        final int [] map = pendingMap;
+        
+        // Bytes are looked up in a table of bytes, unless the map takes
+        // some value that a pixel has out of range.  Values no pixel has
+        // do not matter, and the counts say which those are
+        
+        final byte [] byteMap = new byte [256];
+        boolean inRange = true;
+        for (int value = 0; value < 256; value ++)
+        {
+            if ((map[value] & ~0xff) != 0 && buffer.holdsBytes())
+            {
+                if (knownHistograms == null)
+                    knownHistograms = ImageStatistics.count(buffer, false);
+                if (knownHistograms[0][value] != 0)
+                    inRange = false;
+            }
+            byteMap[value] = (byte) map[value];
+        }
+        if (! inRange)
+            promote();
+        final PixelBuffer source = buffer;
+        final int [] data = source.getData();
+        final byte [] bytes = source.getBytes();
+        ParallelEngine.forEachRow(source.getHeight(), source.getWidth(),
+                                  new ParallelEngine.RowTask() {
+            public void processRows(int startRow, int endRow)
+            {
+                for (int row = startRow; row < endRow; row ++)
+                {
+                    int start = source.rowStart(row);
+                    int end = start + source.getWidth();
+                    if (bytes != null)
+                        for (int i = start; i < end; i ++)
+                            bytes[i] = byteMap[bytes[i] & 0xff];
+                    else
+                        for (int i = start; i < end; i ++)
+                            data[i] = map[data[i]];
+                }
+            }
+        });
+        pendingMap = null;
+        pixelsWritten();
+        
+        // The counts move with the values they counted - unless some of
+        // them have left the range 0 .. 255
+        
+        knownHistograms = remappedHistograms(map);
+    }
+    
+    /** Note that the pixel values have changed in some way other than by a
+     *  point operation, so that the histogram is no longer known.  Any
+     *  pending point operations must have been applied first.
+     */
+    private void pixelValuesChanged()
+    {
+        knownHistograms = null;
+        pixelsWritten();
+    }
+    
+    /** Note that any of the pixels of this image may have been written
+     */
+    private void pixelsWritten()
+    {
+        bufferChanged = true;
+        writtenArea = null;
+        if (pyramid != null)
+            pyramid.invalidateAll();
+    }
+    
+    /** Note that some of the pixels of this image have been written.  The
+     *  pixels are given where they lie in buffer, so the transform must be
+     *  the identity
+     *
+     *  @param startRow the first row written
+     *  @param startCol the first column written
+     *  @param rowCount the number of rows written
+     *  @param colCount the number of columns written
+     */
+    private void pixelsWritten(int startRow, int startCol, int rowCount,
+                               int colCount)
+    {
+        Rectangle area = new Rectangle(startCol, startRow, colCount, rowCount);
+        if (! bufferChanged)
+            writtenArea = area;
+        else if (writtenArea != null)
+            writtenArea = writtenArea.union(area);
+        bufferChanged = true;
+        if (pyramid != null)
+            pyramid.invalidate(startRow, startCol, rowCount, colCount);
+    }
+    
+    /** Note that the whole of this image looks different, so a view of it
+     *  has to repaint all of it
+     */
+    private void imageChanged()
+    {
+        dirtyRegions.add(0, 0, width, height);
+    }
+    
+    /** Note that part of this image looks different
+     *
+     *  @param startRow the first row changed
+     *  @param startCol the first column changed
+     *  @param rowCount the number of rows changed
+     *  @param colCount the number of columns changed
+     */
+    private void imageChanged(int startRow, int startCol, int rowCount,
+                              int colCount)
+    {
+        dirtyRegions.add(startCol, startRow, Math.min(colCount, width - startCol),
+                         Math.min(rowCount, height - startRow));
+    }
+    
+    /** Note that the size of this image has changed, so a view of it has to
+     *  be laid out again
+     */
+    private void sizeChanged()
+    {
+        dirtyRegions.sizeChanged(width, height);
+    }
+    
+    /** Find out whether applying value maps to an image would change it
+     *
+     *  @param maps the map for each channel
+     *  @param histograms the number of pixels having each value in each
+     *         channel
+     *  @return true if some value that a pixel has is mapped to another
+     */
+    private static boolean changesValues(int [] [] maps, int [] [] histograms)
+    {
+        for (int channel = 0; channel < maps.length; channel ++)
+            for (int value = 0; value < 256; value ++)
+                if (maps[channel][value] != value && histograms[channel][value] != 0)
+                    return true;
+        return false;
+    }
+    
+    /** Find the counts of the values in a grayscale image after passing
+     *  its pixels through a value map
+     *
+     *  @param map the map from the values in buffer to new ones
+     *  @return the counts of the new values, or null if they are not known
+     *          or some pixel would be mapped outside 0 .. 255
+     */
+    private int [] [] remappedHistograms(int [] map)
+    {
+        if (knownHistograms == null)
+            return null;
+        int [] histogram = ImageStatistics.remap(knownHistograms[0], map);
+        return histogram == null ? null : new int [] [] { histogram };
+    }
+    
+    /** Find the average of all the pixel values in this image
+     *
+     *  @return the average value, rounded down
+     */
+    private int averageColor()
+    {
+        // The total is kept in a long, so that it cannot overflow however
+        // big the image is.  Each band adds up its own rows
+        
+        final PixelBuffer source = buffer;
+        final int [] data = source.getData();
+        final long [] bandTotals = new long [source.getHeight()];
+        ParallelEngine.forEachRow(source.getHeight(), source.getWidth(),
+                                  new ParallelEngine.RowTask() {
+            public void processRows(int startRow, int endRow)
+            {
+                long total = 0;
+                for (int row = startRow; row < endRow; row ++)
+                {
+                    int start = source.rowStart(row);
+                    int end = start + source.getWidth();
+                    for (int i = start; i < end; i ++)
+                        total += data[i];
+                }
+                bandTotals[startRow] = total;
+            }
+        });
+        long totalColor = 0;
+        for (int row = 0; row < bandTotals.length; row ++)
+            totalColor += bandTotals[row];
+        return (int) (totalColor/((long) width*height));
+    }
+    
+    
+    /** Make the color model that shows each byte as the gray of that value
+     *
+     *  @return the color model
+     */
+    private static IndexColorModel grayTable()
+    {
+        byte [] grays = new byte [256];
+        for (int value = 0; value < 256; value ++)
+            grays[value] = (byte) value;
+        return new IndexColorModel(8, 256, grays, grays, grays);
+    }
+    
+    /** The point operations - each maps a pixel value to a new value,
+     *  possibly depending on the average value of all the pixels
+     */
+    enum PointOperation
+    {
+        LIGHTEN
+        {
+            int apply(int value, int averageColor)
+            {
+                value += LIGHTEN_DARKEN_AMOUNT;
+                return value > MAX_BRIGHTNESS ? MAX_BRIGHTNESS : value;
+            }
+        },
+        DARKEN
+        {
+            int apply(int value, int averageColor)
+            {
+                value -= LIGHTEN_DARKEN_AMOUNT;
+                return value < MIN_BRIGHTNESS ? MIN_BRIGHTNESS : value;
+            }
+        },
+        NEGATIVE
+        {
+            int apply(int value, int averageColor)
+            {
+                return MAX_BRIGHTNESS - value;
+            }
+        },
+        REDUCE_CONTRAST
+        {
+            int apply(int value, int averageColor)
+            {
+                // Compare each color value to the average and move it toward it
+                
+                if (value > averageColor)
+                    value -= LIGHTEN_DARKEN_AMOUNT;
+                else if (value < averageColor)
+                    value += LIGHTEN_DARKEN_AMOUNT; 
+                return value;
+            }
+            
+            boolean usesAverage()
+            {
+                return true;
+            }
+        },
+        ENHANCE_CONTRAST
+        {
+            int apply(int value, int averageColor)
+            {
+                if (value > averageColor)
+                    value += LIGHTEN_DARKEN_AMOUNT;
+                if (value < averageColor)
+                    value -= LIGHTEN_DARKEN_AMOUNT;
+                
+                // Fixes super bright/super dark colors to make sure they don't
+                // become negative color values (black -> white & vice versa)
+                
+                // Used 4 if statements because it is possible that more than one
+                // if statement is used
+                if (value < MIN_BRIGHTNESS)
+                    value = MIN_BRIGHTNESS;
+                if (value > MAX_BRIGHTNESS)
+                    value = MAX_BRIGHTNESS;
+                return value;
+            }
+            
+            boolean usesAverage()
+            {
+                return true;
+            }
+        };
+        
+        /** Find the new value for a pixel
+         *
+         *  @param value the current value of the pixel
+         *  @param averageColor the average value of all the pixels, if this
+         *         operation uses it
+         *  @return the new value
+         */
+        abstract int apply(int value, int averageColor);
+        
+        /** Find out whether this operation depends on the average value
+         *
+         *  @return true if apply() must be given the average value
+         */
+        boolean usesAverage()
+        {
+            return false;
+        }
+    }
+    
+    
+    // Image data - held in buffer, or off the heap in mappedImage, in which
+    // case buffer is null.  A grayscale buffer holds bytes whenever the
+    // values fit
+    
+    private ColorModel colorModel;
+    private PixelBuffer buffer;
+    private MappedImage mappedImage;
     private int width;
     private int height;
     
+    // Where each pixel of the image is found in buffer.  width and height
+    // are those of the image, which are swapped from those of buffer if the
+    // transform is transposed
+    
+    private PixelTransform transform;
+    
+    // Point operations not yet applied to buffer - maps each value in buffer
+    // to the value the pixel should have.  Null if there are none
+    
+    private int [] pendingMap;
+    
+    // Number of pixels in buffer having each value 0 .. 255 in each channel
+    // (the gray value, or red, green and blue), before pendingMap is
+    // applied.  Point operations carry the counts over to the new values.
+    // Null if not known, or if some pixel is outside that range.  The arrays
+    // are replaced rather than changed, so they can be shared
+    
+    private int [] [] knownHistograms;
+    
+    // Buffers no longer used by this image, which later operations write
+    // their results into - mostly the one the last operation replaced, so
+    // that an operation that keeps the size writes over the buffer the
+    // image held two operations ago
+    
+    private final BufferPool pool = new BufferPool(POOLED_BUFFERS);
+    
+    // Display view sharing buffer - created when first asked for
+    
+    private BufferedImage bufferedImage;
+    
+    // The parts of the image that look different since takeDirtyRegions()
+    // was last called
+    
+    private DirtyRegions dirtyRegions = new DirtyRegions();
+    
+    // Reduced copies for display - created when first asked for, and
+    // discarded when buffer or mappedImage is replaced or resized.  Told of
+    // every write to the pixels, so it can keep itself up to date
+    
+    private ImagePyramid pyramid;
+    
+    // Undo/redo history, or null if none is kept.  historyCurrent is true
+    // while the present state of the image is the history's current state.
+    // bufferChanged is set whenever the pixels in buffer may have been
+    // written, so that while it is clear the history knows buffer still
+    // holds the tiles of its current state without comparing them.  Once it
+    // is set, writtenArea is the part of buffer written since, or null if
+    // that may be anywhere, so only the tiles in it need comparing.
+    // editBegun is set when an edit starts changing the image, and cleared
+    // by startBackgroundOperation()
+    
+    private EditHistory history;
+    private boolean historyCurrent;
+    private boolean bufferChanged;
+    private Rectangle writtenArea;
+    private boolean editBegun;
+    
+    // The pixels the operations that heed a selection work on, or null for
+    // the whole image
+    
+    private Selection selection;
+    
+    // The history budget for new images
+    
+    private static volatile long defaultHistoryBudget = 0;
+    
     // Constants
     
-    private static final int LIGHTEN_DARKEN_AMOUNT = 3;
+    static final int LIGHTEN_DARKEN_AMOUNT = 3;
     private static final int MAX_BRIGHTNESS = 255;
     private static final int MIN_BRIGHTNESS = 0;
+    
+    // The most buffers the pool of an image keeps - enough for the result,
+    // the working buffers and the ints a grayscale image is widened to for
+    // the most demanding filter
+    
+    private static final int POOLED_BUFFERS = 5;
+    
+    // Color models used by getBufferedImage().  The grayscale one extracts
+    // the same 8 bits as red, green and blue, which takes the place of
+    // multiplying each pixel by 0x10101
+    
+    private static final DirectColorModel RGB_DISPLAY_MODEL =
+        new DirectColorModel(24, 0xff0000, 0x00ff00, 0x0000ff);
+    private static final DirectColorModel GRAY_DISPLAY_MODEL =
+        new DirectColorModel(24, 0x0000ff, 0x0000ff, 0x0000ff);
+    
+    // Color model used by getBufferedImage() for pixels held in bytes - a
+    // table of the 256 grays, so that each byte is shown as it is
+    
+    private static final IndexColorModel GRAY_BYTE_DISPLAY_MODEL = grayTable();
 }
     
@@ -0,0 +1,485 @@
+/* ResampleEngine.java
+ *
+ *  Part of ImageEditor project - changes the size of an image to any
+ *  width and height, for ProjectImage.resize().
+ *
+ *  Each pixel of the result is a weighted sum of the pixels around the
+ *  point of the image it corresponds to.  The weights come from a filter
+ *  function (see ProjectImage.ResizeFilter); when the image is being made
+ *  smaller, the function is stretched to cover every pixel that falls
+ *  within the result pixel, so that detail too fine for the result is
+ *  averaged away rather than showing up as aliasing.
+ *
+ *  The filter is separable, so the image is resized in two passes: each
+ *  row is resized to the new width, and then each column of that to the new
+ *  height.  The weights only depend on the position of a result pixel along
+ *  its row or column, so they are worked out once, in a Weights table for
+ *  each direction, and held as fixed-point integers.  Each pass clamps its
+ *  results to 0 .. 255; grayscale pixels outside that range are forced into
+ *  it before the first pass.  The colors of a color image, and alpha, are
+ *  resized separately.
+ */
+
+package imageeditor;
+
+import java.util.Arrays;
+
+final class ResampleEngine
+{
+    // This class is not meant to be instantiated
+
+    private ResampleEngine()
+    {
+    }
+
+    /** Resize the pixels in a buffer
+     *
+     *  @param source the buffer holding the pixels to resize
+     *  @param newWidth the width of the result
+     *  @param newHeight the height of the result
+     *  @param filter the filter to weight the pixels with
+     *  @param color true if the pixels are packed colors
+     *  @return a new buffer holding the result
+     */
+    static PixelBuffer resize(PixelBuffer source, int newWidth, int newHeight,
+                              ProjectImage.ResizeFilter filter, boolean color)
+    {
+        Weights columns = new Weights(source.getWidth(), newWidth, filter);
+        Weights rows = new Weights(source.getHeight(), newHeight, filter);
+        return resample(source, 0, columns, rows, 0, newHeight, color);
+    }
+
+    /** Work out some rows of a resized image
+     *
+     *  @param source some rows of the image being resized - at least those
+     *         that the wanted rows of the result draw on
+     *  @param firstSourceRow the row of the image that is row 0 of source
+     *  @param columns the weights for resizing each row
+     *  @param rows the weights for resizing each column
+     *  @param startRow the first row of the result wanted
+     *  @param endRow one past the last row of the result wanted
+     *  @param color true if the pixels are packed colors
+     *  @return a new buffer holding the wanted rows of the result
+     */
+    static PixelBuffer resample(PixelBuffer source, final int firstSourceRow,
+                                final Weights columns, final Weights rows,
+                                final int startRow, int endRow,
+                                final boolean color)
+    {
+        if (! color && ! ConvolutionEngine.isInByteRange(source))
+            source = clamped(source);
+        final PixelBuffer input = source;
+
+        // Resize the rows the wanted rows of the result draw on to the new
+        // width
+
+        final int firstRow = endRow > startRow ? rows.getStart(startRow) : 0;
+        int endSourceRow = endRow > startRow ? rows.getEnd(endRow - 1) : 0;
+        final PixelBuffer horizontal = new PixelBuffer(columns.getOutputSize(),
+                                                       endSourceRow - firstRow);
+        ParallelEngine.forEachRow(horizontal.getHeight(), input.getWidth(),
+                                  new ParallelEngine.RowTask() {
+            public void processRows(int startBandRow, int endBandRow)
+            {
+                for (int row = startBandRow; row < endBandRow; row ++)
+                {
+                    int src = input.rowStart(firstRow + row - firstSourceRow);
+                    int dst = horizontal.rowStart(row);
+                    if (color)
+                        resampleColorRow(input.getData(), src, columns,
+                                         horizontal.getData(), dst);
+                    else
+                        resampleGrayRow(input.getData(), src, columns,
+                                        horizontal.getData(), dst);
+                }
+            }
+        });
+
+        // Then resize each column of those to the new height
+
+        final PixelBuffer result = new PixelBuffer(columns.getOutputSize(), endRow - startRow);
+        ParallelEngine.forEachRow(result.getHeight(), result.getWidth() * rows.getTaps(),
+                                  new ParallelEngine.RowTask() {
+            public void processRows(int startBandRow, int endBandRow)
+            {
+                int [] sums = new int [(color ? 4 : 1) * result.getWidth()];
+                for (int row = startBandRow; row < endBandRow; row ++)
+                {
+                    int resultRow = startRow + row;
+                    resampleColumns(horizontal, rows.getStart(resultRow) - firstRow,
+                                    rows, resultRow, result, row, sums, color);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**************************************************************************
+     * The passes
+     *************************************************************************/
+
+    /** Resize a row of grayscale pixels
+     *
+     *  @param data the array holding the row
+     *  @param src the index in data of the first pixel of the row
+     *  @param columns the weights for each pixel of the result
+     *  @param newData the array to put the result in
+     *  @param dst the index in newData of the first pixel of the result
+     */
+    private static void resampleGrayRow(int [] data, int src, Weights columns,
+                                        int [] newData, int dst)
+    {
+        int [] weights = columns.getWeights();
+        int taps = columns.getTaps();
+        for (int col = 0; col < columns.getOutputSize(); col ++)
+        {
+            int start = src + columns.getStart(col);
+            int count = columns.getCount(col);
+            int w = col * taps;
+            int sum = ROUNDING;
+            for (int k = 0; k < count; k ++)
+                sum += weights[w + k] * data[start + k];
+            newData[dst + col] = clamp(sum >> FRACTION_BITS);
+        }
+    }
+
+    /** Resize a row of color pixels, each color and alpha separately
+     *
+     *  @param data the array holding the row
+     *  @param src the index in data of the first pixel of the row
+     *  @param columns the weights for each pixel of the result
+     *  @param newData the array to put the result in
+     *  @param dst the index in newData of the first pixel of the result
+     */
+    private static void resampleColorRow(int [] data, int src, Weights columns,
+                                         int [] newData, int dst)
+    {
+        int [] weights = columns.getWeights();
+        int taps = columns.getTaps();
+        for (int col = 0; col < columns.getOutputSize(); col ++)
+        {
+            int start = src + columns.getStart(col);
+            int count = columns.getCount(col);
+            int w = col * taps;
+            int alpha = ROUNDING;
+            int red = ROUNDING;
+            int green = ROUNDING;
+            int blue = ROUNDING;
+            for (int k = 0; k < count; k ++)
+            {
+                int weight = weights[w + k];
+                int pixel = data[start + k];
+                alpha += weight * (pixel >>> 24);
+                red += weight * (pixel >> 16 & 0xff);
+                green += weight * (pixel >> 8 & 0xff);
+                blue += weight * (pixel & 0xff);
+            }
+            newData[dst + col] = pack(alpha, red, green, blue);
+        }
+    }
+
+    /** Work out a row of the result from the rows above and below it.  The
+     *  rows are added in one at a time, so that each is read from start to
+     *  end
+     *
+     *  @param horizontal the rows resized to the new width
+     *  @param first the row of horizontal the weights start at
+     *  @param rows the weights for each row of the result
+     *  @param resultRow the row of the result being worked out
+     *  @param result the buffer to put the row in
+     *  @param row the row of result to put it in
+     *  @param sums space to add up the rows in - one entry for each pixel,
+     *         or for each color and alpha of each pixel
+     *  @param color true if the pixels are packed colors
+     */
+    private static void resampleColumns(PixelBuffer horizontal, int first,
+                                        Weights rows, int resultRow,
+                                        PixelBuffer result, int row,
+                                        int [] sums, boolean color)
+    {
+        int width = result.getWidth();
+        int [] data = horizontal.getData();
+        int [] weights = rows.getWeights();
+        int w = resultRow * rows.getTaps();
+        Arrays.fill(sums, ROUNDING);
+        for (int k = 0; k < rows.getCount(resultRow); k ++)
+        {
+            int weight = weights[w + k];
+            int src = horizontal.rowStart(first + k);
+            if (color)
+            {
+                for (int col = 0, s = 0; col < width; col ++, s += 4)
+                {
+                    int pixel = data[src + col];
+                    sums[s] += weight * (pixel >>> 24);
+                    sums[s + 1] += weight * (pixel >> 16 & 0xff);
+                    sums[s + 2] += weight * (pixel >> 8 & 0xff);
+                    sums[s + 3] += weight * (pixel & 0xff);
+                }
+            }
+            else
+            {
+                for (int col = 0; col < width; col ++)
+                    sums[col] += weight * data[src + col];
+            }
+        }
+
+        int [] newData = result.getData();
+        int dst = result.rowStart(row);
+        if (color)
+        {
+            for (int col = 0, s = 0; col < width; col ++, s += 4)
+                newData[dst + col] = pack(sums[s], sums[s + 1], sums[s + 2], sums[s + 3]);
+        }
+        else
+        {
+            for (int col = 0; col < width; col ++)
+                newData[dst + col] = clamp(sums[col] >> FRACTION_BITS);
+        }
+    }
+
+    /** Copy a buffer of grayscale pixels, forcing each into 0 .. 255
+     *
+     *  @param source the buffer to copy
+     *  @return the copy
+     */
+    static PixelBuffer clamped(final PixelBuffer source)
+    {
+        final PixelBuffer result = source.compactCopy();
+        final int [] data = result.getData();
+        ParallelEngine.forEachRow(result.getHeight(), result.getWidth(),
+                                  new ParallelEngine.RowTask() {
+            public void processRows(int startRow, int endRow)
+            {
+                for (int i = startRow * result.getWidth(); i < endRow * result.getWidth(); i ++)
+                    data[i] = clamp(data[i]);
+            }
+        });
+        return result;
+    }
+
+    /**************************************************************************
+     * Private helpers
+     *************************************************************************/
+
+    /** Pack fixed-point sums of alpha and each color into a pixel
+     *
+     *  @return the pixel
+     */
+    private static int pack(int alpha, int red, int green, int blue)
+    {
+        return clamp(alpha >> FRACTION_BITS) << 24
+             | clamp(red >> FRACTION_BITS) << 16
+             | clamp(green >> FRACTION_BITS) << 8
+             | clamp(blue >> FRACTION_BITS);
+    }
+
+    /** Force a value into 0 .. 255
+     *
+     *  @param value the value
+     *  @return the nearest value in range
+     */
+    private static int clamp(int value)
+    {
+        return value < 0 ? 0 : value > 255 ? 255 : value;
+    }
+
+    /**************************************************************************
+     * Weight tables
+     *************************************************************************/
+
+    /** The weights for resizing a row (or column) of one length to another.
+     *  Result pixel i is the sum of getCount(i) input pixels starting at
+     *  getStart(i), the k'th weighted by getWeights()[i * getTaps() + k] /
+     *  2^FRACTION_BITS.  The weights for each result pixel add up to exactly
+     *  1, so an area of a single value keeps that value
+     */
+    static final class Weights
+    {
+        /** Constructor
+         *
+         *  @param inputSize the number of pixels being resized
+         *  @param outputSize the number of pixels to resize them to
+         *  @param filter the filter to weight the pixels with
+         */
+        Weights(int inputSize, int outputSize, ProjectImage.ResizeFilter filter)
+        {
+            // Result pixel i covers input positions i * scale to
+            // (i + 1) * scale.  When shrinking, the filter is stretched by
+            // the same factor
+
+            double scale = outputSize == 0 ? 1 : (double) inputSize / outputSize;
+            double filterScale = Math.max(scale, 1);
+            double support = support(filter) * filterScale;
+            this.outputSize = outputSize;
+            this.taps = Math.min(Math.max(inputSize, 1), (int) Math.ceil(support) * 2 + 1);
+            this.starts = new int [outputSize];
+            this.counts = new int [outputSize];
+            this.weights = new int [outputSize * taps];
+
+            double [] exact = new double [taps];
+            for (int i = 0; i < outputSize; i ++)
+            {
+                double center = (i + 0.5) * scale;
+                int start = Math.max(0, (int) Math.floor(center - support + 0.5));
+                int end = Math.min(inputSize, (int) Math.floor(center + support + 0.5));
+                end = Math.min(end, start + taps);
+                double total = 0;
+                for (int k = 0; k < end - start; k ++)
+                {
+                    exact[k] = kernel(filter, (start + k + 0.5 - center) / filterScale);
+                    total += exact[k];
+                }
+                if (total == 0)
+                {
+                    // The filter missed every pixel - use the nearest one
+
+                    start = Math.min(inputSize - 1, (int) center);
+                    end = start + 1;
+                    exact[0] = total = 1;
+                }
+
+                // Round the weights to fixed point, and give whatever
+                // rounding lost or gained to the largest, so they add up to
+                // exactly 1
+
+                int largest = 0;
+                int fixedTotal = 0;
+                for (int k = 0; k < end - start; k ++)
+                {
+                    int weight = (int) Math.round(exact[k] / total * ONE);
+                    weights[i * taps + k] = weight;
+                    fixedTotal += weight;
+                    if (Math.abs(exact[k]) > Math.abs(exact[largest]))
+                        largest = k;
+                }
+                weights[i * taps + largest] += ONE - fixedTotal;
+                starts[i] = start;
+                counts[i] = end - start;
+            }
+        }
+
+        // Accessors
+
+        int getOutputSize()
+        {
+            return outputSize;
+        }
+
+        int getTaps()
+        {
+            return taps;
+        }
+
+        int getStart(int i)
+        {
+            return starts[i];
+        }
+
+        int getCount(int i)
+        {
+            return counts[i];
+        }
+
+        /** Get one past the last input pixel a result pixel draws on
+         *
+         *  @param i the result pixel
+         *  @return the index of the input pixel after its last one
+         */
+        int getEnd(int i)
+        {
+            return starts[i] + counts[i];
+        }
+
+        int [] getWeights()
+        {
+            return weights;
+        }
+
+        // Table data
+
+        private final int outputSize;
+        private final int taps;
+        private final int [] starts;
+        private final int [] counts;
+        private final int [] weights;
+    }
+
+    /** Get how far from its center a filter reaches
+     *
+     *  @param filter the filter
+     *  @return the distance, in input pixels, beyond which its weight is 0
+     */
+    private static double support(ProjectImage.ResizeFilter filter)
+    {
+        switch (filter)
+        {
+            case BOX:
+                return 0.5;
+            case BILINEAR:
+                return 1;
+            case BICUBIC:
+                return 2;
+            default:
+                return LANCZOS_LOBES;
+        }
+    }
+
+    /** Evaluate a filter function
+     *
+     *  @param filter the filter
+     *  @param x the distance from the center
+     *  @return the weight at that distance
+     */
+    private static double kernel(ProjectImage.ResizeFilter filter, double x)
+    {
+        switch (filter)
+        {
+            case BOX:
+                return x >= -0.5 && x < 0.5 ? 1 : 0;
+            case BILINEAR:
+                x = Math.abs(x);
+                return x < 1 ? 1 - x : 0;
+            case BICUBIC:
+            {
+                // Catmull-Rom: the cubic through each pixel whose slope
+                // there is that of the line through its neighbors
+
+                x = Math.abs(x);
+                if (x < 1)
+                    return ((CUBIC_A + 2) * x - (CUBIC_A + 3)) * x * x + 1;
+                if (x < 2)
+                    return (((x - 5) * x + 8) * x - 4) * CUBIC_A;
+                return 0;
+            }
+            default:
+                if (x == 0)
+                    return 1;
+                if (Math.abs(x) >= LANCZOS_LOBES)
+                    return 0;
+                return sinc(x) * sinc(x / LANCZOS_LOBES);
+        }
+    }
+
+    /** The normalized sinc function
+     *
+     *  @param x the value
+     *  @return sin(pi x) / (pi x)
+     */
+    private static double sinc(double x)
+    {
+        if (x == 0)
+            return 1;
+        x *= Math.PI;
+        return Math.sin(x) / x;
+    }
+
+    // Constants - with 22 fraction bits, a sum of 8 bit values weighted by
+    // a filter with negative lobes still fits in an int
+
+    private static final int FRACTION_BITS = 22;
+    private static final int ONE = 1 << FRACTION_BITS;
+    private static final int ROUNDING = 1 << (FRACTION_BITS - 1);
+    private static final double CUBIC_A = -0.5;
+    private static final int LANCZOS_LOBES = 3;
+}
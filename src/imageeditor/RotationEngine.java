@@ -0,0 +1,355 @@
+/* RotationEngine.java
+ *
+ *  Part of ImageEditor project - rotates an image by any angle, for
+ *  ProjectImage.rotate(double).  Rotations by a multiple of 90 degrees never
+ *  come here: they only change the description of how the image is laid
+ *  out (see PixelTransform), and the pixels are moved when that is applied.
+ *
+ *  The result is just big enough to hold the whole of the rotated image,
+ *  which stays centred in it; the corners it does not cover are black.
+ *  Each pixel of the result is found by turning the centre of the pixel
+ *  back by the angle, and blending the four pixels of the image around the
+ *  point that gives in proportion to how near they are (bilinear sampling).
+ *  Pixels around the point that lie outside the image count as black, so the
+ *  edges of the rotated image are smoothed into the corners rather than
+ *  jagged.  The colors of a color image, and alpha, are blended separately;
+ *  grayscale values are blended whatever their range.
+ *
+ *  The result is worked out a tile of TILE_SIZE x TILE_SIZE pixels at a
+ *  time.  The pixels a tile draws on lie within a small rectangle of the
+ *  image, however the rows of the result cut across it, so they stay in the
+ *  cache while the tile is worked out - and an image held off the heap only
+ *  has to have that rectangle read for each tile (see sourceBounds()).
+ */
+
+package imageeditor;
+
+final class RotationEngine
+{
+    // This class is not meant to be instantiated
+
+    private RotationEngine()
+    {
+    }
+
+    /** Rotate the pixels in a buffer
+     *
+     *  @param source the buffer holding the pixels to rotate
+     *  @param degrees the angle to rotate by, clockwise
+     *  @param color true if the pixels are packed colors
+     *  @param pool the pool to take the result from.  Its pixels are all
+     *         overwritten
+     *  @return the buffer holding the result
+     */
+    static PixelBuffer rotate(final PixelBuffer source, double degrees,
+                              final boolean color, BufferPool pool)
+    {
+        final Rotation rotation = new Rotation(source.getWidth(), source.getHeight(),
+                                               degrees);
+        final PixelBuffer result = pool.take(rotation.getWidth(), rotation.getHeight());
+
+        // Each row of tiles is a task of its own
+
+        final int tileCols = tileCount(result.getWidth());
+        ParallelEngine.forEachRow(tileCount(result.getHeight()), TILE_SIZE * result.getWidth(),
+                                  new ParallelEngine.RowTask() {
+            public void processRows(int startTileRow, int endTileRow)
+            {
+                for (int tileRow = startTileRow; tileRow < endTileRow; tileRow ++)
+                    for (int tileCol = 0; tileCol < tileCols; tileCol ++)
+                    {
+                        int row = tileRow * TILE_SIZE;
+                        int col = tileCol * TILE_SIZE;
+                        PixelBuffer tile = region(result, row, col,
+                            Math.min(TILE_SIZE, result.getHeight() - row),
+                            Math.min(TILE_SIZE, result.getWidth() - col));
+                        rotation.fill(source, 0, 0, tile, row, col, color);
+                    }
+            }
+        });
+        return result;
+    }
+
+    /** Describe a rectangle of the pixels in a buffer
+     *
+     *  @param buffer the buffer holding the pixels
+     *  @param row the first row of the rectangle
+     *  @param col the first column of the rectangle
+     *  @param rows the number of rows in the rectangle
+     *  @param cols the number of columns in the rectangle
+     *  @return a buffer sharing the pixels of the rectangle
+     */
+    static PixelBuffer region(PixelBuffer buffer, int row, int col, int rows, int cols)
+    {
+        return new PixelBuffer(buffer.getData(), buffer.rowStart(row) + col,
+                               buffer.getStride(), cols, rows);
+    }
+
+    /** Find the number of tiles needed to cover a number of pixels
+     *
+     *  @param pixels the width or height to cover
+     *  @return the number of tiles across or down
+     */
+    private static int tileCount(int pixels)
+    {
+        return (pixels + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    /** The geometry of rotating an image of a given size by a given angle
+     */
+    static final class Rotation
+    {
+        /** Constructor
+         *
+         *  @param width the width of the image
+         *  @param height the height of the image
+         *  @param degrees the angle to rotate by, clockwise
+         */
+        Rotation(int width, int height, double degrees)
+        {
+            if (Double.isNaN(degrees) || Double.isInfinite(degrees))
+                throw new IllegalArgumentException("Angle must be a number");
+            double radians = Math.toRadians(degrees);
+            cos = Math.cos(radians);
+            sin = Math.sin(radians);
+            this.width = width;
+            this.height = height;
+
+            // The rotated corners reach out this far from the centre.  A
+            // size that only goes over a whole number by rounding error is
+            // not rounded up
+
+            newWidth = (int) Math.ceil(Math.abs(width * cos) + Math.abs(height * sin) - EPSILON);
+            newHeight = (int) Math.ceil(Math.abs(width * sin) + Math.abs(height * cos) - EPSILON);
+        }
+
+        /** Get the width of the result
+         *
+         *  @return the width of the rotated image
+         */
+        int getWidth()
+        {
+            return newWidth;
+        }
+
+        /** Get the height of the result
+         *
+         *  @return the height of the rotated image
+         */
+        int getHeight()
+        {
+            return newHeight;
+        }
+
+        /** Find the rectangle of the image that a rectangle of the result
+         *  draws on
+         *
+         *  @param row the first row of the result
+         *  @param col the first column of the result
+         *  @param rows the number of rows of the result
+         *  @param cols the number of columns of the result
+         *  @return the first row, first column, number of rows and number of
+         *          columns of the image - which are all 0 if the rectangle
+         *          of the result lies outside the rotated image
+         */
+        int [] sourceBounds(int row, int col, int rows, int cols)
+        {
+            // Turning back a rectangle gives a parallelogram, which lies
+            // within the corners turned back.  A pixel more is allowed all
+            // round, against rounding error
+
+            double minX = Double.MAX_VALUE, maxX = - Double.MAX_VALUE;
+            double minY = Double.MAX_VALUE, maxY = - Double.MAX_VALUE;
+            for (int corner = 0; corner < 4; corner ++)
+            {
+                int r = row + ((corner & 1) == 0 ? 0 : rows - 1);
+                int c = col + ((corner & 2) == 0 ? 0 : cols - 1);
+                minX = Math.min(minX, sourceX(r, c));
+                maxX = Math.max(maxX, sourceX(r, c));
+                minY = Math.min(minY, sourceY(r, c));
+                maxY = Math.max(maxY, sourceY(r, c));
+            }
+            int firstRow = (int) Math.max(0, Math.floor(minY) - 1);
+            int endRow = (int) Math.min(height, Math.floor(maxY) + 3);
+            int firstCol = (int) Math.max(0, Math.floor(minX) - 1);
+            int endCol = (int) Math.min(width, Math.floor(maxX) + 3);
+            if (firstRow >= endRow || firstCol >= endCol)
+                return new int [4];
+            return new int [] { firstRow, firstCol, endRow - firstRow, endCol - firstCol };
+        }
+
+        /** Work out a rectangle of the result
+         *
+         *  @param window the pixels of the image that the rectangle draws on
+         *         - at least those sourceBounds() gives.  Pixels outside it
+         *         are taken to be outside the image
+         *  @param windowRow the row of the image that is row 0 of window
+         *  @param windowCol the column of the image that is column 0 of
+         *         window
+         *  @param tile the buffer to fill in with the rectangle
+         *  @param row the row of the result that is row 0 of tile
+         *  @param col the column of the result that is column 0 of tile
+         *  @param color true if the pixels are packed colors
+         */
+        void fill(PixelBuffer window, int windowRow, int windowCol,
+                  PixelBuffer tile, int row, int col, boolean color)
+        {
+            int [] data = window.getData();
+            int [] tileData = tile.getData();
+            int windowWidth = window.getWidth();
+            int windowHeight = window.getHeight();
+            int background = color ? COLOR_BACKGROUND : 0;
+            for (int r = 0; r < tile.getHeight(); r ++)
+            {
+                int dst = tile.rowStart(r);
+                for (int c = 0; c < tile.getWidth(); c ++)
+                {
+                    double x = sourceX(row + r, col + c);
+                    double y = sourceY(row + r, col + c);
+                    double floorX = Math.floor(x);
+                    double floorY = Math.floor(y);
+                    int x0 = (int) floorX - windowCol;
+                    int y0 = (int) floorY - windowRow;
+
+                    // Nothing to blend if all four pixels are outside
+
+                    if (x0 < -1 || x0 >= windowWidth || y0 < -1 || y0 >= windowHeight)
+                    {
+                        tileData[dst + c] = background;
+                        continue;
+                    }
+                    int weightX = (int) ((x - floorX) * ONE + 0.5);
+                    int weightY = (int) ((y - floorY) * ONE + 0.5);
+                    int topLeft, topRight, bottomLeft, bottomRight;
+                    if (x0 >= 0 && x0 + 1 < windowWidth && y0 >= 0 && y0 + 1 < windowHeight)
+                    {
+                        int index = window.rowStart(y0) + x0;
+                        topLeft = data[index];
+                        topRight = data[index + 1];
+                        index += window.getStride();
+                        bottomLeft = data[index];
+                        bottomRight = data[index + 1];
+                    }
+                    else
+                    {
+                        topLeft = pixelAt(window, y0, x0, background);
+                        topRight = pixelAt(window, y0, x0 + 1, background);
+                        bottomLeft = pixelAt(window, y0 + 1, x0, background);
+                        bottomRight = pixelAt(window, y0 + 1, x0 + 1, background);
+                    }
+                    tileData[dst + c] = color
+                        ? blendColor(topLeft, topRight, bottomLeft, bottomRight, weightX, weightY)
+                        : blendGray(topLeft, topRight, bottomLeft, bottomRight, weightX, weightY);
+                }
+            }
+        }
+
+        /** Find the column of the image that the centre of a pixel of the
+         *  result turns back to
+         *
+         *  @param row the row of the result
+         *  @param col the column of the result
+         *  @return the column, counting the centres of pixels as whole
+         *          numbers
+         */
+        private double sourceX(int row, int col)
+        {
+            double x = col + 0.5 - newWidth / 2.0;
+            double y = row + 0.5 - newHeight / 2.0;
+            return x * cos + y * sin + width / 2.0 - 0.5;
+        }
+
+        /** Find the row of the image that the centre of a pixel of the result
+         *  turns back to
+         *
+         *  @param row the row of the result
+         *  @param col the column of the result
+         *  @return the row, counting the centres of pixels as whole numbers
+         */
+        private double sourceY(int row, int col)
+        {
+            double x = col + 0.5 - newWidth / 2.0;
+            double y = row + 0.5 - newHeight / 2.0;
+            return y * cos - x * sin + height / 2.0 - 0.5;
+        }
+
+        // Rotation data - the size of the image and of the result
+
+        private final double cos;
+        private final double sin;
+        private final int width;
+        private final int height;
+        private final int newWidth;
+        private final int newHeight;
+    }
+
+    /** Get a pixel of a buffer, or the background if it lies outside
+     *
+     *  @param buffer the buffer
+     *  @param row the row of the pixel
+     *  @param col the column of the pixel
+     *  @param background the value for a pixel outside the buffer
+     *  @return the pixel
+     */
+    private static int pixelAt(PixelBuffer buffer, int row, int col, int background)
+    {
+        if (row < 0 || row >= buffer.getHeight() || col < 0 || col >= buffer.getWidth())
+            return background;
+        return buffer.getData()[buffer.rowStart(row) + col];
+    }
+
+    /** Blend four grayscale values
+     *
+     *  @param topLeft the value at the top left
+     *  @param topRight the value at the top right
+     *  @param bottomLeft the value at the bottom left
+     *  @param bottomRight the value at the bottom right
+     *  @param weightX the weight of the right values, out of ONE
+     *  @param weightY the weight of the bottom values, out of ONE
+     *  @return the blended value, rounded
+     */
+    private static int blendGray(int topLeft, int topRight, int bottomLeft, int bottomRight,
+                                 int weightX, int weightY)
+    {
+        // The values need not be in 0 .. 255, so the sums are kept in longs
+
+        long top = (long) topLeft * (ONE - weightX) + (long) topRight * weightX;
+        long bottom = (long) bottomLeft * (ONE - weightX) + (long) bottomRight * weightX;
+        return (int) ((top * (ONE - weightY) + bottom * weightY + ONE * ONE / 2) >> (2 * SHIFT));
+    }
+
+    /** Blend four packed colors, a channel at a time
+     *
+     *  @param topLeft the color at the top left
+     *  @param topRight the color at the top right
+     *  @param bottomLeft the color at the bottom left
+     *  @param bottomRight the color at the bottom right
+     *  @param weightX the weight of the right colors, out of ONE
+     *  @param weightY the weight of the bottom colors, out of ONE
+     *  @return the blended color, each channel rounded
+     */
+    private static int blendColor(int topLeft, int topRight, int bottomLeft, int bottomRight,
+                                  int weightX, int weightY)
+    {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 8)
+        {
+            int top = (topLeft >>> shift & 0xff) * (ONE - weightX)
+                    + (topRight >>> shift & 0xff) * weightX;
+            int bottom = (bottomLeft >>> shift & 0xff) * (ONE - weightX)
+                       + (bottomRight >>> shift & 0xff) * weightX;
+            result |= (top * (ONE - weightY) + bottom * weightY + ONE * ONE / 2)
+                      >>> (2 * SHIFT) << shift;
+        }
+        return result;
+    }
+
+    // Constants - weights are fixed-point numbers with SHIFT bits after the
+    // point
+
+    static final int TILE_SIZE = 64;
+    private static final int SHIFT = 8;
+    private static final int ONE = 1 << SHIFT;
+    private static final int COLOR_BACKGROUND = 0xff000000;
+    private static final double EPSILON = 1e-9;
+}
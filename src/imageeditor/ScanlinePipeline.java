@@ -0,0 +1,535 @@
+/* ScanlinePipeline.java
+ *
+ *  Part of ImageEditor project - applies a sequence of operations to an
+ *  image as it streams from a ScanlineSource to a ScanlineSink, without ever
+ *  holding the whole image in memory.
+ *
+ *  The operations are added in the order they are to be applied, using
+ *  methods named after the ProjectImage operations they match, and give the
+ *  same result.  Each operation is a stage that accepts rows from the stage
+ *  before it and passes rows on to the stage after it, keeping only the rows
+ *  it still needs:
+ *
+ *  - the point operations, the horizontal flip and shift, and encryption
+ *    work within each row, and keep nothing
+ *  - halve keeps one row, until the row it is averaged with arrives
+ *  - a filter keeps the rows it reaches above and below the rows it is
+ *    filtering, plus a small batch of rows so that the filter is applied
+ *    to several rows at a time
+ *
+ *  So the memory a pipeline needs depends on the width of the image and the
+ *  size of its filters, not on the height of the image.
+ *
+ *  The pixels are grayscale values, which the source supplies in the range
+ *  0 .. 255.  Each stage is known to keep them in that range or not, so a
+ *  filter stage knows before the first row arrives whether ConvolutionEngine
+ *  may use its integer paths, and decides once for the whole image as a
+ *  ProjectImage does.
+ *
+ *  Operations that need the whole image before they can produce the first
+ *  row - flipping vertically, rotating, shifting vertically, and the
+ *  contrast operations, which need the average of every pixel - are not
+ *  available; they can be done on a ProjectImage, which can use mapped
+ *  storage for images too big for the heap.
+ *
+ *  A pipeline can be run any number of times.
+ */
+
+package imageeditor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class ScanlinePipeline
+{
+    /** Constructor - create a pipeline with no operations, which copies its
+     *  source to its sink unchanged
+     */
+    public ScanlinePipeline()
+    {
+        stages = new ArrayList<Stage>();
+    }
+
+    /**************************************************************************
+     * Operations - each adds a stage to the end of the pipeline
+     *************************************************************************/
+
+    /** Lighten the image - see ProjectImage.lighten()
+     */
+    public void lighten()
+    {
+        stages.add(new PointStage(ProjectImage.PointOperation.LIGHTEN));
+    }
+
+    /** Darken the image - see ProjectImage.darken()
+     */
+    public void darken()
+    {
+        stages.add(new PointStage(ProjectImage.PointOperation.DARKEN));
+    }
+
+    /** Make a negative of the image - see ProjectImage.negative()
+     */
+    public void negative()
+    {
+        stages.add(new PointStage(ProjectImage.PointOperation.NEGATIVE));
+    }
+
+    /** Flip the image horizontally - see ProjectImage.flipHorizontally()
+     */
+    public void flipHorizontally()
+    {
+        stages.add(new FlipStage());
+    }
+
+    /** Shift the image horizontally - see ProjectImage.shiftHorizontally()
+     *
+     *  @param x the number of columns to shift by - positive values shift
+     *         right and negative values shift left
+     */
+    public void shiftHorizontally(int x)
+    {
+        stages.add(new ShiftStage(x));
+    }
+
+    /** Encrypt or decrypt the image - see ProjectImage.encryptDecrypt()
+     *
+     *  @param seed the seed the image is encrypted with
+     */
+    public void encryptDecrypt(int seed)
+    {
+        stages.add(new EncryptStage(seed));
+    }
+
+    /** Encrypt or decrypt the image, choosing how the keystream is made -
+     *  see ProjectImage.encryptDecrypt()
+     *
+     *  @param seed the seed the image is encrypted with
+     *  @param mode how the keystream is made
+     */
+    public void encryptDecrypt(int seed, ProjectImage.EncryptionMode mode)
+    {
+        if (mode == ProjectImage.EncryptionMode.RANDOM)
+            stages.add(new EncryptStage(seed));
+        else
+            stages.add(new KeystreamStage(seed));
+    }
+
+    /** Scale the image to half its size - see ProjectImage.halve()
+     */
+    public void halve()
+    {
+        stages.add(new HalveStage());
+    }
+
+    /** Apply a filter to the image - see ProjectImage.applyFilter()
+     *
+     *  @param filter a square array of doubles specifying the filter to
+     *         apply - the number of rows and columns must be odd
+     */
+    public void applyFilter(double [] [] filter)
+    {
+        stages.add(new FilterStage(filter));
+    }
+
+    /**************************************************************************
+     * Running the pipeline
+     *************************************************************************/
+
+    /** Read every row of an image, pass it through the operations of this
+     *  pipeline, and write the result
+     *
+     *  @param source the image to read
+     *  @param sink where to write the result
+     *  @exception IOException if the source or sink fails
+     */
+    public void run(ScanlineSource source, final ScanlineSink sink) throws IOException
+    {
+        // Work out the size of the image each stage is given, and whether
+        // its values are sure to lie in 0 .. 255
+
+        int [] widths = new int [stages.size() + 1];
+        int [] heights = new int [stages.size() + 1];
+        boolean [] inByteRange = new boolean [stages.size() + 1];
+        widths[0] = source.getWidth();
+        heights[0] = source.getHeight();
+        inByteRange[0] = true;
+        for (int i = 0; i < stages.size(); i ++)
+        {
+            widths[i + 1] = stages.get(i).outputWidth(widths[i]);
+            heights[i + 1] = stages.get(i).outputHeight(heights[i]);
+            inByteRange[i + 1] = inByteRange[i] && stages.get(i).keepsByteRange();
+        }
+
+        // Connect the stages, starting from the sink
+
+        sink.start(widths[stages.size()], heights[stages.size()]);
+        RowReceiver next = new RowReceiver() {
+            public void push(int [] row) throws IOException
+            {
+                sink.writeRow(row);
+            }
+        };
+        for (int i = stages.size() - 1; i >= 0; i --)
+        {
+            stages.get(i).start(widths[i], heights[i], inByteRange[i], next);
+            next = stages.get(i);
+        }
+
+        int [] row = new int [widths[0]];
+        for (int i = 0; i < heights[0]; i ++)
+        {
+            source.readRow(row);
+            next.push(row);
+        }
+
+        // Each stage passes on the rows it was keeping before the stage
+        // after it finishes
+
+        for (int i = 0; i < stages.size(); i ++)
+            stages.get(i).finish();
+        sink.finish();
+    }
+
+    /**************************************************************************
+     * Stages
+     *************************************************************************/
+
+    /** Something rows can be passed to
+     */
+    private interface RowReceiver
+    {
+        /** Accept the next row
+         *
+         *  @param row the values of the row.  The array may be changed by
+         *         the receiver, and reused by the caller for later rows
+         *  @exception IOException if the sink fails
+         */
+        void push(int [] row) throws IOException;
+    }
+
+    /** One operation of the pipeline.  A stage is started afresh each time
+     *  the pipeline runs
+     */
+    private abstract static class Stage implements RowReceiver
+    {
+        /** Prepare to process an image
+         *
+         *  @param width the width of the image the stage is given
+         *  @param height the height of the image the stage is given
+         *  @param inByteRange true if every value the stage is given lies
+         *         in 0 .. 255
+         *  @param next where to pass the resulting rows
+         */
+        void start(int width, int height, boolean inByteRange, RowReceiver next)
+        {
+            this.width = width;
+            this.next = next;
+        }
+
+        /** Pass on any rows still kept, once every row has been pushed
+         *
+         *  @exception IOException if the sink fails
+         */
+        void finish() throws IOException
+        {
+        }
+
+        /** Work out the width of the image this stage produces
+         *
+         *  @param width the width of the image the stage is given
+         *  @return the width of the result
+         */
+        int outputWidth(int width)
+        {
+            return width;
+        }
+
+        /** Work out the height of the image this stage produces
+         *
+         *  @param height the height of the image the stage is given
+         *  @return the height of the result
+         */
+        int outputHeight(int height)
+        {
+            return height;
+        }
+
+        /** Check whether this stage keeps values in 0 .. 255
+         *
+         *  @return true if every value it produces from values in 0 .. 255
+         *          lies in 0 .. 255 too
+         */
+        boolean keepsByteRange()
+        {
+            return true;
+        }
+
+        int width;
+        RowReceiver next;
+    }
+
+    /** A stage that applies a point operation to each pixel
+     */
+    private static class PointStage extends Stage
+    {
+        PointStage(ProjectImage.PointOperation operation)
+        {
+            this.operation = operation;
+        }
+
+        public void push(int [] row) throws IOException
+        {
+            for (int i = 0; i < width; i ++)
+                row[i] = operation.apply(row[i], 0);
+            next.push(row);
+        }
+
+        private final ProjectImage.PointOperation operation;
+    }
+
+    /** A stage that reverses each row
+     */
+    private static class FlipStage extends Stage
+    {
+        public void push(int [] row) throws IOException
+        {
+            for (int left = 0, right = width - 1; left < right; left ++, right --)
+            {
+                int temp = row[left];
+                row[left] = row[right];
+                row[right] = temp;
+            }
+            next.push(row);
+        }
+    }
+
+    /** A stage that rotates each row to the right, wrapping around
+     */
+    private static class ShiftStage extends Stage
+    {
+        ShiftStage(int x)
+        {
+            this.x = x;
+        }
+
+        void start(int width, int height, boolean inByteRange, RowReceiver next)
+        {
+            super.start(width, height, inByteRange, next);
+            amount = width == 0 ? 0 : ((x % width) + width) % width;
+            shifted = new int [width];
+        }
+
+        public void push(int [] row) throws IOException
+        {
+            System.arraycopy(row, 0, shifted, amount, width - amount);
+            System.arraycopy(row, width - amount, shifted, 0, amount);
+            next.push(shifted);
+        }
+
+        private final int x;
+        private int amount;
+        private int [] shifted;
+    }
+
+    /** A stage that encrypts each pixel.  The random numbers are used in
+     *  the order the pixels arrive, which is the order ProjectImage uses
+     */
+    private static class EncryptStage extends Stage
+    {
+        EncryptStage(int seed)
+        {
+            this.seed = seed;
+        }
+
+        void start(int width, int height, boolean inByteRange, RowReceiver next)
+        {
+            super.start(width, height, inByteRange, next);
+            random = new Random(seed);
+        }
+
+        public void push(int [] row) throws IOException
+        {
+            for (int i = 0; i < width; i ++)
+            {
+                int randomNumber = random.nextInt(MAX_BRIGHTNESS + 1);
+                row[i] = row[i] ^ seed + randomNumber;
+            }
+            next.push(row);
+        }
+
+        /** Only a seed of 0 keeps values in range: any other seed, added to
+         *  a random number, can reach past 255
+         */
+        boolean keepsByteRange()
+        {
+            return seed == 0;
+        }
+
+        private final int seed;
+        private Random random;
+    }
+
+    /** A stage that encrypts each pixel with a CounterKeystream, treating
+     *  the pixels as grayscale values
+     */
+    private static class KeystreamStage extends Stage
+    {
+        KeystreamStage(int seed)
+        {
+            this.keystream = new CounterKeystream(seed);
+        }
+
+        void start(int width, int height, boolean inByteRange, RowReceiver next)
+        {
+            super.start(width, height, inByteRange, next);
+            row = 0;
+        }
+
+        public void push(int [] pixels) throws IOException
+        {
+            keystream.apply(pixels, 0, width, row * width, false);
+            row ++;
+            next.push(pixels);
+        }
+
+        private final CounterKeystream keystream;
+        private long row;
+    }
+
+    /** A stage that averages each 2 x 2 square of pixels.  A last row or
+     *  column with nothing to pair with is dropped, as ProjectImage does
+     */
+    private static class HalveStage extends Stage
+    {
+        void start(int width, int height, boolean inByteRange, RowReceiver next)
+        {
+            super.start(width, height, inByteRange, next);
+            top = new int [width];
+            halved = new int [width / 2];
+            haveTop = false;
+        }
+
+        public void push(int [] row) throws IOException
+        {
+            if (! haveTop)
+            {
+                System.arraycopy(row, 0, top, 0, width);
+                haveTop = true;
+                return;
+            }
+            for (int col = 0; col < halved.length; col ++)
+                halved[col] = (top[2*col] + row[2*col] +
+                               top[2*col+1] + row[2*col+1])/4;
+            haveTop = false;
+            next.push(halved);
+        }
+
+        int outputWidth(int width)
+        {
+            return width / 2;
+        }
+
+        int outputHeight(int height)
+        {
+            return height / 2;
+        }
+
+        private int [] top;
+        private int [] halved;
+        private boolean haveTop;
+    }
+
+    /** A stage that applies a filter.  Rows are collected in a window until
+     *  there are FILTER_BATCH_ROWS of them, plus border rows above and below;
+     *  the window is then filtered by ConvolutionEngine, and the rows with a
+     *  full set of neighbors are passed on.  The last 2 * border rows stay in
+     *  the window as the neighbors of the next batch.
+     *
+     *  Whether the integer paths of ConvolutionEngine can be used is decided
+     *  once, when the stage is started, from whether the stages before it
+     *  keep values in 0 .. 255 - not for each window, which could give two
+     *  windows of one image different rounding
+     */
+    private static class FilterStage extends Stage
+    {
+        FilterStage(double [] [] filter)
+        {
+            this.filter = filter;
+            this.border = (filter.length - 1) / 2;
+        }
+
+        void start(int width, int height, boolean inByteRange, RowReceiver next)
+        {
+            super.start(width, height, inByteRange, next);
+            this.inByteRange = inByteRange;
+            window = new PixelBuffer(width, FILTER_BATCH_ROWS + 2 * border);
+            filtered = new int [width];
+            rows = 0;
+            passedOn = false;
+        }
+
+        public void push(int [] row) throws IOException
+        {
+            System.arraycopy(row, 0, window.getData(), window.rowStart(rows), width);
+            rows ++;
+            if (rows == window.getHeight())
+                filterWindow(false);
+        }
+
+        void finish() throws IOException
+        {
+            if (rows > 0)
+                filterWindow(true);
+        }
+
+        /** Filter the rows in the window and pass on those that are done.
+         *  Rows within border of the top or bottom of the window are only
+         *  passed on if they are within border of the edge of the image as
+         *  well, in which case the filter leaves them unchanged
+         *
+         *  @param last true if the window holds the last rows of the image
+         *  @exception IOException if the sink fails
+         */
+        private void filterWindow(boolean last) throws IOException
+        {
+            PixelBuffer band = new PixelBuffer(window.getData(), 0, width, width, rows);
+            PixelBuffer result = ConvolutionEngine.convolve(band, filter, inByteRange,
+                                                            BufferPool.NONE);
+            int firstRow = passedOn ? border : 0;
+            int endRow = last ? rows : rows - border;
+            for (int row = firstRow; row < endRow; row ++)
+            {
+                System.arraycopy(result.getData(), result.rowStart(row), filtered, 0, width);
+                next.push(filtered);
+            }
+            passedOn = true;
+            if (last)
+                return;
+
+            int kept = 2 * border;
+            System.arraycopy(window.getData(), window.rowStart(rows - kept),
+                             window.getData(), 0, kept * width);
+            rows = kept;
+        }
+
+        private final double [] [] filter;
+        private final int border;
+        private boolean inByteRange;
+        private PixelBuffer window;
+        private int [] filtered;
+        private int rows;
+        private boolean passedOn;
+    }
+
+    // The stages, in the order they are applied
+
+    private final List<Stage> stages;
+
+    // Constants
+
+    private static final int FILTER_BATCH_ROWS = 32;
+    private static final int MAX_BRIGHTNESS = 255;
+}
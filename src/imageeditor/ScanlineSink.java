@@ -0,0 +1,35 @@
+/* ScanlineSink.java
+ *
+ *  Part of ImageEditor project - something that accepts the rows of an
+ *  image one at a time, from top to bottom, such as an encoder writing an
+ *  image file.  See ScanlinePipeline.
+ */
+
+package imageeditor;
+
+import java.io.IOException;
+
+public interface ScanlineSink
+{
+    /** Prepare to accept an image
+     *
+     *  @param width the number of pixels in each row
+     *  @param height the number of rows that will follow
+     *  @exception IOException if the image cannot be accepted
+     */
+    void start(int width, int height) throws IOException;
+
+    /** Accept the next row of the image
+     *
+     *  @param row the values of the row.  The array is reused for later
+     *         rows, so its contents must be copied if they are to be kept
+     *  @exception IOException if the row cannot be written
+     */
+    void writeRow(int [] row) throws IOException;
+
+    /** Finish accepting the image, once all of its rows have been written
+     *
+     *  @exception IOException if the image cannot be completed
+     */
+    void finish() throws IOException;
+}
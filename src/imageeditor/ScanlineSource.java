@@ -0,0 +1,33 @@
+/* ScanlineSource.java
+ *
+ *  Part of ImageEditor project - something that supplies the rows of an
+ *  image one at a time, from top to bottom, such as a decoder reading an
+ *  image file.  See ScanlinePipeline.
+ */
+
+package imageeditor;
+
+import java.io.IOException;
+
+public interface ScanlineSource
+{
+    /** Get the width of the image
+     *
+     *  @return the number of pixels in each row
+     */
+    int getWidth();
+
+    /** Get the height of the image
+     *
+     *  @return the number of rows
+     */
+    int getHeight();
+
+    /** Read the next row of the image
+     *
+     *  @param row the array to read into - getWidth() values, each a
+     *         grayscale value in the range 0 .. 255 or a packed color
+     *  @exception IOException if the row cannot be read
+     */
+    void readRow(int [] row) throws IOException;
+}
@@ -0,0 +1,458 @@
+/* Selection.java
+ *
+ *  Part of ImageEditor project - the pixels of a ProjectImage that its
+ *  operations are restricted to.  A selection is built from rectangles and
+ *  from masks - either a bitmap, or the runs of selected pixels in each row
+ *  - which can be combined by union and intersection.
+ *
+ *  However it was built, a selection is held as runs: for each row from the
+ *  first that holds a selected pixel to the last, the columns at which each
+ *  run of selected pixels starts and ends, in order, with no two runs
+ *  touching.  An operation restricted to a selection visits only the runs,
+ *  so its cost depends on the number of pixels selected and the number of
+ *  rows they lie in, not on the size of the image.
+ *
+ *  As in DirtyRegions, x is the column and y the row.  A selection may
+ *  reach outside the image - as it will after the image is made smaller -
+ *  and only the part of it inside the image is used.  Objects of this class
+ *  are immutable: combining selections returns a new one.
+ */
+
+package imageeditor;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+public final class Selection
+{
+    /** Constructor
+     *
+     *  @param firstRow the row the first row of runs belongs to
+     *  @param offsets where the runs of each row start in runs, with an
+     *         extra entry giving the end of the last row's
+     *  @param runs the start and end column of each run, in pairs
+     */
+    private Selection(int firstRow, int [] offsets, int [] runs)
+    {
+        // Rows with no runs at either end are dropped, so that the rows
+        // held are those the selected pixels lie in
+
+        int first = 0;
+        int end = offsets.length - 1;
+        while (first < end && offsets[first] == offsets[first + 1])
+            first ++;
+        while (end > first && offsets[end - 1] == offsets[end])
+            end --;
+        this.firstRow = first < end ? firstRow + first : 0;
+        this.offsets = Arrays.copyOfRange(offsets, first, end + 1);
+        this.runs = Arrays.copyOfRange(runs, this.offsets[0], this.offsets[end - first]);
+        for (int row = 0; row < this.offsets.length; row ++)
+            this.offsets[row] -= offsets[first];
+
+        long count = 0;
+        int left = Integer.MAX_VALUE;
+        int right = Integer.MIN_VALUE;
+        for (int run = 0; run < this.runs.length; run += 2)
+        {
+            count += this.runs[run + 1] - this.runs[run];
+            left = Math.min(left, this.runs[run]);
+            right = Math.max(right, this.runs[run + 1]);
+        }
+        area = count;
+        bounds = count == 0 ? new Rectangle()
+                            : new Rectangle(left, this.firstRow, right - left,
+                                            this.offsets.length - 1);
+    }
+
+    /** Select a rectangle
+     *
+     *  @param x the first column selected
+     *  @param y the first row selected
+     *  @param width the number of columns selected
+     *  @param height the number of rows selected
+     *  @return the selection
+     *  @exception IllegalArgumentException if width or height is negative
+     */
+    public static Selection rectangle(int x, int y, int width, int height)
+    {
+        if (width < 0 || height < 0)
+            throw new IllegalArgumentException("Size must not be negative");
+        if (width == 0 || height == 0)
+            return EMPTY;
+        int [] offsets = new int [height + 1];
+        int [] runs = new int [2 * height];
+        for (int row = 0; row < height; row ++)
+        {
+            runs[2 * row] = x;
+            runs[2 * row + 1] = x + width;
+            offsets[row + 1] = 2 * row + 2;
+        }
+        return new Selection(y, offsets, runs);
+    }
+
+    /** Select the pixels set in a bitmap
+     *
+     *  @param x the column of the image that column 0 of the mask covers
+     *  @param y the row of the image that row 0 of the mask covers
+     *  @param mask for each row, true for each column selected.  The rows
+     *         need not all be the same length
+     *  @return the selection
+     */
+    public static Selection fromMask(int x, int y, boolean [] [] mask)
+    {
+        RunBuilder builder = new RunBuilder(mask.length);
+        for (int row = 0; row < mask.length; row ++)
+        {
+            boolean [] line = mask[row];
+            int col = 0;
+            while (col < line.length)
+            {
+                if (! line[col])
+                {
+                    col ++;
+                    continue;
+                }
+                int start = col;
+                while (col < line.length && line[col])
+                    col ++;
+                builder.add(x + start, x + col);
+            }
+            builder.endRow();
+        }
+        return builder.build(y);
+    }
+
+    /** Select the runs of pixels given for each row - a mask encoded by
+     *  runs
+     *
+     *  @param y the row of the image that row 0 of runs covers
+     *  @param runs for each row, the first and last + 1 column of each run
+     *         of selected pixels, in pairs.  The runs may be in any order,
+     *         and may overlap
+     *  @return the selection
+     *  @exception IllegalArgumentException if a row has an odd number of
+     *             columns, or a run ends before it starts
+     */
+    public static Selection fromRuns(int y, int [] [] runs)
+    {
+        RunBuilder builder = new RunBuilder(runs.length);
+        for (int row = 0; row < runs.length; row ++)
+        {
+            int [] line = runs[row];
+            if (line.length % 2 != 0)
+                throw new IllegalArgumentException("Runs must come in pairs");
+
+            // Sort the runs by where they start, so that overlapping ones
+            // can be merged as they are added
+
+            long [] sorted = new long [line.length / 2];
+            for (int run = 0; run < sorted.length; run ++)
+            {
+                if (line[2 * run + 1] < line[2 * run])
+                    throw new IllegalArgumentException("Run ends before it starts");
+                sorted[run] = (long) line[2 * run] << 32 | line[2 * run + 1] & 0xffffffffL;
+            }
+            Arrays.sort(sorted);
+            for (long run : sorted)
+                builder.add((int) (run >> 32), (int) run);
+            builder.endRow();
+        }
+        return builder.build(y);
+    }
+
+    /**************************************************************************
+     * Accessors
+     *************************************************************************/
+
+    /** Find out whether anything is selected
+     *
+     *  @return true if no pixel is
+     */
+    public boolean isEmpty()
+    {
+        return area == 0;
+    }
+
+    /** Count the pixels selected
+     *
+     *  @return the number of pixels
+     */
+    public long getArea()
+    {
+        return area;
+    }
+
+    /** Get the smallest rectangle holding every pixel selected
+     *
+     *  @return the rectangle - empty, at (0, 0), if nothing is selected
+     */
+    public Rectangle getBounds()
+    {
+        return new Rectangle(bounds);
+    }
+
+    /** Find out whether a pixel is selected
+     *
+     *  @param x the column of the pixel
+     *  @param y the row of the pixel
+     *  @return true if it is
+     */
+    public boolean contains(int x, int y)
+    {
+        int row = y - firstRow;
+        if (row < 0 || row >= getRowCount())
+            return false;
+        for (int run = offsets[row]; run < offsets[row + 1]; run += 2)
+            if (x < runs[run])
+                return false;
+            else if (x < runs[run + 1])
+                return true;
+        return false;
+    }
+
+    /**************************************************************************
+     * Combining selections
+     *************************************************************************/
+
+    /** Select the pixels in either this selection or another
+     *
+     *  @param other the other selection
+     *  @return the union of the two
+     */
+    public Selection union(Selection other)
+    {
+        return combine(other, false);
+    }
+
+    /** Select the pixels in both this selection and another - for instance
+     *  the pixels of a mask that lie within a rectangle
+     *
+     *  @param other the other selection
+     *  @return the intersection of the two
+     */
+    public Selection intersection(Selection other)
+    {
+        return combine(other, true);
+    }
+
+    /** Select the pixels of this selection that lie within a rectangle
+     *
+     *  @param x the first column of the rectangle
+     *  @param y the first row of the rectangle
+     *  @param width the number of columns in the rectangle
+     *  @param height the number of rows in the rectangle
+     *  @return the pixels selected within it
+     */
+    Selection clipped(int x, int y, int width, int height)
+    {
+        if (bounds.x >= x && bounds.y >= y && bounds.x + bounds.width <= x + width
+            && bounds.y + bounds.height <= y + height)
+            return this;
+        return intersection(rectangle(x, y, Math.max(width, 0), Math.max(height, 0)));
+    }
+
+    /** Move this selection
+     *
+     *  @param dx the number of columns to move it right
+     *  @param dy the number of rows to move it down
+     *  @return the selection moved
+     */
+    Selection moved(int dx, int dy)
+    {
+        if (dx == 0 && dy == 0)
+            return this;
+        int [] movedRuns = runs.clone();
+        for (int run = 0; run < movedRuns.length; run ++)
+            movedRuns[run] += dx;
+        return new Selection(firstRow + dy, offsets, movedRuns);
+    }
+
+    /** Combine this selection with another, a row at a time
+     *
+     *  @param other the other selection
+     *  @param intersect true to select the pixels in both, false to select
+     *         those in either
+     *  @return the combined selection
+     */
+    private Selection combine(Selection other, boolean intersect)
+    {
+        if (isEmpty() || other.isEmpty())
+            return intersect ? EMPTY : isEmpty() ? other : this;
+        int top = intersect ? Math.max(firstRow, other.firstRow)
+                            : Math.min(firstRow, other.firstRow);
+        int bottom = intersect ? Math.min(firstRow + getRowCount(),
+                                          other.firstRow + other.getRowCount())
+                               : Math.max(firstRow + getRowCount(),
+                                          other.firstRow + other.getRowCount());
+        if (bottom <= top)
+            return EMPTY;
+        RunBuilder builder = new RunBuilder(bottom - top);
+        for (int y = top; y < bottom; y ++)
+        {
+            int row = y - firstRow;
+            int otherRow = y - other.firstRow;
+            int run = row >= 0 && row < getRowCount() ? offsets[row] : 0;
+            int end = row >= 0 && row < getRowCount() ? offsets[row + 1] : 0;
+            int otherRun = otherRow >= 0 && otherRow < other.getRowCount()
+                           ? other.offsets[otherRow] : 0;
+            int otherEnd = otherRow >= 0 && otherRow < other.getRowCount()
+                           ? other.offsets[otherRow + 1] : 0;
+            if (intersect)
+            {
+                // Each overlap of a run of this row with one of the other
+                // row is selected.  Whichever run ends first is done with
+
+                while (run < end && otherRun < otherEnd)
+                {
+                    int start = Math.max(runs[run], other.runs[otherRun]);
+                    int stop = Math.min(runs[run + 1], other.runs[otherRun + 1]);
+                    if (start < stop)
+                        builder.add(start, stop);
+                    if (runs[run + 1] < other.runs[otherRun + 1])
+                        run += 2;
+                    else
+                        otherRun += 2;
+                }
+            }
+            else
+            {
+                // Take whichever run starts first, merging it with any run
+                // already added that it touches
+
+                while (run < end || otherRun < otherEnd)
+                    if (otherRun >= otherEnd
+                        || run < end && runs[run] <= other.runs[otherRun])
+                    {
+                        builder.add(runs[run], runs[run + 1]);
+                        run += 2;
+                    }
+                    else
+                    {
+                        builder.add(other.runs[otherRun], other.runs[otherRun + 1]);
+                        otherRun += 2;
+                    }
+            }
+            builder.endRow();
+        }
+        return builder.build(top);
+    }
+
+    /** Collects runs a row at a time, merging each with the one before it if
+     *  they touch.  Runs must be added in order of where they start
+     */
+    private static class RunBuilder
+    {
+        /** Constructor
+         *
+         *  @param rows the number of rows that will be added
+         */
+        RunBuilder(int rows)
+        {
+            offsets = new int [rows + 1];
+            runs = new int [2 * rows];
+        }
+
+        /** Add a run to the current row
+         *
+         *  @param start the first column of the run
+         *  @param end the column after the last
+         */
+        void add(int start, int end)
+        {
+            if (start >= end)
+                return;
+            if (count > offsets[row] && start <= runs[count - 1])
+            {
+                runs[count - 1] = Math.max(runs[count - 1], end);
+                return;
+            }
+            if (count == runs.length)
+                runs = Arrays.copyOf(runs, 2 * runs.length + 2);
+            runs[count ++] = start;
+            runs[count ++] = end;
+        }
+
+        /** Finish the current row and start the next
+         */
+        void endRow()
+        {
+            offsets[++ row] = count;
+        }
+
+        /** Make the selection from the rows added
+         *
+         *  @param firstRow the row of the image the first row covers
+         *  @return the selection
+         */
+        Selection build(int firstRow)
+        {
+            return new Selection(firstRow, offsets, runs);
+        }
+
+        // The runs added so far, and where each row's start
+
+        private int [] offsets;
+        private int [] runs;
+        private int row;
+        private int count;
+    }
+
+    /**************************************************************************
+     * Access to the runs, for the code that carries operations out
+     *************************************************************************/
+
+    /** Get the row the first row of runs belongs to
+     *
+     *  @return the row - the top of the bounds
+     */
+    int getFirstRow()
+    {
+        return firstRow;
+    }
+
+    /** Get the number of rows of runs
+     *
+     *  @return the number of rows from the first holding a selected pixel to
+     *          the last
+     */
+    int getRowCount()
+    {
+        return offsets.length - 1;
+    }
+
+    /** Get where the runs of each row start in getRuns()
+     *
+     *  @return the index of the first run of each row, and then the number
+     *          of entries in getRuns().  The array must not be changed
+     */
+    int [] getOffsets()
+    {
+        return offsets;
+    }
+
+    /** Get the runs
+     *
+     *  @return the first and last + 1 column of each run, in pairs, row by
+     *          row.  The array must not be changed
+     */
+    int [] getRuns()
+    {
+        return runs;
+    }
+
+    // Nothing selected
+
+    public static final Selection EMPTY = new Selection(0, new int [1], new int [0]);
+
+    // The runs of the rows from firstRow on - those of row firstRow + i are
+    // runs[offsets[i]] .. runs[offsets[i + 1] - 1]
+
+    private final int firstRow;
+    private final int [] offsets;
+    private final int [] runs;
+
+    // Worked out from the runs
+
+    private final long area;
+    private final Rectangle bounds;
+}
@@ -0,0 +1,385 @@
+/* SelectionKernels.java
+ *
+ *  Part of ImageEditor project - carries out the operations of a
+ *  ProjectImage on the pixels of a Selection only.  Each method is given a
+ *  buffer and the selection moved so that its (0, 0) is the buffer's first
+ *  pixel, and visits only the runs of the selection, row by row - so its
+ *  cost depends on how many pixels are selected rather than on the size of
+ *  the buffer.
+ *
+ *  The buffer may be the whole image, a region of it, or a band of rows
+ *  read from an image kept off the heap; see RegionTask.
+ */
+
+package imageeditor;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+final class SelectionKernels
+{
+    // This class is not meant to be instantiated
+
+    private SelectionKernels()
+    {
+    }
+
+    /** Work on the pixels of an image that a selection covers, a region of
+     *  the image at a time
+     */
+    interface RegionTask
+    {
+        /** Process a region of the image
+         *
+         *  @param startRow the row of the image the region starts at
+         *  @param startCol the column of the image the region starts at
+         *  @param pixels the pixels of the region.  Any changes are written
+         *         back to the image
+         *  @param selected the pixels of the region to process, with (0, 0)
+         *         the first pixel of the region.  The region may hold more
+         *         pixels than these, for an operation that reads around them
+         */
+        void processRegion(int startRow, int startCol, PixelBuffer pixels,
+                           Selection selected);
+    }
+
+    /**************************************************************************
+     * Reading the selected pixels
+     *************************************************************************/
+
+    /** Count the selected pixels having each value in each channel
+     *
+     *  @param source the buffer holding the pixels
+     *  @param selected the pixels to count
+     *  @param color true to count red, green and blue separately
+     *  @return the counts for each channel, or null if some grayscale pixel
+     *          selected lies outside 0 .. 255
+     */
+    static int [] [] count(final PixelBuffer source, final Selection selected,
+                           final boolean color)
+    {
+        final int channels = color ? 3 : 1;
+        final int [] data = source.getData();
+        final byte [] bytes = source.getBytes();
+        final int [] offsets = selected.getOffsets();
+        final int [] runs = selected.getRuns();
+        final int firstRow = selected.getFirstRow();
+        final int [] [] [] bandCounts = new int [selected.getRowCount()] [] [];
+        final AtomicBoolean outOfRange = new AtomicBoolean(false);
+        ParallelEngine.forEachRow(selected.getRowCount(), rowCost(selected),
+                                  new ParallelEngine.RowTask() {
+            public void processRows(int startRow, int endRow)
+            {
+                int [] [] counts = new int [channels] [256];
+                for (int row = startRow; row < endRow; row ++)
+                {
+                    int rowStart = source.rowStart(firstRow + row);
+                    for (int run = offsets[row]; run < offsets[row + 1]; run += 2)
+                    {
+                        int start = rowStart + runs[run];
+                        int end = rowStart + runs[run + 1];
+                        if (color)
+                        {
+                            int [] red = counts[ImageStatistics.RED];
+                            int [] green = counts[ImageStatistics.GREEN];
+                            int [] blue = counts[ImageStatistics.BLUE];
+                            for (int i = start; i < end; i ++)
+                            {
+                                int pixel = data[i];
+                                red[pixel >> 16 & 0xff] ++;
+                                green[pixel >> 8 & 0xff] ++;
+                                blue[pixel & 0xff] ++;
+                            }
+                        }
+                        else if (bytes != null)
+                        {
+                            int [] gray = counts[0];
+                            for (int i = start; i < end; i ++)
+                                gray[bytes[i] & 0xff] ++;
+                        }
+                        else
+                        {
+                            int [] gray = counts[0];
+                            for (int i = start; i < end; i ++)
+                            {
+                                if ((data[i] & ~0xff) != 0)
+                                {
+                                    outOfRange.set(true);
+                                    return;
+                                }
+                                gray[data[i]] ++;
+                            }
+                        }
+                    }
+                }
+                bandCounts[startRow] = counts;
+            }
+        });
+        if (outOfRange.get())
+            return null;
+
+        // Each band left its counts in the entry for its first row
+
+        int [] [] result = new int [channels] [256];
+        for (int row = 0; row < bandCounts.length; row ++)
+            if (bandCounts[row] != null)
+                ImageStatistics.add(result, bandCounts[row]);
+        return result;
+    }
+
+    /** Add up the values of the selected pixels of a grayscale buffer of
+     *  ints, which may lie outside 0 .. 255
+     *
+     *  @param source the buffer holding the pixels
+     *  @param selected the pixels to add up
+     *  @return the total, which cannot overflow however many are selected
+     */
+    static long total(final PixelBuffer source, final Selection selected)
+    {
+        final int [] data = source.getData();
+        final int [] offsets = selected.getOffsets();
+        final int [] runs = selected.getRuns();
+        final int firstRow = selected.getFirstRow();
+        final long [] bandTotals = new long [selected.getRowCount()];
+        ParallelEngine.forEachRow(selected.getRowCount(), rowCost(selected),
+                                  new ParallelEngine.RowTask() {
+            public void processRows(int startRow, int endRow)
+            {
+                long total = 0;
+                for (int row = startRow; row < endRow; row ++)
+                {
+                    int rowStart = source.rowStart(firstRow + row);
+                    for (int run = offsets[row]; run < offsets[row + 1]; run += 2)
+                        for (int i = rowStart + runs[run]; i < rowStart + runs[run + 1]; i ++)
+                            total += data[i];
+                }
+                bandTotals[startRow] = total;
+            }
+        });
+        long total = 0;
+        for (int row = 0; row < bandTotals.length; row ++)
+            total += bandTotals[row];
+        return total;
+    }
+
+    /**************************************************************************
+     * Changing the selected pixels
+     *************************************************************************/
+
+    /** Pass each selected pixel through value maps
+     *
+     *  @param target the buffer holding the pixels, changed in place
+     *  @param selected the pixels to change
+     *  @param maps for a grayscale buffer, a single map, taking every value
+     *         selected to one in 0 .. 255 if the buffer holds bytes.  For
+     *         a color buffer, a map for red, green and blue
+     *  @param color true if the pixels are packed colors
+     */
+    static void applyMaps(final PixelBuffer target, final Selection selected,
+                          final int [] [] maps, final boolean color)
+    {
+        final int [] data = target.getData();
+        final byte [] bytes = target.getBytes();
+        final byte [] byteMap = new byte [256];
+        for (int value = 0; value < 256; value ++)
+            byteMap[value] = (byte) maps[0][value];
+        final int [] offsets = selected.getOffsets();
+        final int [] runs = selected.getRuns();
+        final int firstRow = selected.getFirstRow();
+        ParallelEngine.forEachRow(selected.getRowCount(), rowCost(selected),
+                                  new ParallelEngine.RowTask() {
+            public void processRows(int startRow, int endRow)
+            {
+                for (int row = startRow; row < endRow; row ++)
+                {
+                    int rowStart = target.rowStart(firstRow + row);
+                    for (int run = offsets[row]; run < offsets[row + 1]; run += 2)
+                    {
+                        int start = rowStart + runs[run];
+                        int end = rowStart + runs[run + 1];
+                        if (color)
+                        {
+                            int [] red = maps[ImageStatistics.RED];
+                            int [] green = maps[ImageStatistics.GREEN];
+                            int [] blue = maps[ImageStatistics.BLUE];
+                            for (int i = start; i < end; i ++)
+                            {
+                                int pixel = data[i];
+                                data[i] = pixel & ALPHA_MASK
+                                        | red[pixel >> 16 & 0xff] << 16
+                                        | green[pixel >> 8 & 0xff] << 8
+                                        | blue[pixel & 0xff];
+                            }
+                        }
+                        else if (bytes != null)
+                            for (int i = start; i < end; i ++)
+                                bytes[i] = byteMap[bytes[i] & 0xff];
+                        else
+                        {
+                            int [] gray = maps[0];
+                            for (int i = start; i < end; i ++)
+                                data[i] = gray[data[i]];
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /** Apply a point operation to each selected pixel of a grayscale buffer
+     *  of ints, whose values may lie outside 0 .. 255 so cannot index a map
+     *
+     *  @param target the buffer holding the pixels, changed in place
+     *  @param selected the pixels to change
+     *  @param operation the operation to apply
+     *  @param averageColor the average value of the selected pixels, if the
+     *         operation uses it
+     */
+    static void applyOperation(final PixelBuffer target, final Selection selected,
+                               final ProjectImage.PointOperation operation,
+                               final int averageColor)
+    {
+        final int [] data = target.getData();
+        final int [] offsets = selected.getOffsets();
+        final int [] runs = selected.getRuns();
+        final int firstRow = selected.getFirstRow();
+        ParallelEngine.forEachRow(selected.getRowCount(), rowCost(selected),
+                                  new ParallelEngine.RowTask() {
+            public void processRows(int startRow, int endRow)
+            {
+                for (int row = startRow; row < endRow; row ++)
+                {
+                    int rowStart = target.rowStart(firstRow + row);
+                    for (int run = offsets[row]; run < offsets[row + 1]; run += 2)
+                        for (int i = rowStart + runs[run]; i < rowStart + runs[run + 1]; i ++)
+                            data[i] = operation.apply(data[i], averageColor);
+                }
+            }
+        });
+    }
+
+    /** Encrypt or decrypt the selected pixels with a keystream, giving each
+     *  the value it would have if the whole image were encrypted
+     *
+     *  @param target the buffer holding the pixels, changed in place
+     *  @param selected the pixels to change
+     *  @param keystream the keystream
+     *  @param color true if the pixels are packed colors
+     *  @param startRow the row of the image the buffer starts at
+     *  @param startCol the column of the image the buffer starts at
+     *  @param imageWidth the width of the whole image
+     */
+    static void encrypt(final PixelBuffer target, final Selection selected,
+                        final CounterKeystream keystream, final boolean color,
+                        final int startRow, final int startCol, final long imageWidth)
+    {
+        final int [] offsets = selected.getOffsets();
+        final int [] runs = selected.getRuns();
+        final int firstRow = selected.getFirstRow();
+        ParallelEngine.forEachRow(selected.getRowCount(), rowCost(selected),
+                                  new ParallelEngine.RowTask() {
+            public void processRows(int startSelectedRow, int endSelectedRow)
+            {
+                for (int row = startSelectedRow; row < endSelectedRow; row ++)
+                {
+                    int rowStart = target.rowStart(firstRow + row);
+                    long rowIndex = (startRow + firstRow + row) * imageWidth + startCol;
+                    for (int run = offsets[row]; run < offsets[row + 1]; run += 2)
+                    {
+                        int count = runs[run + 1] - runs[run];
+                        if (target.holdsBytes())
+                            keystream.apply(target.getBytes(), rowStart + runs[run], count,
+                                            rowIndex + runs[run]);
+                        else
+                            keystream.apply(target.getData(), rowStart + runs[run], count,
+                                            rowIndex + runs[run], color);
+                    }
+                }
+            }
+        });
+    }
+
+    /** Encrypt or decrypt the selected pixels of a buffer of ints as
+     *  ProjectImage.encryptDecrypt(seed) does, taking the random numbers in
+     *  order, one pixel at a time
+     *
+     *  @param target the buffer holding the pixels, changed in place
+     *  @param selected the pixels to change
+     *  @param random the source of the random numbers, carried on from any
+     *         pixels selected in earlier regions
+     *  @param seed the key
+     */
+    static void encrypt(PixelBuffer target, Selection selected, Random random, int seed)
+    {
+        int [] data = target.getData();
+        int [] offsets = selected.getOffsets();
+        int [] runs = selected.getRuns();
+        for (int row = 0; row < selected.getRowCount(); row ++)
+        {
+            int rowStart = target.rowStart(selected.getFirstRow() + row);
+            for (int run = offsets[row]; run < offsets[row + 1]; run += 2)
+                for (int i = rowStart + runs[run]; i < rowStart + runs[run + 1]; i ++)
+                    data[i] = data[i] ^ seed + random.nextInt(MAX_BRIGHTNESS + 1);
+        }
+    }
+
+    /** Copy the selected pixels of one buffer of ints into another buffer
+     *  the same size, such as the result of filtering the other
+     *
+     *  @param source the buffer to copy from
+     *  @param target the buffer to copy into.  If it holds bytes, the
+     *         values copied must lie in 0 .. 255
+     *  @param selected the pixels to copy
+     */
+    static void copy(final PixelBuffer source, final PixelBuffer target,
+                     final Selection selected)
+    {
+        final int [] data = source.getData();
+        final int [] targetData = target.getData();
+        final byte [] targetBytes = target.getBytes();
+        final int [] offsets = selected.getOffsets();
+        final int [] runs = selected.getRuns();
+        final int firstRow = selected.getFirstRow();
+        ParallelEngine.forEachRow(selected.getRowCount(), rowCost(selected),
+                                  new ParallelEngine.RowTask() {
+            public void processRows(int startRow, int endRow)
+            {
+                for (int row = startRow; row < endRow; row ++)
+                {
+                    int src = source.rowStart(firstRow + row);
+                    int dst = target.rowStart(firstRow + row);
+                    for (int run = offsets[row]; run < offsets[row + 1]; run += 2)
+                    {
+                        int start = runs[run];
+                        int count = runs[run + 1] - start;
+                        if (targetBytes == null)
+                            System.arraycopy(data, src + start, targetData, dst + start, count);
+                        else
+                            for (int i = start; i < start + count; i ++)
+                                targetBytes[dst + i] = (byte) data[src + i];
+                    }
+                }
+            }
+        });
+    }
+
+    /**************************************************************************
+     * Helpers
+     *************************************************************************/
+
+    /** Work out the cost of a row of a selection, for ParallelEngine
+     *
+     *  @param selected the selection
+     *  @return the average number of pixels selected in each of its rows
+     */
+    private static int rowCost(Selection selected)
+    {
+        return (int) Math.min(Integer.MAX_VALUE,
+                              selected.getArea() / Math.max(1, selected.getRowCount()));
+    }
+
+    // Constants
+
+    private static final int ALPHA_MASK = 0xff000000;
+    private static final int MAX_BRIGHTNESS = 255;
+}
@@ -0,0 +1,280 @@
+/* BaselineImage.java
+ *
+ *  Part of ImageEditor project - the grayscale operations as ProjectImage
+ *  first carried them out, one pixel at a time on a two-dimensional array,
+ *  for the tests to compare the present implementation with.  Filters whose
+ *  weights are fractions such as tenths are now rounded exactly, which the
+ *  original's double sums were not, so that rounding is here too.
+ */
+
+package imageeditor;
+
+import java.util.Random;
+
+final class BaselineImage
+{
+    /** Constructor
+     *
+     *  @param pixels the grayscale values of the image, which are copied
+     */
+    BaselineImage(int [] [] pixels)
+    {
+        this.pixels = TestImages.copy(pixels);
+    }
+
+    /** Get the pixels
+     *
+     *  @return the pixels of this image
+     */
+    int [] [] getPixels()
+    {
+        return pixels;
+    }
+
+    /** Lighten the image, stopping at 255
+     */
+    void lighten()
+    {
+        for (int [] row : pixels)
+            for (int col = 0; col < row.length; col ++)
+                row[col] = Math.min(row[col] + AMOUNT, 255);
+    }
+
+    /** Darken the image, stopping at 0
+     */
+    void darken()
+    {
+        for (int [] row : pixels)
+            for (int col = 0; col < row.length; col ++)
+                row[col] = Math.max(row[col] - AMOUNT, 0);
+    }
+
+    /** Get the negative of the image
+     */
+    void negative()
+    {
+        for (int [] row : pixels)
+            for (int col = 0; col < row.length; col ++)
+                row[col] = 255 - row[col];
+    }
+
+    /** Reduce the contrast.  Values are not forced into 0 .. 255
+     */
+    void reduceContrast()
+    {
+        int average = average();
+        for (int [] row : pixels)
+            for (int col = 0; col < row.length; col ++)
+                if (row[col] > average)
+                    row[col] -= AMOUNT;
+                else if (row[col] < average)
+                    row[col] += AMOUNT;
+    }
+
+    /** Increase the contrast.  Every value is forced into 0 .. 255
+     *  afterwards, even one left as it was
+     */
+    void enhanceContrast()
+    {
+        int average = average();
+        for (int [] row : pixels)
+            for (int col = 0; col < row.length; col ++)
+            {
+                int value = row[col];
+                if (value > average)
+                    value += AMOUNT;
+                else if (value < average)
+                    value -= AMOUNT;
+                row[col] = Math.max(0, Math.min(255, value));
+            }
+    }
+
+    /** Flip the image horizontally
+     */
+    void flipHorizontally()
+    {
+        int width = pixels[0].length;
+        int [] [] newPixels = new int [pixels.length] [width];
+        for (int row = 0; row < pixels.length; row ++)
+            for (int col = 0; col < width; col ++)
+                newPixels[row][col] = pixels[row][width - 1 - col];
+        pixels = newPixels;
+    }
+
+    /** Flip the image vertically
+     */
+    void flipVertically()
+    {
+        int [] [] newPixels = new int [pixels.length] [];
+        for (int row = 0; row < pixels.length; row ++)
+            newPixels[row] = pixels[pixels.length - 1 - row];
+        pixels = newPixels;
+    }
+
+    /** Encrypt or decrypt the image
+     *
+     *  @param seed the key
+     */
+    void encryptDecrypt(int seed)
+    {
+        Random random = new Random(seed);
+        for (int [] row : pixels)
+            for (int col = 0; col < row.length; col ++)
+                row[col] ^= seed + random.nextInt(256);
+    }
+
+    /** Count the pixels having each value
+     *
+     *  @return the counts, for values 0 .. 255
+     */
+    int [] calculateHistogram()
+    {
+        int [] histogram = new int [256];
+        for (int [] row : pixels)
+            for (int value : row)
+                histogram[value] ++;
+        return histogram;
+    }
+
+    /** Scale the image by a factor of 0.5 in each dimension
+     */
+    void halve()
+    {
+        int [] [] newPixels = new int [pixels.length / 2] [pixels[0].length / 2];
+        for (int row = 0; row < newPixels.length; row ++)
+            for (int col = 0; col < newPixels[row].length; col ++)
+                newPixels[row][col] = (pixels[2 * row][2 * col] + pixels[2 * row + 1][2 * col]
+                                       + pixels[2 * row][2 * col + 1]
+                                       + pixels[2 * row + 1][2 * col + 1]) / 4;
+        pixels = newPixels;
+    }
+
+    /** Shift the image, wrapping the columns that fall off one edge round
+     *  to the other
+     *
+     *  @param x the number of columns to shift right by
+     */
+    void shiftHorizontally(int x)
+    {
+        int width = pixels[0].length;
+        int [] [] newPixels = new int [pixels.length] [width];
+        for (int row = 0; row < pixels.length; row ++)
+            for (int col = 0; col < width; col ++)
+                newPixels[row][Math.floorMod(col + x, width)] = pixels[row][col];
+        pixels = newPixels;
+    }
+
+    /** Shift the image, wrapping the rows that fall off one edge round to
+     *  the other
+     *
+     *  @param y the number of rows to shift down by
+     */
+    void shiftVertically(int y)
+    {
+        int [] [] newPixels = new int [pixels.length] [];
+        for (int row = 0; row < pixels.length; row ++)
+            newPixels[Math.floorMod(row + y, pixels.length)] = pixels[row];
+        pixels = newPixels;
+    }
+
+    /** Rotate the image 90 degrees clockwise
+     */
+    void rotate()
+    {
+        int height = pixels.length;
+        int [] [] newPixels = new int [pixels[0].length] [height];
+        for (int row = 0; row < newPixels.length; row ++)
+            for (int col = 0; col < height; col ++)
+                newPixels[row][col] = pixels[height - 1 - col][row];
+        pixels = newPixels;
+    }
+
+    /** Scale the image to twice its size less one pixel in each
+     *  dimension, averaging the pixels either side of each new one
+     */
+    void doubleSize()
+    {
+        int [] [] newPixels = new int [pixels.length * 2 - 1] [pixels[0].length * 2 - 1];
+        for (int row = 0; row < newPixels.length; row ++)
+            for (int col = 0; col < newPixels[row].length; col ++)
+            {
+                // Between two rows or columns, the average of the pixels
+                // before and after; between both, of the diagonal ones
+
+                int above = row / 2;
+                int below = (row + 1) / 2;
+                int left = col / 2;
+                int right = (col + 1) / 2;
+                newPixels[row][col] = (pixels[above][left] + pixels[below][right]) / 2;
+            }
+        pixels = newPixels;
+    }
+
+    /** Apply a filter, truncating each sum to an int.  The pixels too near
+     *  the edge for the filter to cover are left as they are
+     *
+     *  @param filter a square array of weights with an odd number of rows
+     */
+    void applyFilter(double [] [] filter)
+    {
+        int border = filter.length / 2;
+        int [] [] newPixels = TestImages.copy(pixels);
+        for (int row = border; row < pixels.length - border; row ++)
+            for (int col = border; col < pixels[row].length - border; col ++)
+            {
+                double sum = 0;
+                for (int y = 0; y < filter.length; y ++)
+                    for (int x = 0; x < filter.length; x ++)
+                        sum += filter[y][x] * pixels[row + y - border][col + x - border];
+                newPixels[row][col] = Math.max(0, Math.min(255, (int) sum));
+            }
+        pixels = newPixels;
+    }
+
+    /** Apply a filter whose weights are all fractions with a common
+     *  denominator, as ProjectImage now rounds it, whatever the values: each
+     *  value is the exact weighted sum rounded down, where the original's
+     *  double sums could land a whole number just below itself and lose a
+     *  level
+     *
+     *  @param numerators the numerators of the weights
+     *  @param denominator their common denominator
+     */
+    void applyFractionFilter(long [] [] numerators, long denominator)
+    {
+        int size = numerators.length;
+        int border = size / 2;
+        int [] [] newPixels = TestImages.copy(pixels);
+        for (int row = border; row < pixels.length - border; row ++)
+            for (int col = border; col < pixels[row].length - border; col ++)
+            {
+                long sum = 0;
+                for (int y = 0; y < size; y ++)
+                    for (int x = 0; x < size; x ++)
+                        sum += numerators[y][x] * pixels[row + y - border][col + x - border];
+                newPixels[row][col] = (int) Math.max(0, Math.min(255,
+                                                                 Math.floorDiv(sum, denominator)));
+            }
+        pixels = newPixels;
+    }
+
+    /** Find the average value of the pixels, rounded toward zero
+     *
+     *  @return the average
+     */
+    private int average()
+    {
+        int total = 0;
+        for (int [] row : pixels)
+            for (int value : row)
+                total += value;
+        return total / (pixels.length * pixels[0].length);
+    }
+
+    // Image data, and the amount lighten, darken and the contrast
+    // operations change values by
+
+    private int [] [] pixels;
+
+    private static final int AMOUNT = 3;
+}
@@ -0,0 +1,203 @@
+/* BufferedImageViewTest.java
+ *
+ *  Part of ImageEditor project - checks that the BufferedImage an image
+ *  gives for display shares its pixels: an edit shows through a
+ *  BufferedImage obtained before it, writing to the raster changes the
+ *  image, and gray values and colors are shown as the right RGB.
+ */
+
+package imageeditor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.Test;
+
+public class BufferedImageViewTest
+{
+    /** Gray values are shown as the gray of that value in each color - held
+     *  in bytes, and held in ints once a value outside 0 .. 255 is written
+     */
+    @Test
+    public void showsGrayValues()
+    {
+        int [] [] pixels = TestImages.random(new Random(1), HEIGHT, WIDTH);
+        ProjectImage image = TestImages.gray(pixels);
+        BufferedImage shown = image.getBufferedImage();
+        assertEquals(WIDTH, shown.getWidth());
+        assertEquals(HEIGHT, shown.getHeight());
+        assertFalse(shown.getColorModel().hasAlpha());
+        assertArrayEquals(grays(pixels), rgb(shown));
+
+        // Holding the pixels in ints replaces the buffer, so there is a new
+        // BufferedImage, reading the same 8 bits for each color
+
+        int [] outOfRange = new int [WIDTH];
+        outOfRange[0] = 300;
+        image.setRows(0, 1, outOfRange);
+        image.setRows(0, 1, new int [WIDTH]);
+        BufferedImage promoted = image.getBufferedImage();
+        assertNotSame(shown, promoted);
+        assertFalse(promoted.getColorModel().hasAlpha());
+        assertArrayEquals(grays(image.getPixels()), rgb(promoted));
+    }
+
+    /** Colors are shown as their red, green and blue, whatever alpha they
+     *  hold
+     */
+    @Test
+    public void showsColors()
+    {
+        int [] [] pixels = TestImages.randomColors(new Random(2), HEIGHT, WIDTH);
+        pixels[0][0] = 0x00123456;
+        pixels[0][1] = 0x80fedcba;
+        ProjectImage image = TestImages.color(pixels);
+        BufferedImage shown = image.getBufferedImage();
+        assertFalse(shown.getColorModel().hasAlpha());
+        int [] [] expected = new int [HEIGHT] [WIDTH];
+        for (int row = 0; row < HEIGHT; row ++)
+            for (int col = 0; col < WIDTH; col ++)
+                expected[row][col] = pixels[row][col] | 0xff000000;
+        assertArrayEquals(expected, rgb(shown));
+    }
+
+    /** Edits written into the pixels in place show through a BufferedImage
+     *  obtained before them, which is the one given again after them - rows
+     *  written at once, and point operations once it is asked for again
+     */
+    @Test
+    public void editsShowThroughEarlierImage()
+    {
+        Random random = new Random(3);
+        for (int kind = 0; kind < 2; kind ++)
+        {
+            boolean color = kind == 1;
+            int [] [] pixels = color ? TestImages.randomColors(random, HEIGHT, WIDTH)
+                                     : TestImages.random(random, HEIGHT, WIDTH);
+            ProjectImage image = color ? TestImages.color(pixels) : TestImages.gray(pixels);
+            BufferedImage shown = image.getBufferedImage();
+
+            int [] rows = new int [2 * WIDTH];
+            for (int i = 0; i < rows.length; i ++)
+                rows[i] = color ? random.nextInt() | 0xff000000 : random.nextInt(256);
+            image.setRows(5, 2, rows);
+            assertArrayEquals(shownAs(image.getPixels(), color), rgb(shown));
+
+            image.negative();
+            image.lighten();
+            assertSame(shown, image.getBufferedImage());
+            assertArrayEquals(shownAs(image.getPixels(), color), rgb(shown));
+
+            // Moving the pixels or changing the size replaces the buffer,
+            // and so the image
+
+            image.flipHorizontally();
+            BufferedImage flipped = image.getBufferedImage();
+            assertNotSame(shown, flipped);
+            assertArrayEquals(shownAs(image.getPixels(), color), rgb(flipped));
+
+            image.halve();
+            BufferedImage halved = image.getBufferedImage();
+            assertNotSame(flipped, halved);
+            assertEquals(WIDTH / 2, halved.getWidth());
+            assertArrayEquals(shownAs(image.getPixels(), color), rgb(halved));
+        }
+    }
+
+    /** Writing to the raster changes the image itself, for gray values held
+     *  in bytes and for colors
+     */
+    @Test
+    public void rasterWritesImage()
+    {
+        Random random = new Random(4);
+        ProjectImage gray = TestImages.gray(TestImages.random(random, HEIGHT, WIDTH));
+        WritableRaster raster = gray.getRaster();
+        assertSame(gray.getBufferedImage().getRaster(), raster);
+        raster.setSample(3, 7, 0, 201);
+        assertEquals(201, gray.getPixels()[7][3]);
+
+        int [] [] pixels = TestImages.randomColors(random, HEIGHT, WIDTH);
+        ProjectImage color = TestImages.color(pixels);
+        color.getRaster().setSample(3, 7, 0, 0x12);
+        assertEquals(pixels[7][3] & 0xff00ffff | 0x120000, color.getPixels()[7][3]);
+    }
+
+    /** An image kept off the heap gives a copy, which shows its pixels but
+     *  does not change it when written; an empty image gives none
+     */
+    @Test
+    public void mappedImageGivesCopy() throws IOException
+    {
+        int [] [] pixels = TestImages.random(new Random(5), HEIGHT, WIDTH);
+        ProjectImage image = TestImages.gray(pixels);
+        image.useMappedStorage();
+        BufferedImage shown = image.getBufferedImage();
+        assertArrayEquals(grays(pixels), rgb(shown));
+        shown.getRaster().setSample(0, 0, 0, pixels[0][0] ^ 0xff);
+        assertArrayEquals(pixels, image.getPixels());
+
+        ProjectImage empty = TestImages.gray(new int [1] [1]);
+        empty.halve();
+        assertNull(empty.getBufferedImage());
+        assertNull(empty.getRaster());
+    }
+
+    /** Read the colors shown by an image
+     *
+     *  @param image the image
+     *  @return its pixels as RGB, with alpha of 0xff
+     */
+    private static int [] [] rgb(BufferedImage image)
+    {
+        int [] [] result = new int [image.getHeight()] [image.getWidth()];
+        for (int row = 0; row < result.length; row ++)
+            for (int col = 0; col < result[row].length; col ++)
+                result[row][col] = image.getRGB(col, row);
+        return result;
+    }
+
+    /** Work out the colors that pixels should be shown as
+     *
+     *  @param pixels the pixels
+     *  @param color true if they are colors, false if gray values
+     *  @return the colors, with alpha of 0xff
+     */
+    private static int [] [] shownAs(int [] [] pixels, boolean color)
+    {
+        if (! color)
+            return grays(pixels);
+        int [] [] result = new int [pixels.length] [pixels[0].length];
+        for (int row = 0; row < pixels.length; row ++)
+            for (int col = 0; col < pixels[row].length; col ++)
+                result[row][col] = pixels[row][col] | 0xff000000;
+        return result;
+    }
+
+    /** Work out the grays that gray values should be shown as
+     *
+     *  @param pixels the gray values, in 0 .. 255
+     *  @return the grays, with alpha of 0xff
+     */
+    private static int [] [] grays(int [] [] pixels)
+    {
+        int [] [] result = new int [pixels.length] [pixels[0].length];
+        for (int row = 0; row < pixels.length; row ++)
+            for (int col = 0; col < pixels[row].length; col ++)
+                result[row][col] = 0xff000000 | pixels[row][col] * 0x10101;
+        return result;
+    }
+
+    // The size of the images
+
+    private static final int WIDTH = 37;
+    private static final int HEIGHT = 23;
+}
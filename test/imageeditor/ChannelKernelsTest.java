@@ -0,0 +1,201 @@
+/* ChannelKernelsTest.java
+ *
+ *  Part of ImageEditor project - checks the operations that work on several
+ *  colors of a pixel at once in one int against a plain loop over each color
+ *  in turn: every value and amount, values forced to 0 and 255, alpha kept,
+ *  and no carry or borrow reaching the next color.
+ */
+
+package imageeditor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import org.junit.Test;
+
+public class ChannelKernelsTest
+{
+    /** Lightening and darkening give each color, for every value and every
+     *  amount, what adding or subtracting it and forcing the result into
+     *  0 .. 255 does - with the other colors and alpha set to anything
+     */
+    @Test
+    public void lightenAndDarkenMatchEachColor()
+    {
+        Random random = new Random(1);
+        for (int amount = 0; amount <= 255; amount ++)
+            for (int value = 0; value <= 255; value ++)
+            {
+                int pixel = random.nextInt(256) << 24 | value << 16
+                          | (255 - value) << 8 | (value * 37 + amount) & 0xff;
+                assertEquals(perColor(pixel, amount), ChannelKernels.lighten(pixel, amount));
+                assertEquals(perColor(pixel, -amount), ChannelKernels.darken(pixel, amount));
+            }
+        for (int trial = 0; trial < 100000; trial ++)
+        {
+            int pixel = random.nextInt();
+            int amount = random.nextInt(256);
+            assertEquals(perColor(pixel, amount), ChannelKernels.lighten(pixel, amount));
+            assertEquals(perColor(pixel, -amount), ChannelKernels.darken(pixel, amount));
+        }
+    }
+
+    /** A color forced to 255 or 0 does not carry into or borrow from the
+     *  colors beside it, or alpha
+     */
+    @Test
+    public void saturationStaysInItsColor()
+    {
+        assertEquals(0x00ff01ff, ChannelKernels.lighten(0x00ff00ff, 1));
+        assertEquals(0x7f01ff01, ChannelKernels.lighten(0x7f00ff00, 1));
+        assertEquals(0xffffffff, ChannelKernels.lighten(0xffffffff, 255));
+        assertEquals(0x00ffffff, ChannelKernels.lighten(0x00010101, 255));
+        assertEquals(0xff00fe00, ChannelKernels.darken(0xff00ff00, 1));
+        assertEquals(0x80fe00fe, ChannelKernels.darken(0x80ff00ff, 1));
+        assertEquals(0x00000000, ChannelKernels.darken(0x00000000, 255));
+        assertEquals(0xff000000, ChannelKernels.darken(0xfffefefe, 255));
+    }
+
+    /** Averages of two and four pixels round each color, and alpha, down
+     *  as a plain average does, without one lane reaching the next
+     */
+    @Test
+    public void averagesMatchEachColor()
+    {
+        Random random = new Random(2);
+        int [] extremes = { 0, 0xffffffff, 0xff000000, 0x00ffffff, 0x00ff00ff, 0xff00ff00,
+                            0x01010101, 0xfefefefe };
+        for (int a : extremes)
+            for (int b : extremes)
+            {
+                assertEquals(average(a, b), ChannelKernels.average2(a, b));
+                for (int c : extremes)
+                    for (int d : extremes)
+                        assertEquals(average(a, b, c, d), ChannelKernels.average4(a, b, c, d));
+            }
+        for (int trial = 0; trial < 100000; trial ++)
+        {
+            int a = random.nextInt();
+            int b = random.nextInt();
+            int c = random.nextInt();
+            int d = random.nextInt();
+            assertEquals(average(a, b), ChannelKernels.average2(a, b));
+            assertEquals(average(a, b, c, d), ChannelKernels.average4(a, b, c, d));
+        }
+    }
+
+    /** Lightening, darkening and negative over a buffer, once or many times,
+     *  match a loop applying the operation to each color, and keep alpha
+     */
+    @Test
+    public void pointOperationsMatchEachColor()
+    {
+        Random random = new Random(3);
+        ProjectImage.PointOperation [] operations = {
+            ProjectImage.PointOperation.LIGHTEN, ProjectImage.PointOperation.DARKEN,
+            ProjectImage.PointOperation.NEGATIVE
+        };
+        int [] timesTried = { 1, 2, 7, 100 };
+        for (ProjectImage.PointOperation operation : operations)
+            for (int times : timesTried)
+            {
+                int [] [] pixels = new int [37] [53];
+                for (int [] row : pixels)
+                    for (int col = 0; col < row.length; col ++)
+                        row[col] = random.nextInt();
+                PixelBuffer buffer = PixelBuffer.fromArray(pixels);
+                ChannelKernels.applyPointOperation(buffer, operation, times,
+                                                   ChannelKernels.channelMaps(operation, null));
+                int [] [] expected = new int [pixels.length] [pixels[0].length];
+                for (int row = 0; row < pixels.length; row ++)
+                    for (int col = 0; col < pixels[0].length; col ++)
+                    {
+                        int pixel = pixels[row][col];
+                        for (int time = 0; time < times; time ++)
+                            pixel = perColor(pixel, operation);
+                        expected[row][col] = pixel;
+                    }
+                assertArrayEquals(operation + " " + times + " times", expected,
+                                  buffer.toArray());
+            }
+    }
+
+    /** Halving and doubling a buffer average each color as a plain loop
+     *  does
+     */
+    @Test
+    public void scalingMatchesEachColor()
+    {
+        Random random = new Random(4);
+        int [] [] pixels = new int [29] [41];
+        for (int [] row : pixels)
+            for (int col = 0; col < row.length; col ++)
+                row[col] = random.nextInt();
+        PixelBuffer source = PixelBuffer.fromArray(pixels);
+
+        int [] [] halved = new int [14] [20];
+        for (int row = 0; row < 14; row ++)
+            for (int col = 0; col < 20; col ++)
+                halved[row][col] = average(pixels[2 * row][2 * col], pixels[2 * row][2 * col + 1],
+                                           pixels[2 * row + 1][2 * col],
+                                           pixels[2 * row + 1][2 * col + 1]);
+        assertArrayEquals(halved, ChannelKernels.halved(source, BufferPool.NONE).toArray());
+
+        int [] [] doubled = new int [57] [81];
+        for (int row = 0; row < 57; row ++)
+            for (int col = 0; col < 81; col ++)
+                doubled[row][col] = average(pixels[row / 2][col / 2],
+                                            pixels[(row + 1) / 2][(col + 1) / 2]);
+        assertArrayEquals(doubled, ChannelKernels.doubled(source, BufferPool.NONE).toArray());
+    }
+
+    /** Add an amount to each color of a pixel, one color at a time, forcing
+     *  each into 0 .. 255 and keeping alpha
+     *
+     *  @param pixel the pixel
+     *  @param amount the amount to add - negative to subtract
+     *  @return the result
+     */
+    private static int perColor(int pixel, int amount)
+    {
+        int result = pixel & 0xff000000;
+        for (int shift = 0; shift < 24; shift += 8)
+            result |= Math.max(0, Math.min(255, (pixel >>> shift & 0xff) + amount)) << shift;
+        return result;
+    }
+
+    /** Apply a point operation to each color of a pixel, one color at a
+     *  time, forcing each into 0 .. 255 and keeping alpha
+     *
+     *  @param pixel the pixel
+     *  @param operation the operation, which must not use the average
+     *  @return the result
+     */
+    private static int perColor(int pixel, ProjectImage.PointOperation operation)
+    {
+        int result = pixel & 0xff000000;
+        for (int shift = 0; shift < 24; shift += 8)
+            result |= Math.max(0, Math.min(255, operation.apply(pixel >>> shift & 0xff, 0)))
+                      << shift;
+        return result;
+    }
+
+    /** Average pixels one byte at a time, alpha included, rounding down
+     *
+     *  @param pixels the pixels
+     *  @return the average
+     */
+    private static int average(int ... pixels)
+    {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 8)
+        {
+            int sum = 0;
+            for (int pixel : pixels)
+                sum += pixel >>> shift & 0xff;
+            result |= sum / pixels.length << shift;
+        }
+        return result;
+    }
+}
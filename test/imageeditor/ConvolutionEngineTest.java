@@ -0,0 +1,267 @@
+/* ConvolutionEngineTest.java
+ *
+ *  Part of ImageEditor project - checks that filters are rounded as exact
+ *  arithmetic would round them.  A filter whose weights are all fractions
+ *  with a common denominator D, such as the tenths of Sharpen, gives each
+ *  pixel the value floor(sum of numerator * pixel / D), forced into
+ *  0 .. 255, whichever way ConvolutionEngine chooses to apply it and
+ *  whatever the pixel values.
+ */
+
+package imageeditor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+public class ConvolutionEngineTest
+{
+    /** Sharpen leaves an image of a single value as it is.  The original
+     *  loop summed the tenths in doubles and so darkened such an image by
+     *  one level for many values, 1 among them
+     */
+    @Test
+    public void sharpenLeavesFlatImageUnchanged()
+    {
+        for (int value = 0; value <= 255; value ++)
+        {
+            int [] [] pixels = TestImages.flat(7, 9, value);
+            ProjectImage image = TestImages.gray(pixels);
+            image.applyFilter(SHARPEN);
+            assertArrayEquals("value " + value, pixels, image.getPixels());
+        }
+    }
+
+    /** Sharpen gives exactly floor((18 * center - neighbors) / 10)
+     */
+    @Test
+    public void sharpenRoundsExactTenths()
+    {
+        checkExact(SHARPEN_NUMERATORS, 10, new Random(1));
+    }
+
+    /** Blur and Edges, whose weights fixed-point holds exactly, give exact
+     *  results too
+     */
+    @Test
+    public void blurAndEdgesRoundExactly()
+    {
+        checkExact(new long [] [] { { 1, 1, 1 }, { 1, 8, 1 }, { 1, 1, 1 } }, 16, new Random(2));
+        checkExact(new long [] [] { { -1, -1, -1, -1, -1 },
+                                    { -1,  1,  1,  1, -1 },
+                                    { -1,  1,  8,  1, -1 },
+                                    { -1,  1,  1,  1, -1 },
+                                    { -1, -1, -1, -1, -1 } }, 1, new Random(3));
+    }
+
+    /** Weights whose denominator is too large for a rounding bias to be
+     *  safe are never lifted past a whole number
+     */
+    @Test
+    public void largeDenominatorsRoundExactly()
+    {
+        Random random = new Random(4);
+        checkExact(randomNumerators(random, 3, 1, 200000), 1000003, random);
+        checkExact(randomNumerators(random, 3, 1, 200), 999, random);
+        checkExact(randomNumerators(random, 5, -30, 90), 999, random);
+    }
+
+    /** Box, separable and large filters, which take the other paths, round
+     *  exactly as well
+     */
+    @Test
+    public void otherPathsRoundExactly()
+    {
+        Random random = new Random(5);
+        checkExact(randomNumerators(random, 3, 1, 1), 9, random);
+        checkExact(new long [] [] { { 1, 3, 1 }, { 3, 9, 3 }, { 1, 3, 1 } }, 25, random);
+        checkExact(randomNumerators(random, 15, -20, 40), 225, random);
+    }
+
+    /** Pixels outside 0 .. 255, such as those of an encrypted image, are
+     *  filtered with the same exact rounding
+     */
+    @Test
+    public void outOfRangeValuesRoundExactly()
+    {
+        Random random = new Random(8);
+        long [] [] [] numerators = {
+            SHARPEN_NUMERATORS, randomNumerators(random, 5, -30, 90),
+            randomNumerators(random, 15, 1, 1)
+        };
+        long [] denominators = { 10, 999, 225 };
+        for (int index = 0; index < numerators.length; index ++)
+            for (int trial = 0; trial < 3; trial ++)
+            {
+                int [] [] pixels = TestImages.random(random, 30 + random.nextInt(100),
+                                                     30 + random.nextInt(100));
+                for (int [] row : pixels)
+                    for (int col = 0; col < row.length; col ++)
+                        if (random.nextInt(4) == 0)
+                            row[col] = trial == 2 ? random.nextInt() : random.nextInt(2000) - 1000;
+                ProjectImage image = TestImages.gray(pixels);
+                image.applyFilter(weights(numerators[index], denominators[index]));
+                assertArrayEquals(exactFilter(pixels, numerators[index], denominators[index]),
+                                  image.getPixels());
+            }
+    }
+
+    /** A box filter, large or small, whose weight is not a fraction is
+     *  rounded down from its double sums, as the direct pass rounds it
+     */
+    @Test
+    public void otherBoxWeightsRoundDown()
+    {
+        Random random = new Random(6);
+        int [] sizes = { 3, 15, 201 };
+        for (int size : sizes)
+        {
+            double [] [] filter = new double [size] [size];
+            for (double [] row : filter)
+                Arrays.fill(row, Math.PI / (size * size));
+            assertEquals(0, ConvolutionEngine.commonDenominator(filter));
+            int [] [] pixels = TestImages.random(random, size + 10 + random.nextInt(50),
+                                                 size + 10 + random.nextInt(50));
+            ProjectImage image = TestImages.gray(pixels);
+            image.applyFilter(filter);
+            TestImages.assertRoundedDown("size " + size, pixels, filter, image.getPixels());
+        }
+    }
+
+    /** A separable filter whose weights are not fractions is rounded down
+     *  from its double sums, as the direct pass rounds it
+     */
+    @Test
+    public void otherSeparableWeightsRoundDown()
+    {
+        Random random = new Random(7);
+        for (int size = 3; size <= 31; size += 4)
+        {
+            double [] column = new double [size];
+            double [] row = new double [size];
+            for (int i = 0; i < size; i ++)
+            {
+                column[i] = random.nextDouble() - 0.3;
+                row[i] = (random.nextDouble() + 0.1) / size;
+            }
+            double [] [] filter = new double [size] [size];
+            for (int y = 0; y < size; y ++)
+                for (int x = 0; x < size; x ++)
+                    filter[y][x] = column[y] * row[x];
+            int [] [] pixels = TestImages.random(random, size + random.nextInt(150),
+                                                 size + random.nextInt(150));
+            ProjectImage image = TestImages.gray(pixels);
+            image.applyFilter(filter);
+            TestImages.assertRoundedDown("size " + size, pixels, filter, image.getPixels());
+        }
+    }
+
+    /** The denominator is found for weights given as doubles, and there is
+     *  none for weights that are not small fractions
+     */
+    @Test
+    public void findsCommonDenominator()
+    {
+        assertEquals(10, ConvolutionEngine.commonDenominator(SHARPEN));
+        assertEquals(16, ConvolutionEngine.commonDenominator(weights(
+            new long [] [] { { 1, 1, 1 }, { 1, 8, 1 }, { 1, 1, 1 } }, 16)));
+        assertEquals(999, ConvolutionEngine.commonDenominator(weights(
+            new long [] [] { { 1, 2, 3 }, { 4, 5, 6 }, { 7, 8, 10 } }, 999)));
+        assertEquals(0, ConvolutionEngine.commonDenominator(
+            new double [] [] { { Math.PI / 10 } }));
+    }
+
+    /** Filter random images and compare every pixel with exact arithmetic
+     *
+     *  @param numerators the numerators of the weights
+     *  @param denominator their common denominator
+     *  @param random the source of the pixels
+     */
+    private static void checkExact(long [] [] numerators, long denominator, Random random)
+    {
+        double [] [] filter = weights(numerators, denominator);
+        for (int trial = 0; trial < 3; trial ++)
+        {
+            int [] [] pixels = TestImages.random(random, 40 + random.nextInt(200),
+                                                 40 + random.nextInt(200));
+            ProjectImage image = TestImages.gray(pixels);
+            image.applyFilter(filter);
+            assertArrayEquals(exactFilter(pixels, numerators, denominator),
+                              image.getPixels());
+        }
+    }
+
+    /** Filter pixels using exact integer arithmetic
+     *
+     *  @param pixels the pixels to filter
+     *  @param numerators the numerators of the weights
+     *  @param denominator their common denominator
+     *  @return the filtered pixels, with the border copied unfiltered
+     */
+    private static int [] [] exactFilter(int [] [] pixels, long [] [] numerators,
+                                         long denominator)
+    {
+        int border = numerators.length / 2;
+        int [] [] result = TestImages.copy(pixels);
+        for (int row = border; row < pixels.length - border; row ++)
+            for (int col = border; col < pixels[0].length - border; col ++)
+            {
+                long sum = 0;
+                for (int y = 0; y < numerators.length; y ++)
+                    for (int x = 0; x < numerators.length; x ++)
+                        sum += numerators[y][x] * pixels[row + y - border][col + x - border];
+                result[row][col] = (int) Math.max(0, Math.min(255,
+                                                             Math.floorDiv(sum, denominator)));
+            }
+        return result;
+    }
+
+    /** Make a filter of fractions
+     *
+     *  @param numerators the numerators of the weights
+     *  @param denominator their common denominator
+     *  @return the weights, as the nearest doubles
+     */
+    private static double [] [] weights(long [] [] numerators, long denominator)
+    {
+        double [] [] filter = new double [numerators.length] [numerators.length];
+        for (int y = 0; y < numerators.length; y ++)
+            for (int x = 0; x < numerators.length; x ++)
+                filter[y][x] = numerators[y][x] / (double) denominator;
+        return filter;
+    }
+
+    /** Make random numerators for a filter
+     *
+     *  @param random the source of the numerators
+     *  @param size the number of rows and columns
+     *  @param low the smallest numerator
+     *  @param high the largest numerator
+     *  @return the numerators
+     */
+    private static long [] [] randomNumerators(Random random, int size, int low, int high)
+    {
+        long [] [] numerators = new long [size] [size];
+        for (int y = 0; y < size; y ++)
+            for (int x = 0; x < size; x ++)
+                numerators[y][x] = low + random.nextInt(high - low + 1);
+        return numerators;
+    }
+
+    // The GUI's Sharpen filter, and its weights in tenths
+
+    private static final double [] [] SHARPEN = {
+        { -0.1, -0.1, -0.1 },
+        { -0.1, 1.8, -0.1 },
+        { -0.1, -0.1, -0.1 }
+    };
+
+    private static final long [] [] SHARPEN_NUMERATORS = {
+        { -1, -1, -1 },
+        { -1, 18, -1 },
+        { -1, -1, -1 }
+    };
+}
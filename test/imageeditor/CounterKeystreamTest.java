@@ -0,0 +1,174 @@
+/* CounterKeystreamTest.java
+ *
+ *  Part of ImageEditor project - checks the keystream against fixed values
+ *  (for a key of 0, the published output of SplitMix64 seeded with 0), and
+ *  that encrypting any part of an image on its own, in any order or on many
+ *  threads at once, gives what encrypting it in one pass does.
+ */
+
+package imageeditor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+
+public class CounterKeystreamTest
+{
+    /** The values for fixed keys and positions, near the start and far
+     *  into an image
+     */
+    @Test
+    public void matchesFixedValues()
+    {
+        int [] seeds = { 0, 12345, -7 };
+        long [] indexes = { 0, 1, 2, 3, 4, 5, 1000000001L, (1L << 40) + 3 };
+        int [] [] expected = {
+            { 0x7b1dcdaf, 0xe220a839, 0xa1b965f4, 0x6e789e6a, 0x8009454f, 0x06c45d18,
+              0xede40461, 0xd13cd2c7 },
+            { 0x96d17578, 0x7fb6fc57, 0xdc74663e, 0x754815ed, 0x4f7e2f30, 0x89cfc870,
+              0xc8a18633, 0xe3f8e420 },
+            { 0x5ecb1a80, 0xa39b91cb, 0xbf787829, 0x22fc9fca, 0xe5be4a45, 0xdac2b2a0,
+              0x9a7610e3, 0x1bfff1d4 }
+        };
+        for (int s = 0; s < seeds.length; s ++)
+        {
+            CounterKeystream keystream = new CounterKeystream(seeds[s]);
+            for (int i = 0; i < indexes.length; i ++)
+                assertEquals("seed " + seeds[s] + " index " + indexes[i], expected[s][i],
+                             keystream.valueAt(indexes[i]));
+        }
+    }
+
+    /** Only the bits holding the image are changed: the 8 bits of a gray
+     *  value, or the red, green and blue of a color, leaving alpha; and
+     *  applying the keystream again gives the pixels back
+     */
+    @Test
+    public void changesOnlyImageBits()
+    {
+        Random random = new Random(1);
+        CounterKeystream keystream = new CounterKeystream(99);
+        int [] gray = new int [257];
+        int [] colors = new int [257];
+        for (int i = 0; i < gray.length; i ++)
+        {
+            gray[i] = random.nextInt(256);
+            colors[i] = random.nextInt();
+        }
+        int [] encryptedGray = gray.clone();
+        int [] encryptedColors = colors.clone();
+        keystream.apply(encryptedGray, 0, gray.length, 40, false);
+        keystream.apply(encryptedColors, 0, colors.length, 40, true);
+        for (int i = 0; i < gray.length; i ++)
+        {
+            int value = keystream.valueAt(40 + i);
+            assertEquals(gray[i] ^ value & 0xff, encryptedGray[i]);
+            assertEquals(colors[i] ^ value & 0x00ffffff, encryptedColors[i]);
+        }
+        keystream.apply(encryptedGray, 0, gray.length, 40, false);
+        keystream.apply(encryptedColors, 0, colors.length, 40, true);
+        assertArrayEquals(gray, encryptedGray);
+        assertArrayEquals(colors, encryptedColors);
+    }
+
+    /** Encrypting pieces of any length, starting at even or odd positions
+     *  and taken in any order, gives what one pass over all the pixels does -
+     *  for pixels held as ints and as bytes
+     */
+    @Test
+    public void randomAccessMatchesSequential()
+    {
+        Random random = new Random(2);
+        CounterKeystream keystream = new CounterKeystream(-31337);
+        int length = 10007;
+        long firstIndex = (1L << 33) + 1;
+        int [] pixels = new int [length];
+        for (int i = 0; i < length; i ++)
+            pixels[i] = random.nextInt(256);
+        int [] sequential = pixels.clone();
+        keystream.apply(sequential, 0, length, firstIndex, false);
+
+        // Cut the pixels into pieces of 0 to 40, and apply them shuffled
+
+        List<int []> pieces = new ArrayList<int []>();
+        for (int start = 0; start < length; )
+        {
+            int count = Math.min(random.nextInt(41), length - start);
+            pieces.add(new int [] { start, count });
+            start += count;
+        }
+        Collections.shuffle(pieces, random);
+        int [] pieced = pixels.clone();
+        byte [] bytes = new byte [length];
+        for (int i = 0; i < length; i ++)
+            bytes[i] = (byte) pixels[i];
+        for (int [] piece : pieces)
+        {
+            keystream.apply(pieced, piece[0], piece[1], firstIndex + piece[0], false);
+            keystream.apply(bytes, piece[0], piece[1], firstIndex + piece[0]);
+        }
+        assertArrayEquals(sequential, pieced);
+        for (int i = 0; i < length; i ++)
+            assertEquals(sequential[i], bytes[i] & 0xff);
+    }
+
+    /** Bands encrypted on many threads at once give what one thread does,
+     *  and so does encrypting an image, which ParallelEngine splits into
+     *  bands
+     */
+    @Test
+    public void parallelMatchesSerial() throws InterruptedException, ExecutionException
+    {
+        Random random = new Random(3);
+        final int height = 601;
+        final int width = 333;
+        final int [] pixels = new int [height * width];
+        for (int i = 0; i < pixels.length; i ++)
+            pixels[i] = random.nextInt() | 0xff000000;
+        final CounterKeystream keystream = new CounterKeystream(2024);
+        int [] serial = pixels.clone();
+        keystream.apply(serial, 0, serial.length, 0, true);
+
+        final int [] parallel = pixels.clone();
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try
+        {
+            List<Future<?>> bands = new ArrayList<Future<?>>();
+            for (int start = 0; start < height; start += 7)
+            {
+                final int row = start;
+                final int rows = Math.min(7, height - start);
+                bands.add(threads.submit(new Runnable() {
+                    public void run()
+                    {
+                        keystream.apply(parallel, row * width, rows * width,
+                                        (long) row * width, true);
+                    }
+                }));
+            }
+            for (Future<?> band : bands)
+                band.get();
+        }
+        finally
+        {
+            threads.shutdown();
+        }
+        assertArrayEquals(serial, parallel);
+
+        int [] [] rows = new int [height] [width];
+        for (int row = 0; row < height; row ++)
+            System.arraycopy(pixels, row * width, rows[row], 0, width);
+        ProjectImage image = TestImages.color(rows);
+        image.encryptDecrypt(2024, ProjectImage.EncryptionMode.COUNTER);
+        assertArrayEquals(serial, image.getPixelsIntRGB());
+    }
+}
@@ -0,0 +1,145 @@
+/* DenoiseEngineTest.java
+ *
+ *  Part of ImageEditor project - checks the median filter against sorting
+ *  each square of pixels, and that the bilateral filter smooths noise while
+ *  keeping edges.
+ */
+
+package imageeditor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+public class DenoiseEngineTest
+{
+    /** Each gray pixel becomes the median of its square, for small and
+     *  large radii, with pixels out of range forced into it first
+     */
+    @Test
+    public void medianMatchesSorting()
+    {
+        Random random = new Random(1);
+        for (int trial = 0; trial < 30; trial ++)
+        {
+            int radius = 1 + random.nextInt(trial < 24 ? 4 : 25);
+            int width = 1 + random.nextInt(120);
+            int height = 1 + random.nextInt(120);
+            boolean outOfRange = trial % 4 == 3;
+            int [] [] pixels = new int [height] [width];
+            for (int [] row : pixels)
+                for (int col = 0; col < width; col ++)
+                    row[col] = outOfRange ? random.nextInt(600) - 150 : random.nextInt(256);
+
+            ProjectImage image = TestImages.gray(pixels);
+            image.medianFilter(radius);
+            assertArrayEquals("radius " + radius, sortedMedians(pixels, radius),
+                              image.getPixels());
+        }
+    }
+
+    /** Each color is filtered separately, and alpha is kept
+     */
+    @Test
+    public void medianFiltersEachColor()
+    {
+        Random random = new Random(2);
+        int [] [] pixels = TestImages.randomColors(random, 60, 70);
+        int [] [] [] channels = new int [3] [60] [70];
+        for (int row = 0; row < 60; row ++)
+            for (int col = 0; col < 70; col ++)
+                for (int channel = 0; channel < 3; channel ++)
+                    channels[channel][row][col] = pixels[row][col] >> (16 - 8 * channel) & 0xff;
+
+        ProjectImage image = TestImages.color(pixels);
+        image.medianFilter(2);
+        int [] [] [] medians = new int [3] [] [];
+        for (int channel = 0; channel < 3; channel ++)
+            medians[channel] = sortedMedians(channels[channel], 2);
+        int [] [] result = image.getPixels();
+        for (int row = 0; row < 60; row ++)
+            for (int col = 0; col < 70; col ++)
+                assertEquals(pixels[row][col] & 0xff000000 | medians[0][row][col] << 16
+                             | medians[1][row][col] << 8 | medians[2][row][col],
+                             result[row][col]);
+    }
+
+    /** The bilateral filter leaves a flat image as it is, and smooths noise
+     *  on either side of an edge without blurring the edge
+     */
+    @Test
+    public void bilateralKeepsEdges()
+    {
+        ProjectImage flat = TestImages.gray(TestImages.flat(50, 80, 117));
+        flat.bilateralFilter(2.5, 7);
+        assertArrayEquals(TestImages.flat(50, 80, 117), flat.getPixels());
+
+        Random random = new Random(3);
+        int width = 300;
+        int height = 200;
+        int [] [] pixels = new int [height] [width];
+        for (int row = 0; row < height; row ++)
+            for (int col = 0; col < width; col ++)
+                pixels[row][col] = Math.max(0, Math.min(255, edge(col, width)
+                                                        + (int) (random.nextGaussian() * 8)));
+        ProjectImage image = TestImages.gray(pixels);
+        image.bilateralFilter(4, 30);
+        int [] [] result = image.getPixels();
+
+        double noiseBefore = 0;
+        double noiseAfter = 0;
+        for (int row = 0; row < height; row ++)
+            for (int col = 0; col < width; col ++)
+            {
+                int expected = edge(col, width);
+                noiseBefore += Math.pow(pixels[row][col] - expected, 2);
+                noiseAfter += Math.pow(result[row][col] - expected, 2);
+                assertTrue(Math.abs(result[row][col] - expected) <= EDGE_TOLERANCE);
+            }
+        assertTrue(noiseAfter < noiseBefore / 4);
+    }
+
+    /** Filter pixels by sorting the square around each one
+     *
+     *  @param pixels the pixels to filter
+     *  @param radius the distance the square reaches from its centre
+     *  @return the filtered pixels, with those within the radius of the edge
+     *          copied unfiltered
+     */
+    private static int [] [] sortedMedians(int [] [] pixels, int radius)
+    {
+        int [] [] result = TestImages.copy(pixels);
+        int [] square = new int [(2 * radius + 1) * (2 * radius + 1)];
+        for (int row = radius; row < pixels.length - radius; row ++)
+            for (int col = radius; col < pixels[row].length - radius; col ++)
+            {
+                int count = 0;
+                for (int y = row - radius; y <= row + radius; y ++)
+                    for (int x = col - radius; x <= col + radius; x ++)
+                        square[count ++] = Math.max(0, Math.min(255, pixels[y][x]));
+                Arrays.sort(square);
+                result[row][col] = square[square.length / 2];
+            }
+        return result;
+    }
+
+    /** Find the value of a column of an image dark on the left and light on
+     *  the right
+     *
+     *  @param col the column
+     *  @param width the width of the image
+     *  @return its value before noise is added
+     */
+    private static int edge(int col, int width)
+    {
+        return col < width / 2 ? 60 : 200;
+    }
+
+    // How far a pixel may lie from its side of the edge after smoothing
+
+    private static final int EDGE_TOLERANCE = 20;
+}
@@ -0,0 +1,214 @@
+/* DirtyRegionsTest.java
+ *
+ *  Part of ImageEditor project - checks that an image reports the parts of
+ *  it that each kind of edit changes, that rectangles next to or
+ *  overlapping each other are merged, and that the changes are cleared once
+ *  they have been taken.
+ */
+
+package imageeditor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+public class DirtyRegionsTest
+{
+    /** A new image counts as having changed size, and taking its changes
+     *  clears them
+     */
+    @Test
+    public void newImageChangesSizeOnce()
+    {
+        ProjectImage image = image();
+        DirtyRegions changes = image.takeDirtyRegions();
+        assertTrue(changes.isSizeChanged());
+        assertRegions(changes, new Rectangle(0, 0, WIDTH, HEIGHT));
+
+        changes = image.takeDirtyRegions();
+        assertTrue(changes.isEmpty());
+        assertFalse(changes.isSizeChanged());
+        assertTrue(changes.getBounds().isEmpty());
+    }
+
+    /** A point operation changes the whole image - unless it leaves every
+     *  value the image has as it was
+     */
+    @Test
+    public void pointOperationsChangeWholeImage()
+    {
+        ProjectImage image = image();
+        image.takeDirtyRegions();
+        image.negative();
+        DirtyRegions changes = image.takeDirtyRegions();
+        assertFalse(changes.isSizeChanged());
+        assertRegions(changes, new Rectangle(0, 0, WIDTH, HEIGHT));
+        assertTrue(image.takeDirtyRegions().isEmpty());
+
+        ProjectImage white = TestImages.gray(TestImages.flat(HEIGHT, WIDTH, 255));
+        white.takeDirtyRegions();
+        white.lighten();
+        assertTrue(white.takeDirtyRegions().isEmpty());
+    }
+
+    /** An edit of a selection changes only the rectangle around it
+     */
+    @Test
+    public void selectionEditsChangeSelection()
+    {
+        ProjectImage image = image();
+        image.setSelection(Selection.rectangle(10, 20, 30, 15));
+        image.takeDirtyRegions();
+        image.negative();
+        assertRegions(image.takeDirtyRegions(), new Rectangle(10, 20, 30, 15));
+
+        // Only the part of a selection inside the image is changed
+
+        image.setSelection(Selection.rectangle(WIDTH - 5, HEIGHT - 8, 40, 40));
+        image.encryptDecrypt(9, ProjectImage.EncryptionMode.COUNTER);
+        assertRegions(image.takeDirtyRegions(), new Rectangle(WIDTH - 5, HEIGHT - 8, 5, 8));
+    }
+
+    /** Shifting or flipping moves every pixel, so changes the whole image
+     *  without changing its size; a quarter turn of an image that is not
+     *  square changes its size
+     */
+    @Test
+    public void movesChangeWholeImage()
+    {
+        ProjectImage image = image();
+        image.takeDirtyRegions();
+        image.shiftHorizontally(7);
+        image.shiftVertically(-3);
+        image.flipHorizontally();
+        image.flipVertically();
+        DirtyRegions changes = image.takeDirtyRegions();
+        assertFalse(changes.isSizeChanged());
+        assertRegions(changes, new Rectangle(0, 0, WIDTH, HEIGHT));
+
+        image.rotate();
+        changes = image.takeDirtyRegions();
+        assertTrue(changes.isSizeChanged());
+        assertRegions(changes, new Rectangle(0, 0, HEIGHT, WIDTH));
+    }
+
+    /** A filter changes the pixels it has a full set of neighbors for
+     */
+    @Test
+    public void filterChangesInterior()
+    {
+        ProjectImage image = image();
+        image.takeDirtyRegions();
+        double [] [] filter = new double [5] [5];
+        filter[2][2] = 0.5;
+        filter[0][4] = 0.5;
+        image.applyFilter(filter);
+        assertRegions(image.takeDirtyRegions(), new Rectangle(2, 2, WIDTH - 4, HEIGHT - 4));
+    }
+
+    /** Bands of rows written next to each other, or overlapping, are merged
+     *  into one rectangle; bands apart from each other are kept apart
+     */
+    @Test
+    public void mergesTouchingRegions()
+    {
+        ProjectImage image = image();
+        image.takeDirtyRegions();
+        image.setRows(10, 5, new int [5 * WIDTH]);
+        image.setRows(15, 5, new int [5 * WIDTH]);
+        image.setRows(18, 4, new int [4 * WIDTH]);
+        assertRegions(image.takeDirtyRegions(), new Rectangle(0, 10, WIDTH, 12));
+
+        image.setRows(0, 2, new int [2 * WIDTH]);
+        image.setRows(50, 2, new int [2 * WIDTH]);
+        assertRegions(image.takeDirtyRegions(), new Rectangle(0, 0, WIDTH, 2),
+                      new Rectangle(0, 50, WIDTH, 2));
+    }
+
+    /** Rectangles that neither touch nor overlap are kept apart, up to a
+     *  limit beyond which they give way to the rectangle around them; a
+     *  rectangle inside one already held adds nothing, and an empty one is
+     *  ignored
+     */
+    @Test
+    public void keepsSeparateRegionsUpToLimit()
+    {
+        DirtyRegions regions = new DirtyRegions();
+        regions.add(0, 0, 10, 10);
+        regions.add(2, 3, 4, 5);
+        regions.add(50, 50, 0, 10);
+        regions.add(50, 50, 10, -1);
+        assertRegions(regions, new Rectangle(0, 0, 10, 10));
+
+        // A rectangle overlapping one held but making a larger bounding
+        // rectangle than the two of them is kept apart
+
+        regions.add(9, 9, 10, 10);
+        assertEquals(2, regions.getRegions().length);
+        assertEquals(new Rectangle(0, 0, 19, 19), regions.getBounds());
+
+        regions = new DirtyRegions();
+        for (int i = 0; i < 16; i ++)
+            regions.add(20 * i, 20 * i, 5, 5);
+        assertEquals(16, regions.getRegions().length);
+        regions.add(400, 400, 5, 5);
+        assertRegions(regions, new Rectangle(0, 0, 405, 405));
+    }
+
+    /** Undoing an edit of part of an image changes the tiles the edit
+     *  changed, not the whole image
+     */
+    @Test
+    public void undoChangesEditedTiles()
+    {
+        ProjectImage image = TestImages.gray(TestImages.random(new Random(2), 700, 600));
+        image.setHistoryBudget(16L << 20);
+        image.setRows(300, 2, new int [2 * 600]);
+        image.takeDirtyRegions();
+        image.undo();
+        DirtyRegions changes = image.takeDirtyRegions();
+        assertFalse(changes.isSizeChanged());
+        Rectangle bounds = changes.getBounds();
+        assertTrue(bounds.contains(new Rectangle(0, 300, 600, 2)));
+        assertTrue(bounds.height < 700);
+    }
+
+    /** Check the rectangles held, in any order
+     *
+     *  @param regions the rectangles held
+     *  @param expected the rectangles there should be
+     */
+    private static void assertRegions(DirtyRegions regions, Rectangle ... expected)
+    {
+        Rectangle [] actual = regions.getRegions();
+        assertEquals(expected.length, actual.length);
+        boolean [] found = new boolean [expected.length];
+        for (Rectangle rectangle : actual)
+            for (int i = 0; i < expected.length; i ++)
+                if (expected[i].equals(rectangle))
+                    found[i] = true;
+        boolean [] all = new boolean [expected.length];
+        Arrays.fill(all, true);
+        assertArrayEquals(all, found);
+    }
+
+    /** Make a random grayscale image of the size the tests use
+     *
+     *  @return the image
+     */
+    private static ProjectImage image()
+    {
+        return TestImages.gray(TestImages.random(new Random(1), HEIGHT, WIDTH));
+    }
+
+    // The size of the images
+
+    private static final int WIDTH = 120;
+    private static final int HEIGHT = 90;
+}
@@ -0,0 +1,174 @@
+/* EditExecutorTest.java
+ *
+ *  Part of ImageEditor project - checks that edits carried out in the
+ *  background, and stopped part way through, leave the image as it should
+ *  be, and that the image's accessors wait for an edit to finish.
+ */
+
+package imageeditor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+
+public class EditExecutorTest
+{
+    /** An edit stopped part way through puts the image back as it was
+     *  before it, keeping the edits made earlier
+     */
+    @Test
+    public void cancelledEditPutsImageBack()
+    {
+        ProjectImage image = imageWithHistory(new Random(1));
+        image.applyFilter(BLUR);
+        int [] [] blurred = image.getPixels();
+
+        AtomicBoolean cancelled = new AtomicBoolean(true);
+        image.startBackgroundOperation();
+        ParallelEngine.setCancelFlag(cancelled);
+        try
+        {
+            image.applyFilter(BLUR);
+            fail("filter was not stopped");
+        }
+        catch(CancellationException exception)
+        {
+            ParallelEngine.setCancelFlag(null);
+            image.revertEdit();
+        }
+        finally
+        {
+            ParallelEngine.setCancelFlag(null);
+        }
+        assertArrayEquals(blurred, image.getPixels());
+    }
+
+    /** Stopping an operation that had not begun changing the image, such
+     *  as working out a histogram, does not undo the edit before it
+     */
+    @Test
+    public void revertWithoutEditKeepsEarlierEdits()
+    {
+        ProjectImage image = imageWithHistory(new Random(2));
+        image.applyFilter(BLUR);
+        int [] [] blurred = image.getPixels();
+
+        image.startBackgroundOperation();
+        image.calculateHistogram();
+        image.revertEdit();
+        assertArrayEquals(blurred, image.getPixels());
+    }
+
+    /** The executor keeps earlier edits when an edit that changes nothing
+     *  is stopped, and runs edits submitted from any thread in order
+     */
+    @Test
+    public void executorKeepsEditsBeforeStoppedQuery() throws InterruptedException
+    {
+        final ProjectImage image = imageWithHistory(new Random(3));
+        int [] [] original = image.getPixels();
+        final CountDownLatch finished = new CountDownLatch(1);
+        EditExecutor executor = new EditExecutor(new EditExecutor.Listener() {
+            public void busyChanged(boolean busy)
+            {
+            }
+
+            public void editsFinished(ProjectImage edited)
+            {
+                finished.countDown();
+            }
+
+            public void editFailed(ProjectImage edited, Throwable problem)
+            {
+            }
+        });
+
+        executor.submit(image, EditExecutor.pointOperation(ProjectImage.PointOperation.NEGATIVE));
+        executor.submit(image, new EditExecutor.Edit() {
+            void apply(ProjectImage edited)
+            {
+                throw new CancellationException();
+            }
+
+            boolean changesImage()
+            {
+                return false;
+            }
+        });
+        assertTrue(finished.await(30, TimeUnit.SECONDS));
+
+        int [] [] pixels = image.getPixels();
+        assertEquals(original.length, pixels.length);
+        for (int row = 0; row < pixels.length; row ++)
+            for (int col = 0; col < pixels[row].length; col ++)
+                assertEquals(255 - original[row][col], pixels[row][col]);
+    }
+
+    /** The methods that read or set the pixels, statistics, selection or
+     *  history outside an edit wait while an edit holds the image's lock
+     */
+    @Test
+    public void accessorsWaitForEdit() throws InterruptedException
+    {
+        final ProjectImage image = imageWithHistory(new Random(4));
+        final int [] rows = new int [2 * image.getWidth()];
+        Runnable [] accessors = {
+            new Runnable() { public void run() { image.getStatistics(); } },
+            new Runnable() { public void run() { image.calculateHistogram(); } },
+            new Runnable() { public void run() { image.setSelection(null); } },
+            new Runnable() { public void run() { image.getSelection(); } },
+            new Runnable() { public void run() { image.getRows(0, 2, rows); } },
+            new Runnable() { public void run() { image.setRows(0, 2, rows); } },
+            new Runnable() { public void run() { image.setPixels(2, rows.length / 2, rows); } },
+            new Runnable() { public void run() { image.canUndo(); } },
+            new Runnable() { public void run() { image.canRedo(); } },
+            new Runnable() { public void run() { image.isMapped(); } }
+        };
+        for (int index = 0; index < accessors.length; index ++)
+        {
+            Thread caller = new Thread(accessors[index]);
+            synchronized (image)
+            {
+                caller.start();
+                long giveUp = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+                while (caller.getState() != Thread.State.BLOCKED && caller.isAlive()
+                       && System.nanoTime() < giveUp)
+                    Thread.sleep(1);
+                assertEquals("accessor " + index, Thread.State.BLOCKED, caller.getState());
+            }
+            caller.join(TimeUnit.SECONDS.toMillis(30));
+            assertTrue("accessor " + index, ! caller.isAlive());
+        }
+    }
+
+    /** Make a random grayscale image that keeps a history, so that its
+     *  edits can be put back
+     *
+     *  @param random the source of its pixels
+     *  @return the image
+     */
+    private static ProjectImage imageWithHistory(Random random)
+    {
+        ProjectImage image = TestImages.gray(TestImages.random(random, 300, 400));
+        image.setHistoryBudget(HISTORY_BUDGET);
+        return image;
+    }
+
+    // The filter edited with, and room in the history for a few images
+
+    private static final double [] [] BLUR = {
+        { 0.0625, 0.0625, 0.0625 },
+        { 0.0625, 0.5, 0.0625 },
+        { 0.0625, 0.0625, 0.0625 }
+    };
+
+    private static final long HISTORY_BUDGET = 16L << 20;
+}
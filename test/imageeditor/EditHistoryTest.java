@@ -0,0 +1,233 @@
+/* EditHistoryTest.java
+ *
+ *  Part of ImageEditor project - checks that undo and redo step through
+ *  exactly the states an image has been in, and that a history kept within
+ *  a small budget gives up its oldest states first.
+ */
+
+package imageeditor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+public class EditHistoryTest
+{
+    /** Undo goes back through every state of a grayscale image, and redo
+     *  forward through them again
+     */
+    @Test
+    public void undoAndRedoVisitEveryGrayState()
+    {
+        Random random = new Random(1);
+        checkUndoRedo(TestImages.gray(TestImages.random(random, 150, 230)), random);
+    }
+
+    /** Undo goes back through every state of a color image, and redo
+     *  forward through them again
+     */
+    @Test
+    public void undoAndRedoVisitEveryColorState()
+    {
+        Random random = new Random(2);
+        checkUndoRedo(TestImages.color(TestImages.randomColors(random, 150, 230)), random);
+    }
+
+    /** An edit after an undo discards the states that could have been
+     *  redone
+     */
+    @Test
+    public void editAfterUndoDiscardsRedo()
+    {
+        ProjectImage image = TestImages.gray(TestImages.random(new Random(3), 100, 100));
+        image.setHistoryBudget(LARGE_BUDGET);
+        image.lighten();
+        image.flipHorizontally();
+        image.undo();
+        assertTrue(image.canRedo());
+        int [] [] lightened = image.getPixels();
+        image.negative();
+        assertFalse(image.canRedo());
+        image.undo();
+        assertArrayEquals(lightened, image.getPixels());
+    }
+
+    /** A budget with room for one image and a few edits of a row each keeps
+     *  only the newest of those edits, and each still undoes exactly
+     */
+    @Test
+    public void smallBudgetKeepsNewestStates()
+    {
+        int [] [] pixels = TestImages.random(new Random(4), SIZE, SIZE);
+        ProjectImage image = TestImages.gray(pixels);
+
+        // The first state kept holds every tile; each one after it only
+        // the row of tiles its edit changed
+
+        long imageBytes = (long) SIZE * SIZE;
+        long rowOfTilesBytes = (long) SIZE * EditHistory.TILE_SIZE;
+        image.setHistoryBudget(imageBytes + KEPT_EDITS * rowOfTilesBytes);
+
+        List<int [] []> states = rowEdits(image, new Random(5), 10);
+        int undone = 0;
+        while (image.canUndo())
+        {
+            image.undo();
+            undone ++;
+            assertArrayEquals("undo " + undone, states.get(states.size() - 1 - undone),
+                              image.getPixels());
+        }
+        assertEquals(KEPT_EDITS, undone);
+
+        image.undo();
+        assertArrayEquals(states.get(states.size() - 1 - undone), image.getPixels());
+        for (int redone = 1; redone <= undone; redone ++)
+        {
+            image.redo();
+            assertArrayEquals("redo " + redone, states.get(states.size() - 1 - undone + redone),
+                              image.getPixels());
+        }
+        assertFalse(image.canRedo());
+    }
+
+    /** A budget too small for even one image keeps nothing to undo, and
+     *  leaves the image as it is
+     */
+    @Test
+    public void budgetSmallerThanImageKeepsNothingToUndo()
+    {
+        ProjectImage image = TestImages.gray(TestImages.random(new Random(6), SIZE, SIZE));
+        image.setHistoryBudget(SIZE);
+        image.lighten();
+        image.applyFilter(BLUR);
+        int [] [] blurred = image.getPixels();
+        assertFalse(image.canUndo());
+        image.undo();
+        assertArrayEquals(blurred, image.getPixels());
+    }
+
+    /** Shrinking the budget discards the oldest states, and a budget of 0
+     *  discards them all
+     */
+    @Test
+    public void shrinkingBudgetDiscardsOldestStates()
+    {
+        ProjectImage image = TestImages.gray(TestImages.random(new Random(7), SIZE, SIZE));
+        image.setHistoryBudget(LARGE_BUDGET);
+        List<int [] []> states = rowEdits(image, new Random(8), 10);
+
+        long imageBytes = (long) SIZE * SIZE;
+        long rowOfTilesBytes = (long) SIZE * EditHistory.TILE_SIZE;
+        image.setHistoryBudget(imageBytes + 2 * rowOfTilesBytes);
+        image.undo();
+        image.undo();
+        assertArrayEquals(states.get(states.size() - 3), image.getPixels());
+        assertFalse(image.canUndo());
+
+        image.redo();
+        image.setHistoryBudget(0);
+        assertFalse(image.canUndo());
+        assertFalse(image.canRedo());
+        assertArrayEquals(states.get(states.size() - 2), image.getPixels());
+    }
+
+    /** Make random edits of every kind, then undo them all and redo them
+     *  all, checking each state on the way
+     *
+     *  @param image the image to edit
+     *  @param random the source of the edits
+     */
+    private static void checkUndoRedo(ProjectImage image, Random random)
+    {
+        image.setHistoryBudget(LARGE_BUDGET);
+        List<int [] []> states = new ArrayList<int [] []>();
+        states.add(image.getPixels());
+        for (int edit = 0; edit < 30; edit ++)
+        {
+            switch (random.nextInt(10))
+            {
+                case 0: image.lighten(); break;
+                case 1: image.negative(); break;
+                case 2: image.flipHorizontally(); break;
+                case 3: image.rotate(); break;
+                case 4: image.shiftVertically(random.nextInt(9) - 4); break;
+                case 5: image.applyFilter(BLUR); break;
+                case 6: image.encryptDecrypt(1 + random.nextInt(1000)); break;
+                case 7:
+                case 8:
+                    if (image.getWidth() < 300 && image.getHeight() < 300)
+                        image.doubleSize();
+                    else
+                        image.halve();
+                    break;
+                default:
+                {
+                    int [] row = new int [image.getWidth()];
+                    image.getRows(0, 1, row);
+                    row[random.nextInt(row.length)] ^= 1;
+                    image.setRows(random.nextInt(image.getHeight()), 1, row);
+                    break;
+                }
+            }
+            states.add(image.getPixels());
+        }
+
+        for (int state = states.size() - 2; state >= 0; state --)
+        {
+            assertTrue(image.canUndo());
+            image.undo();
+            assertArrayEquals("undo to " + state, states.get(state), image.getPixels());
+        }
+        assertFalse(image.canUndo());
+        for (int state = 1; state < states.size(); state ++)
+        {
+            assertTrue(image.canRedo());
+            image.redo();
+            assertArrayEquals("redo to " + state, states.get(state), image.getPixels());
+        }
+        assertFalse(image.canRedo());
+    }
+
+    /** Edit a single row at a time, each in a different row of tiles
+     *
+     *  @param image the image to edit
+     *  @param random the source of the new values
+     *  @param edits the number of edits to make
+     *  @return the pixels before the first edit and after each one
+     */
+    private static List<int [] []> rowEdits(ProjectImage image, Random random, int edits)
+    {
+        List<int [] []> states = new ArrayList<int [] []>();
+        states.add(image.getPixels());
+        for (int edit = 0; edit < edits; edit ++)
+        {
+            int tileRows = image.getHeight() / EditHistory.TILE_SIZE;
+            int row = (edit % tileRows) * EditHistory.TILE_SIZE + random.nextInt(EditHistory.TILE_SIZE);
+            image.setRows(row, 1, TestImages.random(random, 1, image.getWidth())[0]);
+            states.add(image.getPixels());
+        }
+        return states;
+    }
+
+    // The size of the images edited a row at a time, and the number of
+    // those edits the small budget has room for
+
+    private static final int SIZE = 256;
+    private static final int KEPT_EDITS = 3;
+
+    // A budget with room for every state the tests make
+
+    private static final long LARGE_BUDGET = 256L << 20;
+
+    private static final double [] [] BLUR = {
+        { 0.0625, 0.0625, 0.0625 },
+        { 0.0625, 0.5, 0.0625 },
+        { 0.0625, 0.0625, 0.0625 }
+    };
+}
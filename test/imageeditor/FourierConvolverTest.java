@@ -0,0 +1,257 @@
+/* FourierConvolverTest.java
+ *
+ *  Part of ImageEditor project - checks that filtering by way of the
+ *  Fourier transform gives exactly the pixels that summing the weighted
+ *  neighbors directly gives, for filters of every size up to the largest a
+ *  tile holds, and for every tile size - and that a large filter whose
+ *  weights are not fractions is transformed too, and rounded down as the
+ *  direct double sums round it.
+ */
+
+package imageeditor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+
+public class FourierConvolverTest
+{
+    /** Weights that doubles hold exactly give the same pixels as the
+     *  direct double sums
+     */
+    @Test
+    public void matchesDirectSums()
+    {
+        Random random = new Random(1);
+        for (int trial = 0; trial < 20; trial ++)
+        {
+            int size = 1 + 2 * random.nextInt(12);
+            long [] [] numerators = randomNumerators(random, size, -40, 120);
+            double [] [] filter = weights(numerators, DYADIC_DENOMINATOR);
+            PixelBuffer source = randomSource(random, size);
+
+            // An image that may hold values out of range is always filtered
+            // by the direct double sums
+
+            PixelBuffer direct = ConvolutionEngine.convolve(source, filter, false,
+                                                            new BufferPool(2));
+            assertArrayEquals("size " + size, direct.getData(),
+                              fourier(source, filter, randomTileSize(random, size), true).getData());
+        }
+    }
+
+    /** Weights that are fractions with a small denominator, such as tenths,
+     *  give exactly the pixels that rational arithmetic gives
+     */
+    @Test
+    public void roundsFractionsExactly()
+    {
+        Random random = new Random(2);
+        for (int trial = 0; trial < 20; trial ++)
+        {
+            int size = 1 + 2 * random.nextInt(12);
+            long denominator = trial % 2 == 0 ? 10 : (long) size * size;
+            long [] [] numerators = randomNumerators(random, size, -3, 5);
+            PixelBuffer source = randomSource(random, size);
+            PixelBuffer result = fourier(source, weights(numerators, denominator),
+                                         randomTileSize(random, size), true);
+            assertArrayEquals("size " + size, exactFilter(source, numerators, denominator),
+                              result.getData());
+        }
+    }
+
+    /** The tile size chosen for an image gives the same pixels as any other
+     */
+    @Test
+    public void chosenTileSizeMatchesDirect()
+    {
+        Random random = new Random(3);
+        for (int size = 9; size <= 41; size += 8)
+        {
+            long [] [] numerators = randomNumerators(random, size, -2, 6);
+            double [] [] filter = weights(numerators, (long) size * size);
+            PixelBuffer source = randomSource(random, size);
+            int border = size / 2;
+            int tileSize = FourierConvolver.chooseTileSize(source.getWidth() - 2 * border,
+                                                           source.getHeight() - 2 * border,
+                                                           size);
+            assertArrayEquals("size " + size,
+                              exactFilter(source, numerators, (long) size * size),
+                              fourier(source, filter, tileSize, true).getData());
+        }
+    }
+
+    /** A large filter of random weights, which are not fractions, is
+     *  applied by way of the Fourier transform rather than directly, and
+     *  gives the direct double sums rounded down
+     */
+    @Test
+    public void transformsFilterOfOtherWeights()
+    {
+        Random random = new Random(4);
+        for (int size = 15; size <= 31; size += 8)
+        {
+            double [] [] filter = new double [size] [size];
+            for (int y = 0; y < size; y ++)
+                for (int x = 0; x < size; x ++)
+                    filter[y][x] = (random.nextDouble() - 0.2) * 2 / (size * size);
+            assertEquals(0, ConvolutionEngine.commonDenominator(filter));
+            assertNull(ConvolutionEngine.separate(filter));
+
+            PixelBuffer source = new PixelBuffer(size + 150 + random.nextInt(150),
+                                                 size + 150 + random.nextInt(150));
+            int [] data = source.getData();
+            for (int index = 0; index < data.length; index ++)
+                data[index] = random.nextInt(256);
+            assertTrue(ConvolutionEngine.prefersFourier(source.getWidth(), source.getHeight(),
+                                                        filter, null));
+
+            PixelBuffer result = ConvolutionEngine.convolve(source, filter, new BufferPool(2));
+            int border = size / 2;
+            int tileSize = FourierConvolver.chooseTileSize(source.getWidth() - 2 * border,
+                                                           source.getHeight() - 2 * border,
+                                                           size);
+            assertArrayEquals("size " + size, fourier(source, filter, tileSize, false).getData(),
+                              result.getData());
+            TestImages.assertRoundedDown("size " + size, rows(source), filter, rows(result));
+        }
+    }
+
+    /** Filter a buffer a tile at a time, copying the border unfiltered
+     *
+     *  @param source the pixels to filter
+     *  @param filter the filter
+     *  @param tileSize the size of tile to work in
+     *  @param fractions true if the weights are fractions with a small
+     *         denominator
+     *  @return the filtered pixels
+     */
+    private static PixelBuffer fourier(PixelBuffer source, double [] [] filter, int tileSize,
+                                       boolean fractions)
+    {
+        int border = filter.length / 2;
+        PixelBuffer result = new PixelBuffer(source.getWidth(), source.getHeight());
+        ConvolutionEngine.copyBorders(source, result, border);
+        FourierConvolver convolver = new FourierConvolver(filter, tileSize, fractions);
+        FourierConvolver.Work work = convolver.newWork();
+        int step = convolver.getStep();
+        for (int row = border; row < source.getHeight() - border; row += step)
+            for (int col = border; col < source.getWidth() - border; col += step)
+                convolver.filterTile(source, result, row, col,
+                                     Math.min(step, source.getHeight() - border - row),
+                                     Math.min(step, source.getWidth() - border - col),
+                                     work);
+        return result;
+    }
+
+    /** Copy the pixels of a buffer into rows
+     *
+     *  @param buffer the buffer
+     *  @return its pixels, a row at a time
+     */
+    private static int [] [] rows(PixelBuffer buffer)
+    {
+        int [] [] rows = new int [buffer.getHeight()] [buffer.getWidth()];
+        for (int row = 0; row < rows.length; row ++)
+            System.arraycopy(buffer.getData(), buffer.rowStart(row), rows[row], 0,
+                             rows[row].length);
+        return rows;
+    }
+
+    /** Filter a buffer using exact integer arithmetic
+     *
+     *  @param source the pixels to filter
+     *  @param numerators the numerators of the weights
+     *  @param denominator their common denominator
+     *  @return the filtered pixels, row by row, with the border copied
+     *          unfiltered
+     */
+    private static int [] exactFilter(PixelBuffer source, long [] [] numerators,
+                                      long denominator)
+    {
+        int border = numerators.length / 2;
+        int width = source.getWidth();
+        int [] data = source.getData();
+        int [] result = data.clone();
+        for (int row = border; row < source.getHeight() - border; row ++)
+            for (int col = border; col < width - border; col ++)
+            {
+                long sum = 0;
+                for (int y = 0; y < numerators.length; y ++)
+                    for (int x = 0; x < numerators.length; x ++)
+                        sum += numerators[y][x] * data[(row + y - border) * width + col + x - border];
+                result[row * width + col] = (int) Math.max(0, Math.min(255,
+                                                           Math.floorDiv(sum, denominator)));
+            }
+        return result;
+    }
+
+    /** Make a buffer of random gray values, a third of them 0 or 255, big
+     *  enough for a filter
+     *
+     *  @param random the source of the size and values
+     *  @param size the size of the filter
+     *  @return the buffer
+     */
+    private static PixelBuffer randomSource(Random random, int size)
+    {
+        PixelBuffer source = new PixelBuffer(size + random.nextInt(200),
+                                             size + random.nextInt(200));
+        int [] data = source.getData();
+        for (int index = 0; index < data.length; index ++)
+            data[index] = random.nextInt(3) == 0 ? 255 * random.nextInt(2) : random.nextInt(256);
+        return source;
+    }
+
+    /** Choose a tile size that holds a filter
+     *
+     *  @param random the source of the choice
+     *  @param size the size of the filter
+     *  @return a power of 2, at least 16 and bigger than the filter
+     */
+    private static int randomTileSize(Random random, int size)
+    {
+        return Math.max(16, Integer.highestOneBit(size) * 2) << random.nextInt(3);
+    }
+
+    /** Make a filter of fractions
+     *
+     *  @param numerators the numerators of the weights
+     *  @param denominator their common denominator
+     *  @return the weights, as the nearest doubles
+     */
+    private static double [] [] weights(long [] [] numerators, long denominator)
+    {
+        double [] [] filter = new double [numerators.length] [numerators.length];
+        for (int y = 0; y < numerators.length; y ++)
+            for (int x = 0; x < numerators.length; x ++)
+                filter[y][x] = numerators[y][x] / (double) denominator;
+        return filter;
+    }
+
+    /** Make random numerators for a filter
+     *
+     *  @param random the source of the numerators
+     *  @param size the number of rows and columns
+     *  @param low the smallest numerator
+     *  @param high the largest numerator
+     *  @return the numerators
+     */
+    private static long [] [] randomNumerators(Random random, int size, int low, int high)
+    {
+        long [] [] numerators = new long [size] [size];
+        for (int y = 0; y < size; y ++)
+            for (int x = 0; x < size; x ++)
+                numerators[y][x] = low + random.nextInt(high - low + 1);
+        return numerators;
+    }
+
+    // A denominator whose fractions doubles hold exactly, so that the
+    // direct sums are exact
+
+    private static final long DYADIC_DENOMINATOR = 1 << 12;
+}
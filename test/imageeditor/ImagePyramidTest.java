@@ -0,0 +1,248 @@
+/* ImagePyramidTest.java
+ *
+ *  Part of ImageEditor project - checks that each level of an image pyramid
+ *  is the image halved that many times, for odd sizes as well as even ones,
+ *  and that a level shows an edit once the part written has been
+ *  invalidated - only the tiles under that part being rebuilt.
+ */
+
+package imageeditor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DirectColorModel;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+public class ImagePyramidTest
+{
+    /** The level shown is the smallest at least as big as the scale asked
+     *  for
+     */
+    @Test
+    public void choosesLevelForScale()
+    {
+        assertEquals(0, ImagePyramid.levelFor(1));
+        assertEquals(0, ImagePyramid.levelFor(0.75));
+        assertEquals(1, ImagePyramid.levelFor(0.5));
+        assertEquals(1, ImagePyramid.levelFor(0.3));
+        assertEquals(2, ImagePyramid.levelFor(0.25));
+        assertEquals(2, ImagePyramid.levelFor(0.2));
+        assertEquals(3, ImagePyramid.levelFor(0.125));
+        assertEquals(30, ImagePyramid.levelFor(1e-300));
+    }
+
+    /** Each level has half the width and height of the one before it,
+     *  rounded down, and the pixels of the level before halved - for gray
+     *  values and colors, and for sizes that halve to odd sizes
+     */
+    @Test
+    public void levelsAreImageHalved()
+    {
+        Random random = new Random(1);
+        int [] [] sizes = { { 1, 1 }, { 1, 300 }, { 67, 129 }, { 256, 256 }, { 511, 255 },
+                            { 300, 2 } };
+        for (int [] size : sizes)
+            for (int kind = 0; kind < 2; kind ++)
+            {
+                boolean color = kind == 1;
+                int [] [] pixels = color ? TestImages.randomColors(random, size[0], size[1])
+                                         : TestImages.random(random, size[0], size[1]);
+                ImagePyramid pyramid = new ImagePyramid(PixelBuffer.fromArray(pixels), color,
+                                                        color ? RGB_MODEL : GRAY_MODEL);
+                assertEquals(levelCount(size[0], size[1]), pyramid.getLevelCount());
+                int [] [] halved = pixels;
+                for (int level = 1; level < pyramid.getLevelCount(); level ++)
+                {
+                    halved = halve(halved, color);
+                    assertArrayEquals(size[0] + " x " + size[1] + " level " + level,
+                                      halved, pixels(pyramid.getImage(level)));
+                }
+            }
+    }
+
+    /** A level shows an edit once the part written is invalidated, and only
+     *  the tiles under that part are rebuilt; invalidating everything
+     *  rebuilds every tile
+     */
+    @Test
+    public void invalidatedTilesAreRebuilt()
+    {
+        Random random = new Random(2);
+        int [] [] pixels = TestImages.random(random, 517, 389);
+        PixelBuffer buffer = PixelBuffer.fromArray(pixels);
+        ImagePyramid pyramid = new ImagePyramid(buffer, false, GRAY_MODEL);
+        BufferedImage image = pyramid.getImage(2);
+
+        // Write two parts of the image, far apart, and invalidate only the
+        // first.  The first is an odd part, straddling four tiles of level 2;
+        // the second lies in the bottom row of tiles
+
+        int [] [] written = TestImages.copy(pixels);
+        write(buffer, written, 251, 253, 7, 9, 0);
+        write(buffer, written, 512, 3, 4, 4, 255);
+        pyramid.invalidate(251, 253, 7, 9);
+        assertSame(image, pyramid.getImage(2));
+        int [] [] stale = halve(halve(pixels, false), false);
+        int [] [] fresh = halve(halve(written, false), false);
+        int [] [] shown = pixels(image);
+        assertArrayEquals(fresh[62], shown[62]);
+        assertArrayEquals(fresh[64], shown[64]);
+        assertFalse(Arrays.equals(fresh[128], stale[128]));
+        assertArrayEquals(stale[128], shown[128]);
+
+        pyramid.invalidateAll();
+        assertArrayEquals(fresh, pixels(pyramid.getImage(2)));
+    }
+
+    /** An edit to a ProjectImage, of part of it or all of it, shows in the
+     *  reduced image it gave for display before the edit
+     */
+    @Test
+    public void displayImageFollowsEdits()
+    {
+        Random random = new Random(3);
+        int [] [] pixels = TestImages.random(random, 301, 203);
+        ProjectImage image = TestImages.gray(pixels);
+        BufferedImage shown = image.getDisplayImage(0.25);
+        assertEquals(50, shown.getWidth());
+        assertEquals(75, shown.getHeight());
+
+        int [] rows = new int [3 * 203];
+        for (int i = 0; i < rows.length; i ++)
+            rows[i] = random.nextInt(256);
+        image.setRows(150, 3, rows);
+        assertSame(shown, image.getDisplayImage(0.25));
+        assertArrayEquals(halve(halve(image.getPixels(), false), false), pixels(shown));
+
+        image.negative();
+        assertArrayEquals(halve(halve(image.getPixels(), false), false),
+                          pixels(image.getDisplayImage(0.25)));
+    }
+
+    /** An image kept off the heap gives the same levels, built a tile at a
+     *  time from the pixels held off it
+     */
+    @Test
+    public void mappedLevelsMatchHeap() throws IOException
+    {
+        Random random = new Random(4);
+        for (int kind = 0; kind < 2; kind ++)
+        {
+            boolean color = kind == 1;
+            int [] [] pixels = color ? TestImages.randomColors(random, 333, 211)
+                                     : TestImages.random(random, 333, 211);
+            ProjectImage image = color ? TestImages.color(pixels) : TestImages.gray(pixels);
+            image.useMappedStorage();
+            int [] [] halved = pixels;
+            for (int level = 1; level <= 3; level ++)
+            {
+                halved = halve(halved, color);
+                assertArrayEquals("level " + level, halved,
+                                  pixels(image.getDisplayImage(Math.scalb(1.0, -level))));
+            }
+        }
+    }
+
+    /** Write a rectangle of one value into a buffer and into the pixels it
+     *  is expected to hold
+     *
+     *  @param buffer the buffer
+     *  @param pixels the pixels it is expected to hold
+     *  @param startRow the first row to write
+     *  @param startCol the first column to write
+     *  @param rowCount the number of rows to write
+     *  @param colCount the number of columns to write
+     *  @param value the value to write
+     */
+    private static void write(PixelBuffer buffer, int [] [] pixels, int startRow, int startCol,
+                              int rowCount, int colCount, int value)
+    {
+        for (int row = startRow; row < startRow + rowCount; row ++)
+            for (int col = startCol; col < startCol + colCount; col ++)
+            {
+                buffer.set(row, col, value);
+                pixels[row][col] = value;
+            }
+    }
+
+    /** Halve pixels as a plain loop does, averaging each 2 x 2 square and
+     *  dropping an odd last row or column
+     *
+     *  @param pixels the pixels to halve
+     *  @param color true to average each color separately
+     *  @return the halved pixels
+     */
+    private static int [] [] halve(int [] [] pixels, boolean color)
+    {
+        int height = pixels.length / 2;
+        int width = pixels[0].length / 2;
+        int [] [] result = new int [height] [width];
+        for (int row = 0; row < height; row ++)
+            for (int col = 0; col < width; col ++)
+            {
+                int [] square = { pixels[2 * row][2 * col], pixels[2 * row][2 * col + 1],
+                                  pixels[2 * row + 1][2 * col], pixels[2 * row + 1][2 * col + 1] };
+                if (! color)
+                    result[row][col] = (square[0] + square[1] + square[2] + square[3]) / 4;
+                else
+                    for (int shift = 0; shift < 32; shift += 8)
+                    {
+                        int sum = 0;
+                        for (int pixel : square)
+                            sum += pixel >>> shift & 0xff;
+                        result[row][col] |= sum / 4 << shift;
+                    }
+            }
+        return result;
+    }
+
+    /** Read the pixels shown by an image for display, without alpha
+     *
+     *  @param image the image
+     *  @return its pixels, as gray values or as colors with alpha of 0xff
+     */
+    private static int [] [] pixels(BufferedImage image)
+    {
+        boolean color = image.getColorModel().equals(RGB_MODEL);
+        int [] [] result = new int [image.getHeight()] [image.getWidth()];
+        for (int row = 0; row < result.length; row ++)
+            for (int col = 0; col < result[row].length; col ++)
+            {
+                int value = ((int []) image.getRaster().getDataElements(col, row, null))[0];
+                result[row][col] = color ? value | 0xff000000 : value;
+            }
+        return result;
+    }
+
+    /** Work out the number of levels an image should have
+     *
+     *  @param height the height of the image
+     *  @param width the width of the image
+     *  @return one more than the number of times it can be halved
+     */
+    private static int levelCount(int height, int width)
+    {
+        int count = 1;
+        while (height > 1 && width > 1)
+        {
+            height /= 2;
+            width /= 2;
+            count ++;
+        }
+        return count;
+    }
+
+    // The color models the images of the levels are shown with
+
+    private static final DirectColorModel RGB_MODEL =
+        new DirectColorModel(24, 0xff0000, 0x00ff00, 0x0000ff);
+    private static final DirectColorModel GRAY_MODEL =
+        new DirectColorModel(24, 0x0000ff, 0x0000ff, 0x0000ff);
+}
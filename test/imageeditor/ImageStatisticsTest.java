@@ -0,0 +1,141 @@
+/* ImageStatisticsTest.java
+ *
+ *  Part of ImageEditor project - checks the statistics of an image against
+ *  counting its pixels, including after point operations, whose counts are
+ *  carried over rather than counted again, and for an image with no pixels.
+ */
+
+package imageeditor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.awt.image.ColorModel;
+import java.util.Random;
+import org.junit.Test;
+
+public class ImageStatisticsTest
+{
+    /** The statistics of a gray image are those of its values
+     */
+    @Test
+    public void grayStatisticsMatchCounts()
+    {
+        int [] [] pixels = TestImages.random(new Random(1), 37, 53);
+        ImageStatistics statistics = TestImages.gray(pixels).getStatistics();
+        assertEquals(1, statistics.getChannelCount());
+        checkChannel(statistics, 0, pixels, 0);
+    }
+
+    /** The statistics of a color image are those of each of its colors
+     */
+    @Test
+    public void colorStatisticsMatchCounts()
+    {
+        int [] [] pixels = TestImages.randomColors(new Random(2), 41, 29);
+        ImageStatistics statistics = TestImages.color(pixels).getStatistics();
+        assertEquals(3, statistics.getChannelCount());
+        checkChannel(statistics, ImageStatistics.RED, pixels, 16);
+        checkChannel(statistics, ImageStatistics.GREEN, pixels, 8);
+        checkChannel(statistics, ImageStatistics.BLUE, pixels, 0);
+    }
+
+    /** The counts carried over through point operations are those of the
+     *  pixels they leave
+     */
+    @Test
+    public void countsFollowPointOperations()
+    {
+        Random random = new Random(3);
+        int [] [] pixels = TestImages.random(random, 60, 45);
+        ProjectImage image = TestImages.gray(pixels);
+        BaselineImage baseline = new BaselineImage(pixels);
+        image.calculateHistogram();
+        for (int step = 0; step < 40; step ++)
+        {
+            switch (random.nextInt(5))
+            {
+                case 0: image.lighten(); baseline.lighten(); break;
+                case 1: image.darken(); baseline.darken(); break;
+                case 2: image.negative(); baseline.negative(); break;
+                case 3: image.reduceContrast(); baseline.reduceContrast(); break;
+                default: image.enhanceContrast(); baseline.enhanceContrast(); break;
+            }
+            assertArrayEquals("step " + step, baseline.calculateHistogram(),
+                              image.calculateHistogram());
+        }
+    }
+
+    /** The median and other percentiles are read off the histogram
+     */
+    @Test
+    public void findsPercentiles()
+    {
+        int [] [] pixels = { { 10, 20, 30, 40 }, { 50, 60, 70, 80 } };
+        ImageStatistics statistics = TestImages.gray(pixels).getStatistics();
+        assertEquals(10, statistics.getPercentile(0, 0));
+        assertEquals(40, statistics.getPercentile(0, 50));
+        assertEquals(50, statistics.getPercentile(0, 51));
+        assertEquals(80, statistics.getPercentile(0, 100));
+    }
+
+    /** An image with no pixels has counts of 0, and no view
+     */
+    @Test
+    public void emptyImageCountsNothing()
+    {
+        ProjectImage gray = new ProjectImage(new GrayScaleColorModel(), 0, 0, new int [0]);
+        assertArrayEquals(new int [256], gray.calculateHistogram());
+        assertEquals(0, gray.getStatistics().getPixelCount());
+        assertEquals(0, gray.getStatistics().getMean(0), 0);
+        assertNull(gray.getBufferedImage());
+
+        ProjectImage color = new ProjectImage(ColorModel.getRGBdefault(), 7, 0, new int [0]);
+        assertEquals(3, color.getStatistics().getChannelCount());
+        assertArrayEquals(new int [256], color.getStatistics().getHistogram(ImageStatistics.BLUE));
+    }
+
+    /** Statistics cannot be given for gray values outside 0 .. 255
+     */
+    @Test(expected = IllegalStateException.class)
+    public void outOfRangeValuesHaveNoStatistics()
+    {
+        ProjectImage image = TestImages.gray(TestImages.flat(10, 10, 200));
+        image.encryptDecrypt(1000);
+        image.getStatistics();
+    }
+
+    /** Check the statistics of one channel against its values
+     *
+     *  @param statistics the statistics
+     *  @param channel the channel to check
+     *  @param pixels the pixels they are the statistics of
+     *  @param shift where the channel's value lies in each pixel
+     */
+    private static void checkChannel(ImageStatistics statistics, int channel,
+                                     int [] [] pixels, int shift)
+    {
+        int [] histogram = new int [256];
+        long sum = 0;
+        int minimum = 255;
+        int maximum = 0;
+        long count = 0;
+        for (int [] row : pixels)
+            for (int pixel : row)
+            {
+                int value = pixel >> shift & 0xff;
+                histogram[value] ++;
+                sum += value;
+                minimum = Math.min(minimum, value);
+                maximum = Math.max(maximum, value);
+                count ++;
+            }
+        assertArrayEquals(histogram, statistics.getHistogram(channel));
+        assertEquals(count, statistics.getPixelCount());
+        assertEquals(sum, statistics.getSum(channel));
+        assertEquals((double) sum / count, statistics.getMean(channel), 1e-9);
+        assertEquals(minimum, statistics.getMinimum(channel));
+        assertEquals(maximum, statistics.getMaximum(channel));
+    }
+}
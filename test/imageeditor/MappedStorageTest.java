@@ -0,0 +1,211 @@
+/* MappedStorageTest.java
+ *
+ *  Part of ImageEditor project - checks that an image whose pixels are kept
+ *  off the heap gives exactly the pixels an image on the heap gives, for
+ *  every operation, including images tall enough to be processed in several
+ *  bands.
+ */
+
+package imageeditor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+import org.junit.Test;
+
+public class MappedStorageTest
+{
+    /** Every operation gives the same gray pixels either way
+     */
+    @Test
+    public void grayOperationsMatchHeap() throws IOException
+    {
+        Random random = new Random(1);
+        for (int [] size : SIZES)
+            checkOperations(TestImages.random(random, size[0], size[1]), false, random);
+    }
+
+    /** Every operation gives the same colors either way
+     */
+    @Test
+    public void colorOperationsMatchHeap() throws IOException
+    {
+        Random random = new Random(2);
+        for (int [] size : SIZES)
+            checkOperations(TestImages.randomColors(random, size[0], size[1]), true, random);
+    }
+
+    /** An image spanning several bands gives the same pixels for the
+     *  operations that read rows beyond the band they write
+     */
+    @Test
+    public void manyBandsMatchHeap() throws IOException
+    {
+        Random random = new Random(3);
+        int [] [] pixels = TestImages.random(random, TALL_HEIGHT, TALL_WIDTH);
+        ProjectImage heap = TestImages.gray(pixels);
+        ProjectImage mapped = TestImages.gray(pixels);
+        mapped.useMappedStorage();
+        int [] operations = { 12, 14, 9, 10, 15, 6, 7 };
+        for (int operation : operations)
+        {
+            apply(operation, heap);
+            apply(operation, mapped);
+            assertEquals(heap.getWidth(), mapped.getWidth());
+            assertArrayEquals("operation " + operation, heap.getPixelsIntRGB(),
+                              mapped.getPixelsIntRGB());
+        }
+        assertTrue(mapped.isMapped());
+    }
+
+    /** A new mapped image starts out as 0, and rows written to it are read
+     *  back as they were written
+     */
+    @Test
+    public void rowsMatchHeap() throws IOException
+    {
+        Random random = new Random(4);
+        ProjectImage mapped = ProjectImage.createMapped(new GrayScaleColorModel(), 90, 70);
+        int [] [] pixels = TestImages.flat(70, 90, 0);
+        int [] row = new int [90];
+        mapped.getRows(35, 1, row);
+        assertArrayEquals(pixels[35], row);
+
+        int [] rows = new int [3 * 90];
+        for (int edit = 0; edit < 20; edit ++)
+        {
+            int startRow = random.nextInt(68);
+            for (int index = 0; index < rows.length; index ++)
+                rows[index] = random.nextInt(256);
+            mapped.setRows(startRow, 3, rows);
+            for (int index = 0; index < rows.length; index ++)
+                pixels[startRow + index / 90][index % 90] = rows[index];
+        }
+        assertArrayEquals(pixels, mapped.getPixels());
+
+        mapped.getRows(10, 3, rows);
+        for (int index = 0; index < rows.length; index ++)
+            assertEquals(pixels[10 + index / 90][index % 90], rows[index]);
+    }
+
+    /** An image kept off the heap keeps no history
+     */
+    @Test
+    public void mappedImageKeepsNoHistory() throws IOException
+    {
+        ProjectImage image = TestImages.gray(TestImages.random(new Random(5), 40, 40));
+        image.setHistoryBudget(1L << 20);
+        image.lighten();
+        assertTrue(image.canUndo());
+        image.useMappedStorage();
+        assertFalse(image.canUndo());
+        image.setHistoryBudget(1L << 20);
+        image.negative();
+        assertFalse(image.canUndo());
+    }
+
+    /** Apply random runs of operations to an image on the heap and to a
+     *  copy of it kept off the heap, comparing them after each one
+     *
+     *  @param pixels the pixels to start from
+     *  @param color true if they are packed colors
+     *  @param random the source of the operations
+     */
+    private static void checkOperations(int [] [] pixels, boolean color, Random random)
+        throws IOException
+    {
+        for (int trial = 0; trial < 4; trial ++)
+        {
+            ProjectImage heap = color ? TestImages.color(pixels) : TestImages.gray(pixels);
+            ProjectImage mapped = color ? TestImages.color(pixels) : TestImages.gray(pixels);
+            mapped.useMappedStorage();
+            StringBuilder operations = new StringBuilder();
+            for (int step = 0; step < 8; step ++)
+            {
+                int operation = random.nextInt(OPERATIONS);
+                if (operation == 7 && (heap.getWidth() < 2 || heap.getHeight() < 2))
+                    operation = 5;
+                if (operation == 11 && (long) heap.getWidth() * heap.getHeight() > 1 << 20)
+                    operation = 7;
+                operations.append(operation).append(' ');
+                apply(operation, heap);
+                apply(operation, mapped);
+                assertEquals(operations.toString(), heap.getWidth(), mapped.getWidth());
+                assertEquals(operations.toString(), heap.getHeight(), mapped.getHeight());
+                assertArrayEquals(operations.toString(), heap.getPixelsIntRGB(),
+                                  mapped.getPixelsIntRGB());
+            }
+            assertTrue(mapped.isMapped());
+        }
+    }
+
+    /** Apply one of the operations to an image
+     *
+     *  @param operation which operation - 0 .. OPERATIONS - 1
+     *  @param image the image
+     */
+    private static void apply(int operation, ProjectImage image)
+    {
+        switch (operation)
+        {
+            case 0: image.lighten(); break;
+            case 1: image.darken(); break;
+            case 2: image.negative(); break;
+            case 3: image.reduceContrast(); break;
+            case 4: image.enhanceContrast(); break;
+            case 5: image.flipHorizontally(); break;
+            case 6: image.flipVertically(); break;
+            case 7: image.halve(); break;
+            case 8: image.shiftHorizontally(3); break;
+            case 9: image.shiftVertically(-1234); break;
+            case 10: image.rotate(); break;
+            case 11: image.doubleSize(); break;
+            case 12: image.applyFilter(BLUR); break;
+            case 13: image.encryptDecrypt(77); break;
+            case 14: image.applyFilter(SHARPEN); break;
+            default: image.applyFilter(EDGES); break;
+        }
+    }
+
+    // The number of operations apply() chooses from
+
+    private static final int OPERATIONS = 16;
+
+    // The sizes of the images given random runs of operations, as rows and
+    // columns, down to a single pixel wide or high
+
+    private static final int [] [] SIZES = {
+        { 300, 200 }, { 57, 301 }, { 3, 1 }, { 1, 3 }, { 2, 2 }
+    };
+
+    // The size of the image processed in several bands
+
+    private static final int TALL_WIDTH = 500;
+    private static final int TALL_HEIGHT = 20000;
+
+    // The filters offered by the GUI's Blur, Sharpen and Edges buttons
+
+    private static final double [] [] BLUR = {
+        { 0.0625, 0.0625, 0.0625 },
+        { 0.0625, 0.5, 0.0625 },
+        { 0.0625, 0.0625, 0.0625 }
+    };
+
+    private static final double [] [] SHARPEN = {
+        { -0.1, -0.1, -0.1 },
+        { -0.1, 1.8, -0.1 },
+        { -0.1, -0.1, -0.1 }
+    };
+
+    private static final double [] [] EDGES = {
+        { -1, -1, -1, -1, -1 },
+        { -1,  1,  1,  1, -1 },
+        { -1,  1,  8,  1, -1 },
+        { -1,  1,  1,  1, -1 },
+        { -1, -1, -1, -1, -1 }
+    };
+}
@@ -0,0 +1,302 @@
+/* OperationMetricsTest.java
+ *
+ *  Part of ImageEditor project - checks that operations are counted and
+ *  timed while measuring is on, that nothing is recorded while it is off,
+ *  and that the figures read through JMX are those of a known sequence of
+ *  edits.
+ */
+
+package imageeditor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.function.Supplier;
+import javax.management.Attribute;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import org.junit.After;
+import org.junit.Test;
+
+public class OperationMetricsTest
+{
+    /** Measuring is left off, with nothing recorded, for the other tests
+     */
+    @After
+    public void turnOff()
+    {
+        OperationMetrics.setEnabled(false);
+        OperationMetrics.reset();
+    }
+
+    /** While measuring is off, operations still give their results but
+     *  nothing is recorded
+     */
+    @Test
+    public void disabledRecordsNothing()
+    {
+        OperationMetrics.setEnabled(false);
+        OperationMetrics.reset();
+        ProjectImage image = image();
+        image.lighten();
+        image.applyFilter(BLUR);
+        OperationMetrics.Operation operation = OperationMetrics.Operation.CALCULATE_HISTOGRAM;
+        int [] histogram = OperationMetrics.measure(operation, image, new Supplier<int []>() {
+            public int [] get()
+            {
+                return new int [] { 7 };
+            }
+        });
+        assertArrayEquals(new int [] { 7 }, histogram);
+        assertFalse(OperationMetrics.isEnabled());
+        assertEquals(0, OperationMetrics.getSummaries().length);
+        assertNull(OperationMetrics.getSummary(OperationMetrics.Operation.LIGHTEN));
+        assertNull(OperationMetrics.getLatest());
+    }
+
+    /** Each operation is counted under its own name, and the latest is
+     *  described with the image it was carried out on
+     */
+    @Test
+    public void countsEachOperation()
+    {
+        start();
+        ProjectImage image = image();
+        for (int i = 0; i < 3; i ++)
+            image.lighten();
+        image.negative();
+        image.negative();
+        image.flipHorizontally();
+        image.halve();
+
+        assertEquals(3, count(OperationMetrics.Operation.LIGHTEN));
+        assertEquals(2, count(OperationMetrics.Operation.NEGATIVE));
+        assertEquals(1, count(OperationMetrics.Operation.FLIP_HORIZONTALLY));
+        assertEquals(1, count(OperationMetrics.Operation.HALVE));
+        assertNull(OperationMetrics.getSummary(OperationMetrics.Operation.DARKEN));
+
+        OperationMetrics.Summary [] summaries = OperationMetrics.getSummaries();
+        String [] names = new String [summaries.length];
+        for (int i = 0; i < summaries.length; i ++)
+            names[i] = summaries[i].getOperation();
+        assertArrayEquals(new String [] { "LIGHTEN", "NEGATIVE", "FLIP_HORIZONTALLY", "HALVE" },
+                          names);
+
+        OperationMetrics.Measurement latest = OperationMetrics.getLatest();
+        assertEquals(OperationMetrics.Operation.HALVE, latest.getOperation());
+        assertEquals(WIDTH, latest.getWidth());
+        assertEquals(HEIGHT, latest.getHeight());
+        assertFalse(latest.isColor());
+
+        OperationMetrics.reset();
+        assertEquals(0, OperationMetrics.getSummaries().length);
+        assertNull(OperationMetrics.getLatest());
+    }
+
+    /** An operation carried out within another counts as part of it, and
+     *  one that fails is still counted
+     */
+    @Test
+    public void countsOuterAndFailedOperations()
+    {
+        start();
+        final ProjectImage image = image();
+        OperationMetrics.measure(OperationMetrics.Operation.UNDO, image, new Runnable() {
+            public void run()
+            {
+                image.darken();
+                image.applyFilter(BLUR);
+            }
+        });
+        assertEquals(1, count(OperationMetrics.Operation.UNDO));
+        assertNull(OperationMetrics.getSummary(OperationMetrics.Operation.DARKEN));
+        assertNull(OperationMetrics.getSummary(OperationMetrics.Operation.APPLY_FILTER));
+
+        try
+        {
+            image.resize(-1, 4, ProjectImage.ResizeFilter.BOX);
+            fail("A negative size was accepted");
+        }
+        catch(IllegalArgumentException exception)
+        {
+        }
+        assertEquals(1, count(OperationMetrics.Operation.RESIZE));
+
+        // The failed operation was finished, so the next is measured too
+
+        image.darken();
+        assertEquals(1, count(OperationMetrics.Operation.DARKEN));
+    }
+
+    /** The times recorded cover the time the operation took, and the
+     *  percentiles of the last minute lie within a bucket of them
+     */
+    @Test
+    public void timesOperations()
+    {
+        start();
+        ProjectImage image = image();
+        final long [] slept = new long [1];
+        for (int i = 0; i < 4; i ++)
+            OperationMetrics.measure(OperationMetrics.Operation.ROTATE, image, new Runnable() {
+                public void run()
+                {
+                    long begin = System.nanoTime();
+                    sleep(SLEEP_MILLIS);
+                    slept[0] = Math.max(slept[0], System.nanoTime() - begin);
+                }
+            });
+        OperationMetrics.Summary summary =
+            OperationMetrics.getSummary(OperationMetrics.Operation.ROTATE);
+        assertEquals(4, summary.getCount());
+        assertEquals(4, summary.getRecentCount());
+        assertTrue(summary.getMeanMillis() >= SLEEP_MILLIS);
+        assertTrue(summary.getMaxMillis() >= slept[0] / 1e6);
+        assertTrue(summary.getMaxMillis() >= summary.getMeanMillis());
+        assertTrue(summary.getMedianMillis() >= SLEEP_MILLIS * (1 - BUCKET_ERROR));
+        assertTrue(summary.getMedianMillis() <= summary.getMaxMillis() * (1 + BUCKET_ERROR));
+        assertTrue(summary.getP95Millis() >= summary.getMedianMillis());
+        assertTrue(summary.getP99Millis() >= summary.getP95Millis());
+        assertTrue(OperationMetrics.getLatest().getMillis() >= SLEEP_MILLIS);
+    }
+
+    /** The bytes allocated include the buffers an operation makes, where
+     *  the JVM can count them
+     */
+    @Test
+    public void countsBytesAllocated()
+    {
+        start();
+        ProjectImage image = image();
+        OperationMetrics.measure(OperationMetrics.Operation.DOUBLE_SIZE, image, new Runnable() {
+            public void run()
+            {
+                allocated = new int [ALLOCATED_INTS];
+            }
+        });
+        long bytes = OperationMetrics.getLatest().getBytes();
+        if (bytes != -1)
+        {
+            assertTrue(bytes >= 4L * ALLOCATED_INTS);
+            assertEquals(bytes, OperationMetrics.getSummary(OperationMetrics.Operation.DOUBLE_SIZE)
+                                                .getMeanBytesAllocated());
+        }
+    }
+
+    /** The figures read through JMX are those of the edits made, and the
+     *  bean can turn measuring off and discard the figures
+     */
+    @Test
+    public void beanReportsEdits() throws JMException
+    {
+        OperationMetrics.registerMBean();
+        OperationMetrics.registerMBean();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OperationMetrics.MBEAN_NAME);
+        OperationMetrics.reset();
+        server.setAttribute(name, new Attribute("Enabled", true));
+        assertTrue(OperationMetrics.isEnabled());
+
+        ProjectImage image = image();
+        image.lighten();
+        image.lighten();
+        image.shiftVertically(5);
+        image.negative();
+        assertEquals(Boolean.TRUE, server.getAttribute(name, "Enabled"));
+        String latest = (String) server.getAttribute(name, "Latest");
+        assertTrue(latest,
+                   latest.startsWith("NEGATIVE of " + WIDTH + "x" + HEIGHT + " gray image: "));
+
+        CompositeData [] operations = (CompositeData []) server.getAttribute(name, "Operations");
+        String [] names = new String [operations.length];
+        long [] counts = new long [operations.length];
+        for (int i = 0; i < operations.length; i ++)
+        {
+            names[i] = (String) operations[i].get("operation");
+            counts[i] = (Long) operations[i].get("count");
+        }
+        assertArrayEquals(new String [] { "LIGHTEN", "NEGATIVE", "SHIFT_VERTICALLY" }, names);
+        assertArrayEquals(new long [] { 2, 1, 1 }, counts);
+
+        server.invoke(name, "reset", null, null);
+        assertEquals(0, ((CompositeData []) server.getAttribute(name, "Operations")).length);
+        assertNull(server.getAttribute(name, "Latest"));
+        server.setAttribute(name, new Attribute("Enabled", false));
+        image.negative();
+        assertEquals(0, OperationMetrics.getSummaries().length);
+    }
+
+    /** Turn measuring on, with nothing recorded yet
+     */
+    private static void start()
+    {
+        OperationMetrics.reset();
+        OperationMetrics.setEnabled(true);
+    }
+
+    /** Find the number of times an operation has been measured
+     *
+     *  @param operation the operation
+     *  @return the count, which must be more than 0
+     */
+    private static long count(OperationMetrics.Operation operation)
+    {
+        return OperationMetrics.getSummary(operation).getCount();
+    }
+
+    /** Make a random grayscale image of the size the tests use
+     *
+     *  @return the image
+     */
+    private static ProjectImage image()
+    {
+        return TestImages.gray(TestImages.random(new Random(1), HEIGHT, WIDTH));
+    }
+
+    /** Sleep, however often interrupted
+     *
+     *  @param millis the number of milliseconds to sleep for
+     */
+    private static void sleep(long millis)
+    {
+        long end = System.nanoTime() + millis * 1000000;
+        for (long left = millis * 1000000; left > 0; left = end - System.nanoTime())
+        {
+            try
+            {
+                Thread.sleep(left / 1000000, (int) (left % 1000000));
+            }
+            catch(InterruptedException exception)
+            {
+                // Sleep for what is left
+            }
+        }
+    }
+
+    // An array kept so that allocating it cannot be optimized away
+
+    private static int [] allocated;
+
+    // The size of the images, the time slept in an operation and the
+    // histogram's error in a percentile, and the ints allocated
+
+    private static final int WIDTH = 40;
+    private static final int HEIGHT = 30;
+    private static final long SLEEP_MILLIS = 20;
+    private static final double BUCKET_ERROR = 0.125;
+    private static final int ALLOCATED_INTS = 1 << 20;
+
+    private static final double [] [] BLUR = {
+        { 0.0625, 0.0625, 0.0625 },
+        { 0.0625, 0.5, 0.0625 },
+        { 0.0625, 0.0625, 0.0625 }
+    };
+}
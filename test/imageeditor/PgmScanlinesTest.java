@@ -0,0 +1,184 @@
+/* PgmScanlinesTest.java
+ *
+ *  Part of ImageEditor project - checks that PGM images are read and written
+ *  a row at a time as the format lays them out: round trips, headers with
+ *  comments, smaller and 16-bit largest values, and a pipeline running from
+ *  one PGM image to another.
+ */
+
+package imageeditor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import org.junit.Test;
+
+public class PgmScanlinesTest
+{
+    /** An image written and read back has the same size and values
+     */
+    @Test
+    public void roundTripKeepsPixels() throws IOException
+    {
+        Random random = new Random(1);
+        int [] [] sizes = { { 1, 1 }, { 3, 200 }, { 97, 13 } };
+        for (int [] size : sizes)
+        {
+            int [] [] pixels = TestImages.random(random, size[0], size[1]);
+            assertArrayEquals(pixels, read(write(pixels)));
+        }
+    }
+
+    /** The writer gives the header the format asks for, then a byte for each
+     *  pixel, forcing values outside 0 .. 255 into range
+     */
+    @Test
+    public void writesHeaderAndClampedBytes() throws IOException
+    {
+        byte [] bytes = write(new int [] [] { { 0, 255, -7 }, { 300, 128, 1 } });
+        byte [] header = "P5\n3 2\n255\n".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(header.length + 6, bytes.length);
+        for (int i = 0; i < header.length; i ++)
+            assertEquals(header[i], bytes[i]);
+        int [] values = { 0, 255, 0, 255, 128, 1 };
+        for (int i = 0; i < values.length; i ++)
+            assertEquals(values[i], bytes[header.length + i] & 0xff);
+    }
+
+    /** Comments and runs of whitespace in the header are skipped
+     */
+    @Test
+    public void skipsComments() throws IOException
+    {
+        byte [] pixels = { 10, 20, 30, 40 };
+        int [] [] expected = { { 10, 20 }, { 30, 40 } };
+        assertArrayEquals(expected, read(pgm("P5 # made by hand\n2\t \n# size\r\n2 255\n",
+                                             pixels)));
+    }
+
+    /** Values are scaled to 0 .. 255 from a smaller largest value, rounding
+     *  to the nearest
+     */
+    @Test
+    public void scalesSmallerRange() throws IOException
+    {
+        byte [] pixels = { 0, 1, 7, 15 };
+        int [] [] expected = { { 0, 17, 119, 255 } };
+        assertArrayEquals(expected, read(pgm("P5\n4 1\n15\n", pixels)));
+    }
+
+    /** Two-byte values, most significant first, are scaled down to 0 .. 255
+     */
+    @Test
+    public void readsSixteenBitValues() throws IOException
+    {
+        byte [] pixels = { 0, 0, 0, (byte) 0x80, (byte) 0x80, 0, (byte) 0xff, (byte) 0xff };
+        int [] [] expected = { { 0, 0 }, { 128, 255 } };
+        assertArrayEquals(expected, read(pgm("P5\n2 2\n65535\n", pixels)));
+    }
+
+    /** Something that is not a binary PGM image is refused
+     */
+    @Test
+    public void refusesOtherFormats()
+    {
+        String [] headers = { "P2\n2 2\n255\n", "P5\n2 x\n255\n", "P5\n2 2\n0\n",
+                              "P5\n2 2\n65536\n", "P5\n2" };
+        for (String header : headers)
+        {
+            try
+            {
+                PgmScanlines.reader(new ByteArrayInputStream(
+                    header.getBytes(StandardCharsets.US_ASCII)));
+                throw new AssertionError("Accepted " + header);
+            }
+            catch (IOException e)
+            {
+            }
+        }
+    }
+
+    /** A pipeline reading one PGM image and writing another gives the
+     *  pixels the same operations give on a ProjectImage
+     */
+    @Test
+    public void pipelineBetweenFilesMatchesImage() throws IOException
+    {
+        int [] [] pixels = TestImages.random(new Random(2), 120, 77);
+        ScanlinePipeline pipeline = new ScanlinePipeline();
+        pipeline.darken();
+        pipeline.applyFilter(SHARPEN);
+        pipeline.shiftHorizontally(20);
+        pipeline.halve();
+        ProjectImage image = TestImages.gray(pixels);
+        image.darken();
+        image.applyFilter(SHARPEN);
+        image.shiftHorizontally(20);
+        image.halve();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        pipeline.run(PgmScanlines.reader(new ByteArrayInputStream(write(pixels))),
+                     PgmScanlines.writer(out));
+        assertArrayEquals(image.getPixels(), read(out.toByteArray()));
+    }
+
+    /** Write pixels as a PGM image
+     *
+     *  @param pixels the pixels
+     *  @return the bytes of the image
+     *  @exception IOException never, since the stream is an array
+     */
+    private static byte [] write(int [] [] pixels) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ScanlineSink sink = PgmScanlines.writer(out);
+        sink.start(pixels[0].length, pixels.length);
+        for (int [] row : pixels)
+            sink.writeRow(row.clone());
+        sink.finish();
+        return out.toByteArray();
+    }
+
+    /** Read the pixels of a PGM image
+     *
+     *  @param bytes the bytes of the image
+     *  @return its pixels
+     *  @exception IOException if the bytes are not a PGM image
+     */
+    private static int [] [] read(byte [] bytes) throws IOException
+    {
+        ScanlineSource source = PgmScanlines.reader(new ByteArrayInputStream(bytes));
+        int [] [] pixels = new int [source.getHeight()] [source.getWidth()];
+        for (int [] row : pixels)
+            source.readRow(row);
+        return pixels;
+    }
+
+    /** Make a PGM image from a header and the bytes of its pixels
+     *
+     *  @param header the header, including the whitespace ending it
+     *  @param pixels the bytes of the pixels
+     *  @return the bytes of the image
+     */
+    private static byte [] pgm(String header, byte [] pixels)
+    {
+        byte [] start = header.getBytes(StandardCharsets.US_ASCII);
+        byte [] bytes = new byte [start.length + pixels.length];
+        System.arraycopy(start, 0, bytes, 0, start.length);
+        System.arraycopy(pixels, 0, bytes, start.length, pixels.length);
+        return bytes;
+    }
+
+    // Sharpen, as the GUI applies it
+
+    private static final double [] [] SHARPEN = {
+        { -0.1, -0.1, -0.1 },
+        { -0.1,  1.8, -0.1 },
+        { -0.1, -0.1, -0.1 }
+    };
+}
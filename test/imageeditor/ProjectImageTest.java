@@ -0,0 +1,369 @@
+/* ProjectImageTest.java
+ *
+ *  Part of ImageEditor project - checks that the grayscale operations give
+ *  exactly the pixels the original implementation gave (see BaselineImage),
+ *  however the pixels are now held and whether or not the work is split
+ *  between threads.  Filters of fractions such as Sharpen's tenths are
+ *  checked against the exact rounding that replaced the original's, and
+ *  filters of any other weights against the original's double sums.
+ */
+
+package imageeditor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ProjectImageTest
+{
+    @Before
+    public void saveParallelism()
+    {
+        parallelism = ParallelEngine.getParallelism();
+        sequentialThreshold = ParallelEngine.getSequentialThreshold();
+    }
+
+    @After
+    public void restoreParallelism()
+    {
+        ParallelEngine.setParallelism(parallelism);
+        ParallelEngine.setSequentialThreshold(sequentialThreshold);
+    }
+
+    /** Each operation on its own matches the original
+     */
+    @Test
+    public void eachOperationMatchesBaseline()
+    {
+        Random random = new Random(1);
+        for (int operation = 0; operation < OPERATIONS; operation ++)
+            for (int trial = 0; trial < 5; trial ++)
+            {
+                int [] [] pixels = TestImages.random(random, 4 + random.nextInt(60),
+                                                     4 + random.nextInt(60));
+                BaselineImage baseline = new BaselineImage(pixels);
+                ProjectImage image = TestImages.gray(pixels);
+                int seed = 1 + random.nextInt(1000);
+                apply(operation, seed, baseline, image);
+                assertSame("operation " + operation, baseline, image);
+            }
+    }
+
+    /** Runs of operations match the original, including the ones that are
+     *  deferred and combined with those after them
+     */
+    @Test
+    public void sequencesMatchBaseline()
+    {
+        checkSequences(new Random(2));
+    }
+
+    /** Runs of operations match the original when every operation is split
+     *  into bands of rows on several threads
+     */
+    @Test
+    public void parallelSequencesMatchBaseline()
+    {
+        ParallelEngine.setParallelism(4);
+        ParallelEngine.setSequentialThreshold(1);
+        checkSequences(new Random(3));
+    }
+
+    /** Sharpen gives the original's value wherever its tenths sum to no
+     *  whole number, and one level more where they do and the original's
+     *  double sum fell just short of it
+     */
+    @Test
+    public void sharpenDiffersOnlyOnWholeNumbers()
+    {
+        Random random = new Random(5);
+        int [] [] pixels = TestImages.random(random, 80, 90);
+        for (int row = 20; row < 40; row ++)
+            for (int col = 20; col < 40; col ++)
+                pixels[row][col] = 1;
+        BaselineImage original = new BaselineImage(pixels);
+        original.applyFilter(SHARPEN);
+        ProjectImage image = TestImages.gray(pixels);
+        image.applyFilter(SHARPEN);
+        int [] [] result = image.getPixels();
+
+        int differences = 0;
+        for (int row = 1; row < 79; row ++)
+            for (int col = 1; col < 89; col ++)
+                if (result[row][col] != original.getPixels()[row][col])
+                {
+                    long tenths = 0;
+                    for (int y = 0; y < 3; y ++)
+                        for (int x = 0; x < 3; x ++)
+                            tenths += SHARPEN_NUMERATORS[y][x] * pixels[row + y - 1][col + x - 1];
+                    assertEquals(0, tenths % 10);
+                    assertEquals(original.getPixels()[row][col] + 1, result[row][col]);
+                    differences ++;
+                }
+        assertEquals(1, result[30][30]);
+        assertTrue(differences >= 18 * 18);
+    }
+
+    /** Filters whose weights are not fractions with a small denominator -
+     *  a Gaussian, large and small, a box and one of random weights - are
+     *  rounded down from their double sums as the original rounded them,
+     *  whichever way they are applied
+     */
+    @Test
+    public void otherWeightsRoundLikeBaseline()
+    {
+        Random random = new Random(6);
+        double [] [] [] filters = {
+            gaussian(5, 1.1), gaussian(31, 5), box(9, Math.PI / 100), randomWeights(random, 7)
+        };
+        for (double [] [] filter : filters)
+            for (int trial = 0; trial < 3; trial ++)
+            {
+                int [] [] pixels = TestImages.random(random, filter.length + random.nextInt(120),
+                                                     filter.length + random.nextInt(120));
+                ProjectImage image = TestImages.gray(pixels);
+                image.applyFilter(filter);
+                TestImages.assertRoundedDown("size " + filter.length, pixels, filter,
+                                             image.getPixels());
+            }
+    }
+
+    /** Packed pixels are the gray value repeated in each channel, as
+     *  before
+     */
+    @Test
+    public void packsGrayIntoEachChannel()
+    {
+        int [] [] pixels = TestImages.random(new Random(4), 13, 17);
+        int [] packed = TestImages.gray(pixels).getPixelsIntRGB();
+        for (int row = 0; row < 13; row ++)
+            for (int col = 0; col < 17; col ++)
+                assertEquals(pixels[row][col] * 0x10101, packed[row * 17 + col]);
+    }
+
+    /** Apply random runs of operations to random images and compare them
+     *  with the original after each run
+     *
+     *  @param random the source of the images and operations
+     */
+    private static void checkSequences(Random random)
+    {
+        for (int trial = 0; trial < 100; trial ++)
+        {
+            int [] [] pixels = TestImages.random(random, 4 + random.nextInt(40),
+                                                 4 + random.nextInt(40));
+            BaselineImage baseline = new BaselineImage(pixels);
+            ProjectImage image = TestImages.gray(pixels);
+            StringBuilder operations = new StringBuilder();
+            for (int step = 0; step < 12; step ++)
+            {
+                int [] [] current = baseline.getPixels();
+                if (current.length < 4 || current[0].length < 4
+                    || current.length * current[0].length > 20000)
+                    break;
+                int operation = random.nextInt(OPERATIONS);
+                operations.append(operation).append(' ');
+                apply(operation, 1 + random.nextInt(1000), baseline, image);
+            }
+            assertSame("operations " + operations, baseline, image);
+        }
+    }
+
+    /** Apply one of the operations to both images
+     *
+     *  @param operation which operation - 0 .. OPERATIONS - 1
+     *  @param seed the key to encrypt with
+     *  @param baseline the original implementation's image
+     *  @param image the image under test
+     */
+    private static void apply(int operation, int seed, BaselineImage baseline,
+                              ProjectImage image)
+    {
+        switch (operation)
+        {
+            case 0: baseline.lighten(); image.lighten(); break;
+            case 1: baseline.darken(); image.darken(); break;
+            case 2: baseline.negative(); image.negative(); break;
+            case 3: baseline.reduceContrast(); image.reduceContrast(); break;
+            case 4: baseline.enhanceContrast(); image.enhanceContrast(); break;
+            case 5: baseline.flipHorizontally(); image.flipHorizontally(); break;
+            case 6: baseline.flipVertically(); image.flipVertically(); break;
+            case 7: baseline.halve(); image.halve(); break;
+            case 8: baseline.shiftHorizontally(-1); image.shiftHorizontally(-1); break;
+            case 9: baseline.shiftHorizontally(1); image.shiftHorizontally(1); break;
+            case 10: baseline.shiftVertically(-1); image.shiftVertically(-1); break;
+            case 11: baseline.shiftVertically(1); image.shiftVertically(1); break;
+            case 12: baseline.rotate(); image.rotate(); break;
+            case 13: baseline.doubleSize(); image.doubleSize(); break;
+            case 14: baseline.applyFilter(BLUR); image.applyFilter(BLUR); break;
+            case 15: baseline.applyFilter(EDGES); image.applyFilter(EDGES); break;
+            case 16: baseline.applyFilter(GAUSSIAN); image.applyFilter(GAUSSIAN); break;
+            case 17:
+                baseline.applyFractionFilter(SHARPEN_NUMERATORS, 10);
+                image.applyFilter(SHARPEN);
+                break;
+            case 18:
+                baseline.applyFractionFilter(NINTHS_NUMERATORS, 9);
+                image.applyFilter(NINTHS);
+                break;
+            case 19:
+                baseline.applyFractionFilter(BINOMIAL_NUMERATORS, 81);
+                image.applyFilter(BINOMIAL);
+                break;
+            default: baseline.encryptDecrypt(seed); image.encryptDecrypt(seed); break;
+        }
+    }
+
+    /** Make a Gaussian filter
+     *
+     *  @param size the number of rows and columns
+     *  @param sigma its standard deviation
+     *  @return the filter, its weights adding up to 1
+     */
+    private static double [] [] gaussian(int size, double sigma)
+    {
+        double [] line = new double [size];
+        double total = 0;
+        for (int i = 0; i < size; i ++)
+        {
+            double distance = i - size / 2;
+            line[i] = Math.exp(- distance * distance / (2 * sigma * sigma));
+            total += line[i];
+        }
+        double [] [] filter = new double [size] [size];
+        for (int y = 0; y < size; y ++)
+            for (int x = 0; x < size; x ++)
+                filter[y][x] = line[y] / total * (line[x] / total);
+        return filter;
+    }
+
+    /** Make a box filter
+     *
+     *  @param size the number of rows and columns
+     *  @param weight the weight of every pixel
+     *  @return the filter
+     */
+    private static double [] [] box(int size, double weight)
+    {
+        double [] [] filter = new double [size] [size];
+        for (double [] row : filter)
+            Arrays.fill(row, weight);
+        return filter;
+    }
+
+    /** Make a filter of random weights, mostly positive
+     *
+     *  @param random the source of the weights
+     *  @param size the number of rows and columns
+     *  @return the filter
+     */
+    private static double [] [] randomWeights(Random random, int size)
+    {
+        double [] [] filter = new double [size] [size];
+        for (int y = 0; y < size; y ++)
+            for (int x = 0; x < size; x ++)
+                filter[y][x] = (random.nextDouble() - 0.2) * 2 / (size * size);
+        return filter;
+    }
+
+    /** Make a filter of fractions
+     *
+     *  @param numerators the numerators of the weights
+     *  @param denominator their common denominator
+     *  @return the weights, as the nearest doubles
+     */
+    private static double [] [] weights(long [] [] numerators, long denominator)
+    {
+        double [] [] filter = new double [numerators.length] [numerators.length];
+        for (int y = 0; y < numerators.length; y ++)
+            for (int x = 0; x < numerators.length; x ++)
+                filter[y][x] = numerators[y][x] / (double) denominator;
+        return filter;
+    }
+
+    /** Check that the image under test matches the original's, and so does
+     *  its histogram when the original's values all lie in 0 .. 255
+     *
+     *  @param message what was done to the images
+     *  @param baseline the original implementation's image
+     *  @param image the image under test
+     */
+    private static void assertSame(String message, BaselineImage baseline,
+                                   ProjectImage image)
+    {
+        int [] [] expected = baseline.getPixels();
+        assertArrayEquals(message, expected, image.getPixels());
+        for (int [] row : expected)
+            for (int value : row)
+                if (value < 0 || value > 255)
+                    return;
+        assertArrayEquals(message, baseline.calculateHistogram(), image.calculateHistogram());
+    }
+
+    // The number of operations apply() chooses from
+
+    private static final int OPERATIONS = 21;
+
+    // Filters whose weights doubles hold exactly, so that the original's
+    // sums are exact too - the GUI's Blur and Edges, and a separable one
+
+    private static final double [] [] BLUR = {
+        { 0.0625, 0.0625, 0.0625 },
+        { 0.0625, 0.5, 0.0625 },
+        { 0.0625, 0.0625, 0.0625 }
+    };
+
+    private static final double [] [] EDGES = {
+        { -1, -1, -1, -1, -1 },
+        { -1,  1,  1,  1, -1 },
+        { -1,  1,  8,  1, -1 },
+        { -1,  1,  1,  1, -1 },
+        { -1, -1, -1, -1, -1 }
+    };
+
+    private static final double [] [] GAUSSIAN = {
+        { 0.0625, 0.125, 0.0625 },
+        { 0.125, 0.25, 0.125 },
+        { 0.0625, 0.125, 0.0625 }
+    };
+
+    // Filters of fractions that doubles do not hold exactly - the GUI's
+    // Sharpen, a box of ninths and a separable 5 x 5 - and their numerators
+
+    private static final long [] [] SHARPEN_NUMERATORS = {
+        { -1, -1, -1 },
+        { -1, 18, -1 },
+        { -1, -1, -1 }
+    };
+
+    private static final double [] [] SHARPEN = weights(SHARPEN_NUMERATORS, 10);
+
+    private static final long [] [] NINTHS_NUMERATORS = {
+        { 1, 1, 1 },
+        { 1, 1, 1 },
+        { 1, 1, 1 }
+    };
+
+    private static final double [] [] NINTHS = weights(NINTHS_NUMERATORS, 9);
+
+    private static final long [] [] BINOMIAL_NUMERATORS = {
+        { 1, 2, 3, 2, 1 },
+        { 2, 4, 6, 4, 2 },
+        { 3, 6, 9, 6, 3 },
+        { 2, 4, 6, 4, 2 },
+        { 1, 2, 3, 2, 1 }
+    };
+
+    private static final double [] [] BINOMIAL = weights(BINOMIAL_NUMERATORS, 81);
+
+    // ParallelEngine's settings before each test
+
+    private int parallelism;
+    private int sequentialThreshold;
+}
@@ -0,0 +1,158 @@
+/* ResizeTest.java
+ *
+ *  Part of ImageEditor project - checks that resizing gives exactly the
+ *  size asked for, keeps what the weights should keep whichever filter is
+ *  used, and gives the same pixels for an image kept off the heap.
+ */
+
+package imageeditor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+import org.junit.Test;
+
+public class ResizeTest
+{
+    /** A flat image stays flat at any size, with every filter
+     */
+    @Test
+    public void flatImageStaysFlat()
+    {
+        Random random = new Random(1);
+        for (ProjectImage.ResizeFilter filter : ProjectImage.ResizeFilter.values())
+            for (int trial = 0; trial < 6; trial ++)
+            {
+                int newWidth = 1 + random.nextInt(150);
+                int newHeight = 1 + random.nextInt(150);
+                ProjectImage gray = TestImages.gray(TestImages.flat(47, 63, 91));
+                gray.resize(newWidth, newHeight, filter);
+                assertEquals(newWidth, gray.getWidth());
+                assertEquals(newHeight, gray.getHeight());
+                assertArrayEquals(filter.toString(), TestImages.flat(newHeight, newWidth, 91),
+                                  gray.getPixels());
+
+                ProjectImage color = TestImages.color(TestImages.flat(47, 63, 0xff12c07e));
+                color.resize(newWidth, newHeight, filter);
+                assertArrayEquals(filter.toString(),
+                                  TestImages.flat(newHeight, newWidth, 0xff12c07e),
+                                  color.getPixels());
+            }
+    }
+
+    /** Resizing to the same size with the box or bilinear filter, which
+     *  give no weight to pixels a whole pixel away, leaves every pixel as it
+     *  was
+     */
+    @Test
+    public void sameSizeKeepsPixels()
+    {
+        Random random = new Random(2);
+        int [] [] gray = TestImages.random(random, 33, 71);
+        int [] [] colors = TestImages.randomColors(random, 33, 71);
+        ProjectImage.ResizeFilter [] filters = {
+            ProjectImage.ResizeFilter.BOX, ProjectImage.ResizeFilter.BILINEAR
+        };
+        for (ProjectImage.ResizeFilter filter : filters)
+        {
+            ProjectImage image = TestImages.gray(gray);
+            image.resize(71, 33, filter);
+            assertArrayEquals(filter.toString(), gray, image.getPixels());
+            image = TestImages.color(colors);
+            image.resize(71, 33, filter);
+            assertArrayEquals(filter.toString(), colors, image.getPixels());
+        }
+    }
+
+    /** Halving with the box filter gives each square of four pixels a
+     *  pixel of its own, so squares of one value keep it
+     */
+    @Test
+    public void boxHalvingKeepsSquares()
+    {
+        Random random = new Random(3);
+        int [] [] squares = TestImages.random(random, 20, 30);
+        int [] [] pixels = new int [40] [60];
+        for (int row = 0; row < 40; row ++)
+            for (int col = 0; col < 60; col ++)
+                pixels[row][col] = squares[row / 2][col / 2];
+        ProjectImage image = TestImages.gray(pixels);
+        image.resize(30, 20, ProjectImage.ResizeFilter.BOX);
+        assertArrayEquals(squares, image.getPixels());
+    }
+
+    /** Gray values outside 0 .. 255 are forced into that range
+     */
+    @Test
+    public void forcesValuesIntoRange()
+    {
+        int [] [] pixels = TestImages.flat(10, 10, -40);
+        for (int row = 5; row < 10; row ++)
+            for (int col = 0; col < 10; col ++)
+                pixels[row][col] = 900;
+        ProjectImage image = TestImages.gray(pixels);
+        image.resize(20, 20, ProjectImage.ResizeFilter.LANCZOS);
+        int [] [] result = image.getPixels();
+        for (int [] row : result)
+            for (int value : row)
+                assertTrue(value >= 0 && value <= 255);
+        assertEquals(0, result[0][0]);
+        assertEquals(255, result[19][19]);
+    }
+
+    /** An image kept off the heap is resized to exactly the same pixels,
+     *  including one tall enough to be resized in several bands
+     */
+    @Test
+    public void mappedResizeMatchesHeap() throws IOException
+    {
+        Random random = new Random(4);
+        int [] [] sizes = { { 120, 80, 37, 211 }, { 9000, 300, 4000, 170 } };
+        int trial = 0;
+        for (ProjectImage.ResizeFilter filter : ProjectImage.ResizeFilter.values())
+            for (int [] size : sizes)
+            {
+                boolean color = trial ++ % 2 == 1;
+                int [] [] pixels = color ? TestImages.randomColors(random, size[0], size[1])
+                                         : TestImages.random(random, size[0], size[1]);
+                ProjectImage heap = color ? TestImages.color(pixels) : TestImages.gray(pixels);
+                ProjectImage mapped = color ? TestImages.color(pixels) : TestImages.gray(pixels);
+                mapped.useMappedStorage();
+                heap.resize(size[3], size[2], filter);
+                mapped.resize(size[3], size[2], filter);
+                assertEquals(heap.getHeight(), mapped.getHeight());
+                assertArrayEquals(filter.toString(), heap.getPixelsIntRGB(),
+                                  mapped.getPixelsIntRGB());
+            }
+    }
+
+    /** An image may be resized to nothing, but not back again
+     */
+    @Test
+    public void emptyImageCannotGrow()
+    {
+        ProjectImage image = TestImages.gray(TestImages.random(new Random(5), 8, 8));
+        image.resize(0, 0, ProjectImage.ResizeFilter.BICUBIC);
+        assertEquals(0, image.getWidth());
+        assertEquals(0, image.getHeight());
+        try
+        {
+            image.resize(4, 4, ProjectImage.ResizeFilter.BICUBIC);
+            throw new AssertionError("An empty image was resized");
+        }
+        catch (IllegalArgumentException e)
+        {
+        }
+    }
+
+    /** A negative size is refused
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesNegativeSize()
+    {
+        TestImages.gray(TestImages.flat(4, 4, 0)).resize(-1, 4, ProjectImage.ResizeFilter.BOX);
+    }
+}
@@ -0,0 +1,169 @@
+/* RotationTest.java
+ *
+ *  Part of ImageEditor project - checks that rotations by a multiple of 90
+ *  degrees move every pixel exactly, however the angle is given, and that
+ *  rotations by any other angle hold the whole image.
+ */
+
+package imageeditor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+import org.junit.Test;
+
+public class RotationTest
+{
+    /** Each quarter turn moves the pixels as turning the rows into columns
+     *  does, gray or color
+     */
+    @Test
+    public void quarterTurnsMovePixels()
+    {
+        Random random = new Random(1);
+        for (int trial = 0; trial < 10; trial ++)
+        {
+            int height = 1 + random.nextInt(60);
+            int width = 1 + random.nextInt(60);
+            boolean color = trial % 2 == 1;
+            int [] [] pixels = color ? TestImages.randomColors(random, height, width)
+                                     : TestImages.random(random, height, width);
+            int [] [] once = turned(pixels);
+            int [] [] twice = turned(once);
+            int [] [] thrice = turned(twice);
+
+            ProjectImage image = image(pixels, color);
+            image.rotate();
+            assertArrayEquals(once, image.getPixels());
+            image = image(pixels, color);
+            image.rotate180();
+            assertArrayEquals(twice, image.getPixels());
+            image = image(pixels, color);
+            image.rotate270();
+            assertArrayEquals(thrice, image.getPixels());
+        }
+    }
+
+    /** An angle that is a multiple of 90 degrees, however large and in
+     *  whichever direction, is one of the quarter turns
+     */
+    @Test
+    public void anglesReduceToQuarterTurns()
+    {
+        int [] [] pixels = TestImages.random(new Random(2), 23, 41);
+        int [] [] once = turned(pixels);
+        int [] [] twice = turned(once);
+        int [] [] thrice = turned(twice);
+        double [] angles = { 0, 90, 180, 270, 360, -90, -180, 450, -630, 720, 3600000090.0,
+                             -3600000180.0, 1e300 };
+        int [] [] [] expected = { pixels, once, twice, thrice, pixels, thrice, twice, once,
+                                  once, pixels, once, twice, null };
+        for (int index = 0; index < angles.length; index ++)
+        {
+            ProjectImage image = TestImages.gray(pixels);
+            image.rotate(angles[index]);
+            if (expected[index] == null)
+            {
+                // The largest angles are exact multiples of 360 once they
+                // are held as doubles
+
+                assertEquals(0, angles[index] % 90, 0);
+                assertEquals(pixels.length, image.getHeight());
+                assertEquals(pixels[0].length, image.getWidth());
+            }
+            else
+                assertArrayEquals("angle " + angles[index], expected[index], image.getPixels());
+        }
+    }
+
+    /** Any other angle makes the image just big enough to hold the whole
+     *  rotated image, keeps the pixels well inside it as they were, and
+     *  leaves the corners black
+     */
+    @Test
+    public void otherAnglesHoldWholeImage()
+    {
+        double [] angles = { 30, -30, 45, 100, 200.5, -315 };
+        for (double degrees : angles)
+        {
+            ProjectImage image = TestImages.gray(TestImages.flat(80, 120, 173));
+            image.rotate(degrees);
+            double radians = Math.toRadians(degrees);
+            double cos = Math.abs(Math.cos(radians));
+            double sin = Math.abs(Math.sin(radians));
+            assertEquals(Math.ceil(120 * cos + 80 * sin - 1e-9), image.getWidth(), 0);
+            assertEquals(Math.ceil(120 * sin + 80 * cos - 1e-9), image.getHeight(), 0);
+
+            int [] [] result = image.getPixels();
+            int rows = result.length;
+            int cols = result[0].length;
+            assertEquals("angle " + degrees, 173, result[rows / 2][cols / 2]);
+            assertEquals("angle " + degrees, 173, result[rows / 2 + 10][cols / 2 - 10]);
+            assertEquals(0, result[0][0]);
+            assertEquals(0, result[rows - 1][cols - 1]);
+        }
+    }
+
+    /** An image kept off the heap is rotated to exactly the same pixels
+     */
+    @Test
+    public void mappedRotationMatchesHeap() throws IOException
+    {
+        Random random = new Random(3);
+        for (int trial = 0; trial < 6; trial ++)
+        {
+            boolean color = trial % 2 == 1;
+            int [] [] pixels = color ? TestImages.randomColors(random, 150, 90)
+                                     : TestImages.random(random, 150, 90);
+            double degrees = random.nextDouble() * 720 - 360;
+            ProjectImage heap = image(pixels, color);
+            ProjectImage mapped = image(pixels, color);
+            mapped.useMappedStorage();
+            heap.rotate(degrees);
+            mapped.rotate(degrees);
+            assertEquals(heap.getWidth(), mapped.getWidth());
+            assertArrayEquals("angle " + degrees, heap.getPixelsIntRGB(),
+                              mapped.getPixelsIntRGB());
+            assertTrue(mapped.isMapped());
+        }
+    }
+
+    /** An angle that is not a number is refused
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesAngleThatIsNotANumber()
+    {
+        TestImages.gray(TestImages.flat(4, 4, 0)).rotate(Double.NaN);
+    }
+
+    /** Make an image of gray values or packed colors
+     *
+     *  @param pixels its pixels
+     *  @param color true if they are packed colors
+     *  @return the image
+     */
+    private static ProjectImage image(int [] [] pixels, boolean color)
+    {
+        return color ? TestImages.color(pixels) : TestImages.gray(pixels);
+    }
+
+    /** Turn pixels 90 degrees clockwise
+     *
+     *  @param pixels the pixels to turn
+     *  @return the turned pixels - each row is a column of the original,
+     *          read from the bottom up
+     */
+    private static int [] [] turned(int [] [] pixels)
+    {
+        int height = pixels.length;
+        int width = pixels[0].length;
+        int [] [] result = new int [width] [height];
+        for (int row = 0; row < width; row ++)
+            for (int col = 0; col < height; col ++)
+                result[row][col] = pixels[height - 1 - col][row];
+        return result;
+    }
+}
@@ -0,0 +1,230 @@
+/* ScanlinePipelineTest.java
+ *
+ *  Part of ImageEditor project - checks that each stage of a pipeline, and
+ *  pipelines of several stages, give the pixels the same operations give on
+ *  a ProjectImage, including images tall enough to be filtered in several
+ *  windows and images whose values leave 0 .. 255 part of the way through.
+ */
+
+package imageeditor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Random;
+import org.junit.Test;
+
+public class ScanlinePipelineTest
+{
+    /** With no stages the image is copied unchanged
+     */
+    @Test
+    public void emptyPipelineCopies() throws IOException
+    {
+        int [] [] pixels = TestImages.random(new Random(1), 17, 23);
+        assertArrayEquals(pixels, run(new ScanlinePipeline(), pixels));
+    }
+
+    /** Each stage on its own gives the pixels its ProjectImage operation
+     *  gives
+     */
+    @Test
+    public void eachStageMatchesImage() throws IOException
+    {
+        Random random = new Random(2);
+        for (int stage = 0; stage < STAGES; stage ++)
+            for (int [] size : SIZES)
+            {
+                int [] [] pixels = TestImages.random(random, size[0], size[1]);
+                ScanlinePipeline pipeline = new ScanlinePipeline();
+                ProjectImage image = TestImages.gray(pixels);
+                add(stage, pipeline, image);
+                assertArrayEquals("stage " + stage + " at " + size[0] + " x " + size[1],
+                                  image.getPixels(), run(pipeline, pixels));
+            }
+    }
+
+    /** A sequence of stages gives the pixels the same sequence of operations
+     *  gives, and running the pipeline again gives them again
+     */
+    @Test
+    public void sequencesMatchImage() throws IOException
+    {
+        Random random = new Random(3);
+        for (int trial = 0; trial < 20; trial ++)
+        {
+            int [] size = SIZES[random.nextInt(SIZES.length)];
+            int [] [] pixels = TestImages.random(random, size[0], size[1]);
+            ScanlinePipeline pipeline = new ScanlinePipeline();
+            ProjectImage image = TestImages.gray(pixels);
+            StringBuilder stages = new StringBuilder();
+            for (int step = 0; step < 5; step ++)
+            {
+                int stage = random.nextInt(STAGES);
+                if (stage == 7 && Math.min(image.getWidth(), image.getHeight()) < 4)
+                    continue;
+                add(stage, pipeline, image);
+                stages.append(' ').append(stage);
+            }
+            int [] [] expected = image.getPixels();
+            assertArrayEquals("stages" + stages, expected, run(pipeline, pixels));
+            assertArrayEquals("stages" + stages, expected, run(pipeline, pixels));
+        }
+    }
+
+    /** A filter after encryption, whose values may lie outside 0 .. 255,
+     *  rounds as the image does - including after decrypting again, when the
+     *  values are back in range although the pipeline cannot know it
+     */
+    @Test
+    public void filterAfterEncryptionMatchesImage() throws IOException
+    {
+        Random random = new Random(4);
+        double [] [] [] filters = { SHARPEN, BINOMIAL, BOX };
+        for (double [] [] filter : filters)
+            for (int twice = 0; twice < 2; twice ++)
+            {
+                int [] [] pixels = TestImages.random(random, 150, 61);
+                ScanlinePipeline pipeline = new ScanlinePipeline();
+                ProjectImage image = TestImages.gray(pixels);
+                for (int times = 0; times <= twice; times ++)
+                {
+                    pipeline.encryptDecrypt(77);
+                    image.encryptDecrypt(77);
+                }
+                pipeline.applyFilter(filter);
+                image.applyFilter(filter);
+                assertArrayEquals(image.getPixels(), run(pipeline, pixels));
+            }
+    }
+
+    /** A filter whose weights are not fractions rounds each sum down, in
+     *  every window
+     */
+    @Test
+    public void otherWeightsRoundDown() throws IOException
+    {
+        double [] [] filter = new double [7] [7];
+        double sum = 0;
+        for (int y = 0; y < 7; y ++)
+            for (int x = 0; x < 7; x ++)
+            {
+                filter[y][x] = Math.exp(-((x - 3) * (x - 3) + (y - 3) * (y - 3)) / 4.5);
+                sum += filter[y][x];
+            }
+        for (double [] row : filter)
+            for (int x = 0; x < 7; x ++)
+                row[x] /= sum;
+        int [] [] pixels = TestImages.random(new Random(5), 200, 45);
+        ScanlinePipeline pipeline = new ScanlinePipeline();
+        pipeline.applyFilter(filter);
+        TestImages.assertRoundedDown("gaussian", pixels, filter, run(pipeline, pixels));
+    }
+
+    /** Add a stage to a pipeline, and apply its operation to an image
+     *
+     *  @param stage which stage to add
+     *  @param pipeline the pipeline
+     *  @param image the image
+     */
+    private static void add(int stage, ScanlinePipeline pipeline, ProjectImage image)
+    {
+        switch (stage)
+        {
+            case 0: pipeline.lighten(); image.lighten(); break;
+            case 1: pipeline.darken(); image.darken(); break;
+            case 2: pipeline.negative(); image.negative(); break;
+            case 3: pipeline.flipHorizontally(); image.flipHorizontally(); break;
+            case 4: pipeline.shiftHorizontally(-13); image.shiftHorizontally(-13); break;
+            case 5: pipeline.encryptDecrypt(31); image.encryptDecrypt(31); break;
+            case 6:
+                pipeline.encryptDecrypt(31, ProjectImage.EncryptionMode.COUNTER);
+                image.encryptDecrypt(31, ProjectImage.EncryptionMode.COUNTER);
+                break;
+            case 7: pipeline.halve(); image.halve(); break;
+            case 8: pipeline.applyFilter(SHARPEN); image.applyFilter(SHARPEN); break;
+            case 9: pipeline.applyFilter(BINOMIAL); image.applyFilter(BINOMIAL); break;
+            default: pipeline.applyFilter(BOX); image.applyFilter(BOX); break;
+        }
+    }
+
+    /** Run a pipeline over pixels
+     *
+     *  @param pipeline the pipeline
+     *  @param pixels the pixels it reads
+     *  @return the pixels it writes
+     *  @exception IOException never, since the source and sink are arrays
+     */
+    static int [] [] run(ScanlinePipeline pipeline, final int [] [] pixels) throws IOException
+    {
+        final int [] [] [] result = new int [1] [] [];
+        pipeline.run(new ScanlineSource() {
+            public int getWidth()
+            {
+                return pixels.length == 0 ? 0 : pixels[0].length;
+            }
+
+            public int getHeight()
+            {
+                return pixels.length;
+            }
+
+            public void readRow(int [] row)
+            {
+                System.arraycopy(pixels[next ++], 0, row, 0, row.length);
+            }
+
+            private int next;
+        }, new ScanlineSink() {
+            public void start(int width, int height)
+            {
+                result[0] = new int [height] [width];
+            }
+
+            public void writeRow(int [] row)
+            {
+                System.arraycopy(row, 0, result[0][next ++], 0, result[0][0].length);
+            }
+
+            public void finish()
+            {
+                assertEquals(result[0].length, next);
+            }
+
+            private int next;
+        });
+        return result[0];
+    }
+
+    // The number of stages add() knows
+
+    private static final int STAGES = 11;
+
+    // The sizes of image tried: tiny, smaller than a filter window, and tall
+    // enough to take several windows
+
+    private static final int [] [] SIZES = { { 1, 1 }, { 5, 8 }, { 20, 33 }, { 157, 41 } };
+
+    // Filters of fractions, for the three kinds of pass
+
+    private static final double [] [] SHARPEN = {
+        { -0.1, -0.1, -0.1 },
+        { -0.1,  1.8, -0.1 },
+        { -0.1, -0.1, -0.1 }
+    };
+
+    private static final double [] [] BINOMIAL = {
+        { 1 / 81.0, 2 / 81.0, 3 / 81.0, 2 / 81.0, 1 / 81.0 },
+        { 2 / 81.0, 4 / 81.0, 6 / 81.0, 4 / 81.0, 2 / 81.0 },
+        { 3 / 81.0, 6 / 81.0, 9 / 81.0, 6 / 81.0, 3 / 81.0 },
+        { 2 / 81.0, 4 / 81.0, 6 / 81.0, 4 / 81.0, 2 / 81.0 },
+        { 1 / 81.0, 2 / 81.0, 3 / 81.0, 2 / 81.0, 1 / 81.0 }
+    };
+
+    private static final double [] [] BOX = {
+        { 1 / 9.0, 1 / 9.0, 1 / 9.0 },
+        { 1 / 9.0, 1 / 9.0, 1 / 9.0 },
+        { 1 / 9.0, 1 / 9.0, 1 / 9.0 }
+    };
+}
@@ -0,0 +1,347 @@
+/* SelectionTest.java
+ *
+ *  Part of ImageEditor project - checks selections, and that an operation
+ *  restricted to one changes exactly the selected pixels, each as the same
+ *  operation on the whole image would.
+ */
+
+package imageeditor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.Test;
+
+public class SelectionTest
+{
+    /** Union and intersection select the pixels they should, and the area
+     *  and bounds are those of those pixels
+     */
+    @Test
+    public void combinesMasks()
+    {
+        Random random = new Random(1);
+        for (int trial = 0; trial < 50; trial ++)
+        {
+            int width = 1 + random.nextInt(30);
+            int height = 1 + random.nextInt(30);
+            boolean [] [] first = randomMask(random, height, width);
+            boolean [] [] second = randomMask(random, height, width);
+            int shift = random.nextInt(7) - 3;
+            Selection a = Selection.fromMask(0, 0, first);
+            Selection b = Selection.fromMask(shift, -shift, second);
+            Selection union = a.union(b);
+            Selection intersection = a.intersection(b);
+
+            long area = 0;
+            Rectangle bounds = null;
+            for (int y = -5; y < height + 5; y ++)
+                for (int x = -5; x < width + 5; x ++)
+                {
+                    boolean inA = inMask(first, x, y);
+                    boolean inB = inMask(second, x - shift, y + shift);
+                    assertEquals(inA, a.contains(x, y));
+                    assertEquals(inB, b.contains(x, y));
+                    assertEquals(inA || inB, union.contains(x, y));
+                    assertEquals(inA && inB, intersection.contains(x, y));
+                    if (inA || inB)
+                    {
+                        area ++;
+                        Rectangle pixel = new Rectangle(x, y, 1, 1);
+                        bounds = bounds == null ? pixel : bounds.union(pixel);
+                    }
+                }
+            assertEquals(area, union.getArea());
+            assertEquals(area == 0, union.isEmpty());
+            if (bounds != null)
+                assertEquals(bounds, union.getBounds());
+        }
+    }
+
+    /** Point operations change only the selected pixels, gray or color,
+     *  on the heap or off it
+     */
+    @Test
+    public void pointOperationsChangeOnlySelection() throws IOException
+    {
+        Random random = new Random(2);
+        for (int trial = 0; trial < 24; trial ++)
+        {
+            boolean color = trial % 2 == 1;
+            int [] [] pixels = randomPixels(random, color);
+            boolean [] [] mask = randomMask(random, pixels.length, pixels[0].length);
+            ProjectImage image = selected(pixels, color, mask, trial % 3 == 0);
+            ProjectImage whole = color ? TestImages.color(pixels) : TestImages.gray(pixels);
+            switch (trial % 4)
+            {
+                case 0: image.lighten(); whole.lighten(); break;
+                case 1: image.darken(); whole.darken(); break;
+                case 2: image.negative(); whole.negative(); break;
+                default:
+                    image.encryptDecrypt(trial, ProjectImage.EncryptionMode.COUNTER);
+                    whole.encryptDecrypt(trial, ProjectImage.EncryptionMode.COUNTER);
+                    break;
+            }
+            assertArrayEquals("trial " + trial, merge(pixels, whole.getPixels(), mask),
+                              image.getPixels());
+        }
+    }
+
+    /** A filter changes only the selected pixels, but reads the pixels
+     *  around them as a filter of the whole image does
+     */
+    @Test
+    public void filtersChangeOnlySelection() throws IOException
+    {
+        Random random = new Random(3);
+        for (int trial = 0; trial < 24; trial ++)
+        {
+            boolean color = trial % 2 == 1;
+            int [] [] pixels = randomPixels(random, color);
+            boolean [] [] mask = randomMask(random, pixels.length, pixels[0].length);
+            ProjectImage image = selected(pixels, color, mask, trial % 3 == 0);
+            ProjectImage whole = color ? TestImages.color(pixels) : TestImages.gray(pixels);
+            double [] [] filter = FILTERS[trial % FILTERS.length];
+            image.applyFilter(filter);
+            whole.applyFilter(filter);
+            assertArrayEquals("trial " + trial, merge(pixels, whole.getPixels(), mask),
+                              image.getPixels());
+        }
+    }
+
+    /** The contrast operations compare each selected pixel with the
+     *  average of the selected pixels only
+     */
+    @Test
+    public void contrastUsesSelectedAverage()
+    {
+        Random random = new Random(4);
+        int [] [] pixels = TestImages.random(random, 50, 60);
+        boolean [] [] mask = new boolean [50] [60];
+        long total = 0;
+        int count = 0;
+        for (int y = 10; y < 30; y ++)
+            for (int x = 5; x < 25; x ++)
+            {
+                pixels[y][x] = 200 + random.nextInt(56);
+                mask[y][x] = true;
+                total += pixels[y][x];
+                count ++;
+            }
+        int average = (int) (total / count);
+
+        ProjectImage image = TestImages.gray(pixels);
+        image.setSelection(Selection.fromMask(0, 0, mask));
+        image.reduceContrast();
+        int [] [] expected = TestImages.copy(pixels);
+        for (int y = 10; y < 30; y ++)
+            for (int x = 5; x < 25; x ++)
+                if (pixels[y][x] > average)
+                    expected[y][x] -= 3;
+                else if (pixels[y][x] < average)
+                    expected[y][x] += 3;
+        assertArrayEquals(expected, image.getPixels());
+    }
+
+    /** Encryption by the original random keystream draws one value for
+     *  each selected pixel, row by row, and so undoes itself
+     */
+    @Test
+    public void randomEncryptionCoversSelection()
+    {
+        Random random = new Random(5);
+        int [] [] pixels = TestImages.random(random, 40, 70);
+        boolean [] [] mask = randomMask(random, 40, 70);
+        ProjectImage image = TestImages.gray(pixels);
+        image.setSelection(Selection.fromMask(0, 0, mask));
+
+        int key = 321;
+        Random keystream = new Random(key);
+        int [] [] expected = TestImages.copy(pixels);
+        for (int y = 0; y < 40; y ++)
+            for (int x = 0; x < 70; x ++)
+                if (mask[y][x])
+                    expected[y][x] ^= key + keystream.nextInt(256);
+        image.encryptDecrypt(key);
+        assertArrayEquals(expected, image.getPixels());
+        image.encryptDecrypt(key);
+        assertArrayEquals(pixels, image.getPixels());
+    }
+
+    /** The histogram counts only the selected pixels
+     */
+    @Test
+    public void histogramCountsSelection()
+    {
+        Random random = new Random(6);
+        int [] [] pixels = TestImages.random(random, 45, 35);
+        boolean [] [] mask = randomMask(random, 45, 35);
+        ProjectImage image = TestImages.gray(pixels);
+        image.setSelection(Selection.fromMask(0, 0, mask));
+        int [] expected = new int [256];
+        for (int y = 0; y < 45; y ++)
+            for (int x = 0; x < 35; x ++)
+                if (mask[y][x])
+                    expected[pixels[y][x]] ++;
+        assertArrayEquals(expected, image.calculateHistogram());
+
+        image.setSelection(null);
+        assertArrayEquals(new BaselineImage(pixels).calculateHistogram(),
+                          image.calculateHistogram());
+    }
+
+    /** Nothing is changed through an empty selection, or one lying outside
+     *  the image
+     */
+    @Test
+    public void emptySelectionChangesNothing()
+    {
+        int [] [] pixels = TestImages.random(new Random(7), 20, 20);
+        ProjectImage image = TestImages.gray(pixels);
+        image.setSelection(Selection.EMPTY);
+        image.negative();
+        image.applyFilter(FILTERS[0]);
+        image.encryptDecrypt(5);
+        image.setSelection(Selection.rectangle(30, 30, 10, 10));
+        image.lighten();
+        assertArrayEquals(pixels, image.getPixels());
+        assertEquals(0, image.calculateHistogram()[pixels[0][0]]);
+    }
+
+    /** An edit through a selection is undone and redone like any other
+     */
+    @Test
+    public void selectionEditsUndo()
+    {
+        int [] [] pixels = TestImages.random(new Random(8), 64, 200);
+        ProjectImage image = TestImages.gray(pixels);
+        image.setHistoryBudget(1L << 24);
+        image.setSelection(Selection.rectangle(70, 10, 20, 30));
+        image.applyFilter(FILTERS[1]);
+        int [] [] filtered = image.getPixels();
+        image.setSelection(Selection.rectangle(0, 0, 10, 10));
+        image.negative();
+        image.setSelection(null);
+
+        image.undo();
+        assertArrayEquals(filtered, image.getPixels());
+        image.undo();
+        assertArrayEquals(pixels, image.getPixels());
+        assertFalse(image.canUndo());
+        image.redo();
+        assertArrayEquals(filtered, image.getPixels());
+        assertTrue(image.canRedo());
+    }
+
+    /** Make random pixels of a random size
+     *
+     *  @param random the source of the size and values
+     *  @param color true for packed colors, false for gray values
+     *  @return the pixels
+     */
+    private static int [] [] randomPixels(Random random, boolean color)
+    {
+        int height = 1 + random.nextInt(90);
+        int width = 1 + random.nextInt(90);
+        return color ? TestImages.randomColors(random, height, width)
+                     : TestImages.random(random, height, width);
+    }
+
+    /** Make an image with a selection
+     *
+     *  @param pixels its pixels
+     *  @param color true if they are packed colors
+     *  @param mask the pixels to select
+     *  @param mapped true to keep the image off the heap
+     *  @return the image
+     */
+    private static ProjectImage selected(int [] [] pixels, boolean color, boolean [] [] mask,
+                                         boolean mapped) throws IOException
+    {
+        ProjectImage image = color ? TestImages.color(pixels) : TestImages.gray(pixels);
+        if (mapped)
+            image.useMappedStorage();
+        image.setSelection(Selection.fromMask(0, 0, mask));
+        return image;
+    }
+
+    /** Make a random mask - scattered pixels, a checkerboard of blocks, or
+     *  a disc
+     *
+     *  @param random the source of the mask
+     *  @param height the number of rows
+     *  @param width the number of columns
+     *  @return the mask
+     */
+    private static boolean [] [] randomMask(Random random, int height, int width)
+    {
+        int kind = random.nextInt(3);
+        boolean [] [] mask = new boolean [height] [width];
+        for (int y = 0; y < height; y ++)
+            for (int x = 0; x < width; x ++)
+            {
+                int dx = x - width / 2;
+                int dy = y - height / 2;
+                mask[y][x] = kind == 0 ? random.nextInt(3) == 0
+                           : kind == 1 ? (x / 7 + y / 5) % 2 == 0
+                           : dx * dx + dy * dy < width * height / 8;
+            }
+        return mask;
+    }
+
+    /** Find out whether a mask selects a pixel
+     *
+     *  @param mask the mask
+     *  @param x the column, which may lie outside the mask
+     *  @param y the row, which may lie outside the mask
+     *  @return true if the pixel lies in the mask and is selected
+     */
+    private static boolean inMask(boolean [] [] mask, int x, int y)
+    {
+        return y >= 0 && y < mask.length && x >= 0 && x < mask[y].length && mask[y][x];
+    }
+
+    /** Take the selected pixels from one image and the rest from another
+     *
+     *  @param original the pixels outside the selection
+     *  @param changed the pixels inside it
+     *  @param mask the selection
+     *  @return the merged pixels
+     */
+    private static int [] [] merge(int [] [] original, int [] [] changed, boolean [] [] mask)
+    {
+        int [] [] result = TestImages.copy(original);
+        for (int y = 0; y < result.length; y ++)
+            for (int x = 0; x < result[y].length; x ++)
+                if (mask[y][x])
+                    result[y][x] = changed[y][x];
+        return result;
+    }
+
+    // The filters offered by the GUI's Blur, Sharpen and Edges buttons
+
+    private static final double [] [] [] FILTERS = {
+        {
+            { 0.0625, 0.0625, 0.0625 },
+            { 0.0625, 0.5, 0.0625 },
+            { 0.0625, 0.0625, 0.0625 }
+        },
+        {
+            { -0.1, -0.1, -0.1 },
+            { -0.1, 1.8, -0.1 },
+            { -0.1, -0.1, -0.1 }
+        },
+        {
+            { -1, -1, -1, -1, -1 },
+            { -1,  1,  1,  1, -1 },
+            { -1,  1,  8,  1, -1 },
+            { -1,  1,  1,  1, -1 },
+            { -1, -1, -1, -1, -1 }
+        }
+    };
+}
@@ -0,0 +1,166 @@
+/* TestImages.java
+ *
+ *  Part of ImageEditor project - makes the images the tests work on, and
+ *  checks images filtered with weights that are not fractions.
+ */
+
+package imageeditor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.ColorModel;
+import java.util.Arrays;
+import java.util.Random;
+
+final class TestImages
+{
+    // This class is not meant to be instantiated
+
+    private TestImages()
+    {
+    }
+
+    /** Make a grayscale image
+     *
+     *  @param pixels the values of its pixels, which are copied
+     *  @return the image
+     */
+    static ProjectImage gray(int [] [] pixels)
+    {
+        return new ProjectImage(new GrayScaleColorModel(), copy(pixels));
+    }
+
+    /** Make a color image
+     *
+     *  @param pixels the packed colors of its pixels, which are copied
+     *  @return the image
+     */
+    static ProjectImage color(int [] [] pixels)
+    {
+        return new ProjectImage(ColorModel.getRGBdefault(), copy(pixels));
+    }
+
+    /** Make pixels of random grayscale values
+     *
+     *  @param random the source of the values
+     *  @param height the number of rows
+     *  @param width the number of columns
+     *  @return the pixels
+     */
+    static int [] [] random(Random random, int height, int width)
+    {
+        int [] [] pixels = new int [height] [width];
+        for (int row = 0; row < height; row ++)
+            for (int col = 0; col < width; col ++)
+                pixels[row][col] = random.nextInt(256);
+        return pixels;
+    }
+
+    /** Make pixels of random opaque colors
+     *
+     *  @param random the source of the colors
+     *  @param height the number of rows
+     *  @param width the number of columns
+     *  @return the pixels
+     */
+    static int [] [] randomColors(Random random, int height, int width)
+    {
+        int [] [] pixels = new int [height] [width];
+        for (int row = 0; row < height; row ++)
+            for (int col = 0; col < width; col ++)
+                pixels[row][col] = random.nextInt() | 0xff000000;
+        return pixels;
+    }
+
+    /** Make pixels all of one value
+     *
+     *  @param height the number of rows
+     *  @param width the number of columns
+     *  @param value the value of every pixel
+     *  @return the pixels
+     */
+    static int [] [] flat(int height, int width, int value)
+    {
+        int [] [] pixels = new int [height] [width];
+        for (int row = 0; row < height; row ++)
+            Arrays.fill(pixels[row], value);
+        return pixels;
+    }
+
+    /** Copy pixels
+     *
+     *  @param pixels the pixels to copy
+     *  @return a copy sharing no rows with them
+     */
+    static int [] [] copy(int [] [] pixels)
+    {
+        int [] [] result = new int [pixels.length] [];
+        for (int row = 0; row < pixels.length; row ++)
+            result[row] = pixels[row].clone();
+        return result;
+    }
+
+    /** Check pixels filtered with weights that are not fractions with a
+     *  small denominator.  Each must be the weighted sum, worked out in
+     *  doubles, rounded down and forced into 0 .. 255 - except that a sum
+     *  within NEAR_WHOLE of a whole number may have been rounded to either
+     *  side of it.  The border must be as it was
+     *
+     *  @param message what was filtered
+     *  @param pixels the pixels before filtering
+     *  @param filter the filter
+     *  @param result the pixels after filtering
+     */
+    static void assertRoundedDown(String message, int [] [] pixels, double [] [] filter,
+                                  int [] [] result)
+    {
+        int border = filter.length / 2;
+        assertEquals(message, pixels.length, result.length);
+        for (int row = 0; row < pixels.length; row ++)
+        {
+            if (row < border || row >= pixels.length - border)
+            {
+                assertArrayEquals(message, pixels[row], result[row]);
+                continue;
+            }
+            for (int col = 0; col < pixels[row].length; col ++)
+            {
+                if (col < border || col >= pixels[row].length - border)
+                {
+                    assertEquals(message, pixels[row][col], result[row][col]);
+                    continue;
+                }
+                double sum = 0;
+                for (int y = 0; y < filter.length; y ++)
+                    for (int x = 0; x < filter.length; x ++)
+                        sum += filter[y][x] * pixels[row + y - border][col + x - border];
+                double whole = Math.rint(sum);
+                if (Math.abs(sum - whole) > NEAR_WHOLE)
+                    assertEquals(message + " at " + row + ", " + col,
+                                 clamp(Math.floor(sum)), result[row][col]);
+                else
+                    assertTrue(message + " at " + row + ", " + col,
+                               result[row][col] == clamp(whole)
+                               || result[row][col] == clamp(whole - 1));
+            }
+        }
+    }
+
+    /** Force a value into the range 0 .. 255
+     *
+     *  @param value the value
+     *  @return the nearest value in range
+     */
+    private static int clamp(double value)
+    {
+        return (int) Math.max(0, Math.min(255, value));
+    }
+
+    // How near a filtered value worked out in doubles must be to a whole
+    // number for the ways of filtering to be allowed to round it differently
+    // - far more than the error of any of them
+
+    private static final double NEAR_WHOLE = 1e-6;
+}